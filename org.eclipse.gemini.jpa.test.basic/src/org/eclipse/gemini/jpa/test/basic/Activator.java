@@ -30,6 +30,7 @@ public class Activator extends TestActivator {
 
     String[] classNames = { 
             "TestEMFService",
+            "TestEMFServiceDispatch",
             "TestEMFBuilderService",
             "TestEMFBuilderServiceProperties",
             "TestEMFBuilderExternalDataSource",
@@ -43,6 +44,7 @@ public class Activator extends TestActivator {
     public String[] getTestClasses() { return classNames; }
     public void setBundleContext(BundleContext ctx) { 
         TestEMFService.ctx = ctx;
+        TestEMFServiceDispatch.ctx = ctx;
         TestEMFBuilderService.ctx = ctx;
         TestEMFBuilderServiceProperties.ctx = ctx;
         TestEMFBuilderExternalDataSource.ctx = ctx;
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.test.basic;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.*;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Test and benchmark of calls on the EMF service. The registered (generated 
+ * delegate) service object is compared with a reflective proxy built on the 
+ * service's own EMFServiceProxyHandler, i.e. the way the EMF service used to 
+ * be implemented. Both must behave the same way. The timings are only logged, 
+ * since they depend on the machine.
+ */
+public class TestEMFServiceDispatch extends AccountTest {
+        
+    public static final String TEST_NAME = "TestEMFServiceDispatch";
+    public static final String PERSISTENCE_UNIT_UNDER_TEST = "Accounts";
+
+    // Number of calls to warm up with and to time
+    public static final int WARM_UP_CALLS = 20000;
+    public static final int TIMED_CALLS = 200000;
+
+    protected static EntityManagerFactory emf;
+    public static BundleContext ctx;
+
+    /* === Test Methods === */
+
+    @BeforeClass
+    public static void classSetUp() {
+        sdebug(TEST_NAME, "In setup");
+        emf = lookupEntityManagerFactory(TEST_NAME, PERSISTENCE_UNIT_UNDER_TEST, ctx);
+        sdebug(TEST_NAME, "Got EMF - " + emf);
+    }
+
+    @AfterClass
+    public static void classCleanUp() {
+        // The EMF is shared by the service, so leave it open for the other tests
+        emf = null;
+    }
+    
+    @Test
+    public void testServiceIsNotReflectiveProxy() {
+        debug("testServiceIsNotReflectiveProxy - service class: " + emf.getClass().getName());
+        Assert.assertFalse("EMF service should not be a reflective proxy", 
+                           Proxy.isProxyClass(emf.getClass()));
+    }
+
+    @Test
+    public void testSameBehaviorAsProxyHandler() {
+        EntityManagerFactory baseline = handlerProxy(emf);
+
+        Assert.assertEquals(baseline.isOpen(), emf.isOpen());
+        Assert.assertEquals(baseline.hashCode(), emf.hashCode());
+        Assert.assertEquals(baseline.toString(), emf.toString());
+
+        Map<String,Object> props = emf.getProperties();
+        Assert.assertNotNull("Missing PUnitInfo entry", props.get("PUnitInfo"));
+        Assert.assertEquals(baseline.getProperties(), props);
+
+        Assert.assertSame(baseline.getMetamodel(), emf.getMetamodel());
+        Assert.assertSame(baseline.getCriteriaBuilder(), emf.getCriteriaBuilder());
+
+        EntityManager em1 = baseline.createEntityManager();
+        EntityManager em2 = emf.createEntityManager();
+        try {
+            Assert.assertTrue(em1.isOpen());
+            Assert.assertTrue(em2.isOpen());
+            Assert.assertEquals(em1.createQuery(queryString()).getResultList().size(), 
+                                em2.createQuery(queryString()).getResultList().size());
+        } finally {
+            em1.close();
+            em2.close();
+        }
+
+        // The service object is equal to itself (the proxy passed equals() on to the EMF)
+        Assert.assertTrue(emf.equals(emf));
+        Assert.assertFalse(emf.equals(baseline));
+    }
+
+    @Test
+    public void testDispatchBenchmark() {
+        EntityManagerFactory baseline = handlerProxy(emf);
+        
+        long direct = timeIsOpen(emf);
+        long proxied = timeIsOpen(baseline);
+        log("isOpen() x " + TIMED_CALLS + " - service: " + direct/1000000 + "ms, " +
+            "proxy handler: " + proxied/1000000 + "ms");
+
+        direct = timeCreateEntityManager(emf);
+        proxied = timeCreateEntityManager(baseline);
+        log("createEntityManager() x " + TIMED_CALLS/10 + " - service: " + direct/1000000 + "ms, " +
+            "proxy handler: " + proxied/1000000 + "ms");
+    }
+
+    /* === Helper methods === */
+
+    // Time a cheap call so that the dispatch cost is what is measured
+    long timeIsOpen(EntityManagerFactory factory) {
+        boolean open = true;
+        for (int i=0; i<WARM_UP_CALLS; i++)
+            open &= factory.isOpen();
+        long start = System.nanoTime();
+        for (int i=0; i<TIMED_CALLS; i++)
+            open &= factory.isOpen();
+        long elapsed = System.nanoTime() - start;
+        Assert.assertTrue(open);
+        return elapsed;
+    }
+
+    // Time the call that clients make on every request
+    long timeCreateEntityManager(EntityManagerFactory factory) {
+        for (int i=0; i<WARM_UP_CALLS/10; i++)
+            factory.createEntityManager().close();
+        long start = System.nanoTime();
+        for (int i=0; i<TIMED_CALLS/10; i++) {
+            EntityManager em = factory.createEntityManager();
+            Assert.assertTrue(em.isOpen());
+            em.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    // Return a reflective proxy that dispatches through the service's own proxy handler. 
+    // The delegate classes are internal to Gemini JPA so the handler is got reflectively.
+    static EntityManagerFactory handlerProxy(EntityManagerFactory service) {
+        InvocationHandler handler;
+        try {
+            handler = (InvocationHandler) service.getClass().getMethod("getHandler").invoke(service);
+        } catch (Exception ex) {
+            throw new AssertionError("EMF service is not a generated delegate: " + ex);
+        }
+        return (EntityManagerFactory) Proxy.newProxyInstance(
+                TestEMFServiceDispatch.class.getClassLoader(), 
+                new Class<?>[] { EntityManagerFactory.class }, 
+                handler);
+    }
+
+    /* === Subclassed methods === */
+
+    public EntityManagerFactory getEmf() { return emf; }
+
+    public String getTestPersistenceUnitName() { return PERSISTENCE_UNIT_UNDER_TEST; }
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+/**
+ * In-memory stand-in for a provider EMF and the EntityManagers it creates. 
+ * Used by the tests of the internal services that only need to know whether 
+ * an EMF or EM is open and where an EM came from.
+ */
+public class FakeEntityManagerFactory implements InvocationHandler {
+
+    String name;
+    volatile boolean open = true;
+    List<EntityManager> created = new ArrayList<EntityManager>();
+    EntityManagerFactory proxy;
+
+    public FakeEntityManagerFactory(String name) {
+        this.name = name;
+        this.proxy = (EntityManagerFactory) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[] { EntityManagerFactory.class }, this);
+    }
+
+    public EntityManagerFactory getEmf() { return proxy; }
+
+    public String getName() { return name; }
+
+    public synchronized List<EntityManager> getCreated() { 
+        return new ArrayList<EntityManager>(created); 
+    }
+
+    // The EMF properties, which subclasses can change
+    protected Map<String,Object> getProperties() { 
+        return new HashMap<String,Object>(); 
+    }
+
+    public Object invoke(Object p, Method method, Object[] args) throws Throwable {
+        String methodName = method.getName();
+        if (methodName.equals("equals")) return p == args[0];
+        if (methodName.equals("hashCode")) return System.identityHashCode(p);
+        if (methodName.equals("toString")) return "FakeEMF(" + name + ")";
+        if (methodName.equals("isOpen")) return open;
+        if (methodName.equals("close")) { open = false; return null; }
+        if (methodName.equals("getProperties")) return getProperties();
+        if (methodName.equals("unwrap")) throw new PersistenceException("Cannot unwrap " + args[0]);
+        if (methodName.equals("createEntityManager")) {
+            if (!open) throw new IllegalStateException(name + " is closed");
+            EntityManager em = new FakeEntityManager(proxy).getEm();
+            synchronized (this) { created.add(em); }
+            return em;
+        }
+        throw new UnsupportedOperationException(methodName);
+    }
+
+    /**
+     * EntityManager with no persistence context. It has no resource-local 
+     * transaction, so getTransaction() fails the way a JTA EntityManager does.
+     */
+    public static class FakeEntityManager implements InvocationHandler {
+
+        EntityManagerFactory emf;
+        volatile boolean open = true;
+        EntityManager proxy;
+
+        public FakeEntityManager(EntityManagerFactory emf) {
+            this.emf = emf;
+            this.proxy = (EntityManager) Proxy.newProxyInstance(
+                    getClass().getClassLoader(), new Class<?>[] { EntityManager.class }, this);
+        }
+
+        public EntityManager getEm() { return proxy; }
+
+        public Object invoke(Object p, Method method, Object[] args) throws Throwable {
+            String methodName = method.getName();
+            if (methodName.equals("equals")) return p == args[0];
+            if (methodName.equals("hashCode")) return System.identityHashCode(p);
+            if (methodName.equals("toString")) return "FakeEM(" + emf + ")";
+            if (methodName.equals("isOpen")) return open;
+            if (!open) throw new IllegalStateException("EntityManager is closed");
+            if (methodName.equals("close")) { open = false; return null; }
+            if (methodName.equals("clear")) return null;
+            if (methodName.equals("getEntityManagerFactory")) return emf;
+            if (methodName.equals("getTransaction")) throw new IllegalStateException("JTA EntityManager");
+            throw new UnsupportedOperationException(methodName);
+        }
+    }
+}
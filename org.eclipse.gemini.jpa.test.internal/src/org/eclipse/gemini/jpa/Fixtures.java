@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.Version;
+
+/**
+ * Set-up shared by the tests of the internal classes. These tests run as plain 
+ * JUnit tests in the class space of the Gemini JPA bundle, without any 
+ * persistence bundles or database, so the p-units they use are created here.
+ */
+public class Fixtures {
+
+    public static PUnitInfo newUnit(String unitName) {
+        return newUnit(unitName, null);
+    }
+
+    public static PUnitInfo newUnit(String unitName, EntityManagerFactory emf) {
+        PUnitInfo info = new PUnitInfo();
+        info.setUnitName(unitName);
+        if (emf != null)
+            info.setEmf(emf);
+        return info;
+    }
+
+    /**
+     * Bundle with just enough behaviour for the internal classes to identify it
+     * and check its state. Anything else it is asked for is unsupported.
+     */
+    public static class FakeBundle implements InvocationHandler {
+        public long id;
+        public String symbolicName;
+        public Version version;
+        public volatile long lastModified = 1000;
+        public volatile int state = Bundle.ACTIVE;
+        public Hashtable<String,String> headers = new Hashtable<String,String>();
+        public Map<String,URL> entries = new HashMap<String,URL>();
+        public Map<Class<?>,Object> adaptations = new HashMap<Class<?>,Object>();
+        Bundle bundle;
+
+        public FakeBundle(long id, String symbolicName, String version) { 
+            this.id = id;
+            this.symbolicName = symbolicName; 
+            this.version = new Version(version);
+            this.bundle = (Bundle) Proxy.newProxyInstance(Bundle.class.getClassLoader(), 
+                                                          new Class<?>[] { Bundle.class }, this);
+        }
+
+        public Bundle getBundle() { return bundle; }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getBundleId")) return id;
+            if (name.equals("getSymbolicName")) return symbolicName;
+            if (name.equals("getVersion")) return version;
+            if (name.equals("getLastModified")) return lastModified;
+            if (name.equals("getState")) return state;
+            if (name.equals("getHeaders")) return headers;
+            if (name.equals("getEntry")) return entries.get(args[0]);
+            if (name.equals("adapt")) return adaptations.get(args[0]);
+            if (name.equals("hashCode")) return System.identityHashCode(proxy);
+            if (name.equals("equals")) return proxy == args[0];
+            if (name.equals("toString")) return "FakeBundle(" + symbolicName + ")";
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    /**
+     * Service registration that only records whether it has been unregistered
+     */
+    @SuppressWarnings("rawtypes")
+    public static class FakeRegistration implements ServiceRegistration {
+        volatile boolean unregistered;
+
+        public boolean isUnregistered() { return unregistered; }
+
+        public ServiceReference getReference() { throw new UnsupportedOperationException(); }
+        public void setProperties(java.util.Dictionary props) { throw new UnsupportedOperationException(); }
+        public void unregister() {
+            if (unregistered) throw new IllegalStateException("Already unregistered");
+            unregistered = true;
+        }
+    }
+}
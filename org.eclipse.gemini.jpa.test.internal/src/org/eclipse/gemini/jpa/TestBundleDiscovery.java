@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.gemini.jpa.Fixtures.FakeBundle;
+import org.eclipse.gemini.jpa.PersistenceBundleExtender.DiscoveredBundle;
+import org.osgi.framework.Bundle;
+import org.junit.*;
+
+/**
+ * Test class to test that the bundles already installed at startup are 
+ * discovered in parallel
+ */
+public class TestBundleDiscovery {
+
+    public static final String DISCOVERED_UNIT_NAME = "TestBundleDiscoveryUnit";
+    public static final int DISCOVERY_THREADS = 3;
+
+    int discoveryThreads;
+    boolean refreshPersistenceBundles;
+    GeminiManager mgr;
+
+    @Before
+    public void setUp() {
+        discoveryThreads = GeminiSystemProperties.discoveryThreads();
+        refreshPersistenceBundles = GeminiSystemProperties.refreshPersistenceBundles();
+        GeminiSystemProperties.setDiscoveryThreads(DISCOVERY_THREADS);
+        // Every unassigned persistence bundle is then assigned right away
+        GeminiSystemProperties.setRefreshPersistenceBundles(false);
+        mgr = new GeminiManager();
+        mgr.stateStore = new PUnitStateStore();
+    }
+
+    @After
+    public void tearDown() {
+        GeminiSystemProperties.setDiscoveryThreads(discoveryThreads);
+        GeminiSystemProperties.setRefreshPersistenceBundles(refreshPersistenceBundles);
+    }
+
+    /* === Test Methods === */
+
+    @Test
+    public void testBundlesAreDiscoveredInParallel() throws Exception {
+        // Each bundle waits until all of them are being parsed at once
+        final CountDownLatch allParsing = new CountDownLatch(DISCOVERY_THREADS);
+        PersistenceBundleExtender extender = new PersistenceBundleExtender(mgr) {
+            protected Set<PUnitInfo> findPersistenceUnitsInBundle(Bundle b) {
+                allParsing.countDown();
+                try {
+                    if (!allParsing.await(10, TimeUnit.SECONDS))
+                        throw new IllegalStateException("Not parsed in parallel");
+                } catch (InterruptedException iEx) {
+                    throw new IllegalStateException(iEx);
+                }
+                return Collections.singleton(Fixtures.newUnit(DISCOVERED_UNIT_NAME + b.getBundleId()));
+            }
+        };
+        Bundle[] bundles = new Bundle[] { 
+                persistenceBundle(1), persistenceBundle(2), persistenceBundle(3), otherBundle(4) };
+
+        Map<Long, DiscoveredBundle> discovered = extender.discoverBundles(bundles);
+        Assert.assertEquals(4, discovered.size());
+        for (long id = 1; id <= 3; id++) {
+            Assert.assertTrue(discovered.get(id).persistenceBundle);
+            Assert.assertEquals(DISCOVERED_UNIT_NAME + id, 
+                                discovered.get(id).pUnits.iterator().next().getUnitName());
+        }
+        Assert.assertFalse(discovered.get(4L).persistenceBundle);
+        Assert.assertNull(discovered.get(4L).pUnits);
+    }
+
+    @Test
+    public void testFailedBundleIsLeftOut() throws Exception {
+        PersistenceBundleExtender extender = new PersistenceBundleExtender(mgr) {
+            protected Set<PUnitInfo> findPersistenceUnitsInBundle(Bundle b) {
+                if (b.getBundleId() == 1)
+                    throw new IllegalStateException("Bad descriptor");
+                // Nothing found, so it was put in limbo
+                return null;
+            }
+        };
+        Map<Long, DiscoveredBundle> discovered = extender.discoverBundles(
+                new Bundle[] { persistenceBundle(1), persistenceBundle(2) });
+
+        // Left to be processed (and the error reported) the normal way
+        Assert.assertNull(discovered.get(1L));
+        Assert.assertTrue(discovered.get(2L).pUnits.isEmpty());
+    }
+
+    @Test
+    public void testSingleThreadDiscoversNothing() throws Exception {
+        GeminiSystemProperties.setDiscoveryThreads(1);
+        PersistenceBundleExtender extender = new PersistenceBundleExtender(mgr);
+        Assert.assertTrue(extender.discoverBundles(
+                new Bundle[] { persistenceBundle(1), persistenceBundle(2) }).isEmpty());
+    }
+
+    /* === Helper methods === */
+
+    Bundle persistenceBundle(long id) {
+        FakeBundle b = new FakeBundle(id, "test.discovery.persistence" + id, "1.0");
+        b.state = Bundle.RESOLVED;
+        b.headers.put(PersistenceUnitBundleUtil.JPA_MANIFEST_HEADER, "META-INF/persistence.xml");
+        return b.getBundle();
+    }
+
+    Bundle otherBundle(long id) {
+        return new FakeBundle(id, "test.discovery.other" + id, "1.0").getBundle();
+    }
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import org.eclipse.gemini.jpa.Fixtures.FakeBundle;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.junit.*;
+
+/**
+ * Test class to test that the extender only keeps the manifest metadata of 
+ * bundles while it is current
+ */
+public class TestBundleMetadata {
+
+    public static final String PERSISTENCE_BUNDLE_NAME = "test.metadata.persistence";
+    public static final String OTHER_BUNDLE_NAME = "test.metadata.other";
+
+    PersistenceBundleExtender extender;
+
+    @Before
+    public void setUp() {
+        extender = new PersistenceBundleExtender();
+    }
+
+    /* === Test Methods === */
+
+    @Test
+    public void testMetadataIsCached() throws Exception {
+        FakeBundle b = persistenceBundle(1);
+        Assert.assertTrue(extender.isPersistenceUnitBundle(b.getBundle()));
+        Assert.assertSame(extender.metadataFor(b.getBundle()), extender.metadataFor(b.getBundle()));
+    }
+
+    @Test
+    public void testUpdatedBundleIsReread() throws Exception {
+        FakeBundle b = persistenceBundle(1);
+        Assert.assertTrue(extender.isPersistenceUnitBundle(b.getBundle()));
+
+        // Updated without us having seen the event
+        b.headers.remove(PersistenceUnitBundleUtil.JPA_MANIFEST_HEADER);
+        b.lastModified++;
+        Assert.assertFalse(extender.isPersistenceUnitBundle(b.getBundle()));
+    }
+
+    @Test
+    public void testOtherBundlesAreDiscarded() throws Exception {
+        FakeBundle updated = new FakeBundle(2, OTHER_BUNDLE_NAME, "1.0");
+        FakeBundle uninstalled = new FakeBundle(3, OTHER_BUNDLE_NAME + ".2", "1.0");
+        Assert.assertFalse(extender.isPersistenceUnitBundle(updated.getBundle()));
+        Assert.assertFalse(extender.isPersistenceUnitBundle(uninstalled.getBundle()));
+        Assert.assertEquals(2, extender.bundleMetadata.size());
+
+        // The tracker does not tell us about these, the listener does
+        extender.metadataListener.bundleChanged(new BundleEvent(BundleEvent.UPDATED, updated.getBundle()));
+        uninstalled.state = Bundle.UNINSTALLED;
+        extender.metadataListener.bundleChanged(new BundleEvent(BundleEvent.UNINSTALLED, uninstalled.getBundle()));
+        Assert.assertTrue(extender.bundleMetadata.isEmpty());
+    }
+
+    @Test
+    public void testUninstalledBundleIsNotCached() throws Exception {
+        FakeBundle b = persistenceBundle(4);
+        b.state = Bundle.UNINSTALLED;
+        Assert.assertTrue(extender.isPersistenceUnitBundle(b.getBundle()));
+        Assert.assertTrue(extender.bundleMetadata.isEmpty());
+    }
+
+    /* === Helper methods === */
+
+    FakeBundle persistenceBundle(long id) {
+        FakeBundle b = new FakeBundle(id, PERSISTENCE_BUNDLE_NAME, "1.0");
+        b.headers.put(PersistenceUnitBundleUtil.JPA_MANIFEST_HEADER, "META-INF/persistence.xml");
+        return b;
+    }
+}
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.gemini.jpa.proxy.EMFServiceProxyHandler;
+import org.junit.*;
+
+/**
+ * Test class to test that registered p-units are deployed in the background on 
+ * the deploy pool, and that the ones that fail are recorded
+ */
+public class TestDeployPool {
+
+    public static final String DEPLOY_UNIT_NAME = "TestDeployPoolUnit";
+    public static final String FAILING_UNIT_NAME = "TestDeployPoolFailingUnit";
+    public static final int DEPLOY_THREADS = 3;
+
+    int deployThreads;
+    GeminiManager mgr;
+    DeployingServicesUtil services;
+
+    @Before
+    public void setUp() {
+        deployThreads = GeminiSystemProperties.deployThreads();
+        GeminiSystemProperties.setDeployThreads(DEPLOY_THREADS);
+        mgr = new GeminiManager();
+        mgr.stateStore = new PUnitStateStore();
+        services = new DeployingServicesUtil(mgr);
+        mgr.servicesUtil = services;
+    }
+
+    @After
+    public void tearDown() {
+        services.shutdown();
+        GeminiSystemProperties.setDeployThreads(deployThreads);
+    }
+
+    /* === Test Methods === */
+
+    @Test
+    public void testUnitsAreDeployedConcurrently() throws Exception {
+        services.concurrent = new CountDownLatch(DEPLOY_THREADS);
+        List<PUnitInfo> units = registeredUnits(DEPLOY_UNIT_NAME + 1, DEPLOY_UNIT_NAME + 2, DEPLOY_UNIT_NAME + 3);
+        // Warmed up units are deployed by the warm-up, and units without an EMF service can't be
+        PUnitInfo warmUpUnit = registeredUnits(DEPLOY_UNIT_NAME + 4).get(0);
+        warmUpUnit.setWarmUp(true);
+        PUnitInfo noServiceUnit = registeredUnits(DEPLOY_UNIT_NAME + 5).get(0);
+        noServiceUnit.setEmfService(null);
+        List<PUnitInfo> all = new ArrayList<PUnitInfo>(units);
+        all.add(warmUpUnit);
+        all.add(noServiceUnit);
+
+        mgr.deployPersistenceUnitsInParallel(all);
+        awaitDeploys();
+        Assert.assertEquals(0, services.concurrent.getCount());
+        Assert.assertEquals(3, services.deployed.size());
+        Assert.assertTrue(services.deployed.containsAll(units));
+        Assert.assertTrue(mgr.getDeploymentFailures().isEmpty());
+    }
+
+    @Test
+    public void testFailedUnitIsRecorded() throws Exception {
+        List<PUnitInfo> units = registeredUnits(DEPLOY_UNIT_NAME, FAILING_UNIT_NAME);
+        mgr.deployPersistenceUnitsInParallel(units);
+        awaitDeploys();
+
+        // The other unit is deployed anyway
+        Assert.assertEquals(Collections.singletonList(units.get(0)), services.deployed);
+        Map<String,Throwable> failures = mgr.getDeploymentFailures();
+        Assert.assertEquals(1, failures.size());
+        Assert.assertTrue(failures.get(FAILING_UNIT_NAME) instanceof IllegalStateException);
+
+        // Forgotten once the unit is gone
+        mgr.unregisterPersistenceUnits(Collections.singletonList(units.get(1)));
+        Assert.assertTrue(mgr.getDeploymentFailures().isEmpty());
+    }
+
+    @Test
+    public void testNothingDeployedOnceStopping() throws Exception {
+        services.shutdown();
+        mgr.deployPersistenceUnitsInParallel(registeredUnits(DEPLOY_UNIT_NAME));
+        Assert.assertTrue(services.deployed.isEmpty());
+        Assert.assertTrue(mgr.getDeploymentFailures().isEmpty());
+    }
+
+    /* === Helper methods === */
+
+    List<PUnitInfo> registeredUnits(String... unitNames) {
+        List<PUnitInfo> units = new ArrayList<PUnitInfo>();
+        for (String unitName : unitNames) {
+            PUnitInfo info = Fixtures.newUnit(unitName);
+            info.setEmfHandler(new EMFServiceProxyHandler(info));
+            info.setEmfService(new Fixtures.FakeRegistration());
+            mgr.stateStore.registerUnit(info);
+            units.add(info);
+        }
+        return units;
+    }
+
+    // Wait for the queued deploys to finish
+    void awaitDeploys() throws InterruptedException {
+        services.deployExecutor.shutdown();
+        Assert.assertTrue(services.deployExecutor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    // Records the units deployed instead of creating their EMFs, and fails for the failing unit
+    static class DeployingServicesUtil extends ServicesUtil {
+        List<PUnitInfo> deployed = Collections.synchronizedList(new ArrayList<PUnitInfo>());
+        // When set, each unit waits until this many are being deployed at once
+        volatile CountDownLatch concurrent;
+
+        DeployingServicesUtil(GeminiManager mgr) { super(mgr); }
+
+        public void deployEMF(PUnitInfo pUnitInfo) {
+            if (pUnitInfo.getUnitName().equals(FAILING_UNIT_NAME))
+                throw new IllegalStateException("Could not connect to database");
+            if (concurrent != null) {
+                concurrent.countDown();
+                try {
+                    if (!concurrent.await(10, TimeUnit.SECONDS))
+                        throw new IllegalStateException("Not deployed concurrently");
+                } catch (InterruptedException iEx) {
+                    throw new IllegalStateException(iEx);
+                }
+            }
+            deployed.add(pUnitInfo);
+        }
+
+        public void unregisterWeavingHookService(PUnitInfo pUnitInfo) {}
+        public void unregisterEMFServices(PUnitInfo pUnitInfo) {}
+    }
+}
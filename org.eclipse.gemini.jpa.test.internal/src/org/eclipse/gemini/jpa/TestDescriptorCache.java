@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Set;
+
+import org.eclipse.gemini.jpa.Fixtures.FakeBundle;
+import org.osgi.framework.Bundle;
+import org.junit.*;
+
+/**
+ * Test class to test that descriptor state survives being written out and 
+ * read back in, and that a cache file that can't be used is ignored
+ */
+public class TestDescriptorCache {
+
+    public static final String CACHED_UNIT_NAME = "TestDescriptorCacheUnit";
+    public static final String DESCRIPTOR_PATH = "META-INF/persistence.xml";
+    public static final String GEMINI_VERSION = "1.2.0";
+
+    File file;
+    FakeBundle bundle;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("descriptors", ".cache");
+        file.delete();
+        bundle = new FakeBundle(1, "test.descriptor.cache", "1.0");
+        bundle.entries.put(DESCRIPTOR_PATH, new URL("file:/" + DESCRIPTOR_PATH));
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /* === Test Methods === */
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        DescriptorCache cache = new DescriptorCache(file, GEMINI_VERSION);
+        cache.put(bundle.getBundle(), Collections.singleton(parsedUnit()));
+        cache.save(new Bundle[] { bundle.getBundle() });
+
+        DescriptorCache reloaded = new DescriptorCache(file, GEMINI_VERSION);
+        reloaded.load();
+        Set<PUnitInfo> pUnits = reloaded.get(bundle.getBundle());
+        Assert.assertNotNull(pUnits);
+        Assert.assertEquals(1, pUnits.size());
+        PUnitInfo info = pUnits.iterator().next();
+        Assert.assertEquals(CACHED_UNIT_NAME, info.getUnitName());
+        Assert.assertEquals(1, info.getClasses().size());
+        Assert.assertTrue(info.getClasses().contains("test.Account"));
+        Assert.assertEquals("jdbc:test:db", info.getDriverUrl());
+        Assert.assertNull(info.getJtaDataSource());
+        Assert.assertEquals(Collections.singletonList("SELECT a FROM Account a"), info.getWarmUpQueries());
+        Assert.assertTrue(info.isEmPool());
+        Assert.assertEquals(7, info.getEmPoolMaxSize());
+        Assert.assertEquals(DESCRIPTOR_PATH, info.getDescriptorInfo().getDescriptorPath());
+        Assert.assertEquals(bundle.entries.get(DESCRIPTOR_PATH), info.getDescriptorInfo().getUrl());
+    }
+
+    @Test
+    public void testChangedBundleIsMissed() throws Exception {
+        DescriptorCache cache = new DescriptorCache(file, GEMINI_VERSION);
+        cache.put(bundle.getBundle(), Collections.singleton(parsedUnit()));
+        bundle.lastModified++;
+        Assert.assertNull(cache.get(bundle.getBundle()));
+
+        // Nor is it written out, since the bundle it was for is gone
+        cache.save(new Bundle[] { bundle.getBundle() });
+        DescriptorCache reloaded = new DescriptorCache(file, GEMINI_VERSION);
+        reloaded.load();
+        Assert.assertTrue(reloaded.entries.isEmpty());
+    }
+
+    @Test
+    public void testMissingDescriptorIsMissed() throws Exception {
+        DescriptorCache cache = new DescriptorCache(file, GEMINI_VERSION);
+        cache.put(bundle.getBundle(), Collections.singleton(parsedUnit()));
+        bundle.entries.clear();
+        Assert.assertNull(cache.get(bundle.getBundle()));
+    }
+
+    @Test
+    public void testPasswordIsNotCached() throws Exception {
+        DescriptorCache cache = new DescriptorCache(file, GEMINI_VERSION);
+        PUnitInfo info = parsedUnit();
+        info.setDriverPassword("secret");
+        cache.put(bundle.getBundle(), Collections.singleton(info));
+        Assert.assertNull(cache.get(bundle.getBundle()));
+    }
+
+    @Test
+    public void testForeignVersionFileIsIgnored() throws Exception {
+        DescriptorCache cache = new DescriptorCache(file, "1.1.0");
+        cache.put(bundle.getBundle(), Collections.singleton(parsedUnit()));
+        cache.save(new Bundle[] { bundle.getBundle() });
+        Assert.assertTrue(file.exists());
+
+        DescriptorCache reloaded = new DescriptorCache(file, GEMINI_VERSION);
+        reloaded.load();
+        Assert.assertNull(reloaded.get(bundle.getBundle()));
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void testCorruptFileIsIgnored() throws Exception {
+        DescriptorCache cache = new DescriptorCache(file, GEMINI_VERSION);
+        cache.put(bundle.getBundle(), Collections.singleton(parsedUnit()));
+        cache.save(new Bundle[] { bundle.getBundle() });
+        truncate(file, file.length() / 2);
+
+        DescriptorCache reloaded = new DescriptorCache(file, GEMINI_VERSION);
+        reloaded.load();
+        Assert.assertNull(reloaded.get(bundle.getBundle()));
+
+        // Garbage from the start is no better
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] { 1, 2, 3 });
+        } finally {
+            out.close();
+        }
+        reloaded = new DescriptorCache(file, GEMINI_VERSION);
+        reloaded.load();
+        Assert.assertTrue(reloaded.entries.isEmpty());
+    }
+
+    /* === Helper methods === */
+
+    PUnitInfo parsedUnit() throws Exception {
+        PUnitInfo info = Fixtures.newUnit(CACHED_UNIT_NAME);
+        info.setDescriptorInfo(new PersistenceDescriptorInfo(
+                bundle.entries.get(DESCRIPTOR_PATH), DESCRIPTOR_PATH));
+        info.addClass("test.Account");
+        info.setDriverUrl("jdbc:test:db");
+        info.setWarmUp(true);
+        info.getWarmUpQueries().add("SELECT a FROM Account a");
+        info.setEmPool(true);
+        info.setEmPoolMaxSize(7);
+        return info;
+    }
+
+    void truncate(File f, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import org.junit.*;
+
+/**
+ * Test class to test the registered p-unit state kept by the PUnitStateStore, 
+ * in particular what happens when a p-unit name is taken over by another p-unit
+ */
+public class TestPUnitStateStore {
+        
+    public static final String COLLIDING_UNIT_NAME = "TestPUnitStateStoreUnit";
+
+    /* === Test Methods === */
+
+    @Test
+    public void testForcedUnregisterThenReRegister() throws Exception {
+        PUnitStateStore store = new PUnitStateStore();
+        PUnitInfo previous = newUnit();
+        PUnitInfo current = newUnit();
+        Assert.assertNull(store.registerUnitIfAbsent(previous));
+
+        // A collision forces the previous owner out and the new one is registered
+        Assert.assertSame(previous, store.registerUnitIfAbsent(current));
+        store.unregisterUnit(previous);
+        store.registerUnit(current);
+
+        // A late (or duplicate) unregister of the previous owner must leave the new one alone
+        store.unregisterUnit(previous);
+        Assert.assertSame(current, store.registeredUnit(COLLIDING_UNIT_NAME));
+        Assert.assertTrue(store.registeredUnits().contains(current));
+        Assert.assertFalse("Name should still be taken", 
+                           store.awaitUnregistration(COLLIDING_UNIT_NAME, 50));
+
+        // Unregistering the new owner frees the name
+        store.unregisterUnit(current);
+        Assert.assertNull(store.registeredUnit(COLLIDING_UNIT_NAME));
+        Assert.assertTrue(store.awaitUnregistration(COLLIDING_UNIT_NAME, 0));
+    }
+
+    @Test
+    public void testAbandonedUnregisterAfterReRegister() throws Exception {
+        PUnitStateStore store = new PUnitStateStore();
+        PUnitInfo abandoned = newUnit();
+        PUnitInfo current = newUnit();
+        store.registerUnit(abandoned);
+
+        // The new owner is registered over the top before the abandoned unit is cleaned up
+        store.registerUnit(current);
+        store.unregisterUnit(abandoned);
+        Assert.assertSame(current, store.registeredUnit(COLLIDING_UNIT_NAME));
+    }
+
+    @Test
+    public void testUnregisterReleasesWaiter() throws Exception {
+        final PUnitStateStore store = new PUnitStateStore();
+        final PUnitInfo info = newUnit();
+        store.registerUnit(info);
+        Thread unregisterer = new Thread() {
+            public void run() {
+                try { Thread.sleep(50); } catch (InterruptedException iEx) {}
+                store.unregisterUnit(info);
+            }
+        };
+        unregisterer.start();
+        Assert.assertTrue(store.awaitUnregistration(COLLIDING_UNIT_NAME, 5000));
+        unregisterer.join();
+    }
+
+    /* === Helper methods === */
+
+    PUnitInfo newUnit() {
+        return Fixtures.newUnit(COLLIDING_UNIT_NAME);
+    }
+}
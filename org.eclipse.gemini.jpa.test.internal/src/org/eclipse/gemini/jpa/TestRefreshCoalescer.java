@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.gemini.jpa.Fixtures.FakeBundle;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.junit.*;
+
+/**
+ * Test class to test that the bundles to refresh are batched up
+ */
+public class TestRefreshCoalescer {
+
+    public static final long REFRESH_WINDOW = 200;
+
+    FakeWiring wiring;
+    RefreshCoalescer coalescer;
+
+    @Before
+    public void setUp() {
+        wiring = new FakeWiring();
+        coalescer = new RefreshCoalescer(wiring.getContext(), REFRESH_WINDOW);
+    }
+
+    @After
+    public void tearDown() {
+        coalescer.shutdown();
+    }
+
+    /* === Test Methods === */
+
+    @Test
+    public void testBundlesAreRefreshedInOneBatch() throws Exception {
+        Bundle b1 = new FakeBundle(1, "test.refresh.one", "1.0").getBundle();
+        Bundle b2 = new FakeBundle(2, "test.refresh.two", "1.0").getBundle();
+        coalescer.refresh(b1);
+        coalescer.refresh(b2);
+        coalescer.refresh(b1);
+        Assert.assertTrue(coalescer.isRefreshing(b1));
+
+        Assert.assertTrue(wiring.refreshed.await(REFRESH_WINDOW * 10, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(1, wiring.batches.size());
+        Assert.assertEquals(2, wiring.batches.get(0).size());
+
+        // Still refreshing until the framework says it is done
+        Assert.assertTrue(coalescer.isRefreshing(b2));
+        wiring.completeRefresh();
+        Assert.assertFalse(coalescer.isRefreshing(b1));
+        Assert.assertFalse(coalescer.isRefreshing(b2));
+    }
+
+    @Test
+    public void testFailedRefreshIsNotRefreshing() throws Exception {
+        Bundle b = new FakeBundle(1, "test.refresh.one", "1.0").getBundle();
+        wiring.fail = true;
+        coalescer.refresh(b);
+        coalescer.flush();
+        Assert.assertTrue(wiring.batches.isEmpty());
+        Assert.assertFalse(coalescer.isRefreshing(b));
+    }
+
+    @Test
+    public void testQueuedBundlesAreDroppedOnShutdown() throws Exception {
+        Bundle b = new FakeBundle(1, "test.refresh.one", "1.0").getBundle();
+        coalescer.refresh(b);
+        coalescer.shutdown();
+        Assert.assertFalse(coalescer.isRefreshing(b));
+        coalescer.flush();
+        Assert.assertTrue(wiring.batches.isEmpty());
+    }
+
+    /* === Helper methods === */
+
+    // The system bundle's FrameworkWiring, recording the batches it is asked to refresh
+    static class FakeWiring implements InvocationHandler {
+        List<Collection<Bundle>> batches = new ArrayList<Collection<Bundle>>();
+        CountDownLatch refreshed = new CountDownLatch(1);
+        volatile boolean fail;
+        FrameworkListener listener;
+
+        BundleContext getContext() {
+            return (BundleContext) Proxy.newProxyInstance(getClass().getClassLoader(), 
+                    new Class<?>[] { BundleContext.class, Bundle.class, FrameworkWiring.class }, this);
+        }
+
+        void completeRefresh() {
+            listener.frameworkEvent(new FrameworkEvent(FrameworkEvent.PACKAGES_REFRESHED, 
+                    new FakeBundle(0, "system.bundle", "1.0").getBundle(), null));
+        }
+
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            // The same proxy stands in for the context, the system bundle and its wiring
+            if (name.equals("getBundle") || name.equals("adapt")) return proxy;
+            if (name.equals("refreshBundles")) {
+                if (fail) throw new IllegalStateException("Refresh failed");
+                batches.add(new ArrayList<Bundle>((Collection<Bundle>) args[0]));
+                listener = ((FrameworkListener[]) args[1])[0];
+                refreshed.countDown();
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+}
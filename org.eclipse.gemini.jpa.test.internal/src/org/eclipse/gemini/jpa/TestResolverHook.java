@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.gemini.jpa.Fixtures.FakeBundle;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.hooks.resolver.ResolverHook;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.FrameworkWiring;
+import org.junit.*;
+
+/**
+ * Test class to test that the resolver hook holds back persistence bundles 
+ * until they are released, and resolves the ones it held back afterwards
+ */
+public class TestResolverHook {
+
+    FakeFramework framework;
+    PersistenceResolverHookFactory hookFactory;
+    FakeBundle persistenceBundle;
+    FakeBundle otherBundle;
+
+    @Before
+    public void setUp() {
+        framework = new FakeFramework();
+        hookFactory = new PersistenceResolverHookFactory(new PersistenceBundleExtender(), framework.getContext());
+        persistenceBundle = framework.install(new FakeBundle(1, "test.hook.persistence", "1.0"));
+        persistenceBundle.headers.put(PersistenceUnitBundleUtil.JPA_MANIFEST_HEADER, "META-INF/persistence.xml");
+        otherBundle = framework.install(new FakeBundle(2, "test.hook.other", "1.0"));
+    }
+
+    /* === Test Methods === */
+
+    @Test
+    public void testUnreleasedBundleIsHeldBack() throws Exception {
+        Collection<BundleRevision> candidates = resolve(persistenceBundle, otherBundle);
+        Assert.assertEquals(1, candidates.size());
+        Assert.assertSame(otherBundle.getBundle(), candidates.iterator().next().getBundle());
+        Assert.assertTrue(hookFactory.isGated(persistenceBundle.getBundle()));
+        Assert.assertFalse(hookFactory.isGated(otherBundle.getBundle()));
+    }
+
+    @Test
+    public void testReleasedBundleIsResolvedAgain() throws Exception {
+        resolve(persistenceBundle);
+        Assert.assertTrue(hookFactory.release(persistenceBundle.getBundle()));
+        Assert.assertEquals(1, resolve(persistenceBundle).size());
+
+        hookFactory.resolveReleased();
+        Assert.assertEquals(1, framework.resolved.size());
+        Assert.assertSame(persistenceBundle.getBundle(), framework.resolved.get(0));
+
+        // Only once
+        hookFactory.resolveReleased();
+        Assert.assertEquals(1, framework.resolved.size());
+    }
+
+    @Test
+    public void testBundleReleasedBeforeResolveIsNotResolvedAgain() throws Exception {
+        Assert.assertFalse(hookFactory.release(persistenceBundle.getBundle()));
+        Assert.assertEquals(1, resolve(persistenceBundle).size());
+        hookFactory.resolveReleased();
+        Assert.assertTrue(framework.resolved.isEmpty());
+    }
+
+    @Test
+    public void testForgottenBundleIsHeldBackAgain() throws Exception {
+        resolve(persistenceBundle);
+        hookFactory.release(persistenceBundle.getBundle());
+        hookFactory.forget(persistenceBundle.getBundle());
+        Assert.assertTrue(resolve(persistenceBundle).isEmpty());
+        hookFactory.resolveReleased();
+        Assert.assertTrue(framework.resolved.isEmpty());
+    }
+
+    /* === Helper methods === */
+
+    // Run the bundles through a resolve operation and return the ones left resolvable
+    Collection<BundleRevision> resolve(FakeBundle... bundles) {
+        Collection<BundleRevision> candidates = new ArrayList<BundleRevision>();
+        for (FakeBundle b : bundles)
+            candidates.add(revisionOf(b.getBundle()));
+        ResolverHook hook = hookFactory.begin(candidates);
+        hook.filterResolvable(candidates);
+        hook.end();
+        return candidates;
+    }
+
+    BundleRevision revisionOf(final Bundle b) {
+        return (BundleRevision) Proxy.newProxyInstance(getClass().getClassLoader(), 
+                new Class<?>[] { BundleRevision.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getBundle")) return b;
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    // The context, system bundle and FrameworkWiring of a framework with the installed bundles
+    static class FakeFramework implements InvocationHandler {
+        Map<Long, Bundle> bundles = new HashMap<Long, Bundle>();
+        List<Bundle> resolved = new ArrayList<Bundle>();
+
+        BundleContext getContext() {
+            return (BundleContext) Proxy.newProxyInstance(getClass().getClassLoader(), 
+                    new Class<?>[] { BundleContext.class, Bundle.class, FrameworkWiring.class }, this);
+        }
+
+        FakeBundle install(FakeBundle b) {
+            b.state = Bundle.INSTALLED;
+            bundles.put(b.id, b.getBundle());
+            return b;
+        }
+
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getBundle")) 
+                return (((Long) args[0]) == 0) ? proxy : bundles.get(args[0]);
+            if (name.equals("adapt")) return proxy;
+            if (name.equals("resolveBundles")) {
+                resolved.addAll((Collection<Bundle>) args[0]);
+                return true;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+}
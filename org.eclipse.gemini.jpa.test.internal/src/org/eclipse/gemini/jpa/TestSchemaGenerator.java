@@ -0,0 +1,113 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.junit.*;
+
+/**
+ * Test class to test the properties that the SchemaGenerator service asks 
+ * the provider to generate the schema with
+ */
+public class TestSchemaGenerator {
+
+    public static final String SCHEMA_UNIT_NAME = "TestSchemaGeneratorUnit";
+
+    RecordingProvider provider;
+    SchemaGeneratorService generator;
+
+    @Before
+    public void setUp() {
+        provider = new RecordingProvider();
+        generator = new SchemaGeneratorService(provider);
+    }
+
+    /* === Test Methods === */
+
+    @Test
+    public void testWriteCreateAndDropScripts() throws Exception {
+        File create = new File("create.sql");
+        File drop = new File("drop.sql");
+        Map<String,Object> props = new HashMap<String,Object>();
+        props.put(PersistenceUnitProperties.SCHEMA_DATABASE_PRODUCT_NAME, "Derby");
+        Assert.assertTrue(generator.writeScripts(SCHEMA_UNIT_NAME, create, drop, props));
+
+        Assert.assertEquals(SCHEMA_UNIT_NAME, provider.unitName);
+        Assert.assertEquals(PersistenceUnitProperties.SCHEMA_GENERATION_DROP_AND_CREATE_ACTION, 
+                            provider.props.get(PersistenceUnitProperties.SCHEMA_GENERATION_SCRIPTS_ACTION));
+        Assert.assertEquals(PersistenceUnitProperties.SCHEMA_GENERATION_NONE_ACTION, 
+                            provider.props.get(PersistenceUnitProperties.SCHEMA_GENERATION_DATABASE_ACTION));
+        Assert.assertEquals(create.getAbsolutePath(), 
+                            provider.props.get(PersistenceUnitProperties.SCHEMA_GENERATION_SCRIPTS_CREATE_TARGET));
+        Assert.assertEquals(drop.getAbsolutePath(), 
+                            provider.props.get(PersistenceUnitProperties.SCHEMA_GENERATION_SCRIPTS_DROP_TARGET));
+        Assert.assertEquals("Derby", provider.props.get(PersistenceUnitProperties.SCHEMA_DATABASE_PRODUCT_NAME));
+        // The caller's map is left alone
+        Assert.assertEquals(1, props.size());
+
+        // Only the scripts are written, so the database need not be connected to
+        Assert.assertFalse(provider.requiresDataSource(provider.props));
+    }
+
+    @Test
+    public void testWriteOneScript() throws Exception {
+        generator.writeScripts(SCHEMA_UNIT_NAME, new File("create.sql"), null, null);
+        Assert.assertEquals(PersistenceUnitProperties.SCHEMA_GENERATION_CREATE_ACTION, 
+                            provider.props.get(PersistenceUnitProperties.SCHEMA_GENERATION_SCRIPTS_ACTION));
+        Assert.assertFalse(provider.props.containsKey(PersistenceUnitProperties.SCHEMA_GENERATION_SCRIPTS_DROP_TARGET));
+
+        generator.writeScripts(SCHEMA_UNIT_NAME, null, new File("drop.sql"), null);
+        Assert.assertEquals(PersistenceUnitProperties.SCHEMA_GENERATION_DROP_ACTION, 
+                            provider.props.get(PersistenceUnitProperties.SCHEMA_GENERATION_SCRIPTS_ACTION));
+        Assert.assertFalse(provider.props.containsKey(PersistenceUnitProperties.SCHEMA_GENERATION_SCRIPTS_CREATE_TARGET));
+
+        // Without the database being named it has to be connected to
+        Assert.assertTrue(provider.requiresDataSource(provider.props));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testNoScriptFails() throws Exception {
+        generator.writeScripts(SCHEMA_UNIT_NAME, null, null, null);
+    }
+
+    @Test
+    public void testDatabaseGenerationRequiresDataSource() throws Exception {
+        Map<String,Object> props = new HashMap<String,Object>();
+        props.put(PersistenceUnitProperties.SCHEMA_DATABASE_PRODUCT_NAME, "Derby");
+        props.put(PersistenceUnitProperties.SCHEMA_GENERATION_DATABASE_ACTION, 
+                  PersistenceUnitProperties.SCHEMA_GENERATION_CREATE_ACTION);
+        Assert.assertTrue(provider.requiresDataSource(props));
+        Assert.assertTrue(provider.requiresDataSource(null));
+    }
+
+    /* === Helper methods === */
+
+    // Records the generation request instead of passing it on to EclipseLink
+    static class RecordingProvider extends ProviderWrapper {
+        String unitName;
+        Map<String,Object> props;
+
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        public boolean generateSchema(String unitName, Map properties) {
+            this.unitName = unitName;
+            this.props = new HashMap<String,Object>(properties);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+
+/**
+ * Test class to test that the p-units are unregistered in parallel at shutdown, 
+ * and that one that does not finish in time is abandoned
+ */
+public class TestShutdown {
+
+    public static final String SHUTDOWN_UNIT_NAME = "TestShutdownUnit";
+    public static final String SLOW_UNIT_NAME = "TestShutdownSlowUnit";
+    public static final String FAILING_UNIT_NAME = "TestShutdownFailingUnit";
+    public static final int SHUTDOWN_TIMEOUT = 300;
+
+    int shutdownThreads;
+    int shutdownTimeout;
+    GeminiManager mgr;
+    BlockingServicesUtil services;
+
+    @Before
+    public void setUp() {
+        shutdownThreads = GeminiSystemProperties.shutdownThreads();
+        shutdownTimeout = GeminiSystemProperties.shutdownTimeout();
+        GeminiSystemProperties.setShutdownThreads(4);
+        GeminiSystemProperties.setShutdownTimeout(SHUTDOWN_TIMEOUT);
+        mgr = new GeminiManager();
+        mgr.stateStore = new PUnitStateStore();
+        services = new BlockingServicesUtil(mgr);
+        mgr.servicesUtil = services;
+    }
+
+    @After
+    public void tearDown() {
+        services.slowUnitReleased.countDown();
+        GeminiSystemProperties.setShutdownThreads(shutdownThreads);
+        GeminiSystemProperties.setShutdownTimeout(shutdownTimeout);
+    }
+
+    /* === Test Methods === */
+
+    @Test
+    public void testSlowUnitIsAbandoned() throws Exception {
+        List<PUnitInfo> units = registeredUnits(SHUTDOWN_UNIT_NAME + 1, SLOW_UNIT_NAME, 
+                                                SHUTDOWN_UNIT_NAME + 2, SHUTDOWN_UNIT_NAME + 3);
+        long start = System.currentTimeMillis();
+        mgr.unregisterPersistenceUnitsInParallel(units);
+        long elapsed = System.currentTimeMillis() - start;
+
+        // Only the slow unit's timeout was waited out, and everything is gone
+        Assert.assertTrue("Shutdown took " + elapsed + " ms", elapsed < SHUTDOWN_TIMEOUT * 4);
+        Assert.assertEquals(4, services.unregistered.size());
+        Assert.assertTrue(mgr.stateStore.registeredUnits().isEmpty());
+        Assert.assertTrue(services.slowUnitInterrupted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testUnitsAreUnregisteredConcurrently() throws Exception {
+        services.concurrent = new CountDownLatch(3);
+        List<PUnitInfo> units = registeredUnits(SHUTDOWN_UNIT_NAME + 1, SHUTDOWN_UNIT_NAME + 2, 
+                                                SHUTDOWN_UNIT_NAME + 3);
+        mgr.unregisterPersistenceUnitsInParallel(units);
+        Assert.assertEquals(0, services.concurrent.getCount());
+        Assert.assertTrue(mgr.stateStore.registeredUnits().isEmpty());
+    }
+
+    @Test
+    public void testFailedUnitIsStillUnregistered() throws Exception {
+        List<PUnitInfo> units = registeredUnits(SHUTDOWN_UNIT_NAME + 1, FAILING_UNIT_NAME);
+        mgr.unregisterPersistenceUnitsInParallel(units);
+        Assert.assertTrue(mgr.stateStore.registeredUnits().isEmpty());
+    }
+
+    /* === Helper methods === */
+
+    List<PUnitInfo> registeredUnits(String... unitNames) {
+        List<PUnitInfo> units = new ArrayList<PUnitInfo>();
+        for (String unitName : unitNames) {
+            PUnitInfo info = Fixtures.newUnit(unitName);
+            mgr.stateStore.registerUnit(info);
+            units.add(info);
+        }
+        return units;
+    }
+
+    // Unregisters the slow unit only when released, and fails for the failing unit
+    static class BlockingServicesUtil extends ServicesUtil {
+        List<String> unregistered = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch slowUnitReleased = new CountDownLatch(1);
+        CountDownLatch slowUnitInterrupted = new CountDownLatch(1);
+        // When set, each unit waits until this many are being unregistered at once
+        volatile CountDownLatch concurrent;
+
+        BlockingServicesUtil(GeminiManager mgr) { super(mgr); }
+
+        public void unregisterWeavingHookService(PUnitInfo pUnitInfo) {}
+
+        public void unregisterEMFServices(PUnitInfo pUnitInfo) {
+            String unitName = pUnitInfo.getUnitName();
+            unregistered.add(unitName);
+            try {
+                if (unitName.equals(SLOW_UNIT_NAME)) {
+                    slowUnitReleased.await();
+                } else if (concurrent != null) {
+                    concurrent.countDown();
+                    if (!concurrent.await(10, TimeUnit.SECONDS))
+                        throw new IllegalStateException("Not unregistered concurrently");
+                }
+            } catch (InterruptedException iEx) {
+                slowUnitInterrupted.countDown();
+            }
+            if (unitName.equals(FAILING_UNIT_NAME))
+                throw new IllegalStateException("Failed to close EMF");
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.gemini.jpa.configadmin.ConfigAdminListener;
+import org.junit.*;
+import org.osgi.framework.Bundle;
+
+/**
+ * Test class to test the registration of a p-unit while another bundle 
+ * still has a p-unit of the same name registered
+ */
+public class TestUnitNameCollision {
+        
+    public static final String COLLISION_UNIT_NAME = "TestUnitNameCollisionUnit";
+
+    GeminiManager mgr;
+    RecordingServicesUtil services;
+    Semaphore collisionWaitsDone = new Semaphore(0);
+    int collisionTimeout;
+
+    Fixtures.FakeBundle oldBundle;
+    Fixtures.FakeBundle newBundle;
+    PUnitInfo oldUnit;
+    PUnitInfo newUnit;
+
+    @Before
+    public void setUp() {
+        collisionTimeout = GeminiSystemProperties.collisionTimeout();
+        mgr = new GeminiManager();
+        mgr.stateStore = new PUnitStateStore();
+        services = new RecordingServicesUtil(mgr);
+        mgr.servicesUtil = services;
+        mgr.configAdminListener = new ConfigAdminListener(mgr);
+        mgr.collisionExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, 
+                new SynchronousQueue<Runnable>(), new NamedThreadFactory("Collision")) {
+            protected void afterExecute(Runnable r, Throwable t) { collisionWaitsDone.release(); }
+        };
+        mgr.extender = new PersistenceBundleExtender(mgr);
+        // The bundles share the one lifecycle thread
+        mgr.extender.lifecycleExecutor = new LifecycleExecutor(1);
+
+        oldBundle = new Fixtures.FakeBundle(1, "test.collision.old", "1.0.0");
+        newBundle = new Fixtures.FakeBundle(2, "test.collision.new", "1.0.0");
+        oldUnit = assignedUnit(oldBundle);
+        newUnit = assignedUnit(newBundle);
+        mgr.stateStore.registerUnit(oldUnit);
+    }
+
+    @After
+    public void tearDown() {
+        mgr.extender.lifecycleExecutor.shutdown();
+        mgr.collisionExecutor.shutdownNow();
+        GeminiSystemProperties.setCollisionTimeout(collisionTimeout);
+    }
+
+    /* === Test Methods === */
+
+    @Test
+    public void testCollisionDoesNotHoldUpLifecycleThread() throws Exception {
+        GeminiSystemProperties.setCollisionTimeout(10000);
+        queueRegistration(newBundle);
+
+        // The old bundle stops, which has to wait for the lifecycle work queued for it
+        long start = System.currentTimeMillis();
+        mgr.extender.lifecycleExecutor.awaitPending(oldBundle.getBundle());
+        long waited = System.currentTimeMillis() - start;
+        Assert.assertTrue("Bundle event held up for " + waited + " ms", waited < 5000);
+        mgr.unregisterPersistenceUnits(Collections.singletonList(oldUnit));
+
+        awaitCollisionHandled(newBundle);
+        Assert.assertSame(newUnit, mgr.stateStore.registeredUnit(COLLISION_UNIT_NAME));
+        Assert.assertEquals(1, count(services.registered, newUnit));
+        Assert.assertEquals(1, count(services.unregistered, oldUnit));
+        Assert.assertEquals(1, mgr.getUnitNameCollisions());
+    }
+
+    @Test
+    public void testCollidingUnitForcedOutAfterTimeout() throws Exception {
+        GeminiSystemProperties.setCollisionTimeout(100);
+        queueRegistration(newBundle);
+
+        // The old bundle never unregisters its p-unit
+        awaitCollisionHandled(newBundle);
+        Assert.assertSame(newUnit, mgr.stateStore.registeredUnit(COLLISION_UNIT_NAME));
+        Assert.assertEquals(1, count(services.registered, newUnit));
+        Assert.assertEquals(1, count(services.unregistered, oldUnit));
+    }
+
+    @Test
+    public void testNotRegisteredIfBundleStoppedWhileWaiting() throws Exception {
+        GeminiSystemProperties.setCollisionTimeout(10000);
+        queueRegistration(newBundle);
+        mgr.extender.lifecycleExecutor.awaitPending(newBundle.getBundle());
+
+        // The new bundle stops before the name is free
+        mgr.unregisterPersistenceUnits(mgr.stateStore.assignedUnits(newBundle.getBundle()));
+        newBundle.state = Bundle.RESOLVED;
+        mgr.unregisterPersistenceUnits(Collections.singletonList(oldUnit));
+
+        awaitCollisionHandled(newBundle);
+        Assert.assertNull(mgr.stateStore.registeredUnit(COLLISION_UNIT_NAME));
+        Assert.assertEquals(0, count(services.registered, newUnit));
+    }
+
+    @Test
+    public void testWaitEndsWhenNameIsFreed() throws Exception {
+        GeminiSystemProperties.setCollisionTimeout(10000);
+        // Lifecycle work done on the calling thread, so the registration waits in line
+        mgr.extender.lifecycleExecutor.shutdown();
+        mgr.extender.lifecycleExecutor = new LifecycleExecutor(0);
+
+        new Thread(new Runnable() {
+            public void run() {
+                try { Thread.sleep(100); } catch (InterruptedException iEx) {}
+                mgr.unregisterPersistenceUnits(Collections.singletonList(oldUnit));
+            }
+        }).start();
+        long start = System.currentTimeMillis();
+        mgr.registerPersistenceUnits(mgr.stateStore.assignedUnits(newBundle.getBundle()));
+        long waited = System.currentTimeMillis() - start;
+
+        // Registered once the old p-unit was gone, not after the timeout, and without forcing it out
+        Assert.assertTrue("Waited " + waited + " ms for the name", waited < 5000);
+        Assert.assertSame(newUnit, mgr.stateStore.registeredUnit(COLLISION_UNIT_NAME));
+        Assert.assertEquals(1, count(services.registered, newUnit));
+        Assert.assertEquals(1, count(services.unregistered, oldUnit));
+        Assert.assertEquals(1, mgr.getUnitNameCollisions());
+    }
+
+    /* === Helper methods === */
+
+    PUnitInfo assignedUnit(Fixtures.FakeBundle b) {
+        PUnitInfo info = Fixtures.newUnit(COLLISION_UNIT_NAME);
+        info.setBundle(b.getBundle());
+        List<PUnitInfo> units = new ArrayList<PUnitInfo>();
+        units.add(info);
+        mgr.stateStore.assignUnits(b.getBundle(), units);
+        return info;
+    }
+
+    // What the extender does when the bundle starts
+    void queueRegistration(final Fixtures.FakeBundle b) {
+        mgr.extender.executeLifecycleTask(b.getBundle(), new Runnable() {
+            public void run() { mgr.registerPersistenceUnits(mgr.stateStore.assignedUnits(b.getBundle())); }
+        });
+    }
+
+    // Wait for the collision thread to finish waiting, then for the registration it queued
+    void awaitCollisionHandled(Fixtures.FakeBundle b) throws InterruptedException {
+        Assert.assertTrue(collisionWaitsDone.tryAcquire(20, TimeUnit.SECONDS));
+        mgr.extender.lifecycleExecutor.awaitPending(b.getBundle());
+    }
+
+    // PUnitInfo equality is by name, so count the same instance
+    static int count(List<PUnitInfo> units, PUnitInfo info) {
+        int count = 0;
+        synchronized (units) {
+            for (PUnitInfo unit : units) {
+                if (unit == info) count++;
+            }
+        }
+        return count;
+    }
+
+    // Records the p-units whose services are registered and unregistered
+    static class RecordingServicesUtil extends ServicesUtil {
+        List<PUnitInfo> registered = Collections.synchronizedList(new ArrayList<PUnitInfo>());
+        List<PUnitInfo> unregistered = Collections.synchronizedList(new ArrayList<PUnitInfo>());
+
+        RecordingServicesUtil(GeminiManager mgr) { super(mgr); }
+
+        public void registerEMFServices(PUnitInfo pUnitInfo) { registered.add(pUnitInfo); }
+        public void unregisterEMFServices(PUnitInfo pUnitInfo) { unregistered.add(pUnitInfo); }
+        public void unregisterWeavingHookService(PUnitInfo pUnitInfo) {}
+    }
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.gemini.jpa.proxy.EMFServiceProxyHandler;
+import org.junit.*;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Test class to test the warm-up of p-units, from the parsing of the warm-up 
+ * queries to the registration of the EMF service once the p-unit is warm
+ */
+public class TestWarmUp {
+        
+    public static final String WARM_UNIT_NAME = "TestWarmUpUnit";
+
+    /* === Test Methods === */
+
+    @Test
+    public void testQueriesAreSplitOutsideLiterals() {
+        Assert.assertEquals(Arrays.asList("SELECT a FROM Account a", 
+                                          "SELECT a FROM Account a WHERE a.name = 'x;y'",
+                                          "SELECT a FROM Account a WHERE a.name = 'it''s;'"),
+                            GeminiUtil.splitQueries(" SELECT a FROM Account a ;; " + 
+                                                    "SELECT a FROM Account a WHERE a.name = 'x;y';" +
+                                                    "SELECT a FROM Account a WHERE a.name = 'it''s;'"));
+        Assert.assertTrue(GeminiUtil.splitQueries(null).isEmpty());
+    }
+
+    @Test
+    public void testServiceRegisteredWithoutLock() throws Exception {
+        FakeEntityManagerFactory factory = new FakeEntityManagerFactory("warm");
+        PUnitInfo info = newUnit(factory.getEmf());
+        RecordingServicesUtil util = new RecordingServicesUtil(false);
+
+        util.warmUpAndRegisterEMFService(info, serviceNames(), new Hashtable<String,String>());
+        awaitWarmUps(util);
+        Assert.assertTrue(util.registered);
+        Assert.assertFalse("Registered while holding the p-unit lock", util.heldLock);
+        Assert.assertSame(util.registration, info.getEmfService());
+        Assert.assertFalse(util.registration.isUnregistered());
+        Assert.assertTrue(factory.getEmf().isOpen());
+    }
+
+    @Test
+    public void testUnregisteredWhileRegistering() throws Exception {
+        FakeEntityManagerFactory factory = new FakeEntityManagerFactory("warm");
+        PUnitInfo info = newUnit(factory.getEmf());
+        RecordingServicesUtil util = new RecordingServicesUtil(true);
+
+        util.warmUpAndRegisterEMFService(info, serviceNames(), new Hashtable<String,String>());
+        awaitWarmUps(util);
+        Assert.assertTrue(util.registered);
+        Assert.assertTrue("Service left registered", util.registration.isUnregistered());
+        Assert.assertNull(info.getEmfService());
+        Assert.assertFalse("Warmed up EMF left open", factory.getEmf().isOpen());
+    }
+
+    @Test
+    public void testUnregisteredDuringWarmUp() throws Exception {
+        FakeEntityManagerFactory factory = new FakeEntityManagerFactory("warm");
+        PUnitInfo info = newUnit(factory.getEmf());
+        final CountDownLatch unregisteredLatch = new CountDownLatch(1);
+        RecordingServicesUtil util = new RecordingServicesUtil(false) {
+            protected void warmUp(PUnitInfo pUnitInfo, EMFServiceProxyHandler emfHandler) {
+                // Unregistered while the warm-up is running
+                try { 
+                    unregisteredLatch.await(5, TimeUnit.SECONDS); 
+                } catch (InterruptedException iEx) {}
+                super.warmUp(pUnitInfo, emfHandler);
+            }
+        };
+        util.warmUpAndRegisterEMFService(info, serviceNames(), new Hashtable<String,String>());
+        synchronized (info) {
+            info.setEmfHandler(null);
+        }
+        unregisteredLatch.countDown();
+        awaitWarmUps(util);
+        Assert.assertFalse(util.registered);
+        Assert.assertFalse(factory.getEmf().isOpen());
+    }
+
+    /* === Helper methods === */
+
+    PUnitInfo newUnit(EntityManagerFactory unitEmf) {
+        PUnitInfo info = Fixtures.newUnit(WARM_UNIT_NAME, unitEmf);
+        info.setWarmUp(true);
+        info.setEmfHandler(new EMFServiceProxyHandler(info));
+        return info;
+    }
+
+    static String[] serviceNames() { 
+        return new String[] { EntityManagerFactory.class.getName() };
+    }
+
+    static void awaitWarmUps(ServicesUtil util) throws InterruptedException {
+        util.warmUpExecutor.shutdown();
+        Assert.assertTrue(util.warmUpExecutor.awaitTermination(5, TimeUnit.SECONDS));
+        util.shutdown();
+    }
+
+    // Records the registration of the EMF service instead of registering it, 
+    // optionally unregistering the p-unit while the service is being registered
+    static class RecordingServicesUtil extends ServicesUtil {
+        boolean unregisterWhileRegistering;
+        Fixtures.FakeRegistration registration = new Fixtures.FakeRegistration();
+        volatile boolean registered;
+        volatile boolean heldLock;
+
+        RecordingServicesUtil(boolean unregisterWhileRegistering) { 
+            super(null); 
+            this.unregisterWhileRegistering = unregisterWhileRegistering;
+        }
+
+        protected ServiceRegistration registerEMFService(PUnitInfo pUnitInfo, 
+                                                         String[] classNameArray, 
+                                                         Dictionary<String,String> serviceProps) {
+            registered = true;
+            heldLock = Thread.holdsLock(pUnitInfo);
+            if (unregisterWhileRegistering) {
+                // What unregisterEMFService() does when it finds no service yet
+                synchronized (pUnitInfo) {
+                    pUnitInfo.setEmfHandler(null);
+                }
+            }
+            pUnitInfo.setEmfService(registration);
+            return registration;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.classloader;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.eclipse.gemini.jpa.Fixtures.FakeBundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWiring;
+import org.junit.*;
+
+/**
+ * Test class to test that a composite loader is reused for as long as the 
+ * wiring of the persistence bundle stays the same
+ */
+public class TestCompositeLoaderCache {
+
+    FakeBundle providerBundle;
+    FakeBundle pUnitBundle;
+    CompositeLoaderCache cache;
+
+    @Before
+    public void setUp() {
+        providerBundle = new FakeBundle(1, "test.loader.provider", "1.0");
+        pUnitBundle = new FakeBundle(2, "test.loader.punit", "1.0");
+        rewire(pUnitBundle, newRevision());
+        cache = new CompositeLoaderCache(contextOf(providerBundle));
+    }
+
+    /* === Test Methods === */
+
+    @Test
+    public void testLoaderIsReused() throws Exception {
+        CompositeClassLoader loader = cache.getLoader(pUnitBundle.getBundle());
+        Assert.assertSame(loader, cache.getLoader(pUnitBundle.getBundle()));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testLoaderCreatedBeforeResolveIsReused() throws Exception {
+        // During preResolve there is a revision but no wiring yet
+        BundleRevision revision = newRevision();
+        pUnitBundle.adaptations.put(BundleRevision.class, revision);
+        pUnitBundle.adaptations.remove(BundleWiring.class);
+        CompositeClassLoader loader = cache.getLoader(pUnitBundle.getBundle());
+
+        pUnitBundle.adaptations.put(BundleWiring.class, newWiring());
+        Assert.assertSame(loader, cache.getLoader(pUnitBundle.getBundle()));
+    }
+
+    @Test
+    public void testRefreshedBundleGetsNewLoader() throws Exception {
+        CompositeClassLoader loader = cache.getLoader(pUnitBundle.getBundle());
+        // Refreshed, so same revision but a new wiring
+        pUnitBundle.adaptations.put(BundleWiring.class, newWiring());
+        CompositeClassLoader refreshedLoader = cache.getLoader(pUnitBundle.getBundle());
+        Assert.assertNotSame(loader, refreshedLoader);
+
+        // Updated, so a new revision
+        rewire(pUnitBundle, newRevision());
+        Assert.assertNotSame(refreshedLoader, cache.getLoader(pUnitBundle.getBundle()));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testInvalidatedBundleGetsNewLoader() throws Exception {
+        CompositeClassLoader loader = cache.getLoader(pUnitBundle.getBundle());
+        cache.invalidate(pUnitBundle.getBundle());
+        Assert.assertEquals(0, cache.size());
+        Assert.assertNotSame(loader, cache.getLoader(pUnitBundle.getBundle()));
+    }
+
+    @Test
+    public void testUserLoaderIsLayeredOnCachedLoader() throws Exception {
+        ClassLoader userLoader = getClass().getClassLoader();
+        CompositeClassLoader loader = cache.getLoader(pUnitBundle.getBundle(), userLoader);
+        Assert.assertNotSame(cache.getLoader(pUnitBundle.getBundle()), loader);
+        Assert.assertSame(cache.getLoader(pUnitBundle.getBundle()), cache.getLoader(pUnitBundle.getBundle(), null));
+        Assert.assertEquals(1, cache.size());
+    }
+
+    /* === Helper methods === */
+
+    void rewire(FakeBundle b, BundleRevision revision) {
+        b.adaptations.put(BundleRevision.class, revision);
+        b.adaptations.put(BundleWiring.class, newWiring());
+    }
+
+    BundleRevision newRevision() {
+        return (BundleRevision) newProxy(BundleRevision.class);
+    }
+
+    BundleWiring newWiring() {
+        return (BundleWiring) newProxy(BundleWiring.class);
+    }
+
+    BundleContext contextOf(final FakeBundle b) {
+        return (BundleContext) Proxy.newProxyInstance(getClass().getClassLoader(), 
+                new Class<?>[] { BundleContext.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getBundle")) return b.getBundle();
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    // Revisions and wirings are only compared by identity
+    Object newProxy(Class<?> cls) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), 
+                new Class<?>[] { cls }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+                        if (method.getName().equals("equals")) return proxy == args[0];
+                        if (method.getName().equals("toString")) return "FakeWiring";
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
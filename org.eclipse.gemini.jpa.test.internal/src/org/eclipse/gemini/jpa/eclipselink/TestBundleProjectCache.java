@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.eclipselink;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.PUNIT_INFO_PROPERTY;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.eclipse.gemini.jpa.Fixtures;
+import org.eclipse.gemini.jpa.GeminiPersistenceUnitProperties;
+import org.eclipse.gemini.jpa.PUnitInfo;
+import org.eclipse.gemini.jpa.configadmin.PersistenceUnitConfiguration;
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.sessions.Project;
+import org.junit.*;
+import org.osgi.framework.Bundle;
+
+/**
+ * Test class to test the project cache kept for p-units in the data area
+ */
+public class TestBundleProjectCache {
+        
+    public static final String CACHE_UNIT_NAME = "TestBundleProjectCacheUnit";
+
+    File root;
+    Fixtures.FakeBundle bundle;
+    PUnitInfo unit;
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("projectcache", "");
+        root.delete();
+        bundle = new Fixtures.FakeBundle(1, "test.cache.bundle", "1.0.0");
+        unit = Fixtures.newUnit(CACHE_UNIT_NAME);
+        unit.setBundle(bundle.getBundle());
+        BundleProjectCache.initialize(root, new Bundle[] { bundle.getBundle() });
+    }
+
+    @After
+    public void tearDown() {
+        BundleProjectCache.initialize(null, null);
+        BundleProjectCache.delete(root);
+    }
+
+    /* === Test Methods === */
+
+    @Test
+    public void testProjectRoundTrip() {
+        BundleProjectCache cache = forUnit(props(), null);
+        Assert.assertNull(cache.retrieveProject(props(), null, null));
+        cache.storeProject(project("stored"), props(), null);
+
+        Project project = forUnit(props(), null).retrieveProject(props(), null, null);
+        Assert.assertNotNull(project);
+        Assert.assertEquals("stored", project.getName());
+    }
+
+    @Test
+    public void testCorruptFileIsDiscarded() throws IOException {
+        BundleProjectCache cache = forUnit(props(), null);
+        cache.dir.mkdirs();
+        FileOutputStream out = new FileOutputStream(cache.file);
+        out.write("not a project".getBytes("UTF-8"));
+        out.close();
+        Assert.assertNull(cache.retrieveProject(props(), null, null));
+        Assert.assertFalse(cache.file.exists());
+    }
+
+    @Test
+    public void testCallerPropertyChangeMissesCache() {
+        forUnit(props(), null).storeProject(project("plain"), props(), null);
+
+        // A property passed to createEMF changes how the metadata is processed
+        Map<String,Object> callerProps = props();
+        callerProps.put(PersistenceUnitProperties.WEAVING_LAZY, "false");
+        BundleProjectCache cache = forUnit(callerProps, null);
+        Assert.assertNull(cache.retrieveProject(callerProps, null, null));
+        cache.storeProject(project("notLazy"), callerProps, null);
+
+        // Each set of properties keeps its own project
+        Assert.assertEquals("notLazy", forUnit(callerProps, null).retrieveProject(callerProps, null, null).getName());
+        Assert.assertEquals("plain", forUnit(props(), null).retrieveProject(props(), null, null).getName());
+    }
+
+    @Test
+    public void testCallSpecificPropertiesDoNotMissCache() {
+        forUnit(props(), null).storeProject(project("plain"), props(), null);
+
+        // What the wrapper adds on every call, and unique schema generation session names
+        Map<String,Object> callProps = props();
+        callProps.put(PersistenceUnitProperties.CLASSLOADER, new ClassLoader() {});
+        callProps.put(PersistenceUnitProperties.ECLIPSELINK_PERSISTENCE_XML, "META-INF/persistence.xml");
+        callProps.put(PUNIT_INFO_PROPERTY, unit);
+        callProps.put(PersistenceUnitProperties.SESSION_NAME, CACHE_UNIT_NAME + "#schema-1");
+        Assert.assertNotNull(forUnit(callProps, null).retrieveProject(callProps, null, null));
+    }
+
+    @Test
+    public void testUnstablePropertyIsNotCached() {
+        Map<String,Object> callerProps = props();
+        callerProps.put(PersistenceUnitProperties.SESSION_CUSTOMIZER, new Object());
+        Assert.assertNull(forUnit(callerProps, null));
+        callerProps.put(PersistenceUnitProperties.SESSION_CUSTOMIZER, Object.class);
+        Assert.assertNotNull(forUnit(callerProps, null));
+    }
+
+    @Test
+    public void testConfigChangeMissesCache() {
+        forUnit(props(), null).storeProject(project("plain"), props(), null);
+        Hashtable<String,Object> dict = new Hashtable<String,Object>();
+        dict.put(GeminiPersistenceUnitProperties.PUNIT_NAME, CACHE_UNIT_NAME);
+        dict.put(GeminiPersistenceUnitProperties.PUNIT_EXCLUDE_UNLISTED_CLASSES, "true");
+        Assert.assertNull(forUnit(props(), new PersistenceUnitConfiguration(dict)).retrieveProject(props(), null, null));
+    }
+
+    @Test
+    public void testBundleUpdateReplacesCachedProjects() {
+        BundleProjectCache oldCache = forUnit(props(), null);
+        oldCache.storeProject(project("old"), props(), null);
+
+        bundle.lastModified++;
+        BundleProjectCache newCache = forUnit(props(), null);
+        Assert.assertNull(newCache.retrieveProject(props(), null, null));
+        newCache.storeProject(project("new"), props(), null);
+        Assert.assertFalse("Project for the old revision left behind", oldCache.file.exists());
+        Assert.assertTrue(newCache.file.exists());
+    }
+
+    @Test
+    public void testUninstalledBundleFilesRemoved() {
+        BundleProjectCache cache = forUnit(props(), null);
+        cache.storeProject(project("stored"), props(), null);
+        BundleProjectCache.initialize(root, new Bundle[0]);
+        Assert.assertFalse(cache.dir.exists());
+    }
+
+    /* === Helper methods === */
+
+    BundleProjectCache forUnit(Map<String,Object> props, PersistenceUnitConfiguration config) {
+        return BundleProjectCache.forUnit(unit, props, config);
+    }
+
+    static Map<String,Object> props() {
+        return new HashMap<String,Object>();
+    }
+
+    static Project project(String name) {
+        Project project = new Project();
+        project.setName(name);
+        return project;
+    }
+}
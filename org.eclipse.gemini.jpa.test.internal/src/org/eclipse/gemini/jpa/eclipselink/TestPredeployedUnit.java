@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.eclipselink;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.PUNIT_INFO_PROPERTY;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+import org.eclipse.gemini.jpa.Fixtures;
+import org.eclipse.gemini.jpa.GeminiPersistenceUnitProperties;
+import org.eclipse.gemini.jpa.GeminiUtil;
+import org.eclipse.gemini.jpa.PUnitInfo;
+import org.eclipse.gemini.jpa.configadmin.PersistenceUnitConfiguration;
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.internal.jpa.EntityManagerSetupImpl;
+import org.eclipse.persistence.internal.jpa.deployment.SEPersistenceUnitInfo;
+import org.junit.*;
+
+/**
+ * Test class to test when the setup predeployed during preResolve is reused 
+ * for the EMF of a p-unit
+ */
+public class TestPredeployedUnit {
+        
+    public static final String PREDEPLOY_UNIT_NAME = "TestPredeployedUnitUnit";
+
+    ClassLoader loader;
+    PUnitInfo unit;
+    EntityManagerSetupImpl setup;
+
+    @Before
+    public void setUp() {
+        loader = new ClassLoader(getClass().getClassLoader()) {};
+        unit = Fixtures.newUnit(PREDEPLOY_UNIT_NAME);
+        setup = new PredeployedSetup();
+    }
+
+    /* === Test Methods === */
+
+    @Test
+    public void testSetupReusedWithoutProperties() {
+        predeploy(new HashMap<String,Object>());
+        Assert.assertSame(setup, newInitializer(createProperties(null)).extractInitialEmSetupImpl(PREDEPLOY_UNIT_NAME));
+        // Only handed out once
+        Assert.assertNull(newInitializer(createProperties(null)).extractInitialEmSetupImpl(PREDEPLOY_UNIT_NAME));
+    }
+
+    @Test
+    public void testSetupReusedWithConfigProperties() {
+        Map<String,Object> configProps = new HashMap<String,Object>();
+        configProps.put(PersistenceUnitProperties.WEAVING, "static");
+        predeploy(configProps);
+        Assert.assertSame(setup, newInitializer(createProperties(configProps)).extractInitialEmSetupImpl(PREDEPLOY_UNIT_NAME));
+    }
+
+    @Test
+    public void testSetupDiscardedWhenPropertyChangesPredeploy() {
+        predeploy(new HashMap<String,Object>());
+        // Weaving is decided when the unit is predeployed
+        Map<String,Object> callerProps = new HashMap<String,Object>();
+        callerProps.put(PersistenceUnitProperties.WEAVING, "false");
+        GeminiOSGiInitializer initializer = newInitializer(createProperties(callerProps));
+        Assert.assertNull(initializer.extractInitialEmSetupImpl(PREDEPLOY_UNIT_NAME));
+        Assert.assertTrue(unit.getPredeployedUnit().isSetupTaken());
+        // The descriptor parsed during preResolve is still used
+        Assert.assertSame(unit.getPredeployedUnit().getUnitInfo(), 
+                          initializer.findPersistenceUnitInfo(PREDEPLOY_UNIT_NAME, createProperties(callerProps)));
+        // And the setup is gone for good, even if the next EMF matches
+        Assert.assertNull(newInitializer(createProperties(null)).extractInitialEmSetupImpl(PREDEPLOY_UNIT_NAME));
+    }
+
+    @Test
+    public void testSetupDiscardedWhenConfigChanged() {
+        Map<String,Object> configProps = new HashMap<String,Object>();
+        configProps.put(PersistenceUnitProperties.WEAVING, "static");
+        predeploy(configProps);
+        configProps.put(PersistenceUnitProperties.WEAVING, "false");
+        Assert.assertNull(newInitializer(createProperties(configProps)).extractInitialEmSetupImpl(PREDEPLOY_UNIT_NAME));
+    }
+
+    @Test
+    public void testSetupNotReusedWithOtherLoader() {
+        predeploy(new HashMap<String,Object>());
+        GeminiOSGiInitializer initializer = new GeminiOSGiInitializer(
+                new ClassLoader(loader) {}, unit, true, createProperties(null));
+        Assert.assertNull(initializer.extractInitialEmSetupImpl(PREDEPLOY_UNIT_NAME));
+        // Still there for an EMF that is created with the predeploy loader
+        Assert.assertSame(setup, newInitializer(createProperties(null)).extractInitialEmSetupImpl(PREDEPLOY_UNIT_NAME));
+    }
+
+    @Test
+    public void testPredeployPropertiesAreTheProviderProperties() {
+        Hashtable<String,Object> dict = new Hashtable<String,Object>();
+        dict.put(GeminiPersistenceUnitProperties.PUNIT_NAME, PREDEPLOY_UNIT_NAME);
+        dict.put(PersistenceUnitProperties.WEAVING, "static");
+        dict.put(GeminiUtil.JPA_JDBC_URL_PROPERTY, "jdbc:derby:memory:test");
+        dict.put(GeminiPersistenceUnitProperties.WARM_UP, "true");
+        dict.put(GeminiPersistenceUnitProperties.EMF_CACHE_MAX_SIZE, "3");
+        dict.put(GeminiPersistenceUnitProperties.EMF_IDLE_TIMEOUT, "10");
+        PersistenceUnitConfiguration config = new PersistenceUnitConfiguration(dict);
+
+        // What preResolve predeploys with must be what the p-unit ends up with
+        config.updatePUnitInfo(unit);
+        Assert.assertEquals(unit.getConfigProperties(), config.providerProperties());
+        predeploy(config.providerProperties());
+        Assert.assertSame(setup, newInitializer(createProperties(unit.getConfigProperties()))
+                .extractInitialEmSetupImpl(PREDEPLOY_UNIT_NAME));
+    }
+
+    /* === Helper methods === */
+
+    void predeploy(Map<String,Object> props) {
+        SEPersistenceUnitInfo unitInfo = new SEPersistenceUnitInfo();
+        unitInfo.setPersistenceUnitName(PREDEPLOY_UNIT_NAME);
+        unitInfo.setClassLoader(loader);
+        unit.setPredeployedUnit(new PredeployedUnit(unitInfo, setup, props));
+    }
+
+    GeminiOSGiInitializer newInitializer(Map<String,Object> props) {
+        return new GeminiOSGiInitializer(loader, unit, true, props);
+    }
+
+    // The properties that the provider wrapper passes on when creating the EMF 
+    Map<String,Object> createProperties(Map<String,Object> props) {
+        Map<String,Object> result = new HashMap<String,Object>();
+        if (props != null) 
+            result.putAll(props);
+        result.put(PersistenceUnitProperties.CLASSLOADER, loader);
+        result.put(PersistenceUnitProperties.ECLIPSELINK_PERSISTENCE_XML, "META-INF/persistence.xml");
+        result.put(PUNIT_INFO_PROPERTY, unit);
+        return result;
+    }
+
+    // A setup that is predeployed without having to process any metadata
+    static class PredeployedSetup extends EntityManagerSetupImpl {
+        PredeployedSetup() { super(PREDEPLOY_UNIT_NAME, PREDEPLOY_UNIT_NAME); }
+        @Override
+        public boolean isPredeployed() { return true; }
+    }
+}
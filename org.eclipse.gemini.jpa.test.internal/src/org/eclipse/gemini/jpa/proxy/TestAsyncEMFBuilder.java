@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+import org.eclipse.gemini.jpa.FakeEntityManagerFactory;
+import org.eclipse.gemini.jpa.Fixtures;
+import org.eclipse.gemini.jpa.PUnitInfo;
+import org.junit.*;
+
+/**
+ * Test class to test how callers of the AsyncEntityManagerFactoryBuilder 
+ * service share an EMF creation
+ */
+public class TestAsyncEMFBuilder {
+        
+    public static final String ASYNC_UNIT_NAME = "TestAsyncEMFBuilderUnit";
+
+    ExecutorService executor;
+
+    /* === Test Methods === */
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCancelOnlyCancelsForThatCaller() throws Exception {
+        BlockingBuilder builder = new BlockingBuilder();
+        AsyncEMFBuilderService service = newService(builder);
+
+        Future<EntityManagerFactory> first = service.createEntityManagerFactory(props());
+        Future<EntityManagerFactory> second = service.createEntityManagerFactory(props());
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(1, service.getPendingCount());
+
+        Assert.assertTrue(first.cancel(true));
+        Assert.assertTrue(first.isCancelled());
+        Assert.assertFalse(second.isCancelled());
+        Assert.assertFalse(second.isDone());
+
+        builder.proceed.countDown();
+        Assert.assertSame(builder.factory.getEmf(), second.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(1, builder.creations.get());
+    }
+
+    @Test
+    public void testCreationCancelledWhenAllCallersCancel() throws Exception {
+        BlockingBuilder builder = new BlockingBuilder();
+        AsyncEMFBuilderService service = newService(builder);
+
+        Future<EntityManagerFactory> first = service.createEntityManagerFactory(props());
+        Future<EntityManagerFactory> second = service.createEntityManagerFactory(props());
+        builder.started.await(5, TimeUnit.SECONDS);
+        first.cancel(true);
+        second.cancel(true);
+        Assert.assertTrue("Creation was not interrupted", builder.interrupted.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(0, service.getPendingCount());
+
+        // A new caller starts a new creation
+        builder.proceed.countDown();
+        Future<EntityManagerFactory> third = service.createEntityManagerFactory(props());
+        Assert.assertSame(builder.factory.getEmf(), third.get(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, builder.creations.get());
+    }
+
+    @Test
+    public void testFailureGoesToEveryCaller() throws Exception {
+        BlockingBuilder builder = new BlockingBuilder();
+        builder.failure = new PersistenceException("Cannot connect");
+        AsyncEMFBuilderService service = newService(builder);
+
+        Future<EntityManagerFactory> first = service.createEntityManagerFactory(props());
+        Future<EntityManagerFactory> second = service.createEntityManagerFactory(props());
+        builder.proceed.countDown();
+        assertFailedWith(builder.failure, first);
+        assertFailedWith(builder.failure, second);
+    }
+
+    @Test
+    public void testCloseCancelsEveryCaller() throws Exception {
+        BlockingBuilder builder = new BlockingBuilder();
+        AsyncEMFBuilderService service = newService(builder);
+
+        Future<EntityManagerFactory> first = service.createEntityManagerFactory(props());
+        Future<EntityManagerFactory> second = service.createEntityManagerFactory(props());
+        service.close();
+        Assert.assertTrue(first.isCancelled());
+        Assert.assertTrue(second.isCancelled());
+    }
+
+    /* === Helper methods === */
+
+    AsyncEMFBuilderService newService(BlockingBuilder builder) {
+        return new AsyncEMFBuilderService(builder.pUnitInfo, builder, executor);
+    }
+
+    void assertFailedWith(Throwable failure, Future<EntityManagerFactory> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            Assert.fail("Creation should have failed");
+        } catch (ExecutionException exEx) {
+            Assert.assertSame(failure, exEx.getCause());
+        }
+    }
+
+    static Map<String,Object> props() {
+        return new HashMap<String,Object>();
+    }
+
+    static PUnitInfo newUnit() {
+        return Fixtures.newUnit(ASYNC_UNIT_NAME);
+    }
+
+    // Builder whose creations wait until the test lets them go on
+    static class BlockingBuilder extends EMFBuilderServiceProxyHandler {
+        FakeEntityManagerFactory factory = new FakeEntityManagerFactory("async");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        AtomicInteger creations = new AtomicInteger();
+        RuntimeException failure;
+        PUnitInfo pUnitInfo;
+
+        BlockingBuilder() { 
+            this(newUnit());
+        }
+
+        BlockingBuilder(PUnitInfo info) {
+            super(info, null);
+            this.pUnitInfo = info;
+        }
+
+        public EntityManagerFactory createEntityManagerFactory(Map<String,Object> props) {
+            creations.incrementAndGet();
+            started.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException iEx) {
+                interrupted.countDown();
+                throw new PersistenceException("Interrupted");
+            }
+            if (failure != null)
+                throw failure;
+            return factory.getEmf();
+        }
+    }
+}
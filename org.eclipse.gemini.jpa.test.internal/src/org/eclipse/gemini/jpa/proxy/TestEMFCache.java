@@ -0,0 +1,215 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.gemini.jpa.GeminiUtil;
+import org.eclipse.gemini.jpa.FakeEntityManagerFactory;
+import org.eclipse.gemini.jpa.Fixtures;
+import org.eclipse.gemini.jpa.PUnitInfo;
+import org.junit.*;
+
+/**
+ * Test class to test how the EMFBuilder service cache keys, creates and 
+ * evicts the additional EMFs of a p-unit
+ */
+public class TestEMFCache {
+        
+    public static final String CACHED_UNIT_NAME = "TestEMFCacheUnit";
+
+    /* === Test Methods === */
+
+    @Test
+    public void testKeyIsConnectionProperties() {
+        Map<String,Object> props = connectionProps("db1");
+        Map<String,Object> samePropsOtherwise = connectionProps(" db1 ");
+        samePropsOtherwise.put("eclipselink.logging.level", "FINE");
+        Assert.assertEquals(EMFCache.keyFor(props), EMFCache.keyFor(samePropsOtherwise));
+        Assert.assertFalse(EMFCache.keyFor(props).equals(EMFCache.keyFor(connectionProps("db2"))));
+
+        Map<String,Object> otherUser = connectionProps("db1");
+        otherUser.put(GeminiUtil.JPA_JDBC_USER_PROPERTY, "someoneElse");
+        Assert.assertFalse(EMFCache.keyFor(props).equals(EMFCache.keyFor(otherUser)));
+    }
+
+    @Test
+    public void testSameKeySharesEMF() {
+        FakeEMFCache cache = new FakeEMFCache(8, 60000);
+        EntityManagerFactory emf1 = cache.getEMF(connectionProps("db1"));
+        EntityManagerFactory emf2 = cache.getEMF(connectionProps("db1"));
+        cache.getEMF(connectionProps("db2"));
+
+        Assert.assertEquals(2, cache.created.size());
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(2, cache.getMisses());
+
+        // Closing what one caller got does not close the cached EMF for the others
+        emf1.close();
+        Assert.assertFalse(emf1.isOpen());
+        Assert.assertTrue(emf2.isOpen());
+        Assert.assertTrue(cache.created.get(0).getEmf().isOpen());
+        emf2.createEntityManager().close();
+        Assert.assertEquals(2, cache.created.size());
+    }
+
+    @Test
+    public void testEvictionKeepsEMFsInUse() {
+        FakeEMFCache cache = new FakeEMFCache(1, 60000);
+        EntityManagerFactory emf1 = cache.getEMF(connectionProps("db1"));
+        EntityManager em = emf1.createEntityManager();
+
+        // The first EMF has an open EntityManager so it stays, over size
+        cache.getEMF(connectionProps("db2"));
+        Assert.assertEquals(2, cache.size());
+        Assert.assertTrue(cache.created.get(0).getEmf().isOpen());
+        Assert.assertTrue(em.isOpen());
+
+        // Once it is closed the EMFs can be evicted
+        em.close();
+        cache.getEMF(connectionProps("db3"));
+        Assert.assertEquals(1, cache.size());
+        Assert.assertFalse(cache.created.get(0).getEmf().isOpen());
+        Assert.assertFalse(cache.created.get(1).getEmf().isOpen());
+        Assert.assertTrue(cache.created.get(2).getEmf().isOpen());
+        Assert.assertEquals(2, cache.getEvictions());
+    }
+
+    @Test
+    public void testEvictedEMFIsRecreatedOnUse() {
+        FakeEMFCache cache = new FakeEMFCache(1, 60000);
+        EntityManagerFactory emf1 = cache.getEMF(connectionProps("db1"));
+        cache.getEMF(connectionProps("db2"));
+        Assert.assertFalse(cache.created.get(0).getEmf().isOpen());
+
+        // The caller still has a working EMF
+        Assert.assertTrue(emf1.isOpen());
+        EntityManager em = emf1.createEntityManager();
+        Assert.assertTrue(em.isOpen());
+        Assert.assertEquals(3, cache.created.size());
+        Assert.assertEquals("db1", cache.created.get(2).getName());
+        em.close();
+    }
+
+    @Test
+    public void testIdleEMFIsEvicted() throws Exception {
+        FakeEMFCache cache = new FakeEMFCache(8, 50);
+        EntityManagerFactory idle = cache.getEMF(connectionProps("db1"));
+        EntityManagerFactory busy = cache.getEMF(connectionProps("db2"));
+        EntityManager em = busy.createEntityManager();
+        Thread.sleep(150);
+
+        // A cache hit is enough to look for idle EMFs once the check is due
+        cache.getEMF(connectionProps("db3"));
+        cache.getEMF(connectionProps("db3"));
+        Assert.assertFalse(cache.created.get(0).getEmf().isOpen());
+        Assert.assertTrue("EMF with an open EntityManager was evicted", 
+                          cache.created.get(1).getEmf().isOpen());
+        Assert.assertEquals(2, cache.size());
+        Assert.assertTrue(idle.isOpen());
+        em.close();
+    }
+
+    @Test
+    public void testConcurrentCreationCreatesOnce() throws Exception {
+        final FakeEMFCache cache = new FakeEMFCache(8, 60000);
+        cache.createDelay = 50;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i=0; i<8; i++) {
+            final String db = "db" + (i % 2);
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        cache.getEMF(connectionProps(db)).createEntityManager().close();
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+
+        Assert.assertTrue("Failures: " + failures, failures.isEmpty());
+        Assert.assertEquals(2, cache.created.size());
+        Assert.assertEquals(6, cache.getHits());
+    }
+
+    @Test
+    public void testClosedCache() {
+        FakeEMFCache cache = new FakeEMFCache(8, 60000);
+        EntityManagerFactory emf1 = cache.getEMF(connectionProps("db1"));
+        cache.close();
+        Assert.assertFalse(emf1.isOpen());
+        Assert.assertFalse(cache.created.get(0).getEmf().isOpen());
+        try {
+            cache.getEMF(connectionProps("db1"));
+            Assert.fail("Got an EMF from a closed cache");
+        } catch (IllegalStateException isEx) {
+            // expected
+        }
+        Assert.assertEquals(0, cache.size());
+    }
+
+    /* === Helper methods === */
+
+    static Map<String,Object> connectionProps(String db) {
+        Map<String,Object> props = new HashMap<String,Object>();
+        props.put(GeminiUtil.JPA_JDBC_DRIVER_PROPERTY, "org.apache.derby.jdbc.ClientDriver");
+        props.put(GeminiUtil.JPA_JDBC_URL_PROPERTY, db);
+        props.put(GeminiUtil.JPA_JDBC_USER_PROPERTY, "app");
+        return props;
+    }
+
+    // Cache that creates fake EMFs named after the URL they are for
+    static class FakeEMFCache extends EMFCache {
+        List<FakeEntityManagerFactory> created = 
+            Collections.synchronizedList(new ArrayList<FakeEntityManagerFactory>());
+        long createDelay;
+
+        FakeEMFCache(int maxSize, long maxIdle) {
+            super(new EMFBuilderServiceProxyHandler(newUnit(), null), maxSize, maxIdle);
+        }
+
+        protected EntityManagerFactory createEMF(Map<String,Object> props) {
+            if (createDelay > 0) {
+                try { Thread.sleep(createDelay); } catch (InterruptedException iEx) {}
+            }
+            FakeEntityManagerFactory factory = 
+                new FakeEntityManagerFactory(String.valueOf(props.get(GeminiUtil.JPA_JDBC_URL_PROPERTY)).trim());
+            created.add(factory);
+            return factory.getEmf();
+        }
+
+        static PUnitInfo newUnit() {
+            return Fixtures.newUnit(CACHED_UNIT_NAME);
+        }
+    }
+}
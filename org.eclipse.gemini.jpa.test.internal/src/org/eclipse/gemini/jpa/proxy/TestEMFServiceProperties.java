@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.gemini.jpa.FakeEntityManagerFactory;
+import org.eclipse.gemini.jpa.Fixtures;
+import org.eclipse.gemini.jpa.PUnitInfo;
+import org.junit.*;
+
+/**
+ * Test class to test the properties that the EMF service returns
+ */
+public class TestEMFServiceProperties {
+        
+    public static final String PROPERTIES_UNIT_NAME = "TestEMFServicePropertiesUnit";
+
+    /* === Test Methods === */
+
+    @Test
+    public void testPropertiesAreReusedForSameEMF() {
+        FakeEntityManagerFactory factory = new FakeEntityManagerFactory("props");
+        EMFServiceProxyHandler handler = new EMFServiceProxyHandler(newUnit(factory));
+
+        Map<String,Object> props = handler.getProperties(factory.getEmf());
+        Assert.assertNotNull(props.get("PUnitInfo"));
+        Assert.assertSame(props, handler.getProperties(factory.getEmf()));
+
+        // A new EMF gets its own properties
+        FakeEntityManagerFactory other = new FakeEntityManagerFactory("other");
+        Assert.assertNotSame(props, handler.getProperties(other.getEmf()));
+    }
+
+    @Test
+    public void testInvalidatedPropertiesAreRebuilt() {
+        FakeEntityManagerFactory factory = new FakeEntityManagerFactory("props");
+        PUnitInfo info = newUnit(factory);
+        EMFServiceProxyHandler handler = new EMFServiceProxyHandler(info);
+
+        handler.getProperties(factory.getEmf());
+        info.setDriverUrl("jdbc:changed");
+        handler.invalidateProperties();
+        Assert.assertEquals("jdbc:changed", infoEntry(handler.getProperties(factory.getEmf())).get("driverUrl"));
+    }
+
+    @Test
+    public void testSnapshotBuiltBeforeInvalidateIsNotKept() throws Exception {
+        final BlockingFactory factory = new BlockingFactory();
+        PUnitInfo info = newUnit(factory);
+        final EMFServiceProxyHandler handler = new EMFServiceProxyHandler(info);
+        final Map<String,Object> staleResult = new HashMap<String,Object>();
+
+        // A reader starts building the properties from the old configuration...
+        Thread reader = new Thread() {
+            public void run() { 
+                staleResult.putAll(handler.getProperties(factory.getEmf())); 
+            }
+        };
+        reader.start();
+        Assert.assertTrue(factory.reading.await(5, TimeUnit.SECONDS));
+
+        // ...and publishes them after they have been invalidated
+        info.setDriverUrl("jdbc:changed");
+        handler.invalidateProperties();
+        factory.proceed.countDown();
+        reader.join(5000);
+        Assert.assertFalse(staleResult.isEmpty());
+
+        Assert.assertEquals("jdbc:changed", infoEntry(handler.getProperties(factory.getEmf())).get("driverUrl"));
+    }
+
+    /* === Helper methods === */
+
+    PUnitInfo newUnit(FakeEntityManagerFactory factory) {
+        PUnitInfo info = Fixtures.newUnit(PROPERTIES_UNIT_NAME, factory.getEmf());
+        info.setDriverUrl("jdbc:original");
+        return info;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String,Object> infoEntry(Map<String,Object> props) {
+        return (Map<String,Object>) props.get("PUnitInfo");
+    }
+
+    // EMF whose first getProperties() call waits until the test lets it go on
+    static class BlockingFactory extends FakeEntityManagerFactory {
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+
+        BlockingFactory() { super("blocking"); }
+
+        protected Map<String,Object> getProperties() {
+            reading.countDown();
+            try {
+                proceed.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException iEx) {}
+            return super.getProperties();
+        }
+    }
+}
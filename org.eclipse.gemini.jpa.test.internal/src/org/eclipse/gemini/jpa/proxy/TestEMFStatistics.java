@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import org.eclipse.gemini.jpa.Fixtures;
+import org.eclipse.gemini.jpa.PUnitInfo;
+import org.junit.*;
+
+/**
+ * Test class to test what the EMF service statistics record and keep
+ */
+public class TestEMFStatistics {
+        
+    public static final String MEASURED_UNIT_NAME = "TestEMFStatisticsUnit";
+
+    /* === Test Methods === */
+
+    @Test
+    public void testOnlyEnabledCallsAreRecorded() {
+        EMFStatistics statistics = new EMFStatistics(false);
+        EMFStatistics.UnitStatistics unit = statistics.forUnit(newUnit());
+
+        long start = unit.start();
+        Assert.assertEquals(EMFStatistics.NOT_TIMED, start);
+        unit.record("createEntityManager", start, false);
+        Assert.assertTrue(statistics.getStatistics(MEASURED_UNIT_NAME).isEmpty());
+
+        // A start time of 0 is as good as any other
+        statistics.setEnabled(true);
+        unit.record("createEntityManager", 0, false);
+        unit.record("createEntityManager", unit.start(), true);
+        Assert.assertEquals(2, statistics.getStatistics(MEASURED_UNIT_NAME)
+                                         .get("createEntityManager").getCount());
+    }
+
+    @Test
+    public void testUnitsAreRemovedByTheirOwner() {
+        EMFStatistics statistics = new EMFStatistics(true);
+        PUnitInfo previous = newUnit();
+        PUnitInfo current = newUnit();
+
+        EMFStatistics.UnitStatistics previousStats = statistics.forUnit(previous);
+        Assert.assertSame(previousStats, statistics.forUnit(previous));
+
+        // A p-unit that takes over the name gets its own statistics
+        EMFStatistics.UnitStatistics currentStats = statistics.forUnit(current);
+        Assert.assertNotSame(previousStats, currentStats);
+
+        // A late unregister of the previous p-unit leaves them alone
+        statistics.removeUnit(previous);
+        Assert.assertTrue(statistics.getUnitNames().contains(MEASURED_UNIT_NAME));
+        Assert.assertSame(currentStats, statistics.forUnit(current));
+
+        statistics.removeUnit(current);
+        Assert.assertTrue(statistics.getUnitNames().isEmpty());
+    }
+
+    /* === Helper methods === */
+
+    PUnitInfo newUnit() {
+        return Fixtures.newUnit(MEASURED_UNIT_NAME);
+    }
+}
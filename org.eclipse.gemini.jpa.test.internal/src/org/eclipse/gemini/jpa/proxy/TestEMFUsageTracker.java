@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import java.lang.ref.WeakReference;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.gemini.jpa.FakeEntityManagerFactory;
+import org.eclipse.gemini.jpa.FakeEntityManagerFactory.FakeEntityManager;
+import org.eclipse.gemini.jpa.Fixtures;
+import org.eclipse.gemini.jpa.PUnitInfo;
+import org.junit.*;
+
+/**
+ * Test class to test when the EMF usage tracker closes an idle shared EMF
+ */
+public class TestEMFUsageTracker {
+        
+    public static final String TRACKED_UNIT_NAME = "TestEMFUsageTrackerUnit";
+    public static final long IDLE_TIMEOUT = 50;
+
+    /* === Test Methods === */
+
+    @Test
+    public void testIdleEMFIsClosed() throws Exception {
+        FakeEntityManagerFactory factory = new FakeEntityManagerFactory("tracked");
+        PUnitInfo info = newUnit(factory.getEmf());
+        ManualTracker tracker = track(info);
+
+        Thread.sleep(IDLE_TIMEOUT * 2);
+        tracker.checkIdle();
+        Assert.assertFalse(factory.getEmf().isOpen());
+        Assert.assertNull(info.getEmf());
+    }
+
+    @Test
+    public void testOpenEntityManagerKeepsEMF() throws Exception {
+        FakeEntityManagerFactory factory = new FakeEntityManagerFactory("tracked");
+        PUnitInfo info = newUnit(factory.getEmf());
+        ManualTracker tracker = track(info);
+        EntityManager em = (EntityManager) info.getEmfHandler().entityManagerCreated(
+                info.getEmfHandler().getEMF().createEntityManager());
+        // The caller gets the provider's EntityManager, not a wrapper
+        Assert.assertSame(factory.getCreated().get(0), em);
+        Assert.assertEquals(1, tracker.getOpenEntityManagerCount());
+
+        // Idle, but the EntityManager is still open
+        Thread.sleep(IDLE_TIMEOUT * 2);
+        tracker.checkIdle();
+        Assert.assertTrue(factory.getEmf().isOpen());
+        Assert.assertSame(factory.getEmf(), info.getEmf());
+
+        em.close();
+        Assert.assertEquals(0, tracker.getOpenEntityManagerCount());
+        tracker.checkIdle();
+        Assert.assertFalse(factory.getEmf().isOpen());
+        Assert.assertNull(info.getEmf());
+    }
+
+    @Test
+    public void testRecentCallKeepsEMF() throws Exception {
+        FakeEntityManagerFactory factory = new FakeEntityManagerFactory("tracked");
+        PUnitInfo info = newUnit(factory.getEmf());
+        ManualTracker tracker = track(info);
+
+        Thread.sleep(IDLE_TIMEOUT * 2);
+        info.getEmfHandler().getEMF();
+        tracker.checkIdle();
+        Assert.assertTrue(factory.getEmf().isOpen());
+        Assert.assertSame(factory.getEmf(), info.getEmf());
+    }
+
+    @Test
+    public void testPooledEMFIsNotClosed() throws Exception {
+        FakeEntityManagerFactory factory = new FakeEntityManagerFactory("tracked");
+        PUnitInfo info = newUnit(factory.getEmf());
+        info.setEmPool(true);
+        ManualTracker tracker = track(info);
+
+        // Clients of the pool are not tracked, so the EMF must stay open
+        Thread.sleep(IDLE_TIMEOUT * 2);
+        tracker.checkIdle();
+        Assert.assertTrue(factory.getEmf().isOpen());
+    }
+
+    @Test
+    public void testDroppedEntityManagerIsForgotten() throws Exception {
+        OpenEntityManagers ems = new OpenEntityManagers();
+        EntityManager kept = new FakeEntityManager(null).getEm();
+        EntityManager dropped = new FakeEntityManager(null).getEm();
+        ems.add(kept);
+        ems.add(dropped);
+        Assert.assertEquals(2, ems.count());
+
+        // Never closed, but no longer reachable either
+        WeakReference<EntityManager> ref = new WeakReference<EntityManager>(dropped);
+        dropped = null;
+        for (int i = 0; (i < 50) && (ref.get() != null); i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        if (ref.get() == null)
+            Assert.assertEquals(1, ems.count());
+        kept.close();
+        Assert.assertEquals(0, ems.count());
+    }
+
+    /* === Helper methods === */
+
+    PUnitInfo newUnit(EntityManagerFactory unitEmf) {
+        PUnitInfo info = Fixtures.newUnit(TRACKED_UNIT_NAME, unitEmf);
+        info.setEmfHandler(new EMFServiceProxyHandler(info));
+        return info;
+    }
+
+    ManualTracker track(PUnitInfo info) {
+        ManualTracker tracker = new ManualTracker(info);
+        info.setEmfUsage(tracker);
+        info.getEmfHandler().setUsageTracker(tracker);
+        tracker.startIdleChecks(IDLE_TIMEOUT);
+        return tracker;
+    }
+
+    // Tracker without a scheduler, so the test decides when to check for an idle EMF
+    static class ManualTracker extends EMFUsageTracker {
+        ManualTracker(PUnitInfo info) { super(info, null, -1); }
+        void checkIdle() { closeIfIdle(); }
+    }
+}
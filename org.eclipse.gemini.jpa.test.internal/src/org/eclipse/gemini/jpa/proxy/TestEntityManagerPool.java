@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.gemini.jpa.FakeEntityManagerFactory;
+import org.eclipse.gemini.jpa.Fixtures;
+import org.eclipse.gemini.jpa.PUnitInfo;
+import org.junit.*;
+
+/**
+ * Test class to test which EntityManagers the EntityManagerPool service keeps
+ */
+public class TestEntityManagerPool {
+        
+    public static final String POOLED_UNIT_NAME = "TestEntityManagerPoolUnit";
+
+    /* === Test Methods === */
+
+    @Test
+    public void testReleasedEntityManagerIsReused() {
+        FakeEntityManagerFactory factory = new FakeEntityManagerFactory("current");
+        PooledEntityManagerService pool = newPool(factory.getEmf());
+
+        EntityManager em = pool.acquire();
+        pool.release(em);
+        Assert.assertEquals(1, pool.getIdleCount());
+        Assert.assertSame(em, pool.acquire());
+        Assert.assertEquals(1, pool.getHits());
+        Assert.assertEquals(1, pool.getMisses());
+    }
+
+    @Test
+    public void testEntityManagerFromOtherFactoryIsClosed() {
+        FakeEntityManagerFactory current = new FakeEntityManagerFactory("current");
+        FakeEntityManagerFactory other = new FakeEntityManagerFactory("other");
+        PooledEntityManagerService pool = newPool(current.getEmf());
+
+        EntityManager em = other.getEmf().createEntityManager();
+        pool.release(em);
+        Assert.assertEquals(0, pool.getIdleCount());
+        Assert.assertFalse(em.isOpen());
+        Assert.assertNotSame(em, pool.acquire());
+    }
+
+    @Test
+    public void testEntityManagerFromReplacedFactoryIsClosed() {
+        FakeEntityManagerFactory first = new FakeEntityManagerFactory("first");
+        FakeEntityManagerFactory second = new FakeEntityManagerFactory("second");
+        PUnitInfo info = newUnit(first.getEmf());
+        PooledEntityManagerService pool = new PooledEntityManagerService(info, new EMFServiceProxyHandler(info));
+
+        // The EM was acquired before the p-unit EMF was replaced
+        EntityManager em = pool.acquire();
+        info.setEmf(second.getEmf());
+        pool.release(em);
+        Assert.assertEquals(0, pool.getIdleCount());
+        Assert.assertFalse(em.isOpen());
+    }
+
+    @Test
+    public void testReleaseWhileClosingIsNotPooled() {
+        FakeEntityManagerFactory factory = new FakeEntityManagerFactory("current");
+        PUnitInfo info = newUnit(factory.getEmf());
+        // Close the pool after release() has checked it is open but before it adds the EM
+        PooledEntityManagerService pool = 
+            new PooledEntityManagerService(info, new EMFServiceProxyHandler(info)) {
+                protected boolean reset(EntityManager em) {
+                    close();
+                    return super.reset(em);
+                }
+            };
+
+        EntityManager em = factory.getEmf().createEntityManager();
+        pool.release(em);
+        Assert.assertEquals(0, pool.getIdleCount());
+        Assert.assertFalse(em.isOpen());
+    }
+
+    @Test
+    public void testReleaseAfterCloseIsNotPooled() {
+        FakeEntityManagerFactory factory = new FakeEntityManagerFactory("current");
+        PooledEntityManagerService pool = newPool(factory.getEmf());
+
+        EntityManager em = pool.acquire();
+        pool.close();
+        pool.release(em);
+        Assert.assertEquals(0, pool.getIdleCount());
+        Assert.assertFalse(em.isOpen());
+    }
+
+    /* === Helper methods === */
+
+    PUnitInfo newUnit(EntityManagerFactory unitEmf) {
+        PUnitInfo info = Fixtures.newUnit(POOLED_UNIT_NAME, unitEmf);
+        info.setEmPoolMaxSize(4);
+        info.setEmPoolMaxIdle(60000);
+        return info;
+    }
+
+    PooledEntityManagerService newPool(EntityManagerFactory unitEmf) {
+        PUnitInfo info = newUnit(unitEmf);
+        return new PooledEntityManagerService(info, new EMFServiceProxyHandler(info));
+    }
+}
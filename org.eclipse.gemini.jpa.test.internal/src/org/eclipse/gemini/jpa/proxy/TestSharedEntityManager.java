@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA tests 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.gemini.jpa.FakeEntityManagerFactory;
+import org.eclipse.gemini.jpa.Fixtures;
+import org.eclipse.gemini.jpa.PUnitInfo;
+import org.eclipse.gemini.jpa.service.EntityManagerScope;
+import org.junit.*;
+
+/**
+ * Test class to test the scopes and EntityManagers of the shared EntityManager service
+ */
+public class TestSharedEntityManager {
+        
+    public static final String SHARED_UNIT_NAME = "TestSharedEntityManagerUnit";
+
+    /* === Test Methods === */
+
+    @Test
+    public void testNestedScopesShareEntityManager() {
+        FakeEntityManagerFactory factory = new FakeEntityManagerFactory("shared");
+        SharedEntityManagerHandler handler = newHandler(newUnit(factory.getEmf()));
+        EntityManager em = (EntityManager) handler.createProxy();
+        EntityManagerScope scope = (EntityManagerScope) em;
+
+        scope.begin();
+        em.clear();
+        scope.begin();
+        em.clear();
+        Assert.assertEquals(1, factory.getCreated().size());
+        EntityManager threadEm = factory.getCreated().get(0);
+
+        // Ending the inner scope leaves the EntityManager of the outer one alone
+        scope.end();
+        Assert.assertTrue(scope.isActive());
+        Assert.assertTrue(threadEm.isOpen());
+        em.clear();
+        Assert.assertEquals(1, factory.getCreated().size());
+
+        scope.end();
+        Assert.assertFalse(scope.isActive());
+        Assert.assertFalse(threadEm.isOpen());
+        Assert.assertEquals(0, handler.getActiveCount());
+
+        // An extra end() does nothing
+        scope.end();
+        Assert.assertFalse(scope.isActive());
+    }
+
+    @Test
+    public void testEntityManagerReplacedAfterEMFChange() {
+        FakeEntityManagerFactory first = new FakeEntityManagerFactory("first");
+        FakeEntityManagerFactory second = new FakeEntityManagerFactory("second");
+        PUnitInfo info = newUnit(first.getEmf());
+        SharedEntityManagerHandler handler = newHandler(info);
+        EntityManager em = (EntityManager) handler.createProxy();
+        EntityManagerScope scope = (EntityManagerScope) em;
+
+        scope.begin();
+        em.clear();
+        EntityManager firstEm = first.getCreated().get(0);
+
+        // The p-unit EMF is replaced (e.g. it was closed when idle and created again)
+        info.setEmf(second.getEmf());
+        em.clear();
+        Assert.assertFalse(firstEm.isOpen());
+        Assert.assertEquals(1, second.getCreated().size());
+        Assert.assertSame(second.getEmf(), em.getEntityManagerFactory());
+        Assert.assertEquals(1, handler.getActiveCount());
+
+        scope.end();
+        Assert.assertFalse(second.getCreated().get(0).isOpen());
+    }
+
+    @Test
+    public void testThreadsHaveTheirOwnEntityManagers() throws Exception {
+        final FakeEntityManagerFactory factory = new FakeEntityManagerFactory("shared");
+        SharedEntityManagerHandler handler = newHandler(newUnit(factory.getEmf()));
+        final EntityManager em = (EntityManager) handler.createProxy();
+        final EntityManagerScope scope = (EntityManagerScope) em;
+        final List<EntityManagerFactory> seen = 
+            Collections.synchronizedList(new ArrayList<EntityManagerFactory>());
+
+        scope.begin();
+        em.clear();
+        Thread other = new Thread() {
+            public void run() {
+                scope.begin();
+                em.clear();
+                seen.add(em.getEntityManagerFactory());
+                scope.end();
+            }
+        };
+        other.start();
+        other.join();
+
+        Assert.assertEquals(1, seen.size());
+        Assert.assertEquals(2, factory.getCreated().size());
+        Assert.assertTrue("Other thread closed our EntityManager", factory.getCreated().get(0).isOpen());
+        Assert.assertFalse(factory.getCreated().get(1).isOpen());
+        scope.end();
+    }
+
+    @Test
+    public void testCloseEndsAllScopes() {
+        FakeEntityManagerFactory factory = new FakeEntityManagerFactory("shared");
+        SharedEntityManagerHandler handler = newHandler(newUnit(factory.getEmf()));
+        EntityManager em = (EntityManager) handler.createProxy();
+        EntityManagerScope scope = (EntityManagerScope) em;
+
+        scope.begin();
+        em.clear();
+        handler.close();
+        Assert.assertFalse(factory.getCreated().get(0).isOpen());
+        Assert.assertFalse(em.isOpen());
+        try {
+            em.clear();
+            Assert.fail("Shared EntityManager still usable after close");
+        } catch (IllegalStateException isEx) {
+            // expected
+        }
+        scope.end();
+    }
+
+    /* === Helper methods === */
+
+    PUnitInfo newUnit(EntityManagerFactory unitEmf) {
+        return Fixtures.newUnit(SHARED_UNIT_NAME, unitEmf);
+    }
+
+    SharedEntityManagerHandler newHandler(PUnitInfo info) {
+        return new SharedEntityManagerHandler(info, new EMFServiceProxyHandler(info));
+    }
+}
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import java.util.Dictionary;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+
+/**
+ * The few manifest values the extender needs to know about a bundle,
+ * read once so that the headers don't have to be looked up (and localized)
+ * every time an event occurs. The extender discards the metadata for a bundle
+ * when it is updated or uninstalled.
+ */
+public class BundleMetadata {
+
+    // Value of the Meta-Persistence header (null if not a persistence bundle)
+    final String metaPersistence;
+
+    // Whether the bundle has a lazy activation policy
+    final boolean lazyActivation;
+
+    final String symbolicName;
+    final Version version;
+
+    // Last modified time of the bundle when the headers were read
+    final long lastModified;
+
+    public BundleMetadata(Bundle b) {
+        // Use the raw headers since none of the values we need are localized
+        Dictionary<String,String> headers = b.getHeaders("");
+        this.metaPersistence = headers.get(PersistenceUnitBundleUtil.JPA_MANIFEST_HEADER);
+        String policy = headers.get(Constants.BUNDLE_ACTIVATIONPOLICY);
+        this.lazyActivation = (policy != null) && policy.split(";")[0].trim().equals(Constants.ACTIVATION_LAZY);
+        this.symbolicName = b.getSymbolicName();
+        this.version = b.getVersion();
+        this.lastModified = b.getLastModified();
+    }
+
+    public String getMetaPersistence() { return metaPersistence; }
+    public boolean isPersistenceBundle() { return metaPersistence != null; }
+    public boolean isLazyActivation() { return lazyActivation; }
+    public String getSymbolicName() { return symbolicName; }
+    public Version getVersion() { return version; }
+    public long getLastModified() { return lastModified; }
+
+    /**
+     * Return whether this metadata still describes the given bundle
+     */
+    public boolean isCurrent(Bundle b) {
+        return lastModified == b.getLastModified();
+    }
+
+    public String toString() {
+        return "BundleMetadata(" + symbolicName + "_" + version +
+               (isPersistenceBundle() ? ", Meta-Persistence: " + metaPersistence : "") +
+               (lazyActivation ? ", lazy" : "") + ")";
+    }
+}
@@ -0,0 +1,368 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.bundleVersion;
+import static org.eclipse.gemini.jpa.GeminiUtil.close;
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * Cache of the descriptor state parsed out of the persistence descriptors
+ * of persistence bundles. The cache is kept in a file in the Gemini bundle
+ * data area so that on a framework restart (or a refresh) bundles that have
+ * not changed do not need to have their descriptors located and parsed again.
+ *
+ * Entries are keyed by bundle symbolic name, version and last modified time,
+ * so any change to a bundle causes its entry to be missed and replaced.
+ * Only descriptors found in the bundle are cached. Descriptors that come from
+ * config admin are always processed from scratch. Bundles with a p-unit that
+ * specifies a JDBC password are not cached either, so that the password is
+ * never written out to the file.
+ *
+ * The file is written in a simple binary format using Data streams. If the
+ * file can not be read, or was written by a different version of Gemini,
+ * then it is ignored and the cache starts out empty.
+ */
+public class DescriptorCache {
+
+    /*==================*/
+    /* Static constants */
+    /*==================*/
+
+    // Name of the cache file in the bundle data area
+    public static final String CACHE_FILE_NAME = "descriptors.cache";
+
+    // Marker and format version written at the start of the file
+    static final int MAGIC = 0x47454d4a;
+    static final int FORMAT_VERSION = 5;
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    // The cache file (null if the framework does not provide a data area)
+    File file;
+
+    // Version of the Gemini bundle that the cache entries belong to
+    String geminiVersion;
+
+    // Cached descriptor state, keyed by bundle key (guarded by this)
+    Map<String, List<CachedDescriptor>> entries = new HashMap<String, List<CachedDescriptor>>();
+
+    // Whether the entries have changed since they were loaded (guarded by this)
+    boolean dirty;
+
+    /*==============*/
+    /* Constructors */
+    /*==============*/
+
+    public DescriptorCache(File file, String geminiVersion) {
+        this.file = file;
+        this.geminiVersion = geminiVersion;
+    }
+
+    /*=========*/
+    /* Methods */
+    /*=========*/
+
+    /**
+     * Return newly created p-unit infos for the cached descriptor state of
+     * a bundle, or null if the bundle is not cached (or has changed since
+     * it was cached). The p-unit infos returned contain only descriptor state.
+     *
+     * @param b the persistence bundle
+     *
+     * @return a Set of p-unit infos or null if there was no valid cache entry
+     */
+    public synchronized Set<PUnitInfo> get(Bundle b) {
+        List<CachedDescriptor> descriptors = entries.get(keyFor(b));
+        if (descriptors == null)
+            return null;
+        Set<PUnitInfo> pUnits = new HashSet<PUnitInfo>();
+        for (CachedDescriptor desc : descriptors) {
+            // Look up the URL again since it is specific to the framework instance
+            String entryPath = (desc.jarPath != null) ? desc.jarPath : desc.descriptorPath;
+            URL url = b.getEntry(entryPath);
+            if (url == null) {
+                debug("DescriptorCache entry no longer valid for ", b, " - missing ", entryPath);
+                entries.remove(keyFor(b));
+                dirty = true;
+                return null;
+            }
+            PersistenceDescriptorInfo descInfo = new PersistenceDescriptorInfo(url, desc.descriptorPath, desc.jarPath);
+            for (PUnitInfo cachedInfo : desc.pUnits) {
+                PUnitInfo info = copyDescriptorState(cachedInfo);
+                info.setDescriptorInfo(descInfo);
+                pUnits.add(info);
+            }
+        }
+        debug("DescriptorCache hit for bundle ", b);
+        return pUnits;
+    }
+
+    /**
+     * Cache the descriptor state of the p-units parsed from a bundle.
+     *
+     * @param b the persistence bundle
+     * @param pUnits the p-unit infos parsed from the bundle descriptors
+     */
+    public synchronized void put(Bundle b, Set<PUnitInfo> pUnits) {
+        // Don't keep passwords on disk, just parse the descriptors each time instead
+        for (PUnitInfo info : pUnits) {
+            if (info.getDriverPassword() != null) {
+                debug("DescriptorCache not caching bundle with a JDBC password ", b);
+                if (entries.remove(keyFor(b)) != null) 
+                    dirty = true;
+                return;
+            }
+        }
+        // Group the p-units by the descriptor they came from
+        Map<String, CachedDescriptor> byPath = new HashMap<String, CachedDescriptor>();
+        List<CachedDescriptor> descriptors = new ArrayList<CachedDescriptor>();
+        for (PUnitInfo info : pUnits) {
+            PersistenceDescriptorInfo descInfo = info.getDescriptorInfo();
+            CachedDescriptor desc = byPath.get(descInfo.fullDescriptorPath());
+            if (desc == null) {
+                desc = new CachedDescriptor(descInfo.getDescriptorPath(), descInfo.getJarPath());
+                byPath.put(descInfo.fullDescriptorPath(), desc);
+                descriptors.add(desc);
+            }
+            desc.pUnits.add(copyDescriptorState(info));
+        }
+        entries.put(keyFor(b), descriptors);
+        dirty = true;
+    }
+
+    /**
+     * Read the cache file, if there is one.
+     */
+    public synchronized void load() {
+        if ((file == null) || !file.exists())
+            return;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if ((in.readInt() != MAGIC) || (in.readInt() != FORMAT_VERSION)
+                    || !in.readUTF().equals(geminiVersion)) {
+                debug("DescriptorCache ignoring cache file from a different version");
+                // Older versions may have written passwords, so don't leave it lying around
+                close(in);
+                in = null;
+                file.delete();
+                return;
+            }
+            Map<String, List<CachedDescriptor>> loaded = new HashMap<String, List<CachedDescriptor>>();
+            int numEntries = in.readInt();
+            for (int i=0; i<numEntries; i++) {
+                String key = in.readUTF();
+                int numDescriptors = in.readInt();
+                List<CachedDescriptor> descriptors = new ArrayList<CachedDescriptor>(numDescriptors);
+                for (int j=0; j<numDescriptors; j++) {
+                    descriptors.add(readDescriptor(in));
+                }
+                loaded.put(key, descriptors);
+            }
+            entries = loaded;
+            dirty = false;
+            debug("DescriptorCache loaded ", numEntries, " entries from ", file);
+        } catch (IOException ioEx) {
+            warning("DescriptorCache could not read cache file - ignoring it ", ioEx);
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Write the cache file, if anything has changed. Entries for bundles that
+     * are no longer installed (or that have changed) are dropped.
+     *
+     * @param installedBundles the bundles currently installed in the framework
+     */
+    public synchronized void save(Bundle[] installedBundles) {
+        if ((file == null) || !dirty)
+            return;
+        Set<String> liveKeys = new HashSet<String>();
+        for (Bundle b : installedBundles) {
+            liveKeys.add(keyFor(b));
+        }
+        entries.keySet().retainAll(liveKeys);
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(geminiVersion);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, List<CachedDescriptor>> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (CachedDescriptor desc : entry.getValue()) {
+                    writeDescriptor(out, desc);
+                }
+            }
+            out.flush();
+            dirty = false;
+            debug("DescriptorCache saved ", entries.size(), " entries to ", file);
+        } catch (IOException ioEx) {
+            warning("DescriptorCache could not write cache file ", ioEx);
+            close(out);
+            out = null;
+            // Don't leave a partially written file around
+            file.delete();
+        } finally {
+            close(out);
+        }
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    protected String keyFor(Bundle b) {
+        return b.getSymbolicName() + "_" + bundleVersion(b) + "_" + b.getLastModified();
+    }
+
+    protected PUnitInfo copyDescriptorState(PUnitInfo from) {
+        PUnitInfo to = new PUnitInfo();
+        to.setUnitName(from.getUnitName());
+        to.setProvider(from.getProvider());
+        to.setNonJtaDataSource(from.getNonJtaDataSource());
+        to.setJtaDataSource(from.getJtaDataSource());
+        for (String cls : from.getClasses())
+            to.addClass(cls);
+        to.setDriverClassName(from.getDriverClassName());
+        to.setDriverUrl(from.getDriverUrl());
+        to.setDriverUser(from.getDriverUser());
+        to.setDriverVersion(from.getDriverVersion());
+        to.setWarmUp(from.isWarmUp());
+        to.setWarmUpQueries(new ArrayList<String>(from.getWarmUpQueries()));
+        to.setEmPool(from.isEmPool());
+        to.setEmPoolMaxSize(from.getEmPoolMaxSize());
+        to.setEmPoolMaxIdle(from.getEmPoolMaxIdle());
+        to.setEmfCache(from.isEmfCache());
+        to.setEmfCacheMaxSize(from.getEmfCacheMaxSize());
+        to.setEmfCacheMaxIdle(from.getEmfCacheMaxIdle());
+        to.setSharedEm(from.isSharedEm());
+        return to;
+    }
+
+    protected CachedDescriptor readDescriptor(DataInputStream in) throws IOException {
+        CachedDescriptor desc = new CachedDescriptor(in.readUTF(), readString(in));
+        int numUnits = in.readInt();
+        for (int i=0; i<numUnits; i++) {
+            PUnitInfo info = new PUnitInfo();
+            info.setUnitName(readString(in));
+            info.setProvider(readString(in));
+            info.setNonJtaDataSource(readString(in));
+            info.setJtaDataSource(readString(in));
+            int numClasses = in.readInt();
+            for (int j=0; j<numClasses; j++)
+                info.addClass(in.readUTF());
+            info.setDriverClassName(readString(in));
+            info.setDriverUrl(readString(in));
+            info.setDriverUser(readString(in));
+            info.setDriverVersion(readString(in));
+            info.setWarmUp(in.readBoolean());
+            int numQueries = in.readInt();
+            for (int j=0; j<numQueries; j++)
+                info.getWarmUpQueries().add(in.readUTF());
+            info.setEmPool(in.readBoolean());
+            info.setEmPoolMaxSize(in.readInt());
+            info.setEmPoolMaxIdle(in.readInt());
+            info.setEmfCache(in.readBoolean());
+            info.setEmfCacheMaxSize(in.readInt());
+            info.setEmfCacheMaxIdle(in.readInt());
+            info.setSharedEm(in.readBoolean());
+            desc.pUnits.add(info);
+        }
+        return desc;
+    }
+
+    protected void writeDescriptor(DataOutputStream out, CachedDescriptor desc) throws IOException {
+        out.writeUTF(desc.descriptorPath);
+        writeString(out, desc.jarPath);
+        out.writeInt(desc.pUnits.size());
+        for (PUnitInfo info : desc.pUnits) {
+            writeString(out, info.getUnitName());
+            writeString(out, info.getProvider());
+            writeString(out, info.getNonJtaDataSource());
+            writeString(out, info.getJtaDataSource());
+            out.writeInt(info.getClasses().size());
+            for (String cls : info.getClasses())
+                out.writeUTF(cls);
+            writeString(out, info.getDriverClassName());
+            writeString(out, info.getDriverUrl());
+            writeString(out, info.getDriverUser());
+            writeString(out, info.getDriverVersion());
+            out.writeBoolean(info.isWarmUp());
+            out.writeInt(info.getWarmUpQueries().size());
+            for (String query : info.getWarmUpQueries())
+                out.writeUTF(query);
+            out.writeBoolean(info.isEmPool());
+            out.writeInt(info.getEmPoolMaxSize());
+            out.writeInt(info.getEmPoolMaxIdle());
+            out.writeBoolean(info.isEmfCache());
+            out.writeInt(info.getEmfCacheMaxSize());
+            out.writeInt(info.getEmfCacheMaxIdle());
+            out.writeBoolean(info.isSharedEm());
+        }
+    }
+
+    // Strings that may be null are preceded by a presence flag
+    protected String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    protected void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    /*===============*/
+    /* Inner classes */
+    /*===============*/
+
+    // Descriptor state of the p-units found in a single descriptor
+    static class CachedDescriptor {
+        String descriptorPath;
+        String jarPath;
+        List<PUnitInfo> pUnits = new ArrayList<PUnitInfo>();
+        CachedDescriptor(String descriptorPath, String jarPath) {
+            this.descriptorPath = descriptorPath;
+            this.jarPath = jarPath;
+        }
+    }
+}
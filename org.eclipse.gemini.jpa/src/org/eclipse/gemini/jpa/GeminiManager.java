@@ -23,11 +23,22 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 
-import org.eclipse.gemini.jpa.classloader.CompositeClassLoader;
+import org.eclipse.gemini.jpa.classloader.CompositeLoaderCache;
 import org.eclipse.gemini.jpa.datasource.DataSourceUtil;
 import org.eclipse.gemini.jpa.jndi.JndiUtil;
 import org.eclipse.gemini.jpa.configadmin.ConfigAdminListener;
@@ -55,12 +66,6 @@ import org.eclipse.gemini.jpa.configadmin.PersistenceUnitConfiguration;
  */
 public class GeminiManager {
     
-    /*==================*/
-    /* Static constants */
-    /*==================*/
-
-    public static final int MAX_EVENT_COLLISION_TRIES = 3;
-    
     /*=====================*/
     /* Global Gemini state */
     /*=====================*/
@@ -68,8 +73,17 @@ public class GeminiManager {
     /** Our bundle context */
     BundleContext ctx;
 
-    /** Map of p-units we have registered */
-    Map<String, PUnitInfo> pUnitsByName;
+    /** Assigned and registered p-units, shared with the extender */
+    PUnitStateStore stateStore;
+
+    /** Number of times a p-unit was registered while one of the same name was still registered */
+    AtomicLong unitNameCollisions = new AtomicLong();
+
+    /** Waits for p-units of the same name to be unregistered, off of the lifecycle threads */
+    ExecutorService collisionExecutor;
+
+    /** Registered p-units whose last background deploy failed, keyed by unit name */
+    ConcurrentMap<String, DeployTask> deployFailures = new ConcurrentHashMap<String, DeployTask>();
 
     /** Extender to find and process persistence unit bundles */
     PersistenceBundleExtender extender;
@@ -91,6 +105,9 @@ public class GeminiManager {
 
     /** Our wrapper class over the native EclipseLink provider */
     ProviderWrapper provider;
+
+    /** Composite loaders for the persistence bundles, cached per bundle wiring */
+    CompositeLoaderCache loaderCache;
     
     /*================*/
     /* Getter/setters */
@@ -120,8 +137,24 @@ public class GeminiManager {
     public ProviderWrapper getProvider() { return provider; }
     public void setProvider(ProviderWrapper provider) { this.provider = provider; }
     
-    public Map<String, PUnitInfo> getPUnitsByName() { return pUnitsByName; }
-    public void setPUnitsByName(Map<String, PUnitInfo> pUnitsByName) { this.pUnitsByName = pUnitsByName; }
+    public CompositeLoaderCache getLoaderCache() { return loaderCache; }
+
+    public PUnitStateStore getStateStore() { return stateStore; }
+
+    public Map<String, PUnitInfo> getPUnitsByName() { return stateStore.registeredUnitsByName(); }
+
+    public long getUnitNameCollisions() { return unitNameCollisions.get(); }
+
+    /** 
+     * Return why each registered p-unit that failed to deploy in the background 
+     * failed, keyed by unit name. The units are deployed on first use instead.
+     */
+    public Map<String,Throwable> getDeploymentFailures() {
+        Map<String,Throwable> failures = new HashMap<String,Throwable>();
+        for (DeployTask task : deployFailures.values())
+            failures.put(task.info.getUnitName(), task.failure);
+        return Collections.unmodifiableMap(failures);
+    }
 
     /*=================================*/
     /* Initialization/shutdown methods */
@@ -131,7 +164,9 @@ public class GeminiManager {
     public void startup(BundleContext context) throws Exception {        
         // Initialize our state
         ctx = context;
-        pUnitsByName = Collections.synchronizedMap(new HashMap<String, PUnitInfo>());
+        stateStore = new PUnitStateStore();
+        loaderCache = new CompositeLoaderCache(context);
+        collisionExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("Collision"));
         
         provider = new ProviderWrapper();
         provider.initialize(this);
@@ -157,19 +192,23 @@ public class GeminiManager {
     /** Shut down Gemini JPA */
     public void shutdown(BundleContext context) throws Exception {
 
+        // Stop waiting to register p-units that collided with others
+        collisionExecutor.shutdownNow();
+
         // Take config admin and extender offline and unregister the provider
         configAdminListener.stopListening();
         extender.stopListening();
+        servicesUtil.shutdown();
         servicesUtil.unregisterProviderService();
         
         // Unregister all of the persistence units that we have registered
         List<PUnitInfo> pUnits = new ArrayList<PUnitInfo>(); // Need a new copy
-        pUnits.addAll(pUnitsByName.values());
-        unregisterPersistenceUnits(pUnits);
-        pUnitsByName = null;
+        pUnits.addAll(stateStore.registeredUnits());
+        unregisterPersistenceUnitsInParallel(pUnits);
         
         // Unassign all of the persistence units that have been assigned to us
         extender.clearAllPUnitInfos();
+        loaderCache.clear();
         
         // Clean up any provider resources
         provider.shutdown(context);
@@ -201,7 +240,7 @@ public class GeminiManager {
         }
 
         // Create a loader that can load from the persistence bundle as well as from the provider bundle
-        ClassLoader compositeLoader = CompositeClassLoader.createCompositeLoader(getBundleContext(), b);
+        ClassLoader compositeLoader = loaderCache.getLoader(b);
         
         // Process PU and register weaving/transformers
         provider.initializeForWeaving(compositeLoader, pUnits);        
@@ -209,7 +248,8 @@ public class GeminiManager {
 
     /**
      * The persistence bundle is resolved. We must register the 
-     * persistence unit services in the registry.
+     * persistence unit services in the registry. If deploy threads 
+     * are configured then the units are also deployed before returning.
      * 
      * @param pUnits Usually, but not always, all in the same bundle
      */
@@ -219,33 +259,42 @@ public class GeminiManager {
 
         if (pUnits == null) return;
 
+        // The p-units that we actually register here
+        List<PUnitInfo> registered = new ArrayList<PUnitInfo>(pUnits.size());
+
         for (PUnitInfo info : pUnits) {
             String unitName = info.getUnitName();
 
-            if (pUnitsByName.containsKey(unitName)) {
+            // Keep a local copy of all of the p-units we are registering
+            PUnitInfo existingInfo = stateStore.registerUnitIfAbsent(info);
+            if (existingInfo != null) {
                 // Shouldn't be in the map. Race condition - 
                 // Either the bundle is already being registered or 
                 // it's being unregistered because of being stopped 
-                PUnitInfo existingInfo = pUnitsByName.get(unitName);
-                if ((existingInfo != null) && 
-                    (existingInfo.getBundle() == info.getBundle())) {
+                if (existingInfo.getBundle() == info.getBundle()) {
                     // It is the same bundle - move along and assume it will be registered
                     continue;
                 }
-                int attempts = 0;
-                while (pUnitsByName.containsKey(unitName) && (attempts < MAX_EVENT_COLLISION_TRIES)) {
-                    // The previous entry just hasn't been removed yet. Take a short
-                    // break and give a chance for the unregister to occur.
-                    try { Thread.sleep(1000); } catch (InterruptedException iEx) {}
-                    attempts++;
-                } 
-                if (pUnitsByName.containsKey(unitName)) {
-                    // It's still there. Take matters into our own hands and force the unregister
+                // The previous entry just hasn't been removed yet. 
+                // Wait for the unregister to occur (or for the timeout to expire)
+                unitNameCollisions.incrementAndGet();
+                if (extender.isLifecycleAsynchronous()) {
+                    // We are on a lifecycle thread, which the previous owner may need 
+                    // to unregister, so don't wait here. Register the p-unit later.
+                    registerAfterUnregistration(info, existingInfo);
+                    continue;
+                }
+                if (!awaitUnregistration(unitName, GeminiSystemProperties.collisionTimeout())) {
+                    // It's still there. Take matters into our own hands and force the unregister.
+                    // Note that it is the previous owner that gets unregistered. This used to 
+                    // pass the unit being registered, which unregistered services that did not 
+                    // exist yet and left the previous owner's services in place.
                     warning("Manager forcing unregister of persistence unit: " + info.getUnitName());
                     Collection<PUnitInfo> units = new ArrayList<PUnitInfo>();
-                    units.add(info);
+                    units.add(existingInfo);
                     unregisterPersistenceUnits(units);
                 }
+                stateStore.registerUnit(info);
             }
             // See if our config admin listener has been notified about any additional config
             PersistenceUnitConfiguration config = getConfigAdminListener().configForPersistenceUnitName(unitName);
@@ -254,12 +303,117 @@ public class GeminiManager {
                 debug("Manager.registerPersistenceUnits found incremental config for punit ", unitName, "\n", config);
                 config.updatePUnitInfo(info);
             }
-            
-            // Keep a local copy of all of the p-units we are registering
-            pUnitsByName.put(unitName, info);
-                        
+
             // Do the registering
             servicesUtil.registerEMFServices(info);
+            registered.add(info);
+        }
+
+        // Deploy them now instead of on first use if we were asked to
+        if (GeminiSystemProperties.deployThreads() > 0)
+            deployPersistenceUnitsInParallel(registered);
+    }
+
+    /**
+     * Register a p-unit once the p-unit of the same name that is registered by another 
+     * bundle has been unregistered, or force that one to be unregistered if it is still 
+     * there after the collision timeout. The lifecycle tasks of the other bundle may 
+     * be queued on the same lifecycle thread as ours (and its bundle event may be 
+     * waiting for them), so the wait is done on a collision thread. The registration 
+     * is then queued as lifecycle work for the bundle of the p-unit, so that it is 
+     * still ordered with the bundle's events.
+     * 
+     * @param info the p-unit to register
+     * @param existingInfo the p-unit of the same name that is registered
+     */
+    protected void registerAfterUnregistration(final PUnitInfo info, final PUnitInfo existingInfo) {
+        
+        debug("Manager deferring registration of persistence unit: ", info.getUnitName());
+        try {
+            collisionExecutor.execute(new Runnable() {
+                public void run() {
+                    final boolean unregistered = awaitUnregistration(info.getUnitName(), 
+                                                                     GeminiSystemProperties.collisionTimeout());
+                    if (Thread.currentThread().isInterrupted()) 
+                        return; // We are shutting down
+                    extender.executeLifecycleTask(info.getBundle(), new Runnable() {
+                        public void run() { registerCollidingPersistenceUnit(info, existingInfo, unregistered); }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException reEx) {
+            debug("Manager not registering ", info.getUnitName(), " since Gemini JPA is stopping");
+        }
+    }
+
+    /**
+     * Register a p-unit that collided with the p-unit of the same name, forcing the 
+     * other one to be unregistered if it was not unregistered in time. Nothing is done 
+     * if the bundle of the p-unit has stopped (or been updated) in the meantime.
+     * 
+     * @param info the p-unit to register
+     * @param existingInfo the p-unit of the same name that was registered
+     * @param unregistered whether the name was freed before the collision timeout
+     */
+    protected void registerCollidingPersistenceUnit(PUnitInfo info, PUnitInfo existingInfo, boolean unregistered) {
+
+        if (collisionExecutor.isShutdown() || !isToBeRegistered(info)) {
+            debug("Manager no longer registering persistence unit: ", info.getUnitName());
+            return;
+        }
+        if (!unregistered && (stateStore.registeredUnit(info.getUnitName()) == existingInfo)) {
+            // It's still there. Take matters into our own hands and force the unregister.
+            warning("Manager forcing unregister of persistence unit: " + info.getUnitName());
+            unregisterPersistenceUnit(existingInfo);
+        }
+        registerPersistenceUnits(Collections.singletonList(info));
+    }
+
+    // Whether the p-unit is still assigned and its bundle is starting or active
+    protected boolean isToBeRegistered(PUnitInfo info) {
+        Bundle b = info.getBundle();
+        if ((b.getState() & (Bundle.STARTING | Bundle.ACTIVE)) == 0)
+            return false;
+        List<PUnitInfo> assigned = stateStore.assignedUnits(b);
+        if (assigned != null) {
+            // PUnitInfo equality is by name, and this has to be the same p-unit
+            for (PUnitInfo assignedInfo : assigned) {
+                if (assignedInfo == info)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Deploy the persistence units in the background, i.e. create their EMFs and 
+     * log in to their databases, so that they are ready when they are first used. 
+     * The units are queued on the deploy pool of ServicesUtil, which is bounded 
+     * and shared by all bundles, so they deploy concurrently without holding up 
+     * the caller (the lifecycle thread of the bundle). Each unit is deployed on 
+     * its own, so one that fails (or is slow) does not stop the others from being 
+     * deployed. A unit that fails is logged, kept in the deployment failures and 
+     * left to be deployed on first use. Units that are being warmed up, or that 
+     * have no EMF service, are skipped.
+     * 
+     * @param pUnits the registered p-units to deploy
+     */
+    protected void deployPersistenceUnitsInParallel(List<PUnitInfo> pUnits) {
+
+        List<PUnitInfo> toDeploy = new ArrayList<PUnitInfo>(pUnits.size());
+        for (PUnitInfo info : pUnits) {
+            if (!info.isWarmUp() && (info.getEmfService() != null))
+                toDeploy.add(info);
+        }
+        if (toDeploy.isEmpty()) return;
+
+        debug("Manager.deployPersistenceUnitsInParallel: queueing ", toDeploy);
+        DeployBatch batch = new DeployBatch(toDeploy.size());
+        for (PUnitInfo info : toDeploy) {
+            if (!servicesUtil.queueDeploy(new DeployTask(info, batch))) {
+                debug("Manager not deploying ", info.getUnitName(), " since Gemini JPA is stopping");
+                batch.taskDone();
+            }
         }
     }
 
@@ -276,12 +430,122 @@ public class GeminiManager {
         if (pUnits == null) return;
         
         for (PUnitInfo info : pUnits) {
-            
-            servicesUtil.unregisterWeavingHookService(info);
-            servicesUtil.unregisterEMFServices(info);
+            unregisterPersistenceUnit(info);
+        }
+    }
+
+    /**
+     * Unregister a single persistence unit and clean up its resources.
+     * 
+     * @param info the p-unit to unregister
+     */
+    protected void unregisterPersistenceUnit(PUnitInfo info) {
+
+        servicesUtil.unregisterWeavingHookService(info);
+        servicesUtil.unregisterEMFServices(info);
+        forgetDeployFailure(info);
+
+        // Remove from our local pUnit copy and let anyone waiting on the name know
+        stateStore.unregisterUnit(info);
+    }
+
+    /**
+     * Unregister the persistence units concurrently on a bounded pool so that 
+     * one slow unit (e.g. with a database that takes a long time to close its 
+     * connections) does not hold up all of the others. Each unit is given the 
+     * configured shutdown timeout, after which it is abandoned with a warning.
+     * Units that take more than half of the timeout are also reported as slow.
+     * 
+     * @param pUnits the p-units to unregister
+     */
+    protected void unregisterPersistenceUnitsInParallel(List<PUnitInfo> pUnits) {
+
+        int numThreads = Math.min(GeminiSystemProperties.shutdownThreads(), pUnits.size());
+        if (numThreads <= 1) {
+            unregisterPersistenceUnits(pUnits);
+            return;
+        }
+        debug("Manager.unregisterPersistenceUnitsInParallel: ", pUnits, " using ", numThreads, " threads");
+        long timeout = GeminiSystemProperties.shutdownTimeout();
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads, new NamedThreadFactory("Shutdown"));
+
+        // Submit all of the units
+        List<UnregisterTask> tasks = new ArrayList<UnregisterTask>(pUnits.size());
+        List<Future<?>> futures = new ArrayList<Future<?>>(pUnits.size());
+        for (PUnitInfo info : pUnits) {
+            UnregisterTask task = new UnregisterTask(info);
+            tasks.add(task);
+            futures.add(pool.submit(task));
+        }
+        pool.shutdown();
+
+        // Even if every unit takes the full timeout we don't wait longer than this
+        int waves = (pUnits.size() + numThreads - 1) / numThreads;
+        long overallDeadline = System.currentTimeMillis() + (timeout * waves);
+
+        for (int i=0; i<tasks.size(); i++) {
+            UnregisterTask task = tasks.get(i);
+            Future<?> future = futures.get(i);
+            String unitName = task.info.getUnitName();
+            try {
+                while (true) {
+                    // A unit's own timeout starts when it does
+                    long startTime = task.startTime;
+                    long deadline = (startTime == 0) ? overallDeadline 
+                                                     : Math.min(startTime + timeout, overallDeadline);
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        abandonPersistenceUnit(task, future, timeout);
+                        break;
+                    }
+                    try {
+                        future.get(wait, TimeUnit.MILLISECONDS);
+                        if (task.elapsedMillis > timeout / 2) {
+                            warning("Manager took " + task.elapsedMillis + " ms to unregister persistence unit " 
+                                    + unitName + " (shutdown timeout is " + timeout + " ms)");
+                        } else {
+                            debug("Manager unregistered persistence unit ", unitName, " in ", task.elapsedMillis, " ms");
+                        }
+                        break;
+                    } catch (TimeoutException toEx) {
+                        // Loop around, the unit may have started while we were waiting
+                    }
+                }
+            } catch (ExecutionException exEx) {
+                warning("Manager failed to unregister persistence unit " + unitName + ": ", exEx.getCause());
+                stateStore.unregisterUnit(task.info);
+            } catch (InterruptedException iEx) {
+                Thread.currentThread().interrupt();
+                abandonPersistenceUnit(task, future, timeout);
+            }
+        }
+        pool.shutdownNow();
+    }
+
+    // Give up on a unit that is taking too long to unregister
+    protected void abandonPersistenceUnit(UnregisterTask task, Future<?> future, long timeout) {
+        future.cancel(true);
+        warning("Manager abandoned persistence unit " + task.info.getUnitName() + 
+                " after it did not unregister within " + timeout + " ms");
+        // Make sure it is no longer considered to be registered
+        stateStore.unregisterUnit(task.info);
+    }
 
-            // Remove from our local pUnit copy 
-            pUnitsByName.remove(info.getUnitName());
+    /**
+     * Wait until a p-unit with the given name is no longer registered.
+     * 
+     * @param unitName name of the p-unit 
+     * @param timeoutMillis maximum time to wait
+     * 
+     * @return true if the name is free, false if we timed out waiting for it
+     */
+    protected boolean awaitUnregistration(String unitName, long timeoutMillis) {
+        debug("Manager waiting for unregistration of persistence unit: ", unitName);
+        try {
+            return stateStore.awaitUnregistration(unitName, timeoutMillis);
+        } catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+            return stateStore.registeredUnit(unitName) == null;
         }
     }
 
@@ -289,6 +553,84 @@ public class GeminiManager {
     /* Helper methods */
     /*================*/
 
-    public Bundle getBundle() { return ctx.getBundle(); }  
+    public Bundle getBundle() { return ctx.getBundle(); }
+
+    /*===============*/
+    /* Inner classes */
+    /*===============*/
 
+    // Drop the deployment failure of a p-unit, unless it belongs to another p-unit of the same name
+    protected void forgetDeployFailure(PUnitInfo info) {
+        DeployTask failed = deployFailures.get(info.getUnitName());
+        if ((failed != null) && (failed.info == info))
+            deployFailures.remove(info.getUnitName(), failed);
+    }
+
+    // Deploys a p-unit on the deploy pool and records how long it took or why it failed
+    class DeployTask implements Runnable {
+        PUnitInfo info;
+        DeployBatch batch;
+        volatile Throwable failure;
+        DeployTask(PUnitInfo info, DeployBatch batch) { 
+            this.info = info; 
+            this.batch = batch;
+        }
+        public void run() {
+            long startTime = System.currentTimeMillis();
+            try {
+                if (info.getEmfHandler() == null) {
+                    debug("Manager not deploying ", info.getUnitName(), " since it has been unregistered");
+                    return;
+                }
+                servicesUtil.deployEMF(info);
+                forgetDeployFailure(info);
+                debug("Manager deployed persistence unit ", info.getUnitName(), " in ", 
+                      (System.currentTimeMillis() - startTime), " ms");
+            } catch (Throwable t) {
+                // Catch errors as well so that a unit with a linkage problem is reported like any other
+                failure = t;
+                if (info.getEmfHandler() != null)
+                    deployFailures.put(info.getUnitName(), this);
+                warning("Manager failed to deploy persistence unit " + info.getUnitName() + 
+                        " - EMF will be created on first use: ", t);
+            } finally {
+                batch.taskDone(this);
+            }
+        }
+    }
+
+    // The p-units of one registration that are being deployed, logged once they all have been
+    class DeployBatch {
+        long startTime = System.currentTimeMillis();
+        int size;
+        AtomicInteger remaining;
+        Collection<String> failed = Collections.synchronizedList(new ArrayList<String>());
+        DeployBatch(int size) { 
+            this.size = size;
+            this.remaining = new AtomicInteger(size);
+        }
+        void taskDone() { taskDone(null); }
+        void taskDone(DeployTask task) {
+            if ((task != null) && (task.failure != null))
+                failed.add(task.info.getUnitName());
+            if (remaining.decrementAndGet() > 0)
+                return;
+            debug("Manager deployed ", size - failed.size(), " of ", size, " persistence units in ", 
+                  (System.currentTimeMillis() - startTime), " ms", 
+                  failed.isEmpty() ? "" : ", failed: " + failed);
+        }
+    }
+
+    // Unregisters a p-unit on the shutdown pool and times how long it took
+    class UnregisterTask implements Runnable {
+        PUnitInfo info;
+        volatile long startTime;
+        volatile long elapsedMillis;
+        UnregisterTask(PUnitInfo info) { this.info = info; }
+        public void run() {
+            startTime = System.currentTimeMillis();
+            unregisterPersistenceUnit(info);
+            elapsedMillis = System.currentTimeMillis() - startTime;
+        }
+    }
 }
\ No newline at end of file
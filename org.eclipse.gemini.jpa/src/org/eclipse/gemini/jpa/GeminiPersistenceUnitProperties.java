@@ -34,6 +34,93 @@ public class GeminiPersistenceUnitProperties {
      */
     public static String PROVIDER_CONNECTED_DATA_SOURCE = "gemini.jpa.providerConnectedDataSource";
 
+    /** 
+     * Property that, when set to true, causes Gemini JPA to create the EMF and log 
+     * in to the database on a background thread as soon as the persistence unit is
+     * registered, rather than waiting for the first call on the EMF service.
+     * The EMF service will not be registered until the warm-up has completed, 
+     * so a client that obtains the service will not pay the deployment cost. 
+     * The default value of this property is false (i.e. EMF is created lazily).
+     * This property may also be specified in an OSGi Configuration.
+     */
+    public static String WARM_UP = "gemini.jpa.warmUp";
+
+    /** 
+     * Property that specifies JPQL queries to be executed when the persistence 
+     * unit is being warmed up (only applies when WARM_UP is true). Each query is
+     * run once, with a maximum of one result, to prime the query and metadata caches.
+     * The value may be a semi-colon-separated String of queries (semi-colons inside 
+     * string literals are part of the query) or, when specified in an OSGi 
+     * Configuration, a Collection of query Strings.
+     */
+    public static String WARM_UP_QUERIES = "gemini.jpa.warmUp.queries";
+
+    /** 
+     * Property that, when set to true, causes Gemini JPA to register an 
+     * EntityManagerPool service for the persistence unit alongside the EMF service. 
+     * The pool hands out recycled EntityManagers, which are cleared when they 
+     * are released back to it. The default value of this property is false.
+     * This property may also be specified in an OSGi Configuration.
+     * @see org.eclipse.gemini.jpa.service.EntityManagerPool
+     */
+    public static String EM_POOL = "gemini.jpa.emPool";
+
+    /** 
+     * Property that specifies the maximum number of idle EntityManagers kept in 
+     * the pool (only applies when EM_POOL is true). EntityManagers released 
+     * when the pool is full are closed. The default value is 16.
+     */
+    public static String EM_POOL_MAX_SIZE = "gemini.jpa.emPool.maxSize";
+    public static int EM_POOL_MAX_SIZE_DEFAULT = 16;
+
+    /** 
+     * Property that specifies the time (in ms) that an EntityManager may sit idle 
+     * in the pool before it is evicted and closed (only applies when EM_POOL is true).
+     * The default value is 300000 (5 minutes).
+     */
+    public static String EM_POOL_MAX_IDLE = "gemini.jpa.emPool.maxIdle";
+    public static int EM_POOL_MAX_IDLE_DEFAULT = 300000;
+
+    /** 
+     * Property that, when set to true, allows the EMFBuilder service to create 
+     * additional managed EMFs for the persistence unit when it is called with 
+     * connection properties (JDBC driver, URL, user, password or data source) 
+     * that differ from the ones the shared EMF was created with. The EMFs are 
+     * cached by connection properties and closed by Gemini JPA when they are 
+     * evicted from the cache or the service is unregistered. When not set, such 
+     * a call fails with an IllegalArgumentException. The default value is false.
+     * This property may also be specified in an OSGi Configuration.
+     */
+    public static String EMF_CACHE = "gemini.jpa.emfCache";
+
+    /** 
+     * Property that specifies the maximum number of additional EMFs that are kept 
+     * (only applies when EMF_CACHE is true). When the limit is exceeded the least 
+     * recently used EMF is closed, unless it has a call in progress or an open 
+     * EntityManager. The default value is 8.
+     */
+    public static String EMF_CACHE_MAX_SIZE = "gemini.jpa.emfCache.maxSize";
+    public static int EMF_CACHE_MAX_SIZE_DEFAULT = 8;
+
+    /** 
+     * Property that specifies the time (in ms) since an additional EMF was last 
+     * used after which it is closed and evicted (only applies when EMF_CACHE is 
+     * true). The default value is 600000 (10 minutes).
+     */
+    public static String EMF_CACHE_MAX_IDLE = "gemini.jpa.emfCache.maxIdle";
+    public static int EMF_CACHE_MAX_IDLE_DEFAULT = 600000;
+
+    /** 
+     * Property that, when set to true, causes an EntityManager service to be 
+     * registered for the persistence unit (along with an EntityManagerScope service).
+     * Calls to the service go to an EntityManager bound to the calling thread, which 
+     * is created on first use and closed when the scope of the thread is ended.
+     * The default value of this property is false.
+     * This property may also be specified in an OSGi Configuration.
+     * @see org.eclipse.gemini.jpa.service.EntityManagerScope
+     */
+    public static String SHARED_EM = "gemini.jpa.sharedEntityManager";
+
     /*===================================================================*/
     /* Gemini-specific persistence unit properties that can be set in an */
     /* OSGi Configuration object.                                        */
@@ -92,5 +179,18 @@ public class GeminiPersistenceUnitProperties {
      * Setting this property to false will have no effect under any circumstances.
      */
     public static String PUNIT_REFRESH = "gemini.jpa.punit.refresh";
+
+    /** 
+     * Property that specifies the time (in ms) without any calls to the EMF service 
+     * after which the EMF of the persistence unit is closed to free up its provider 
+     * session, cache and connections. The EMF is recreated on the next call to the 
+     * service. An EMF is not closed while any of the EntityManagers created through 
+     * the EMF service are still open, nor if it was created by the EMFBuilder service 
+     * or the persistence unit has an EntityManager pool or shared EntityManager. 
+     * The value may be a String or a Number. The default value is 0 (i.e. the 
+     * EMF is never closed for being idle).
+     */
+    public static String EMF_IDLE_TIMEOUT = "gemini.jpa.emfIdleTimeout";
+    public static int EMF_IDLE_TIMEOUT_DEFAULT = 0;
     
 }
\ No newline at end of file
@@ -43,7 +43,90 @@ public class GeminiSystemProperties {
     // persistence unit bundle
     public static String REFRESH_BUNDLES_PROPERTY = "org.eclipse.gemini.refreshBundles";
     public static String REFRESH_BUNDLES_DEFAULT = "TRUE";
-    
+
+    // Number of threads used by the extender to register and unregister
+    // persistence units off the bundle event thread. A value of 0 causes
+    // all of the lifecycle work to be done synchronously on the event thread
+    public static String LIFECYCLE_THREADS_PROPERTY = "org.eclipse.gemini.lifecycleThreads";
+    public static String LIFECYCLE_THREADS_DEFAULT = "4";
+
+    // Window (in ms) over which persistence bundles that need refreshing 
+    // are collected so that they can all be refreshed in a single pass
+    public static String REFRESH_WINDOW_PROPERTY = "org.eclipse.gemini.refreshWindow";
+    public static String REFRESH_WINDOW_DEFAULT = "200";
+
+    // Maximum time (in ms) to wait for a persistence unit with the same name
+    // to be unregistered before forcing it to be unregistered
+    public static String COLLISION_TIMEOUT_PROPERTY = "org.eclipse.gemini.collisionTimeout";
+    public static String COLLISION_TIMEOUT_DEFAULT = "3000";
+
+    // Number of threads used to warm up persistence units that have 
+    // the gemini.jpa.warmUp persistence unit property set
+    public static String WARM_UP_THREADS_PROPERTY = "org.eclipse.gemini.warmUpThreads";
+    public static String WARM_UP_THREADS_DEFAULT = "2";
+
+    // Set if the descriptor state parsed from persistence bundles is to be 
+    // cached in the Gemini bundle data area and reused across restarts
+    public static String DESCRIPTOR_CACHE_PROPERTY = "org.eclipse.gemini.descriptorCache";
+    public static String DESCRIPTOR_CACHE_DEFAULT = "TRUE";
+
+    // Set if a resolver hook is to be registered to keep persistence bundles
+    // from resolving until they have been assigned (avoids having to refresh them)
+    public static String RESOLVER_HOOK_PROPERTY = "org.eclipse.gemini.resolverHook";
+    public static String RESOLVER_HOOK_DEFAULT = "TRUE";
+
+    // Number of threads used to look through the bundles that were already 
+    // installed when Gemini started. A value of 1 (or less) does it serially
+    public static String DISCOVERY_THREADS_PROPERTY = "org.eclipse.gemini.discoveryThreads";
+    public static String DISCOVERY_THREADS_DEFAULT = String.valueOf(Runtime.getRuntime().availableProcessors());
+
+    // Number of threads used to unregister persistence units when Gemini is 
+    // stopped. A value of 1 (or less) unregisters them one after another
+    public static String SHUTDOWN_THREADS_PROPERTY = "org.eclipse.gemini.shutdownThreads";
+    public static String SHUTDOWN_THREADS_DEFAULT = "4";
+
+    // Maximum time (in ms) to wait for a persistence unit to be unregistered 
+    // when Gemini is stopped before abandoning it
+    public static String SHUTDOWN_TIMEOUT_PROPERTY = "org.eclipse.gemini.shutdownTimeout";
+    public static String SHUTDOWN_TIMEOUT_DEFAULT = "10000";
+
+    // Set if the EMF and EMFBuilder services are to be implemented by generated
+    // delegate classes rather than by reflective (java.lang.reflect.Proxy) proxies
+    public static String GENERATED_DELEGATES_PROPERTY = "org.eclipse.gemini.generatedDelegates";
+    public static String GENERATED_DELEGATES_DEFAULT = "TRUE";
+
+    // Time (in ms) after the last client bundle has released the EMF and 
+    // EMFBuilder services of a persistence unit that its EMF is closed (it is
+    // recreated the next time it is needed). A negative value leaves it open
+    public static String EMF_RELEASE_DELAY_PROPERTY = "org.eclipse.gemini.emfReleaseDelay";
+    public static String EMF_RELEASE_DELAY_DEFAULT = "-1";
+
+    // Number of threads used to create EMFs requested through the 
+    // AsyncEntityManagerFactoryBuilder services
+    public static String ASYNC_EMF_THREADS_PROPERTY = "org.eclipse.gemini.asyncEmfThreads";
+    public static String ASYNC_EMF_THREADS_DEFAULT = "2";
+
+    // Set if statistics on calls to the EMF and EMFBuilder services are to be
+    // collected from startup (they can also be turned on through the service)
+    public static String STATISTICS_PROPERTY = "org.eclipse.gemini.statistics";
+    public static String STATISTICS_DEFAULT = "FALSE";
+
+    // Set to FALSE to have EclipseLink process the persistence unit metadata again
+    // when the EMF is created, instead of reusing what was predeployed for weaving
+    public static String REUSE_PREDEPLOY_PROPERTY = "org.eclipse.gemini.reusePredeploy";
+    public static String REUSE_PREDEPLOY_DEFAULT = "TRUE";
+
+    // Set to FALSE to keep Gemini from caching the processed EclipseLink project 
+    // of each persistence unit in its data area
+    public static String PROJECT_CACHE_PROPERTY = "org.eclipse.gemini.projectCache";
+    public static String PROJECT_CACHE_DEFAULT = "TRUE";
+
+    // Number of threads, shared by all bundles, used to deploy persistence units 
+    // in the background when they are registered. With 0 the units are not 
+    // deployed until their EMF is first used (or warmed up)
+    public static String DEPLOY_THREADS_PROPERTY = "org.eclipse.gemini.deployThreads";
+    public static String DEPLOY_THREADS_DEFAULT = "0";
+
     // Set to debug XML parsing
     public static String DEBUG_XML_PROPERTY = "org.eclipse.gemini.debug.xml";
 
@@ -70,6 +153,22 @@ public class GeminiSystemProperties {
     protected static Boolean generateAnchorClasses;
     protected static Boolean generateFragments;
     protected static Boolean refreshPersistenceBundles;
+    protected static Integer lifecycleThreads;
+    protected static Integer refreshWindow;
+    protected static Integer collisionTimeout;
+    protected static Integer warmUpThreads;
+    protected static Boolean descriptorCache;
+    protected static Boolean resolverHook;
+    protected static Integer discoveryThreads;
+    protected static Integer shutdownThreads;
+    protected static Integer shutdownTimeout;
+    protected static Boolean generatedDelegates;
+    protected static Integer emfReleaseDelay;
+    protected static Integer asyncEmfThreads;
+    protected static Boolean statistics;
+    protected static Boolean reusePredeploy;
+    protected static Boolean projectCache;
+    protected static Integer deployThreads;
     protected static Boolean debugXml;
     protected static Boolean debugClassloader;
     protected static Boolean debugWeaving;
@@ -149,6 +248,255 @@ public class GeminiSystemProperties {
      */
     public static void setRefreshPersistenceBundles(boolean value) { refreshPersistenceBundles = value; }
 
+    /*
+     * Return the number of threads the extender uses for lifecycle work
+     * (registering/unregistering p-units). 0 means it is all done synchronously.
+     */
+    public static int lifecycleThreads() {
+        if (lifecycleThreads == null) {
+            lifecycleThreads = intProperty(LIFECYCLE_THREADS_PROPERTY, LIFECYCLE_THREADS_DEFAULT);
+        }
+        return lifecycleThreads;
+    }
+
+    /*
+     * Set the number of extender lifecycle threads
+     */
+    public static void setLifecycleThreads(int value) { lifecycleThreads = value; }
+
+    /*
+     * Return the time (in ms) over which bundles to be refreshed are batched together
+     */
+    public static int refreshWindow() {
+        if (refreshWindow == null) {
+            refreshWindow = intProperty(REFRESH_WINDOW_PROPERTY, REFRESH_WINDOW_DEFAULT);
+        }
+        return refreshWindow;
+    }
+
+    /*
+     * Set the refresh batching window (in ms)
+     */
+    public static void setRefreshWindow(int value) { refreshWindow = value; }
+
+    /*
+     * Return the time (in ms) to wait for a colliding persistence unit to be unregistered
+     */
+    public static int collisionTimeout() {
+        if (collisionTimeout == null) {
+            collisionTimeout = intProperty(COLLISION_TIMEOUT_PROPERTY, COLLISION_TIMEOUT_DEFAULT);
+        }
+        return collisionTimeout;
+    }
+
+    /*
+     * Set the unit name collision timeout (in ms)
+     */
+    public static void setCollisionTimeout(int value) { collisionTimeout = value; }
+
+    /*
+     * Return the number of threads used to warm up persistence units
+     */
+    public static int warmUpThreads() {
+        if (warmUpThreads == null) {
+            warmUpThreads = intProperty(WARM_UP_THREADS_PROPERTY, WARM_UP_THREADS_DEFAULT);
+        }
+        return warmUpThreads;
+    }
+
+    /*
+     * Set the number of warm-up threads
+     */
+    public static void setWarmUpThreads(int value) { warmUpThreads = value; }
+
+    /*
+     * Return whether parsed descriptor state is to be cached across restarts
+     */
+    public static boolean descriptorCache() {
+        if (descriptorCache == null) {
+            String value = System.getProperty(DESCRIPTOR_CACHE_PROPERTY, DESCRIPTOR_CACHE_DEFAULT);
+            descriptorCache = Boolean.valueOf(value);
+        }
+        return descriptorCache;
+    }
+
+    /*
+     * Set whether parsed descriptor state is to be cached
+     */
+    public static void setDescriptorCache(boolean value) { descriptorCache = value; }
+
+    /*
+     * Return whether persistence bundles are kept from resolving until they are assigned
+     */
+    public static boolean resolverHook() {
+        if (resolverHook == null) {
+            String value = System.getProperty(RESOLVER_HOOK_PROPERTY, RESOLVER_HOOK_DEFAULT);
+            resolverHook = Boolean.valueOf(value);
+        }
+        return resolverHook;
+    }
+
+    /*
+     * Set whether the resolver hook is to be used
+     */
+    public static void setResolverHook(boolean value) { resolverHook = value; }
+
+    /*
+     * Return the number of threads used to discover existing persistence bundles
+     */
+    public static int discoveryThreads() {
+        if (discoveryThreads == null) {
+            discoveryThreads = intProperty(DISCOVERY_THREADS_PROPERTY, DISCOVERY_THREADS_DEFAULT);
+        }
+        return discoveryThreads;
+    }
+
+    /*
+     * Set the number of discovery threads
+     */
+    public static void setDiscoveryThreads(int value) { discoveryThreads = value; }
+
+    /*
+     * Return the number of threads used to unregister persistence units at shutdown
+     */
+    public static int shutdownThreads() {
+        if (shutdownThreads == null) {
+            shutdownThreads = intProperty(SHUTDOWN_THREADS_PROPERTY, SHUTDOWN_THREADS_DEFAULT);
+        }
+        return shutdownThreads;
+    }
+
+    /*
+     * Set the number of shutdown threads
+     */
+    public static void setShutdownThreads(int value) { shutdownThreads = value; }
+
+    /*
+     * Return the time (in ms) each persistence unit is given to unregister at shutdown
+     */
+    public static int shutdownTimeout() {
+        if (shutdownTimeout == null) {
+            shutdownTimeout = intProperty(SHUTDOWN_TIMEOUT_PROPERTY, SHUTDOWN_TIMEOUT_DEFAULT);
+        }
+        return shutdownTimeout;
+    }
+
+    /*
+     * Set the per-unit shutdown timeout (in ms)
+     */
+    public static void setShutdownTimeout(int value) { shutdownTimeout = value; }
+
+    /*
+     * Return whether the EMF services are implemented by generated delegate classes
+     */
+    public static boolean generatedDelegates() {
+        if (generatedDelegates == null) {
+            String value = System.getProperty(GENERATED_DELEGATES_PROPERTY, GENERATED_DELEGATES_DEFAULT);
+            generatedDelegates = Boolean.valueOf(value);
+        }
+        return generatedDelegates;
+    }
+
+    /*
+     * Set whether generated delegate classes are to be used
+     */
+    public static void setGeneratedDelegates(boolean value) { generatedDelegates = value; }
+
+    /*
+     * Return the time (in ms) an unused EMF is kept open after its last client 
+     * bundle has gone away. Negative means it is not closed.
+     */
+    public static int emfReleaseDelay() {
+        if (emfReleaseDelay == null) {
+            emfReleaseDelay = intProperty(EMF_RELEASE_DELAY_PROPERTY, EMF_RELEASE_DELAY_DEFAULT);
+        }
+        return emfReleaseDelay;
+    }
+
+    /*
+     * Set the unused EMF release delay (in ms)
+     */
+    public static void setEmfReleaseDelay(int value) { emfReleaseDelay = value; }
+
+    /*
+     * Return the number of threads used to create EMFs asynchronously
+     */
+    public static int asyncEmfThreads() {
+        if (asyncEmfThreads == null) {
+            asyncEmfThreads = intProperty(ASYNC_EMF_THREADS_PROPERTY, ASYNC_EMF_THREADS_DEFAULT);
+        }
+        return asyncEmfThreads;
+    }
+
+    /*
+     * Set the number of asynchronous EMF creation threads
+     */
+    public static void setAsyncEmfThreads(int value) { asyncEmfThreads = value; }
+
+    /*
+     * Return whether EMF service statistics are collected from startup
+     */
+    public static boolean statistics() {
+        if (statistics == null) {
+            String value = System.getProperty(STATISTICS_PROPERTY, STATISTICS_DEFAULT);
+            statistics = Boolean.valueOf(value);
+        }
+        return statistics;
+    }
+
+    /*
+     * Set whether EMF service statistics are collected from startup
+     */
+    public static void setStatistics(boolean value) { statistics = value; }
+
+    /*
+     * Return whether the metadata predeployed when a persistence bundle is 
+     * resolved is reused to create the EMF
+     */
+    public static boolean reusePredeploy() {
+        if (reusePredeploy == null) {
+            String value = System.getProperty(REUSE_PREDEPLOY_PROPERTY, REUSE_PREDEPLOY_DEFAULT);
+            reusePredeploy = Boolean.valueOf(value);
+        }
+        return reusePredeploy;
+    }
+
+    /*
+     * Set whether predeployed metadata is reused to create the EMF
+     */
+    public static void setReusePredeploy(boolean value) { reusePredeploy = value; }
+
+    /*
+     * Return whether the processed EclipseLink projects are cached
+     */
+    public static boolean projectCache() {
+        if (projectCache == null) {
+            String value = System.getProperty(PROJECT_CACHE_PROPERTY, PROJECT_CACHE_DEFAULT);
+            projectCache = Boolean.valueOf(value);
+        }
+        return projectCache;
+    }
+
+    /*
+     * Set whether the processed EclipseLink projects are cached
+     */
+    public static void setProjectCache(boolean value) { projectCache = value; }
+
+    /*
+     * Return the number of threads used to deploy the p-units of a bundle
+     */
+    public static int deployThreads() {
+        if (deployThreads == null) {
+            deployThreads = intProperty(DEPLOY_THREADS_PROPERTY, DEPLOY_THREADS_DEFAULT);
+        }
+        return deployThreads;
+    }
+
+    /*
+     * Set the number of deploy threads
+     */
+    public static void setDeployThreads(int value) { deployThreads = value; }
+
     /* 
      * Return whether debugging is enabled for XML parsing 
      */
@@ -229,4 +577,21 @@ public class GeminiSystemProperties {
      */
     public static void setDebug(boolean value) { debug = value; }
 
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    /*
+     * Return the int value of a system property, falling back to the default
+     * (with a warning) if the value that was set is not a valid integer
+     */
+    protected static int intProperty(String name, String defaultValue) {
+        String value = System.getProperty(name, defaultValue);
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfEx) {
+            GeminiUtil.warning("Invalid value for property " + name + ": ", value);
+            return Integer.parseInt(defaultValue);
+        }
+    }
 }
\ No newline at end of file
@@ -18,8 +18,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.PrintWriter;
 import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
 
@@ -53,6 +56,9 @@ public class GeminiUtil {
     
     // Private property used to pass punit info through to provider as a property
     public static String PUNIT_INFO_PROPERTY = "gemini.jpa.punitInfo";
+
+    // Private property set when the provider is only being called to generate the schema
+    public static String SCHEMA_GENERATION_PROPERTY = "gemini.jpa.schemaGeneration";
     
     /*============================*/
     /* Helper and Utility methods */
@@ -109,6 +115,53 @@ public class GeminiUtil {
         return null;
     }
     
+    // Split a semi-colon-separated String of queries into a List of trimmed, non-empty queries.
+    // A semi-colon can only appear in JPQL inside a string literal, so the ones in literals
+    // (quoted with ' and escaped by doubling it) are kept as part of the query.
+    public static List<String> splitQueries(String s) {
+        List<String> queries = new ArrayList<String>();
+        if (s == null) 
+            return queries;
+        boolean inLiteral = false;
+        int start = 0;
+        for (int i=0; i<=s.length(); i++) {
+            char c = (i < s.length()) ? s.charAt(i) : ';';
+            if (c == '\'') {
+                // A doubled quote just goes in and out of the literal again
+                inLiteral = !inLiteral;
+            } else if ((c == ';') && !inLiteral) {
+                String query = s.substring(start, i).trim();
+                if (query.length() != 0)
+                    queries.add(query);
+                start = i + 1;
+            }
+        }
+        return queries;
+    }
+
+    // Return a List of queries from either a Collection of query Strings or a semi-colon-separated String 
+    public static List<String> queryList(Object value) {
+        if (value instanceof Collection) {
+            List<String> queries = new ArrayList<String>();
+            for (Object query : (Collection)value)
+                queries.add(String.valueOf(query).trim());
+            return queries;
+        }
+        return splitQueries((value == null) ? null : value.toString());
+    }
+
+    // Return an int property value from a String or Number, or the default if it is not valid
+    public static int intValue(String name, Object value, int defaultValue) {
+        if (value instanceof Number)
+            return ((Number)value).intValue();
+        try {
+            return Integer.parseInt(String.valueOf(value).trim());
+        } catch (NumberFormatException nfEx) {
+            warning("Invalid value for property " + name + ": ", String.valueOf(value));
+            return defaultValue;
+        }
+    }
+
     // Return the Map of service properties from a service reference
     public static Map<String, String> serviceProperties(ServiceReference ref) {
         Map props = new HashMap<String,String>();
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * Bounded executor used by the extender to do persistence unit lifecycle
+ * work (registering and unregistering) off of the framework bundle event thread.
+ *
+ * Tasks are striped across a fixed number of single-threaded executors,
+ * keyed by bundle id, so all of the tasks for a given bundle run in the
+ * order they were submitted, while tasks for different bundles can run
+ * concurrently.
+ *
+ * If the executor is created with a size of 0 then all tasks are run
+ * synchronously on the calling thread.
+ */
+public class LifecycleExecutor {
+
+    /*==================*/
+    /* Static constants */
+    /*==================*/
+
+    // Time to wait for queued tasks (across all of the stripes) to complete at shutdown
+    public static final long SHUTDOWN_WAIT_SECONDS = 30;
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    // One single-threaded executor per stripe (empty if synchronous)
+    ExecutorService[] stripes;
+
+    /*==============*/
+    /* Constructors */
+    /*==============*/
+
+    public LifecycleExecutor(int size) {
+        debug("LifecycleExecutor created with size ", size);
+        stripes = new ExecutorService[Math.max(size, 0)];
+        NamedThreadFactory threadFactory = new NamedThreadFactory("Lifecycle");
+        for (int i=0; i<stripes.length; i++) {
+            stripes[i] = Executors.newSingleThreadExecutor(threadFactory);
+        }
+    }
+
+    /*=========*/
+    /* Methods */
+    /*=========*/
+
+    /**
+     * Return whether tasks are run asynchronously
+     */
+    public boolean isAsynchronous() { return stripes.length > 0; }
+
+    /**
+     * Run a lifecycle task for the given bundle. The task will be run after
+     * all previously submitted tasks for the same bundle have completed.
+     *
+     * @param b the bundle the task applies to
+     * @param task the work to be done
+     */
+    public void execute(Bundle b, Runnable task) {
+        if (!isAsynchronous()) {
+            task.run();
+            return;
+        }
+        try {
+            stripeFor(b).execute(new LoggingTask(b, task));
+        } catch (RejectedExecutionException reEx) {
+            // We are shutting down - just do the work now
+            debug("LifecycleExecutor shut down, running task synchronously for ", b);
+            task.run();
+        }
+    }
+
+    /**
+     * Block until all tasks that have already been submitted for the given
+     * bundle have completed. This is used before doing synchronous work on
+     * a bundle that must not overlap with queued work for the same bundle.
+     *
+     * @param b the bundle to wait for
+     */
+    public void awaitPending(Bundle b) {
+        if (!isAsynchronous())
+            return;
+        ExecutorService stripe = stripeFor(b);
+        // A no-op task will complete only when the ones in front of it are done
+        Future<?> marker = null;
+        try {
+            marker = stripe.submit(new Runnable() { public void run() {} });
+        } catch (RejectedExecutionException reEx) {
+            return;
+        }
+        try {
+            marker.get();
+        } catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException exEx) {
+            // Can't happen with a no-op
+        }
+    }
+
+    /**
+     * Stop accepting new tasks and wait for queued ones to finish. The stripes 
+     * all share the one deadline, so shutdown waits no longer than 
+     * SHUTDOWN_WAIT_SECONDS however many stripes there are.
+     */
+    public void shutdown() {
+        debug("LifecycleExecutor shutting down");
+        for (ExecutorService stripe : stripes) {
+            stripe.shutdown();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(SHUTDOWN_WAIT_SECONDS);
+        for (ExecutorService stripe : stripes) {
+            try {
+                long wait = deadline - System.nanoTime();
+                if (!stripe.awaitTermination(Math.max(wait, 0), TimeUnit.NANOSECONDS)) {
+                    warning("LifecycleExecutor timed out waiting for lifecycle tasks to complete");
+                    stripe.shutdownNow();
+                }
+            } catch (InterruptedException iEx) {
+                Thread.currentThread().interrupt();
+                stripe.shutdownNow();
+            }
+        }
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    protected ExecutorService stripeFor(Bundle b) {
+        return stripes[(int)(b.getBundleId() % stripes.length)];
+    }
+
+    /*===============*/
+    /* Inner classes */
+    /*===============*/
+
+    // Wraps a task so that a failure is reported rather than silently swallowed
+    static class LoggingTask implements Runnable {
+        Bundle b;
+        Runnable task;
+        LoggingTask(Bundle b, Runnable task) { this.b = b; this.task = task; }
+        public void run() {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                warning("Lifecycle task failed for bundle " + b.getSymbolicName() + ": ", t);
+            }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the daemon threads used by the various Gemini JPA executors.
+ * Threads are named so they can be picked out in a thread dump and are
+ * daemons so they never hold up the VM from exiting.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+
+    // Prefix of the thread names
+    String name;
+
+    // Number of threads created so far
+    AtomicInteger count = new AtomicInteger();
+
+    public NamedThreadFactory(String name) { this.name = name; }
+
+    public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "Gemini JPA " + name + "-" + count.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -14,6 +14,7 @@
  ******************************************************************************/
 package org.eclipse.gemini.jpa;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -24,8 +25,13 @@ import javax.persistence.EntityManagerFactory;
 import javax.sql.DataSource;
 
 import org.eclipse.gemini.jpa.ProviderWrapper;
+import org.eclipse.gemini.jpa.eclipselink.PredeployedUnit;
+import org.eclipse.gemini.jpa.proxy.AsyncEMFBuilderService;
 import org.eclipse.gemini.jpa.proxy.EMFBuilderServiceProxyHandler;
 import org.eclipse.gemini.jpa.proxy.EMFServiceProxyHandler;
+import org.eclipse.gemini.jpa.proxy.EMFUsageTracker;
+import org.eclipse.gemini.jpa.proxy.PooledEntityManagerService;
+import org.eclipse.gemini.jpa.proxy.SharedEntityManagerHandler;
 import org.eclipse.gemini.jpa.xml.PersistenceDescriptorHandler;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.ServiceReference;
@@ -93,12 +99,41 @@ public class PUnitInfo {
     EMFBuilderServiceProxyHandler emfBuilderHandler;
     ServiceRegistration emfBuilderService;
 
+    /** 
+     * Async EMF Builder Service state - set by ServicesUtil
+     * @see ServicesUtil
+     */
+    AsyncEMFBuilderService asyncEmfBuilderImpl;
+    ServiceRegistration asyncEmfBuilderService;
+
+    /** 
+     * EntityManagerPool Service state (only if emPool is set) - set by ServicesUtil
+     * @see ServicesUtil
+     */
+    PooledEntityManagerService emPoolImpl;
+    ServiceRegistration emPoolService;
+
+    /** 
+     * Shared EntityManager Service state (only if sharedEm is set) - set by ServicesUtil
+     * @see ServicesUtil
+     */
+    SharedEntityManagerHandler sharedEmHandler;
+    ServiceRegistration sharedEmService;
+
+    /** 
+     * Tracks the client bundles of the EMF and EMFBuilder services - set by ServicesUtil
+     * @see ServicesUtil
+     */
+    EMFUsageTracker emfUsage;
+
     /** 
      * Shared EMF - set/unset by EMF[Builder]ServiceProxyHandler
+     * (while holding the PUnitInfo lock). Volatile so that it can be read 
+     * on every EMF service call without taking the lock.
      * @see EMFServiceProxyHandler
      * @see EMFBuilderServiceProxyHandler
      */
-    EntityManagerFactory emf;
+    volatile EntityManagerFactory emf;
 
     /** 
      * Flag to indicate whether the EMF was set by the Builder or not
@@ -106,7 +141,7 @@ public class PUnitInfo {
      * @see EMFServiceProxyHandler
      * @see EMFBuilderServiceProxyHandler
      */
-    boolean emfSetByBuilderService;
+    volatile boolean emfSetByBuilderService;
 
     /** 
      * DataSourceFactory service used to indicate that a data source factory service was found and can be used
@@ -140,6 +175,13 @@ public class PUnitInfo {
      */
     Map<String, Object> configProperties;
 
+    /** 
+     * Metadata predeployed for weaving, reused when the EMF is first created
+     *      - set by the initializer during preResolve
+     * @see org.eclipse.gemini.jpa.eclipselink.GeminiOSGiInitializer
+     */
+    volatile PredeployedUnit predeployedUnit;
+
     /*==============================*/
     /* Persistence descriptor state */
     /*==============================*/
@@ -160,6 +202,16 @@ public class PUnitInfo {
     String driverUser;
     String driverPassword;
     String driverVersion;
+    boolean warmUp;
+    List<String> warmUpQueries = new ArrayList<String>();
+    boolean emPool;
+    int emPoolMaxSize = GeminiPersistenceUnitProperties.EM_POOL_MAX_SIZE_DEFAULT;
+    int emPoolMaxIdle = GeminiPersistenceUnitProperties.EM_POOL_MAX_IDLE_DEFAULT;
+    boolean emfCache;
+    int emfCacheMaxSize = GeminiPersistenceUnitProperties.EMF_CACHE_MAX_SIZE_DEFAULT;
+    int emfCacheMaxIdle = GeminiPersistenceUnitProperties.EMF_CACHE_MAX_IDLE_DEFAULT;
+    int emfIdleTimeout = GeminiPersistenceUnitProperties.EMF_IDLE_TIMEOUT_DEFAULT;
+    boolean sharedEm;
 
     /*=============================*/
     /* Accessors for runtime state */
@@ -189,6 +241,27 @@ public class PUnitInfo {
     public ServiceRegistration getEmfBuilderService() { return emfBuilderService; }
     public void setEmfBuilderService(ServiceRegistration emfBuilderService) { this.emfBuilderService = emfBuilderService; }
 
+    public AsyncEMFBuilderService getAsyncEmfBuilderImpl() { return asyncEmfBuilderImpl; }
+    public void setAsyncEmfBuilderImpl(AsyncEMFBuilderService impl) { this.asyncEmfBuilderImpl = impl; }
+
+    public ServiceRegistration getAsyncEmfBuilderService() { return asyncEmfBuilderService; }
+    public void setAsyncEmfBuilderService(ServiceRegistration service) { this.asyncEmfBuilderService = service; }
+
+    public PooledEntityManagerService getEmPoolImpl() { return emPoolImpl; }
+    public void setEmPoolImpl(PooledEntityManagerService pool) { this.emPoolImpl = pool; }
+
+    public ServiceRegistration getEmPoolService() { return emPoolService; }
+    public void setEmPoolService(ServiceRegistration emPoolService) { this.emPoolService = emPoolService; }
+
+    public SharedEntityManagerHandler getSharedEmHandler() { return sharedEmHandler; }
+    public void setSharedEmHandler(SharedEntityManagerHandler handler) { this.sharedEmHandler = handler; }
+
+    public ServiceRegistration getSharedEmService() { return sharedEmService; }
+    public void setSharedEmService(ServiceRegistration sharedEmService) { this.sharedEmService = sharedEmService; }
+
+    public EMFUsageTracker getEmfUsage() { return emfUsage; }
+    public void setEmfUsage(EMFUsageTracker emfUsage) { this.emfUsage = emfUsage; }
+
     public EntityManagerFactory getEmf() { return emf; }
     public void setEmf(EntityManagerFactory emf) { this.emf = emf; }
     
@@ -211,6 +284,9 @@ public class PUnitInfo {
     public Map<String, Object> getConfigProperties() { return configProperties; }
     public void setConfigProperties(Map<String, Object> configProperties) { this.configProperties = configProperties; }
 
+    public PredeployedUnit getPredeployedUnit() { return predeployedUnit; }
+    public void setPredeployedUnit(PredeployedUnit predeployedUnit) { this.predeployedUnit = predeployedUnit; }
+
     /*============================================*/
     /* Accessors for Persistence descriptor state */
     /*============================================*/
@@ -245,6 +321,36 @@ public class PUnitInfo {
     public String getDriverVersion() { return driverVersion; }
     public void setDriverVersion(String driverVersion) { this.driverVersion = driverVersion; }
 
+    public boolean isWarmUp() { return warmUp; }
+    public void setWarmUp(boolean flag) { this.warmUp = flag; }
+
+    public List<String> getWarmUpQueries() { return warmUpQueries; }
+    public void setWarmUpQueries(List<String> queries) { this.warmUpQueries = queries; }
+
+    public boolean isEmPool() { return emPool; }
+    public void setEmPool(boolean flag) { this.emPool = flag; }
+
+    public int getEmPoolMaxSize() { return emPoolMaxSize; }
+    public void setEmPoolMaxSize(int size) { this.emPoolMaxSize = size; }
+
+    public int getEmPoolMaxIdle() { return emPoolMaxIdle; }
+    public void setEmPoolMaxIdle(int millis) { this.emPoolMaxIdle = millis; }
+
+    public boolean isEmfCache() { return emfCache; }
+    public void setEmfCache(boolean flag) { this.emfCache = flag; }
+
+    public int getEmfCacheMaxSize() { return emfCacheMaxSize; }
+    public void setEmfCacheMaxSize(int size) { this.emfCacheMaxSize = size; }
+
+    public int getEmfCacheMaxIdle() { return emfCacheMaxIdle; }
+    public void setEmfCacheMaxIdle(int millis) { this.emfCacheMaxIdle = millis; }
+
+    public int getEmfIdleTimeout() { return emfIdleTimeout; }
+    public void setEmfIdleTimeout(int millis) { this.emfIdleTimeout = millis; }
+
+    public boolean isSharedEm() { return sharedEm; }
+    public void setSharedEm(boolean flag) { this.sharedEm = flag; }
+
     /*=========*/
     /* Methods */
     /*=========*/
@@ -272,6 +378,12 @@ public class PUnitInfo {
           .append((getDriverUser()!=null) ? "\n  driverUser: " + getDriverUser() : "")
           .append((getDriverPassword()!=null) ? "\n  driverPassword: " + getDriverPassword() : "")
           .append((getDriverVersion()!=null) ? "\n  driverVersion: " + getDriverVersion() : "")
+          .append(isWarmUp() ? "\n  warmUp: true" : "")
+          .append((!getWarmUpQueries().isEmpty()) ? "\n  warmUpQueries: " + getWarmUpQueries() : "")
+          .append(isEmPool() ? "\n  emPool: maxSize=" + getEmPoolMaxSize() + ", maxIdle=" + getEmPoolMaxIdle() : "")
+          .append(isEmfCache() ? "\n  emfCache: maxSize=" + getEmfCacheMaxSize() + ", maxIdle=" + getEmfCacheMaxIdle() : "")
+          .append((getEmfIdleTimeout() > 0) ? "\n  emfIdleTimeout: " + getEmfIdleTimeout() : "")
+          .append(isSharedEm() ? "\n  sharedEntityManager: true" : "")
           .append("\n  --- Runtime Data ---")
           .append((getBundle()!=null) ? "\n  bundle: " + getBundle().getSymbolicName() : "")
           .append((getAssignedProvider()!=null) ? "\n  assignedProvider: " + getAssignedProvider() : "")
@@ -294,6 +406,16 @@ public class PUnitInfo {
         map.put("driverUser", driverUser);
         map.put("driverPassword", driverPassword);
         map.put("driverVersion", driverVersion);
+        map.put("warmUp", warmUp);
+        map.put("warmUpQueries", warmUpQueries);
+        map.put("emPool", emPool);
+        map.put("emPoolMaxSize", emPoolMaxSize);
+        map.put("emPoolMaxIdle", emPoolMaxIdle);
+        map.put("emfCache", emfCache);
+        map.put("emfCacheMaxSize", emfCacheMaxSize);
+        map.put("emfCacheMaxIdle", emfCacheMaxIdle);
+        map.put("emfIdleTimeout", emfIdleTimeout);
+        map.put("sharedEntityManager", sharedEm);
         map.put("bundle", bundle);
         map.put("assignedProvider", assignedProvider);
         map.put("emfSetByBuilderService", emfSetByBuilderService);
@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+
+/**
+ * Lifecycle state of the persistence units that Gemini knows about, shared
+ * by the manager and the extender. Assigned p-units are kept by bundle id and
+ * registered p-units are kept by unit name.
+ *
+ * All of the state is held in concurrent maps and updated using the atomic
+ * map operations, so bundle events, lifecycle tasks, config admin updates
+ * and EMF creation can all read and update it without contending on a lock.
+ * The exception is replacing and removing registered p-units, which lock 
+ * briefly because the owner of a name has to be compared by identity.
+ * Bundle ids are used as keys rather than the bundles themselves to avoid
+ * hanging on to bundles that have gone away.
+ */
+public class PUnitStateStore {
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    // Assigned p-units, keyed by the id of the bundle they are in.
+    // The lists are never modified once they have been stored.
+    ConcurrentMap<Long, List<PUnitInfo>> assignedByBundleId =
+        new ConcurrentHashMap<Long, List<PUnitInfo>>();
+
+    // Registered p-units, keyed by unit name
+    ConcurrentMap<String, PUnitInfo> registeredByName =
+        new ConcurrentHashMap<String, PUnitInfo>();
+
+    // Ids of the bundles that are marked for lazy activation
+    Set<Long> lazyBundleIds =
+        Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    // Latches, keyed by unit name, released when a p-unit of that name is unregistered
+    ConcurrentMap<String, CountDownLatch> unregistrationLatches =
+        new ConcurrentHashMap<String, CountDownLatch>();
+
+    /*==================*/
+    /* Assigned p-units */
+    /*==================*/
+
+    /**
+     * Store the p-units assigned to us from a bundle.
+     *
+     * @return false if the bundle was already assigned, in which case nothing is stored
+     */
+    public boolean assignUnits(Bundle b, List<PUnitInfo> pUnits) {
+        return assignedByBundleId.putIfAbsent(b.getBundleId(),
+                                              Collections.unmodifiableList(pUnits)) == null;
+    }
+
+    /**
+     * Return the p-units assigned from a bundle, or null if it is not assigned
+     */
+    public List<PUnitInfo> assignedUnits(Bundle b) {
+        return assignedByBundleId.get(b.getBundleId());
+    }
+
+    /**
+     * Return the assigned p-unit with the given name, or null if there isn't one
+     */
+    public PUnitInfo assignedUnit(String unitName) {
+        for (List<PUnitInfo> pUnits : assignedByBundleId.values()) {
+            for (PUnitInfo info : pUnits) {
+                if (unitName.equals(info.getUnitName()))
+                    return info;
+            }
+        }
+        return null;
+    }
+
+    public boolean isAssigned(Bundle b) {
+        return assignedByBundleId.containsKey(b.getBundleId());
+    }
+
+    /**
+     * Remove and return the p-units assigned from a bundle (null if it was not assigned).
+     * The bundle is also no longer considered to be lazy.
+     */
+    public List<PUnitInfo> unassignUnits(Bundle b) {
+        lazyBundleIds.remove(b.getBundleId());
+        return assignedByBundleId.remove(b.getBundleId());
+    }
+
+    /**
+     * Remove all of the assigned p-units and lazy bundle state.
+     *
+     * @return the assigned p-units that were removed, keyed by bundle id
+     */
+    public Map<Long, List<PUnitInfo>> clearAssignedUnits() {
+        Map<Long, List<PUnitInfo>> removed = new HashMap<Long, List<PUnitInfo>>();
+        for (Long id : assignedByBundleId.keySet()) {
+            List<PUnitInfo> pUnits = assignedByBundleId.remove(id);
+            if (pUnits != null)
+                removed.put(id, pUnits);
+        }
+        lazyBundleIds.clear();
+        return removed;
+    }
+
+    /*==============*/
+    /* Lazy bundles */
+    /*==============*/
+
+    public boolean isLazy(Bundle b) { return lazyBundleIds.contains(b.getBundleId()); }
+    public boolean markLazy(Bundle b) { return lazyBundleIds.add(b.getBundleId()); }
+    public boolean unmarkLazy(Bundle b) { return lazyBundleIds.remove(b.getBundleId()); }
+
+    /*====================*/
+    /* Registered p-units */
+    /*====================*/
+
+    /**
+     * Return the registered p-units, keyed by name. The map is live and safe to
+     * read concurrently, but should only be updated through this store.
+     */
+    public Map<String, PUnitInfo> registeredUnitsByName() { return registeredByName; }
+
+    public PUnitInfo registeredUnit(String unitName) { return registeredByName.get(unitName); }
+
+    public Collection<PUnitInfo> registeredUnits() { return registeredByName.values(); }
+
+    /**
+     * Record a p-unit as registered unless one of the same name already is.
+     *
+     * @return the p-unit already registered under the name, or null if this one was recorded
+     */
+    public PUnitInfo registerUnitIfAbsent(PUnitInfo info) {
+        return registeredByName.putIfAbsent(info.getUnitName(), info);
+    }
+
+    /**
+     * Record a p-unit as registered, replacing any registered under the same name
+     */
+    public void registerUnit(PUnitInfo info) {
+        synchronized (registeredByName) {
+            registeredByName.put(info.getUnitName(), info);
+        }
+    }
+
+    /**
+     * Remove a registered p-unit and release anyone waiting for its name to be free.
+     * Nothing is done if a different p-unit is now registered under the name (e.g. a 
+     * late unregister of a previous owner whose unregister was forced), since that 
+     * would evict the new owner and leave its services registered.
+     */
+    public void unregisterUnit(PUnitInfo info) {
+        String unitName = info.getUnitName();
+        // PUnitInfo equality is by name so the owner has to be checked by identity. 
+        // Replacing is locked against this so the owner can't change in between.
+        synchronized (registeredByName) {
+            PUnitInfo registered = registeredByName.get(unitName);
+            if (registered != null) {
+                if (registered != info)
+                    return;
+                registeredByName.remove(unitName);
+            }
+        }
+        CountDownLatch latch = unregistrationLatches.remove(unitName);
+        if (latch != null) {
+            latch.countDown();
+        }
+    }
+
+    /**
+     * Wait until a p-unit with the given name is no longer registered.
+     *
+     * @param unitName name of the p-unit
+     * @param timeoutMillis maximum time to wait
+     *
+     * @return true if the name is free, false if we timed out waiting for it
+     */
+    public boolean awaitUnregistration(String unitName, long timeoutMillis) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        CountDownLatch existing = unregistrationLatches.putIfAbsent(unitName, latch);
+        if (existing != null)
+            latch = existing;
+        // Check after the latch is in place so an unregister in between is not missed
+        if (!registeredByName.containsKey(unitName)) {
+            unregistrationLatches.remove(unitName, latch);
+            return true;
+        }
+        return latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -15,25 +15,30 @@
 package org.eclipse.gemini.jpa;
 
 import static org.eclipse.gemini.jpa.GeminiUtil.debug;
-import static org.eclipse.gemini.jpa.GeminiUtil.getPackageAdmin;
 import static org.eclipse.gemini.jpa.GeminiUtil.warning;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.eclipse.gemini.jpa.configadmin.InlinedDescriptorInfo;
 import org.eclipse.gemini.jpa.configadmin.PersistenceUnitConfiguration;
 import org.eclipse.gemini.jpa.eclipselink.EclipseLinkProvider;
 import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
-import org.osgi.framework.Constants;
-import org.osgi.framework.SynchronousBundleListener;
-import org.osgi.service.packageadmin.PackageAdmin;
+import org.osgi.framework.BundleListener;
+import org.osgi.util.tracker.BundleTracker;
+import org.osgi.util.tracker.BundleTrackerCustomizer;
 
 /**
  * The extender listens for persistence unit bundles and pushes them through 
@@ -53,6 +58,10 @@ import org.osgi.service.packageadmin.PackageAdmin;
  * If we find a persistence bundle that has not been assigned, but that has 
  * already gotten past the resolve stage then we will normally refresh it
  * in order to reset the bundle to go through the resolve stage again.
+ * To avoid having to do that, a resolver hook keeps persistence bundles that 
+ * we have not yet seen from being resolved until we have had a chance to assign them.
+ * 
+ * @see PersistenceResolverHookFactory
  * 
  * In general, the following things will occur in this phase:
  * 
@@ -65,7 +74,13 @@ import org.osgi.service.packageadmin.PackageAdmin;
  * @see registerPersistenceUnitsInBundle
  * 
  * This will happen after the persistence bundle has been resolved. The various
- * JPA services will be registered as appropriate.
+ * JPA services will be registered as appropriate. Since nothing in this phase
+ * needs to hold up the bundle, the registration work is queued on a lifecycle 
+ * executor instead of being done on the event thread. Unregistration still happens
+ * on the event thread (once the queued work for the bundle is done) so that the 
+ * services are gone before the bundle is stopped or uninstalled.
+ * 
+ * @see LifecycleExecutor
  *
  * In general, the following things will occur in this phase:
  * 
@@ -74,9 +89,20 @@ import org.osgi.service.packageadmin.PackageAdmin;
  *  - If the data source support is necessary and available then register an EntityManagerFactory service
  *  - Register an EntityManagerFactoryServiceBuilder service in any case
  *
+ * Bundle events are delivered through a BundleTracker. Only persistence bundles 
+ * are tracked, and the few manifest values we need from each bundle are cached 
+ * (see BundleMetadata) so that events for other bundles cost next to nothing.
  */
 @SuppressWarnings({"deprecation"})
-public class PersistenceBundleExtender implements SynchronousBundleListener  {
+public class PersistenceBundleExtender implements BundleTrackerCustomizer<Bundle>  {
+
+    /*==================*/
+    /* Static constants */
+    /*==================*/
+
+    // States of the bundles that the tracker tracks (everything except UNINSTALLED)
+    public static final int TRACKED_STATES = 
+        Bundle.INSTALLED | Bundle.RESOLVED | Bundle.STARTING | Bundle.STOPPING | Bundle.ACTIVE;
 
     /*================*/
     /* Instance state */
@@ -88,26 +114,39 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
     // Stateless utility class
     PersistenceUnitBundleUtil bundleUtil;
     
-    // List of all assigned persistence units by bundle
+    // Executor used to do registration work off of the bundle event thread
+    LifecycleExecutor lifecycleExecutor;
+    
+    // Parsed descriptor state of persistence bundles (null if caching is disabled)
+    DescriptorCache descriptorCache;
+    
+    // All assigned persistence units by bundle, plus the lazy bundles (shared with the mgr)
     // Note: It is a requirement that if one persistence unit is assigned 
     //       to us then they all must be.
-    Map<Bundle, List<PUnitInfo>> unitsByBundle = 
-        Collections.synchronizedMap(new HashMap<Bundle, List<PUnitInfo>>());
+    PUnitStateStore stateStore;
     
     // Map of persistence bundles (keyed by BSN) that have been examined but 
     // didn't have descriptors. These will be refreshed if/when a config admin 
     // configuration comes along (unless global refresh option is set to false)
-    Map<String, Bundle> inLimbo = 
-        Collections.synchronizedMap(new HashMap<String, Bundle>());
-    
-    // Bundles marked for lazy activation
-    // (Just keep the bundle ids to prevent hard references to the bundles.)
-    Set<Long> lazyBundles = new HashSet<Long>();
-
-    // Bundles in the process of being refreshed, or that we have already refreshed
-    // but not yet been notified about them having been unresolved
-    // (Just keep the bundle ids to prevent hard references to the bundles.)
-    Set<Long> refreshingBundles = new HashSet<Long>();
+    Map<String, Bundle> inLimbo = new ConcurrentHashMap<String, Bundle>();
+
+    // Batches up the bundles we need to refresh and tracks the ones being refreshed
+    RefreshCoalescer refreshCoalescer;
+
+    // Delivers the events for persistence bundles to us
+    BundleTracker<Bundle> bundleTracker;
+
+    // Manifest metadata of the bundles we have seen, keyed by bundle id
+    Map<Long, BundleMetadata> bundleMetadata = new ConcurrentHashMap<Long, BundleMetadata>();
+
+    // Discards the metadata of every bundle that is updated or uninstalled, since
+    // the tracker only tells us about the persistence bundles
+    BundleListener metadataListener = new BundleListener() {
+        public void bundleChanged(BundleEvent event) { discardMetadataIfChanged(event); }
+    };
+
+    // Keeps persistence bundles from resolving until we have assigned them (null if disabled)
+    PersistenceResolverHookFactory resolverHook;
     
     /*==============*/
     /* Constructors */
@@ -117,6 +156,7 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
     public PersistenceBundleExtender(GeminiManager mgr) { 
         this.mgr = mgr;
         this.bundleUtil = new PersistenceUnitBundleUtil();
+        this.stateStore = mgr.getStateStore();
     }
 
     /*===============================*/
@@ -129,15 +169,37 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
      */
     public void startListening() {
         debug("Extender.startListening");
-        mgr.getBundleContext().addBundleListener(this);
+        lifecycleExecutor = new LifecycleExecutor(GeminiSystemProperties.lifecycleThreads());
+        refreshCoalescer = new RefreshCoalescer(mgr.getBundleContext(), GeminiSystemProperties.refreshWindow());
+        if (GeminiSystemProperties.descriptorCache()) {
+            BundleContext ctx = mgr.getBundleContext();
+            descriptorCache = new DescriptorCache(ctx.getDataFile(DescriptorCache.CACHE_FILE_NAME), 
+                                                  GeminiUtil.bundleVersion(ctx.getBundle()));
+            descriptorCache.load();
+        }
+        if (GeminiSystemProperties.resolverHook()) {
+            resolverHook = new PersistenceResolverHookFactory(this, mgr.getBundleContext());
+            resolverHook.register();
+        }
+        mgr.getBundleContext().addBundleListener(metadataListener);
+        bundleTracker = new BundleTracker<Bundle>(mgr.getBundleContext(), TRACKED_STATES, this);
+        bundleTracker.open();
     }
 
     /**
-     * Stop listening to bundle events. 
+     * Stop listening to bundle events and wait for any queued 
+     * lifecycle work to complete. 
      */
     public void stopListening() {
         debug("Extender.stopListening");
-        mgr.getBundleContext().removeBundleListener(this);
+        bundleTracker.close();
+        mgr.getBundleContext().removeBundleListener(metadataListener);
+        bundleMetadata.clear();
+        if (resolverHook != null) 
+            resolverHook.unregister();
+        refreshCoalescer.shutdown();
+        lifecycleExecutor.shutdown();
+        saveDescriptorCache();
     }
 
     /**
@@ -149,9 +211,14 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
         Bundle[] installedBundles = mgr.getBundleContext().getBundles();
         debug("Extender.lookForExistingBundles: ", installedBundles);
         
-        // Check if any are p-unit bundles
+        // Check the headers and parse the descriptors of all of the bundles in parallel 
+        Map<Long, DiscoveredBundle> discovered = discoverBundles(installedBundles);
+
+        // Now go through the p-unit bundles in order to assign/refresh/register them
         for (Bundle b : installedBundles) {
-            if (isPersistenceUnitBundle(b)) {
+            DiscoveredBundle found = discovered.get(b.getBundleId());
+            if ((found != null) ? found.persistenceBundle : isPersistenceUnitBundle(b)) {
+                Set<PUnitInfo> parsedUnits = (found != null) ? found.pUnits : null;
                 // We found a persistence unit bundle.
                 if (GeminiSystemProperties.refreshPersistenceBundles()) {
                     // If bundle is active then refresh it and push it through the life cycle again
@@ -164,6 +231,10 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
                             debug("Found active bundle ", b, " - refreshing to push it back to resolve for processing");
                             refreshBundle(b);
                         }
+                    } else if ((b.getState() == Bundle.INSTALLED) && (resolverHook != null) && !isAssigned(b)) {
+                        // The resolver hook is keeping it from resolving so it can be assigned without a refresh
+                        debug("Found unresolved bundle ", b, " - assigning it before it resolves");
+                        tryAssigningPersistenceUnitsInBundle(b, parsedUnits);
                     }
                 } else {
                     // Refreshing is disabled - go through assigning and registering process w/o events
@@ -171,15 +242,22 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
                         // Assign the p-unit
                         // NOTE: With no refresh, assigning may be happening after the bundle has been resolved
                         warning("Extender - Refreshing disabled - entities in bundle " + b.getSymbolicName(), " may not be woven");
-                        tryAssigningPersistenceUnitsInBundle(b);
+                        tryAssigningPersistenceUnitsInBundle(b, parsedUnits);
                         // Now if bundle is starting or active then register the p-units in it
                         if ((b.getState() == Bundle.STARTING) || (b.getState() == Bundle.ACTIVE)) {
-                            registerPersistenceUnitsInBundle(b);
+                            registerPersistenceUnitsInBundleAsync(b);
                         } // Otherwise just let future events take their course 
                     }
                 }
             }
         }
+        // Refresh whatever we found in one pass instead of waiting out the window
+        refreshCoalescer.flush();
+        // Resolve any bundles that were held back until we got to them
+        if (resolverHook != null) 
+            resolverHook.resolveReleased();
+        // Persist what we have so far in case we don't get a clean shutdown
+        saveDescriptorCache();
     }
 
     /**
@@ -187,12 +265,8 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
      * 
      * @return The assigned punit Map 
      */
-    public Map<Bundle, List<PUnitInfo>> clearAllPUnitInfos() {
-        Map<Bundle, List<PUnitInfo>> pUnitInfos = unitsByBundle;
-        unitsByBundle = null;
-        lazyBundles = null;
-        refreshingBundles = null;
-        return pUnitInfos;
+    public Map<Long, List<PUnitInfo>> clearAllPUnitInfos() {
+        return stateStore.clearAssignedUnits();
     }
 
     /*============================*/
@@ -206,6 +280,31 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
      * @param b the bundle to look for p-units in
      */
     public void tryAssigningPersistenceUnitsInBundle(Bundle b) {
+        tryAssigningPersistenceUnitsInBundle(b, null);
+    }
+
+    /**
+     * Same as tryAssigningPersistenceUnitsInBundle(Bundle), but use the p-unit infos 
+     * that have already been parsed from the bundle descriptors, if there are any.
+     * 
+     * @param b the bundle to look for p-units in
+     * @param parsedUnits the p-units already parsed from the bundle, or null if not parsed
+     */
+    public void tryAssigningPersistenceUnitsInBundle(Bundle b, Set<PUnitInfo> parsedUnits) {
+        try {
+            assignPersistenceUnitsInBundle(b, parsedUnits);
+        } finally {
+            // Whatever happened, the bundle has been processed and can now be resolved
+            if ((resolverHook != null) && resolverHook.release(b)) {
+                resolveReleasedBundlesAsync(b);
+            }
+        }
+    }
+
+    /*
+     * Do the work of assigning the p-units in a bundle
+     */
+    protected void assignPersistenceUnitsInBundle(Bundle b, Set<PUnitInfo> parsedUnits) {
         
         debug("Extender.tryAssigningPersistenceUnitsInBundle: ", b);
         // If we have already assigned it then bail
@@ -214,46 +313,29 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
             return;
         }
 
-        // Look for all of the persistence descriptor files in the bundle
-        List<PersistenceDescriptorInfo> descriptorInfos = bundleUtil.persistenceDescriptorInfos(b);
-
-        if (descriptorInfos.isEmpty()) {
-            // There were no descriptors specified in the manifest - check if there is any config from config admin
-            PersistenceUnitConfiguration config = mgr.getConfigAdminListener().configForBundle(b.getSymbolicName());
-            if (config != null) {
-                // There is a config to go with this bundle. 
-                // Create a special descriptorInfo with the descriptor string right inside it
-                debug("No persistence descriptors, but found a config for bundle ", b);
-                descriptorInfos.add(new InlinedDescriptorInfo(config));
-            } else {
-                // We can't assign it just yet. Add to the limbo list
-                warning("No persistence descriptors found in persistence bundle ", b.getSymbolicName());
-                debug("Putting bundle ", b, " in limbo");
-                inLimbo.put(b.getSymbolicName(), b);
-                // The bundle will be removed from being in limbo by the config admin listener when 
-                // a config comes along that contains the bsn of this bundle. It will then be refreshed
-                // (unless global refresh id disabled) and come through this phase again
-                return;
-            }
-        }
-
-        // Do a partial parse of the descriptors
-        Set<PUnitInfo> pUnitInfos = bundleUtil.persistenceUnitInfoFromXmlFiles(descriptorInfos);
+        // Use the descriptor state from the last time we saw the bundle if it hasn't changed
+        Set<PUnitInfo> pUnitInfos = (parsedUnits != null) ? parsedUnits : findPersistenceUnitsInBundle(b);
+        if (pUnitInfos == null)
+            return;
 
         // Cycle through each p-unit info and see if a provider was specified
+        List<PUnitInfo> unitsFound = new ArrayList<PUnitInfo>();
         for (PUnitInfo info : pUnitInfos) {
             if ((info.getProvider() == null) || (EclipseLinkProvider.ECLIPSELINK_PROVIDER_CLASS_NAME.equals(info.getProvider()))) {
                 // We can be the provider; claim the p-unit and add it to our list
                 info.setBundle(b);
                 info.setAssignedProvider(mgr.getProvider());
                 debug("Assigning punit ", info.getUnitName(), " to this provider");
-                addToBundleUnits(unitsByBundle, b, info);
+                unitsFound.add(info);
             }
         }
-        // If we found any that were for us then move on to do the preResolve work
-        List<PUnitInfo> unitsFound = unitsByBundle.get(b);
-        if ((unitsFound != null) && (unitsFound.size() != 0)) {
-            mgr.preResolve(b, unitsByBundle.get(b));
+        // If we found any that were for us then store them and move on to do the preResolve work
+        if (!unitsFound.isEmpty()) {
+            if (!stateStore.assignUnits(b, unitsFound)) {
+                warning("Bundle was assigned concurrently: ", b.toString());
+                return;
+            }
+            mgr.preResolve(b, unitsFound);
         }
     }
     
@@ -265,14 +347,22 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
     public void unassignPersistenceUnitsInBundle(Bundle b) { 
         
         debug("Extender.unassignPersistenceUnitsInBundle: ", b);
-        List<PUnitInfo> infos = unitsByBundle.get(b);
-        unitsByBundle.remove(b);
-        removeFromLazyBundles(b);
+        List<PUnitInfo> infos = stateStore.unassignUnits(b);
+        if (infos == null) 
+            return;
         // Uninitialize the state of the p-unit
         for (PUnitInfo info : infos) {
             info.setAssignedProvider(null);
             info.setBundle(null);
+            info.setPredeployedUnit(null);
         }
+        // Don't hang on to service classes generated for the anchors in the bundle
+        ServicesUtil servicesUtil = mgr.getServicesUtil();
+        if (servicesUtil != null)
+            servicesUtil.discardDelegateClasses(b);
+        // Nor to the loader for the bundle, it will be rewired if it is refreshed
+        if (mgr.getLoaderCache() != null)
+            mgr.getLoaderCache().invalidate(b);
     }
 
     /**
@@ -290,7 +380,7 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
         if (areCompatibleBundles(b, mgr.getBundle())) { 
             debug("Extender provider compatible with bundle: ", b);
             
-            mgr.registerPersistenceUnits(unitsByBundle.get(b));
+            mgr.registerPersistenceUnits(stateStore.assignedUnits(b));
             
         } else {
             warning("Cannot support bundle " + b.getSymbolicName() +  
@@ -319,49 +409,127 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
             warning("Unregister called on bundle " + b.getSymbolicName(), " but bundle was not assigned");
             return;
         }
-        mgr.unregisterPersistenceUnits(unitsByBundle.get(b));
+        mgr.unregisterPersistenceUnits(stateStore.assignedUnits(b));
     }    
+
+    /**
+     * Queue the registration of the p-units of a given bundle on the lifecycle executor.
+     * Registration does not need to happen before the bundle is resolved, 
+     * so there is no reason to hold up the bundle event thread doing it.
+     * 
+     * @param b the bundle the p-units are in
+     */
+    public void registerPersistenceUnitsInBundleAsync(final Bundle b) {
+        lifecycleExecutor.execute(b, new Runnable() {
+            public void run() { registerPersistenceUnitsInBundle(b); }
+        });
+    }
+
+    /**
+     * Return whether lifecycle work is done on the lifecycle executor threads, 
+     * rather than on the bundle event thread
+     */
+    public boolean isLifecycleAsynchronous() {
+        return lifecycleExecutor.isAsynchronous();
+    }
+
+    /**
+     * Run some lifecycle work for a given bundle on the lifecycle executor, after 
+     * any work already queued for the bundle. Used for work that is triggered by 
+     * something other than a bundle event (e.g. a config admin update) so that it 
+     * is still ordered with the work for the bundle events.
+     * 
+     * @param b the bundle the work applies to
+     * @param task the work to be done
+     */
+    public void executeLifecycleTask(Bundle b, Runnable task) {
+        lifecycleExecutor.execute(b, task);
+    }
+    
+    /**
+     * Resolve the bundles the resolver hook held back that we have since assigned. 
+     * This can not be done while the bundle event is being delivered since we 
+     * may be in the middle of a resolve, so queue it on the lifecycle executor.
+     * 
+     * @param b the bundle that was released
+     */
+    public void resolveReleasedBundlesAsync(Bundle b) {
+        // If we are running synchronously then just leave it to be resolved the next time  
+        // the framework resolves (e.g. when it is started)
+        if (!lifecycleExecutor.isAsynchronous()) 
+            return;
+        lifecycleExecutor.execute(b, new Runnable() {
+            public void run() { resolverHook.resolveReleased(); }
+        });
+    }
     
     /**
      * Refresh the persistence bundle.
      * If persistence units have already been registered they 
      * should have been unregistered before making this refresh call.
+     * The refresh is not done right away, but is batched up with any 
+     * other bundles being refreshed at around the same time.
      * 
      * @param b the bundle the p-units are in
      */    
     public void refreshBundle(Bundle b) {
         debug("Extender.refreshBundle: ", b);
-
-        // Add the list of currently refreshing bundles. 
-        // (It will be removed when the UNRESOLVED event is fired on it)
-        addToRefreshingBundles(b);
-
-        // Call refresh on all of the packages
-        PackageAdmin admin = getPackageAdmin(mgr.getBundleContext());
-        admin.refreshPackages(new Bundle[] { b }); 
-
-        /* New 4.3 code to use to refresh bundle */
-        /*
-        Bundle systemBundle = mgr.getBundleContext().getBundle(0);
-        FrameworkWiring fw = systemBundle.adapt(FrameworkWiring.class);
-        fw.refreshBundles(Arrays.asList(b));
-        */
+        // The bundle is marked as refreshing until the framework tells us the batch is done
+        refreshCoalescer.refresh(b);
     }
     
     public boolean isInLimbo(String bsn) {
-        return inLimbo.containsKey(bsn);
+        return (bsn != null) && inLimbo.containsKey(bsn);
     }
 
     // Remove and return the specified bundle if it is in limbo
     // (i.e. previously found but without a persistence descriptor)
     public Bundle getBundleInLimbo(String bsn) {
-        return inLimbo.remove(bsn);
+        // The concurrent map does not take null keys (incremental configs have no bsn)
+        return (bsn == null) ? null : inLimbo.remove(bsn);
     }
 
+    // Return the specified bundle if it is in limbo, leaving it there
+    public Bundle peekBundleInLimbo(String bsn) {
+        return (bsn == null) ? null : inLimbo.get(bsn);
+    }
 
-    /*========================*/
-    /* BundleListener methods */
-    /*========================*/
+
+    /*=================================*/
+    /* BundleTrackerCustomizer methods */
+    /*=================================*/
+
+    // Called for each event on a bundle that is not being tracked 
+    // (or with a null event for the bundles found when the tracker is opened)
+    public Bundle addingBundle(Bundle b, BundleEvent event) {
+        if (event != null) 
+            discardMetadataIfChanged(event);
+        if (!isPersistenceUnitBundle(b)) 
+            return null;
+        // Existing bundles are dealt with by lookForExistingBundles
+        if (event != null) 
+            bundleChanged(event);
+        return b;
+    }
+
+    public void modifiedBundle(Bundle b, BundleEvent event, Bundle tracked) {
+        if (event == null) 
+            return;
+        discardMetadataIfChanged(event);
+        bundleChanged(event);
+    }
+
+    // Called when a tracked bundle is uninstalled (or with a null event when the tracker is closed)
+    public void removedBundle(Bundle b, BundleEvent event, Bundle tracked) {
+        if (event == null) 
+            return;
+        bundleChanged(event);
+        discardMetadataIfChanged(event);
+    }
+
+    /*=====================*/
+    /* Bundle event method */
+    /*=====================*/
 
     public void bundleChanged(BundleEvent event) {
 
@@ -378,8 +546,8 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
 
         } else if (eventType == BundleEvent.LAZY_ACTIVATION) {
             if (isAssigned(b)) {
-                lazyBundles.add(b.getBundleId()); 
-                registerPersistenceUnitsInBundle(b);
+                addToLazyBundles(b); 
+                registerPersistenceUnitsInBundleAsync(b);
             }
         } else if (eventType == BundleEvent.STARTING) {
             if (!isAssigned(b) && !GeminiSystemProperties.refreshPersistenceBundles()) {
@@ -388,7 +556,7 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
             }
             if (isAssigned(b)) {
                 if (!isLazy(b)) {
-                    registerPersistenceUnitsInBundle(b);
+                    registerPersistenceUnitsInBundleAsync(b);
                 }
             }
         } else if (eventType == BundleEvent.STARTED) {
@@ -401,7 +569,7 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
                     warning("Refreshing disabled - Bundle " + b.getSymbolicName(), " started - entities may not be woven");
                     tryAssigningPersistenceUnitsInBundle(b);
                     if (isAssigned(b) && !isLazy(b)) {
-                        registerPersistenceUnitsInBundle(b);
+                        registerPersistenceUnitsInBundleAsync(b);
                     }
                 }
             }
@@ -411,22 +579,30 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
                 if (isLazy(b)) {
                     removeFromLazyBundles(b);
                 }
+                // The services must be gone before the bundle stops, so do it now
+                // (once any registration queued for the bundle has completed)
+                lifecycleExecutor.awaitPending(b);
                 unregisterPersistenceUnitsInBundle(b);
             }
         } else if (eventType == BundleEvent.UNINSTALLED) {
+            if (resolverHook != null) 
+                resolverHook.forget(b);
+            lifecycleExecutor.awaitPending(b);
             if (isAssigned(b)) {
                 unassignPersistenceUnitsInBundle(b);
             }
         } else if (eventType == BundleEvent.UPDATED) {
+            // Assignment must happen now (before resolving) so let queued work finish first
+            lifecycleExecutor.awaitPending(b);
             if (isAssigned(b)) {
                 unassignPersistenceUnitsInBundle(b);
             }
             tryAssigningPersistenceUnitsInBundle(b);
 
         } else if (eventType == BundleEvent.UNRESOLVED) {
-            if (isRefreshing(b)) {  // assign refreshing bundles
+            if (isRefreshing(b) && !isAssigned(b)) {  // assign refreshing bundles
+                lifecycleExecutor.awaitPending(b);
                 tryAssigningPersistenceUnitsInBundle(b);
-                removeFromRefreshingBundles(b);
             }
         } else {  // RESOLVED, STARTED, STOPPED
             // Do nothing.
@@ -438,48 +614,165 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
     /*================*/
 
     public boolean isAssigned(Bundle b) {
-        return unitsByBundle.containsKey(b);
+        return stateStore.isAssigned(b);
     }
 
     public boolean isLazy(Bundle b) {
-        return lazyBundles.contains(b.getBundleId());
+        return stateStore.isLazy(b);
     }
     protected boolean addToLazyBundles(Bundle b) {
-        return lazyBundles.add(b.getBundleId());
+        return stateStore.markLazy(b);
     }
     protected boolean removeFromLazyBundles(Bundle b) {
-        return lazyBundles.remove(b.getBundleId());
+        return stateStore.unmarkLazy(b);
     }
 
     public boolean isRefreshing(Bundle b) {
-        return refreshingBundles.contains(b.getBundleId());
+        return refreshCoalescer.isRefreshing(b);
     }
-    protected void addToRefreshingBundles(Bundle b) {
-        refreshingBundles.add(b.getBundleId());
+
+    /*
+     * Return the p-units in a bundle, either from the descriptor cache or by parsing 
+     * the descriptors. Return null if there were none and the bundle was put in limbo.
+     */
+    protected Set<PUnitInfo> findPersistenceUnitsInBundle(Bundle b) {
+        Set<PUnitInfo> pUnitInfos = (descriptorCache != null) ? descriptorCache.get(b) : null;
+        return (pUnitInfos != null) ? pUnitInfos : parsePersistenceUnitsInBundle(b);
     }
-    protected void removeFromRefreshingBundles(Bundle b) {
-        refreshingBundles.remove(b.getBundleId());
+
+    /*
+     * Return whether lookForExistingBundles will assign the bundle right away 
+     * (as opposed to refreshing it or leaving it to future events)
+     */
+    protected boolean willAssignExistingBundle(Bundle b) {
+        if (isAssigned(b) || (b.getState() == Bundle.UNINSTALLED))
+            return false;
+        return GeminiSystemProperties.refreshPersistenceBundles()
+            ? ((b.getState() == Bundle.INSTALLED) && (resolverHook != null))
+            : true;
     }
-        
-    protected void addToBundleUnits(Map<Bundle,List<PUnitInfo>> map, 
-                                    Bundle b, 
-                                    PUnitInfo info) {
-        synchronized (map) {
-            if (!map.containsKey(b))
-                map.put(b, new ArrayList<PUnitInfo>());
-            List<PUnitInfo> infos = map.get(b);
-            if (!infos.contains(info)) 
-                infos.add(info);
+
+    /*
+     * Check the headers of the given bundles and find the p-units in the ones that will 
+     * be assigned right away. The work is spread across a pool of threads since the 
+     * descriptor parsing is independent for each bundle. Bundles that fail are left out 
+     * of the result so they get processed again (and any error reported) in the normal way.
+     */
+    protected Map<Long, DiscoveredBundle> discoverBundles(Bundle[] bundles) {
+        Map<Long, DiscoveredBundle> result = new HashMap<Long, DiscoveredBundle>();
+        int numThreads = Math.min(GeminiSystemProperties.discoveryThreads(), bundles.length);
+        if (numThreads <= 1) 
+            return result;
+
+        debug("Extender discovering bundles using ", numThreads, " threads");
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads, new NamedThreadFactory("Discovery"));
+        try {
+            List<Callable<DiscoveredBundle>> tasks = new ArrayList<Callable<DiscoveredBundle>>(bundles.length);
+            for (final Bundle b : bundles) {
+                tasks.add(new Callable<DiscoveredBundle>() {
+                    public DiscoveredBundle call() { return discoverBundle(b); }
+                });
+            }
+            List<Future<DiscoveredBundle>> futures = pool.invokeAll(tasks);
+            for (int i=0; i<bundles.length; i++) {
+                try {
+                    result.put(bundles[i].getBundleId(), futures.get(i).get());
+                } catch (ExecutionException exEx) {
+                    debug("Extender discovery failed for bundle ", bundles[i], " - ", exEx.getCause());
+                }
+            }
+        } catch (InterruptedException iEx) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+        return result;
+    }
+
+    protected DiscoveredBundle discoverBundle(Bundle b) {
+        DiscoveredBundle found = new DiscoveredBundle();
+        found.persistenceBundle = isPersistenceUnitBundle(b);
+        if (found.persistenceBundle && willAssignExistingBundle(b)) {
+            found.pUnits = findPersistenceUnitsInBundle(b);
+            if (found.pUnits == null) {
+                // It has been put in limbo - don't do that again when assigning
+                found.pUnits = Collections.emptySet();
+            }
+        }
+        return found;
+    }
+
+    /*
+     * Find and parse the persistence descriptors of a bundle. Return null 
+     * if there were none and the bundle was put in limbo.
+     */
+    protected Set<PUnitInfo> parsePersistenceUnitsInBundle(Bundle b) {
+
+        // Look for all of the persistence descriptor files in the bundle
+        List<PersistenceDescriptorInfo> descriptorInfos = bundleUtil.persistenceDescriptorInfos(b);
+
+        if (descriptorInfos.isEmpty()) {
+            // There were no descriptors specified in the manifest - check if there is any config from config admin
+            PersistenceUnitConfiguration config = mgr.getConfigAdminListener().configForBundle(b.getSymbolicName());
+            if (config != null) {
+                // There is a config to go with this bundle. 
+                // Create a special descriptorInfo with the descriptor string right inside it
+                debug("No persistence descriptors, but found a config for bundle ", b);
+                descriptorInfos.add(new InlinedDescriptorInfo(config));
+            } else {
+                // We can't assign it just yet. Add to the limbo list
+                warning("No persistence descriptors found in persistence bundle ", b.getSymbolicName());
+                debug("Putting bundle ", b, " in limbo");
+                inLimbo.put(b.getSymbolicName(), b);
+                // The bundle will be removed from being in limbo by the config admin listener when 
+                // a config comes along that contains the bsn of this bundle. It will then be refreshed
+                // (unless global refresh id disabled) and come through this phase again
+                return null;
+            }
         }
+
+        // Do a partial parse of the descriptors
+        Set<PUnitInfo> pUnitInfos = bundleUtil.persistenceUnitInfoFromXmlFiles(descriptorInfos);
+
+        // Cache the results, unless the descriptor came from config admin
+        if ((descriptorCache != null) && !(descriptorInfos.get(0) instanceof InlinedDescriptorInfo)) {
+            descriptorCache.put(b, pUnitInfos);
+        }
+        return pUnitInfos;
+
+    }
+
+    protected void saveDescriptorCache() {
+        if (descriptorCache != null)
+            descriptorCache.save(mgr.getBundleContext().getBundles());
     }
 
     public boolean isPersistenceUnitBundle(Bundle b) {
-        return b.getHeaders().get("Meta-Persistence") != null;
+        return metadataFor(b).isPersistenceBundle();
     }
 
     public boolean isLazyActivatedBundle(Bundle b) {
-        String policy = (String) b.getHeaders().get(Constants.BUNDLE_ACTIVATIONPOLICY);
-        return (policy != null) && (policy.equals(Constants.ACTIVATION_LAZY));        
+        return metadataFor(b).isLazyActivation();
+    }
+
+    // Return the cached manifest metadata for a bundle, reading it if necessary
+    // (the metadata of an uninstalled bundle is not kept, since it would never be discarded)
+    public BundleMetadata metadataFor(Bundle b) {
+        BundleMetadata metadata = bundleMetadata.get(b.getBundleId());
+        if ((metadata == null) || !metadata.isCurrent(b)) {
+            metadata = new BundleMetadata(b);
+            if (b.getState() != Bundle.UNINSTALLED)
+                bundleMetadata.put(b.getBundleId(), metadata);
+        }
+        return metadata;
+    }
+
+    // The headers may be different after an update, and are no longer needed after an uninstall
+    protected void discardMetadataIfChanged(BundleEvent event) {
+        int type = event.getType();
+        if ((type == BundleEvent.UPDATED) || (type == BundleEvent.UNINSTALLED)) {
+            bundleMetadata.remove(event.getBundle().getBundleId());
+        }
     }
         
     /**
@@ -499,4 +792,14 @@ public class PersistenceBundleExtender implements SynchronousBundleListener  {
             return true;
         } 
     }
+
+    /*===============*/
+    /* Inner classes */
+    /*===============*/
+
+    // What was found out about an existing bundle during discovery
+    static class DiscoveredBundle {
+        boolean persistenceBundle;
+        Set<PUnitInfo> pUnits; // null if not parsed
+    }
 }
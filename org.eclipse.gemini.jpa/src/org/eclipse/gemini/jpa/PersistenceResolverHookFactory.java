@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.hooks.resolver.ResolverHook;
+import org.osgi.framework.hooks.resolver.ResolverHookFactory;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Resolver hook that keeps persistence bundles from being resolved until
+ * the extender has had a chance to process them. Since the weaving hook
+ * for a persistence unit must be in place before its bundle is resolved,
+ * holding back resolution means that bundles that were installed (but not
+ * yet resolved) before Gemini came along can be assigned directly, rather
+ * than being let through and having to be refreshed afterwards.
+ *
+ * A persistence bundle is released once the extender has tried to assign
+ * it, whether or not any of its p-units were assigned to us. Bundles that
+ * were held back by the hook are resolved again once they are released.
+ * Bundles that were already resolved are not affected by the hook and are
+ * still refreshed as before.
+ */
+public class PersistenceResolverHookFactory implements ResolverHookFactory {
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    // The extender that processes the persistence bundles
+    PersistenceBundleExtender extender;
+
+    // Our bundle context
+    BundleContext ctx;
+
+    // Our registration as a resolver hook factory
+    ServiceRegistration<ResolverHookFactory> registration;
+
+    // Ids of persistence bundles that the extender has processed
+    Set<Long> released = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    // Ids of persistence bundles that the hook has kept from resolving
+    Set<Long> blocked = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    /*==============*/
+    /* Constructors */
+    /*==============*/
+
+    public PersistenceResolverHookFactory(PersistenceBundleExtender extender, BundleContext ctx) {
+        this.extender = extender;
+        this.ctx = ctx;
+    }
+
+    /*=========*/
+    /* Methods */
+    /*=========*/
+
+    public void register() {
+        debug("ResolverHookFactory registering");
+        registration = ctx.registerService(ResolverHookFactory.class, this, null);
+    }
+
+    public void unregister() {
+        debug("ResolverHookFactory unregistering");
+        try {
+            registration.unregister();
+        } catch (IllegalStateException isEx) {
+            // Already unregistered (e.g. we are being stopped)
+        }
+        released.clear();
+        blocked.clear();
+    }
+
+    /**
+     * Return whether the bundle is a persistence bundle that is being held back
+     * from resolution until the extender has processed it
+     */
+    public boolean isGated(Bundle b) {
+        return !released.contains(b.getBundleId()) && extender.isPersistenceUnitBundle(b);
+    }
+
+    /**
+     * Allow a persistence bundle that the extender has processed to be resolved.
+     *
+     * @param b the persistence bundle
+     *
+     * @return true if the hook had kept the bundle from resolving and it needs to be resolved again
+     */
+    public boolean release(Bundle b) {
+        released.add(b.getBundleId());
+        return blocked.contains(b.getBundleId());
+    }
+
+    /**
+     * Forget about a bundle that has been uninstalled
+     */
+    public void forget(Bundle b) {
+        released.remove(b.getBundleId());
+        blocked.remove(b.getBundleId());
+    }
+
+    /**
+     * Resolve the bundles that were held back by the hook and have since been released.
+     * This must not be called while a resolve operation is in progress on the same thread.
+     */
+    public void resolveReleased() {
+        List<Bundle> toResolve = new ArrayList<Bundle>();
+        for (Long id : blocked) {
+            if (released.contains(id) && blocked.remove(id)) {
+                Bundle b = ctx.getBundle(id);
+                if ((b != null) && (b.getState() == Bundle.INSTALLED))
+                    toResolve.add(b);
+            }
+        }
+        if (toResolve.isEmpty())
+            return;
+        debug("ResolverHookFactory resolving released bundles: ", toResolve);
+        try {
+            ctx.getBundle(0).adapt(FrameworkWiring.class).resolveBundles(toResolve);
+        } catch (Exception ex) {
+            warning("ResolverHookFactory failed to resolve released bundles ", ex);
+        }
+    }
+
+    /*=============================*/
+    /* ResolverHookFactory methods */
+    /*=============================*/
+
+    public ResolverHook begin(Collection<BundleRevision> triggers) {
+        return new GateHook();
+    }
+
+    /*===============*/
+    /* Inner classes */
+    /*===============*/
+
+    // Removes the persistence bundles that have not been released from the resolvable set
+    class GateHook implements ResolverHook {
+
+        public void filterResolvable(Collection<BundleRevision> candidates) {
+            for (Iterator<BundleRevision> iter = candidates.iterator(); iter.hasNext(); ) {
+                Bundle b = iter.next().getBundle();
+                if (isGated(b)) {
+                    // Record it before checking again so a concurrent release can't miss it
+                    blocked.add(b.getBundleId());
+                    if (released.contains(b.getBundleId())) {
+                        blocked.remove(b.getBundleId());
+                        continue;
+                    }
+                    debug("ResolverHook holding back unassigned persistence bundle ", b);
+                    iter.remove();
+                }
+            }
+        }
+
+        public void filterSingletonCollisions(BundleCapability singleton,
+                                              Collection<BundleCapability> collisionCandidates) {}
+
+        public void filterMatches(BundleRequirement requirement,
+                                  Collection<BundleCapability> candidates) {}
+
+        public void end() {}
+    }
+}
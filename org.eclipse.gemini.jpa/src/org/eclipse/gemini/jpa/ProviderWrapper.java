@@ -16,13 +16,14 @@
 package org.eclipse.gemini.jpa;
 
 import static org.eclipse.gemini.jpa.GeminiUtil.debug;
-import static org.eclipse.gemini.jpa.GeminiUtil.warning;
 import static org.eclipse.gemini.jpa.GeminiUtil.fatalError;
 import static org.eclipse.gemini.jpa.GeminiUtil.PUNIT_INFO_PROPERTY;
+import static org.eclipse.gemini.jpa.GeminiUtil.SCHEMA_GENERATION_PROPERTY;
 
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.sql.DataSource;
 
 import javax.persistence.EntityManagerFactory;
@@ -57,6 +58,12 @@ public class ProviderWrapper implements PersistenceProvider {
     /** Pointer back to the manager */
     GeminiManager mgr;
 
+    /** Number of schema generation sessions, used to make their names unique */
+    AtomicLong schemaSessions = new AtomicLong();
+
+    /** Suffix added to the unit name to name a schema generation session */
+    public static final String SCHEMA_SESSION_SUFFIX = "#schema-";
+
     /*=========================*/
     /* Initialization/shutdown */
     /*=========================*/
@@ -91,38 +98,7 @@ public class ProviderWrapper implements PersistenceProvider {
         if (unitInfo == null)
             fatalError("createEntityManagerFactory() called on provider, but punit has not been registered: ", null);
 
-        // Create a new properties map and put all of the properties in it
-        Map<String,Object> props = new HashMap<String,Object>();
-        // First the props from config admin if any are there
-        if (unitInfo.getConfigProperties() != null) {
-            props.putAll(unitInfo.getConfigProperties());
-        }
-        // Now the props passed into this createEMF call (may overwrite config admin props)
-        if (properties != null) {
-            props.putAll(properties); 
-        }
-        
-        // Create a composite loader that loads from the punit bundle and the provider bundle
-        CompositeClassLoader compositeLoader = CompositeClassLoader.createCompositeLoader(
-                mgr.getBundleContext(), 
-                unitInfo.getBundle());
-        // Bug 385170 - If user supplies a classloader then tack it on the front
-        if (props.containsKey(PersistenceUnitProperties.CLASSLOADER)) {
-            ClassLoader userLoader = (ClassLoader) props.get(PersistenceUnitProperties.CLASSLOADER);
-            compositeLoader.getClassLoaders().add(0, userLoader);
-        }
-        props.put(PersistenceUnitProperties.CLASSLOADER, compositeLoader);
-
-        // Pass in the data source as a property
-        DataSource ds = mgr.getDataSourceUtil().acquireDataSource(unitInfo, properties);
-        if (ds != null) 
-            props.put(PersistenceUnitProperties.NON_JTA_DATASOURCE, ds);
-        
-        // Specify the name and location of the persistence descriptor
-        props.put(PersistenceUnitProperties.ECLIPSELINK_PERSISTENCE_XML, fullDescriptorPath(unitInfo));
-
-        // Put in a private property that we can use later on in the call stack to get the punit info
-        props.put(PUNIT_INFO_PROPERTY, unitInfo);
+        Map<String,Object> props = unitProperties(unitInfo, properties, true);
 
         // Now make the call
         EntityManagerFactory emf = nativeProvider.createEntityManagerFactory(emName, props);
@@ -135,11 +111,36 @@ public class ProviderWrapper implements PersistenceProvider {
         return nativeProvider.getProviderUtil(); 
     }
 
+    /**
+     * Generate the schema for a p-unit according to the JPA schema generation 
+     * properties passed in. The p-unit only needs to have been assigned to us,
+     * its services do not need to be registered. 
+     * 
+     * If the database is not the target of the generation, and the database product 
+     * name (or EclipseLink target database) is specified, then no data source is 
+     * acquired and the scripts are generated without connecting to the database.
+     */
     // @Override - Leave off annotation so can compile against pre-JPA 2.1
     public boolean generateSchema(String unitName, Map properties) {
         debug("ProviderWrapper generateSchema invoked for p-unit: ", unitName, " props: ", properties);
-        warning("The generateSchema() method is not currently supported by OSGi JPA");
-        return false;
+
+        PUnitInfo unitInfo = mgr.getPUnitsByName().get(unitName);
+        if (unitInfo == null)
+            unitInfo = mgr.getStateStore().assignedUnit(unitName);
+        if (unitInfo == null) 
+            fatalError("generateSchema() called on provider, but punit has not been assigned: " + unitName, null);
+
+        Map<String,Object> props = unitProperties(unitInfo, properties, requiresDataSource(properties));
+
+        // Generate using a session of our own so that we don't pick up the setup  
+        // of an EMF that has already been deployed for the p-unit
+        if (!EclipseLinkProvider.containsSessionName(props))
+            EclipseLinkProvider.setSessionName(props, unitName + SCHEMA_SESSION_SUFFIX + schemaSessions.incrementAndGet());
+        props.put(SCHEMA_GENERATION_PROPERTY, Boolean.TRUE);
+
+        boolean generated = nativeProvider.generateSchema(unitName, props);
+        debug("ProviderWrapper generateSchema completed for p-unit: ", unitName, " generated: ", generated);
+        return generated;
     }
 
     /**
@@ -161,6 +162,62 @@ public class ProviderWrapper implements PersistenceProvider {
     /* Helper methods */
     /*================*/
 
+    /**
+     * Return the properties to pass to EclipseLink for a p-unit. They are made up of
+     * the config admin properties and the properties passed in, plus the classloader, 
+     * data source and descriptor properties that EclipseLink needs to sort things out.
+     * 
+     * @param unitInfo the p-unit
+     * @param properties the properties passed in by the caller (may be null)
+     * @param acquireDataSource false if the provider should not be given a data source
+     */
+    protected Map<String,Object> unitProperties(PUnitInfo unitInfo, Map properties, boolean acquireDataSource) {
+
+        // Create a new properties map and put all of the properties in it
+        Map<String,Object> props = new HashMap<String,Object>();
+        // First the props from config admin if any are there
+        if (unitInfo.getConfigProperties() != null) {
+            props.putAll(unitInfo.getConfigProperties());
+        }
+        // Now the props passed into this createEMF call (may overwrite config admin props)
+        if (properties != null) {
+            props.putAll(properties); 
+        }
+        
+        // Use the cached composite loader that loads from the punit bundle and the provider bundle.
+        // Bug 385170 - If user supplies a classloader then tack it on the front
+        ClassLoader userLoader = (ClassLoader) props.get(PersistenceUnitProperties.CLASSLOADER);
+        CompositeClassLoader compositeLoader = mgr.getLoaderCache().getLoader(unitInfo.getBundle(), userLoader);
+        props.put(PersistenceUnitProperties.CLASSLOADER, compositeLoader);
+
+        // Pass in the data source as a property
+        if (acquireDataSource) {
+            DataSource ds = mgr.getDataSourceUtil().acquireDataSource(unitInfo, properties);
+            if (ds != null) 
+                props.put(PersistenceUnitProperties.NON_JTA_DATASOURCE, ds);
+        }
+        
+        // Specify the name and location of the persistence descriptor
+        props.put(PersistenceUnitProperties.ECLIPSELINK_PERSISTENCE_XML, fullDescriptorPath(unitInfo));
+
+        // Put in a private property that we can use later on in the call stack to get the punit info
+        props.put(PUNIT_INFO_PROPERTY, unitInfo);
+        return props;
+    }
+
+    // Schema generation needs a data source unless it only writes scripts and the database is named
+    protected boolean requiresDataSource(Map properties) {
+        if (properties == null)
+            return true;
+        Object dbAction = properties.get(PersistenceUnitProperties.SCHEMA_GENERATION_DATABASE_ACTION);
+        if ((dbAction != null) && !PersistenceUnitProperties.SCHEMA_GENERATION_NONE_ACTION.equalsIgnoreCase(dbAction.toString()))
+            return true;
+        if (properties.containsKey(PersistenceUnitProperties.SCHEMA_GENERATION_CONNECTION))
+            return false;
+        return !properties.containsKey(PersistenceUnitProperties.SCHEMA_DATABASE_PRODUCT_NAME)
+            && !properties.containsKey(PersistenceUnitProperties.TARGET_DATABASE);
+    }
+
     // Called during preResolve phase of a persistence bundle
     protected void initializeForWeaving(ClassLoader cl, Collection<PUnitInfo> pUnits) {
         nativeProvider.initializeForWeaving(cl, pUnits);
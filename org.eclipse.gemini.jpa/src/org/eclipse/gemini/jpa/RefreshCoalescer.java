@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Collects the persistence bundles that need to be refreshed over a short
+ * window and then refreshes all of them in a single FrameworkWiring call.
+ * Refreshing bundles one at a time causes a separate refresh cascade for
+ * each of them, which is expensive when many persistence bundles are
+ * found at once (e.g. when Gemini is restarted).
+ *
+ * A bundle is considered to be refreshing from the time it is queued until
+ * the framework notifies us that the refresh of its batch has completed.
+ */
+public class RefreshCoalescer {
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    // Our bundle context (used to get at the system bundle)
+    BundleContext ctx;
+
+    // Time to wait for more bundles before refreshing the batch
+    long windowMillis;
+
+    // Timer used to kick off the batch refresh
+    ScheduledExecutorService scheduler;
+
+    // The pending flush, or null if none is scheduled
+    ScheduledFuture<?> scheduledFlush;
+
+    // Bundles waiting to be refreshed, keyed by bundle id (guarded by this)
+    Map<Long,Bundle> queued = new LinkedHashMap<Long,Bundle>();
+
+    // Ids of bundles that are either queued or being refreshed (guarded by this)
+    // (Just keep the bundle ids to prevent hard references to the bundles.)
+    Set<Long> refreshing = new HashSet<Long>();
+
+    /*==============*/
+    /* Constructors */
+    /*==============*/
+
+    public RefreshCoalescer(BundleContext ctx, long windowMillis) {
+        this.ctx = ctx;
+        this.windowMillis = windowMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Refresh"));
+    }
+
+    /*=========*/
+    /* Methods */
+    /*=========*/
+
+    /**
+     * Queue a bundle to be refreshed in the next batch.
+     *
+     * @param b the bundle to refresh
+     */
+    public synchronized void refresh(Bundle b) {
+        debug("RefreshCoalescer queueing bundle ", b);
+        refreshing.add(b.getBundleId());
+        queued.put(b.getBundleId(), b);
+        if (scheduledFlush == null && !scheduler.isShutdown()) {
+            scheduledFlush = scheduler.schedule(new Runnable() {
+                public void run() { flush(); }
+            }, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Refresh all of the queued bundles now in a single batch.
+     */
+    public void flush() {
+        Map<Long,Bundle> batch;
+        synchronized (this) {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            if (queued.isEmpty())
+                return;
+            batch = new LinkedHashMap<Long,Bundle>(queued);
+            queued.clear();
+        }
+        debug("RefreshCoalescer refreshing batch of ", batch.size(), " bundles: ", batch.values());
+        try {
+            FrameworkWiring fw = ctx.getBundle(0).adapt(FrameworkWiring.class);
+            fw.refreshBundles(batch.values(), new BatchListener(batch.keySet()));
+        } catch (Exception ex) {
+            warning("RefreshCoalescer failed to refresh bundles ", ex);
+            refreshCompleted(batch.keySet());
+        }
+    }
+
+    /**
+     * Return whether the bundle is queued or in the process of being refreshed
+     */
+    public synchronized boolean isRefreshing(Bundle b) {
+        return refreshing.contains(b.getBundleId());
+    }
+
+    /**
+     * Stop refreshing. Any bundles still queued are dropped.
+     */
+    public void shutdown() {
+        debug("RefreshCoalescer shutting down");
+        synchronized (this) {
+            queued.clear();
+            refreshing.clear();
+            scheduledFlush = null;
+        }
+        scheduler.shutdownNow();
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    protected synchronized void refreshCompleted(Collection<Long> bundleIds) {
+        debug("RefreshCoalescer finished refreshing bundles ", bundleIds);
+        refreshing.removeAll(bundleIds);
+    }
+
+    /*===============*/
+    /* Inner classes */
+    /*===============*/
+
+    // Notified by the framework when the refresh of a batch has completed
+    class BatchListener implements FrameworkListener {
+        Set<Long> bundleIds;
+        BatchListener(Set<Long> bundleIds) { this.bundleIds = new HashSet<Long>(bundleIds); }
+        public void frameworkEvent(FrameworkEvent event) {
+            if (event.getType() == FrameworkEvent.PACKAGES_REFRESHED) {
+                refreshCompleted(bundleIds);
+            } else if (event.getType() == FrameworkEvent.ERROR) {
+                warning("RefreshCoalescer error during refresh: ", event.getThrowable());
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+
+import org.eclipse.gemini.jpa.service.SchemaGenerator;
+
+/**
+ * Implementation of the SchemaGenerator service. Generation is done by the
+ * provider wrapper, this just fills in the schema generation properties for
+ * writing scripts.
+ */
+public class SchemaGeneratorService implements SchemaGenerator {
+
+    /** The provider that does the generating */
+    ProviderWrapper provider;
+
+    public SchemaGeneratorService(ProviderWrapper provider) {
+        this.provider = provider;
+    }
+
+    public boolean generateSchema(String unitName, Map<String,?> properties) {
+        return provider.generateSchema(unitName, properties);
+    }
+
+    public boolean writeScripts(String unitName, File createScript, File dropScript, Map<String,?> properties) {
+        if ((createScript == null) && (dropScript == null))
+            throw new IllegalArgumentException("No script file was specified for p-unit " + unitName);
+        debug("SchemaGenerator writing scripts for p-unit: ", unitName, 
+              " create: ", createScript, " drop: ", dropScript);
+
+        Map<String,Object> props = new HashMap<String,Object>();
+        if (properties != null)
+            props.putAll(properties);
+        String action = (createScript == null) 
+                ? PersistenceUnitProperties.SCHEMA_GENERATION_DROP_ACTION
+                : (dropScript == null) 
+                    ? PersistenceUnitProperties.SCHEMA_GENERATION_CREATE_ACTION
+                    : PersistenceUnitProperties.SCHEMA_GENERATION_DROP_AND_CREATE_ACTION;
+        props.put(PersistenceUnitProperties.SCHEMA_GENERATION_SCRIPTS_ACTION, action);
+        props.put(PersistenceUnitProperties.SCHEMA_GENERATION_DATABASE_ACTION, 
+                  PersistenceUnitProperties.SCHEMA_GENERATION_NONE_ACTION);
+        if (createScript != null)
+            props.put(PersistenceUnitProperties.SCHEMA_GENERATION_SCRIPTS_CREATE_TARGET, createScript.getAbsolutePath());
+        if (dropScript != null)
+            props.put(PersistenceUnitProperties.SCHEMA_GENERATION_SCRIPTS_DROP_TARGET, dropScript.getAbsolutePath());
+        return provider.generateSchema(unitName, props);
+    }
+}
@@ -27,14 +27,32 @@ import java.util.Collection;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 
+import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.sql.DataSource;
 
 import org.eclipse.gemini.jpa.classloader.BundleProxyClassLoader;
 import org.eclipse.gemini.jpa.classloader.CompositeClassLoader;
+import org.eclipse.gemini.jpa.proxy.AsyncEMFBuilderService;
+import org.eclipse.gemini.jpa.proxy.DelegateClassGenerator;
+import org.eclipse.gemini.jpa.proxy.EMFBuilderServiceDelegate;
 import org.eclipse.gemini.jpa.proxy.EMFBuilderServiceProxyHandler;
+import org.eclipse.gemini.jpa.proxy.EMFServiceDelegate;
 import org.eclipse.gemini.jpa.proxy.EMFServiceProxyHandler;
+import org.eclipse.gemini.jpa.proxy.EMFStatistics;
+import org.eclipse.gemini.jpa.proxy.EMFUsageTracker;
+import org.eclipse.gemini.jpa.proxy.PooledEntityManagerService;
+import org.eclipse.gemini.jpa.proxy.SharedEntityManagerHandler;
+import org.eclipse.gemini.jpa.service.AsyncEntityManagerFactoryBuilder;
+import org.eclipse.gemini.jpa.service.EMFServiceStatistics;
+import org.eclipse.gemini.jpa.service.EntityManagerPool;
+import org.eclipse.gemini.jpa.service.EntityManagerScope;
+import org.eclipse.gemini.jpa.service.SchemaGenerator;
 import org.eclipse.gemini.jpa.weaving.WeavingHookTransformer;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.ServiceRegistration;
@@ -58,9 +76,63 @@ public class ServicesUtil {
     // PersistenceProvider service
     ServiceRegistration providerService;
     
+    // Statistics on the calls to the EMF services, and the service that reports them
+    EMFStatistics statistics = new EMFStatistics(GeminiSystemProperties.statistics());
+    ServiceRegistration statisticsService;
+
+    // Registration of the schema generator service
+    ServiceRegistration schemaGeneratorService;
+    
+    // Executor used to warm up p-units that have asked for it
+    ExecutorService warmUpExecutor;
+    
+    // Executor that the AsyncEntityManagerFactoryBuilder services create EMFs on
+    ExecutorService asyncEmfExecutor;
+    
+    // Executor that registered p-units are deployed on, shared by all bundles
+    ExecutorService deployExecutor;
+    
+    // Generates (and caches) the classes that implement the EMF and EMFBuilder services
+    DelegateClassGenerator delegateGenerator = new DelegateClassGenerator();
+    
+    // Closes the EMFs that no bundles are using any more (after the release delay)
+    // or that have been idle for longer than the idle timeout of their p-unit
+    ScheduledExecutorService releaseScheduler;
+    
     public ServicesUtil(GeminiManager mgr) {
         this.mgr = mgr;
         this.providerClassName = ECLIPSELINK_PROVIDER_CLASS_NAME;
+        this.warmUpExecutor = Executors.newFixedThreadPool(
+                Math.max(1, GeminiSystemProperties.warmUpThreads()), 
+                new NamedThreadFactory("WarmUp"));
+        this.asyncEmfExecutor = Executors.newFixedThreadPool(
+                Math.max(1, GeminiSystemProperties.asyncEmfThreads()), 
+                new NamedThreadFactory("AsyncEMF"));
+        this.deployExecutor = Executors.newFixedThreadPool(
+                Math.max(1, GeminiSystemProperties.deployThreads()), 
+                new NamedThreadFactory("Deploy"));
+        // The thread is only started once something is scheduled
+        this.releaseScheduler = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("EMFRelease"));
+    }
+
+    /**
+     * Stop any p-unit warm-ups that have not yet started.
+     */
+    public void shutdown() {
+        warmUpExecutor.shutdownNow();
+        asyncEmfExecutor.shutdownNow();
+        deployExecutor.shutdownNow();
+        releaseScheduler.shutdownNow();
+        delegateGenerator.clear();
+    }
+
+    /**
+     * Discard any generated service classes that refer to classes in a bundle
+     * (called when the p-units in the bundle are unassigned).
+     */
+    public void discardDelegateClasses(Bundle b) {
+        delegateGenerator.discardDelegateClasses(b);
     }
     
     /*==================*/
@@ -91,6 +163,14 @@ public class ServicesUtil {
         providerService = mgr.getBundleContext().registerService(
                 serviceNames, persistenceProvider, props);
         debug("ServicesUtil successfully registered provider service for ", providerClassName);
+
+        // Register the statistics service with the same properties
+        statisticsService = mgr.getBundleContext().registerService(
+                EMFServiceStatistics.class.getName(), statistics, props);
+
+        // And the schema generator service
+        schemaGeneratorService = mgr.getBundleContext().registerService(
+                SchemaGenerator.class.getName(), new SchemaGeneratorService(mgr.getProvider()), props);
     }    
 
     /**
@@ -101,6 +181,14 @@ public class ServicesUtil {
         debug("ServicesUtil.unregisterProviderService for ", providerClassName);
         providerService.unregister();
         providerService = null;
+        if (statisticsService != null) {
+            statisticsService.unregister();
+            statisticsService = null;
+        }
+        if (schemaGeneratorService != null) {
+            schemaGeneratorService.unregister();
+            schemaGeneratorService = null;
+        }
         debug("ServicesUtil successfully un-registered provider service for ", providerClassName);
     }
 
@@ -164,6 +252,16 @@ public class ServicesUtil {
 
         unregisterEMFService(pUnitInfo);
         unregisterEMFBuilderService(pUnitInfo);
+
+        // Neither service is registered now so stop tracking their clients
+        EMFUsageTracker tracker;
+        synchronized (pUnitInfo) {
+            tracker = pUnitInfo.getEmfUsage();
+            pUnitInfo.setEmfUsage(null);
+        }
+        if (tracker != null)
+            tracker.cancel();
+        statistics.removeUnit(pUnitInfo);
     }
 
     /** 
@@ -194,8 +292,8 @@ public class ServicesUtil {
         // Get a loader to load the proxy classes
         ClassLoader loader = proxyLoader(pUnitInfo, anchorClasses, emfClass);
 
-        // Create proxy impl object for EMF service
-        Object emfServiceProxy = createEMFProxy(pUnitInfo, loader, classArray);
+        // Create proxy impl object for EMF service (handed out by the handler)
+        createEMFProxy(pUnitInfo, loader, classArray);
 
         // Do we create an EMF service?
         String driverClassName = pUnitInfo.getDriverClassName();
@@ -246,18 +344,274 @@ public class ServicesUtil {
         for (int i=0; i<classArray.length; i++)
             classNameArray[i] = classArray[i].getName();
 
-        // Register the EMF service (using p-unit context) and set registration in PUnitInfo
+        if (pUnitInfo.isWarmUp()) {
+            // Create the EMF in the background and register the service once it is ready
+            warmUpAndRegisterEMFService(pUnitInfo, classNameArray, serviceProps);
+        } else {
+            registerEMFService(pUnitInfo, classNameArray, serviceProps);
+        }
+    }
+
+    /** 
+     * Register the EMF service (using p-unit context) and set registration in PUnitInfo.
+     * The handler is registered as a ServiceFactory that hands out the proxy, so 
+     * that we know which bundles are using the service.
+     * 
+     * @return the EMF service registration
+     */
+    protected ServiceRegistration registerEMFService(PUnitInfo pUnitInfo,
+                                      String[] classNameArray,
+                                      Dictionary<String,String> serviceProps) {
         ServiceRegistration emfService = null;
         try {
             emfService = pUnitInfo.getBundle().getBundleContext()
-                           .registerService(classNameArray, emfServiceProxy, serviceProps);
+                           .registerService(classNameArray, pUnitInfo.getEmfHandler(), serviceProps);
             debug("ServicesUtil EMF service: ", emfService);
         } catch (Exception e) {
             fatalError("ServicesUtil could not register EMF service for " + pUnitInfo.getUnitName(), e);
         }
         pUnitInfo.setEmfService(emfService);
+        
+        // Register the EM pool service next to it if the p-unit asked for one
+        if (pUnitInfo.isEmPool()) {
+            registerEMPoolService(pUnitInfo, serviceProps);
+        }
+
+        // Likewise for the shared EntityManager service
+        if (pUnitInfo.isSharedEm()) {
+            registerSharedEMService(pUnitInfo, serviceProps);
+        }
+        return emfService;
+    }
+
+    /** 
+     * Register the EntityManagerPool service (using p-unit context) and set it in PUnitInfo
+     */
+    protected void registerEMPoolService(PUnitInfo pUnitInfo, Dictionary<String,String> serviceProps) {
+        
+        debug("ServicesUtil.registerEMPoolService for ", pUnitInfo.getUnitName());
+        PooledEntityManagerService pool = 
+            new PooledEntityManagerService(pUnitInfo, pUnitInfo.getEmfHandler());
+        ServiceRegistration emPoolService = null;
+        try {
+            emPoolService = pUnitInfo.getBundle().getBundleContext()
+                    .registerService(EntityManagerPool.class.getName(), pool, serviceProps);
+            debug("ServicesUtil EntityManagerPool service: ", emPoolService);
+        } catch (Exception e) {
+            fatalError("ServicesUtil could not register EntityManagerPool service for " + pUnitInfo.getUnitName(), e);
+        }
+        pUnitInfo.setEmPoolImpl(pool);
+        pUnitInfo.setEmPoolService(emPoolService);
+    }
+
+    /**
+     * Unregister the EntityManagerPool service, if there is one, and close 
+     * the EntityManagers in the pool.
+     */
+    public void unregisterEMPoolService(PUnitInfo pUnitInfo) {
+
+        ServiceRegistration emPoolService;
+        PooledEntityManagerService pool;
+        synchronized (pUnitInfo) {
+            emPoolService = pUnitInfo.getEmPoolService();
+            pool = pUnitInfo.getEmPoolImpl();
+            pUnitInfo.setEmPoolService(null);
+            pUnitInfo.setEmPoolImpl(null);
+        }
+        if (emPoolService != null) {
+            debug("ServicesUtil un-registering EntityManagerPool service for ", pUnitInfo.getUnitName());
+            try { 
+                emPoolService.unregister(); 
+            } catch (IllegalStateException isEx) {
+                // The framework already unregistered it when the p-unit bundle stopped
+                debug("ServicesUtil EntityManagerPool service was already unregistered for ", pUnitInfo.getUnitName());
+            } catch (Exception e) {
+                warning("Error unregistering EntityManagerPool service: ", e);
+            }
+        }
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    /** 
+     * Register the shared EntityManager and EntityManagerScope services 
+     * (using p-unit context) and set them in PUnitInfo
+     */
+    protected void registerSharedEMService(PUnitInfo pUnitInfo, Dictionary<String,String> serviceProps) {
+        
+        debug("ServicesUtil.registerSharedEMService for ", pUnitInfo.getUnitName());
+        SharedEntityManagerHandler handler = 
+            new SharedEntityManagerHandler(pUnitInfo, pUnitInfo.getEmfHandler());
+        String[] classNameArray = { EntityManager.class.getName(), EntityManagerScope.class.getName() };
+        ServiceRegistration sharedEmService = null;
+        try {
+            sharedEmService = pUnitInfo.getBundle().getBundleContext()
+                    .registerService(classNameArray, handler.createProxy(), serviceProps);
+            debug("ServicesUtil shared EntityManager service: ", sharedEmService);
+        } catch (Exception e) {
+            fatalError("ServicesUtil could not register shared EntityManager service for " + pUnitInfo.getUnitName(), e);
+        }
+        pUnitInfo.setSharedEmHandler(handler);
+        pUnitInfo.setSharedEmService(sharedEmService);
+    }
+
+    /**
+     * Unregister the shared EntityManager service, if there is one, and close 
+     * the EntityManagers that are bound to threads.
+     */
+    public void unregisterSharedEMService(PUnitInfo pUnitInfo) {
+
+        ServiceRegistration sharedEmService;
+        SharedEntityManagerHandler handler;
+        synchronized (pUnitInfo) {
+            sharedEmService = pUnitInfo.getSharedEmService();
+            handler = pUnitInfo.getSharedEmHandler();
+            pUnitInfo.setSharedEmService(null);
+            pUnitInfo.setSharedEmHandler(null);
+        }
+        if (sharedEmService != null) {
+            debug("ServicesUtil un-registering shared EntityManager service for ", pUnitInfo.getUnitName());
+            try { 
+                sharedEmService.unregister(); 
+            } catch (IllegalStateException isEx) {
+                // The framework already unregistered it when the p-unit bundle stopped
+                debug("ServicesUtil shared EntityManager service was already unregistered for ", pUnitInfo.getUnitName());
+            } catch (Exception e) {
+                warning("Error unregistering shared EntityManager service: ", e);
+            }
+        }
+        if (handler != null) {
+            handler.close();
+        }
+    }
+
+    /** 
+     * Queue the p-unit to be warmed up on a background thread, i.e. create the EMF, 
+     * log in to the database and run any warm-up queries. The EMF service is 
+     * registered when the warm-up completes (even if it failed, in which case the
+     * EMF will just be created lazily the way it normally is).
+     */
+    protected void warmUpAndRegisterEMFService(final PUnitInfo pUnitInfo,
+                                               final String[] classNameArray,
+                                               final Dictionary<String,String> serviceProps) {
+
+        debug("ServicesUtil queueing warm-up for ", pUnitInfo.getUnitName());
+        final EMFServiceProxyHandler emfHandler = pUnitInfo.getEmfHandler();
+        warmUpExecutor.execute(new Runnable() {
+            public void run() {
+                warmUp(pUnitInfo, emfHandler);
+                // If the p-unit was unregistered while we were warming up then don't register
+                if (pUnitInfo.getEmfHandler() != emfHandler) {
+                    debug("ServicesUtil p-unit unregistered during warm-up: ", pUnitInfo.getUnitName());
+                    discardEMF(emfHandler);
+                    return;
+                }
+                // The p-unit lock is not held while registering, since the service events 
+                // are delivered synchronously and a listener may call back into the p-unit
+                ServiceRegistration emfService = registerEMFService(pUnitInfo, classNameArray, serviceProps);
+
+                // If the p-unit was unregistered in the meantime then the services may 
+                // have been registered after they were unregistered, so take them out again
+                boolean unregistered;
+                synchronized (pUnitInfo) {
+                    unregistered = (pUnitInfo.getEmfHandler() != emfHandler) 
+                                   && (pUnitInfo.getEmfService() == emfService);
+                    if (unregistered) 
+                        pUnitInfo.setEmfService(null);
+                }
+                if (unregistered) {
+                    debug("ServicesUtil p-unit unregistered while registering warmed up EMF service: ", 
+                          pUnitInfo.getUnitName());
+                    unregisterService(emfService);
+                    unregisterEMPoolService(pUnitInfo);
+                    unregisterSharedEMService(pUnitInfo);
+                    discardEMF(emfHandler);
+                }
+            }
+        });
+    }
+
+    // Close the EMF that a handler created, if it is still there
+    void discardEMF(EMFServiceProxyHandler emfHandler) {
+        EntityManagerFactory emf = emfHandler.syncUnsetEMF();
+        if ((emf != null) && emf.isOpen()) emf.close();
+    }
+
+    // Unregister a service that may already have been unregistered by the framework
+    void unregisterService(ServiceRegistration reg) {
+        try { 
+            reg.unregister(); 
+        } catch (IllegalStateException isEx) {
+            // Already unregistered when the p-unit bundle stopped
+        }
+    }
+
+    /** 
+     * Create the EMF and an EntityManager (causing the provider to deploy and log in)
+     * and run the warm-up queries. Failures are logged but not thrown.
+     */
+    protected void warmUp(PUnitInfo pUnitInfo, EMFServiceProxyHandler emfHandler) {
+
+        String unitName = pUnitInfo.getUnitName();
+        debug("ServicesUtil warming up ", unitName);
+        long start = System.currentTimeMillis();
+        EntityManager em = null;
+        try {
+            EntityManagerFactory emf = emfHandler.getEMF();
+            em = emf.createEntityManager();
+            for (String query : pUnitInfo.getWarmUpQueries()) {
+                debug("ServicesUtil running warm-up query ", query);
+                try {
+                    em.createQuery(query).setMaxResults(1).getResultList();
+                } catch (Exception ex) {
+                    warning("Warm-up query failed for p-unit " + unitName + ": " + query, ex);
+                }
+            }
+            debug("ServicesUtil warmed up ", unitName, " in ", (System.currentTimeMillis() - start), "ms");
+        } catch (Exception ex) {
+            warning("Warm-up failed for p-unit " + unitName + " - EMF will be created on first use: ", ex);
+        } finally {
+            if (em != null) em.close();
+        }
     }
     
+    /** 
+     * Create the EMF of a registered p-unit and an EntityManager from it, causing 
+     * the provider to deploy the unit and log in to the database. Unlike a warm-up, 
+     * a failure is thrown to the caller.
+     */
+    public void deployEMF(PUnitInfo pUnitInfo) {
+
+        EMFServiceProxyHandler emfHandler = pUnitInfo.getEmfHandler();
+        if (emfHandler == null)
+            throw new IllegalStateException("Persistence unit " + pUnitInfo.getUnitName() + " is not registered");
+        EntityManager em = emfHandler.getEMF().createEntityManager();
+        em.close();
+        synchronized (pUnitInfo) {
+            // If the p-unit was unregistered while we were deploying then don't leave the EMF behind
+            if (pUnitInfo.getEmfHandler() != emfHandler) {
+                debug("ServicesUtil p-unit unregistered during deploy: ", pUnitInfo.getUnitName());
+                discardEMF(emfHandler);
+            }
+        }
+    }
+
+    /**
+     * Queue a deploy of a p-unit on the deploy executor, which is shared by all 
+     * bundles so the number of units deploying at once is bounded.
+     * 
+     * @return false if the task could not be queued because Gemini is stopping
+     */
+    public boolean queueDeploy(Runnable task) {
+        try {
+            deployExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException reEx) {
+            return false;
+        }
+    }
+
     /** 
      * Register the EMFBuilder service.
      */
@@ -282,8 +636,8 @@ public class ServicesUtil {
         // Get a loader to load the proxy classes
         ClassLoader loader = proxyLoader(pUnitInfo, anchorClasses, emfBuilderClass);
 
-        // Create proxy impl object for EMF service
-        Object emfBuilderServiceProxy = createEMFBuilderProxy(pUnitInfo, loader, classArray);
+        // Create proxy impl object for EMFBuilder service (handed out by the handler)
+        createEMFBuilderProxy(pUnitInfo, loader, classArray);
 
         // Convert array of classes to class name strings
         String[] classNameArray = new String[classArray.length];
@@ -296,14 +650,66 @@ public class ServicesUtil {
             // TODO Should be registered by p-unit context, not provider context
             // emfBuilderService = pUnitInfo.getBundle().getBundleContext()
             emfBuilderService = mgr.getBundleContext()
-                    .registerService(classNameArray, emfBuilderServiceProxy, props);
+                    .registerService(classNameArray, pUnitInfo.getEmfBuilderHandler(), props);
             debug("ServicesUtil EMFBuilder service: ", emfBuilderService);
         } catch (Exception e) {
             fatalError("ServicesUtil could not register EMFBuilder service for " + pUnitInfo.getUnitName(), e);
         }
         pUnitInfo.setEmfBuilderService(emfBuilderService);
+
+        // Register the async builder service along with it
+        registerAsyncEMFBuilderService(pUnitInfo, props);
     }    
 
+    /** 
+     * Register the AsyncEntityManagerFactoryBuilder service and set it in the PUnitInfo. 
+     * It uses the handler of the EMFBuilder service, so must be registered after it.
+     */
+    protected void registerAsyncEMFBuilderService(PUnitInfo pUnitInfo, Dictionary<String,String> props) {
+
+        debug("ServicesUtil.registerAsyncEMFBuilderService for ", pUnitInfo.getUnitName());
+        AsyncEMFBuilderService asyncBuilder = 
+            new AsyncEMFBuilderService(pUnitInfo, pUnitInfo.getEmfBuilderHandler(), asyncEmfExecutor);
+        ServiceRegistration asyncBuilderService = null;
+        try {
+            // Registered by the same context as the EMFBuilder service
+            asyncBuilderService = mgr.getBundleContext()
+                    .registerService(AsyncEntityManagerFactoryBuilder.class.getName(), asyncBuilder, props);
+            debug("ServicesUtil AsyncEMFBuilder service: ", asyncBuilderService);
+        } catch (Exception e) {
+            fatalError("ServicesUtil could not register AsyncEMFBuilder service for " + pUnitInfo.getUnitName(), e);
+        }
+        pUnitInfo.setAsyncEmfBuilderImpl(asyncBuilder);
+        pUnitInfo.setAsyncEmfBuilderService(asyncBuilderService);
+    }
+
+    /**
+     * Unregister the AsyncEntityManagerFactoryBuilder service and cancel 
+     * any EMF creations that it has in progress.
+     */
+    public void unregisterAsyncEMFBuilderService(PUnitInfo pUnitInfo) {
+
+        ServiceRegistration asyncBuilderService;
+        AsyncEMFBuilderService asyncBuilder;
+        synchronized (pUnitInfo) {
+            asyncBuilderService = pUnitInfo.getAsyncEmfBuilderService();
+            asyncBuilder = pUnitInfo.getAsyncEmfBuilderImpl();
+            pUnitInfo.setAsyncEmfBuilderService(null);
+            pUnitInfo.setAsyncEmfBuilderImpl(null);
+        }
+        if (asyncBuilderService != null) {
+            debug("ServicesUtil un-registering AsyncEMFBuilder service for ", pUnitInfo.getUnitName());
+            try {
+                asyncBuilderService.unregister();
+            } catch (Exception e) {
+                warning("Error un-registering AsyncEMFBuilder service: ", e);
+            }
+        }
+        if (asyncBuilder != null) {
+            asyncBuilder.close();
+        }
+    }
+
     /**
      * Unregister the EMF service if there was an EMF service registered.
      * Clean up any resources the service may have allocated.
@@ -319,27 +725,42 @@ public class ServicesUtil {
         //       DSF that comes and goes; only one that comes for the first time
         mgr.getDataSourceUtil().stopTrackingDataSourceFactory(pUnitInfo);
 
+        // Take the service and handler out of the p-unit (a warm-up in 
+        // progress will see the handler is gone and not register the service)
+        ServiceRegistration emfService;
+        EMFServiceProxyHandler emfHandler;
+        synchronized (pUnitInfo) {
+            emfService = pUnitInfo.getEmfService();
+            emfHandler = pUnitInfo.getEmfHandler();
+            pUnitInfo.setEmfService(null);
+            pUnitInfo.setEmfHandler(null);
+        }
+
         // If an EMF service is registered then unregister it
-        ServiceRegistration emfService = pUnitInfo.getEmfService();
         if (emfService != null) {
             debug("ServicesUtil un-registering EMF service for ", pUnitInfo.getUnitName());
             try { 
                 emfService.unregister(); 
+            } catch (IllegalStateException isEx) {
+                // The framework already unregistered it when the p-unit bundle stopped
+                debug("ServicesUtil EMF service was already unregistered for ", pUnitInfo.getUnitName());
             } catch (Exception e) {
                 warning("Error unregistering EMF service: ", e);
             }
             debug("ServicesUtil un-registered EMF service for ", pUnitInfo.getUnitName());
-            pUnitInfo.setEmfService(null);
         }
 
+        // The pooled and thread-bound EntityManagers must be closed before the EMF is
+        unregisterEMPoolService(pUnitInfo);
+        unregisterSharedEMService(pUnitInfo);
+
         // If an EMF exists because we created one then we close and remove it
         EntityManagerFactory emf = pUnitInfo.getEmf();
         if ((emf != null) && (!pUnitInfo.isEmfSetByBuilderService())) {
             if (emf.isOpen()) emf.close();
-            pUnitInfo.getEmfHandler().syncUnsetEMF();
+            if (emfHandler != null) emfHandler.syncUnsetEMF();
             debug("ServicesUtil EMF service removed EMF: ", emf);
         }
-        pUnitInfo.setEmfHandler(null);
         pUnitInfo.setJndiDataSource(null);
     }
 
@@ -353,6 +774,9 @@ public class ServicesUtil {
 
         debug("ServicesUtil.unregisterEMFBuilderService for ", pUnitInfo.getUnitName());
 
+        // Stop any async creations first so they don't leave an EMF behind
+        unregisterAsyncEMFBuilderService(pUnitInfo);
+
         // Unregister the service
         ServiceRegistration emfBuilderService = pUnitInfo.getEmfBuilderService();
         if (emfBuilderService != null) {
@@ -366,6 +790,12 @@ public class ServicesUtil {
             pUnitInfo.setEmfBuilderService(null);
         }
 
+        // Close any EMFs cached by the builder service
+        EMFBuilderServiceProxyHandler builderHandler = pUnitInfo.getEmfBuilderHandler();
+        if ((builderHandler != null) && (builderHandler.getEMFCache() != null)) {
+            builderHandler.getEMFCache().close();
+        }
+
         // Close the EMF if one still exists and clear out the handler
         EntityManagerFactory emf = pUnitInfo.getEmf();
         if (emf != null) {
@@ -448,18 +878,32 @@ public class ServicesUtil {
 
     /** 
      * Create and return a proxy for the EMF (and specified list of classes
-     * which must include the EMF class).
+     * which must include the EMF class). The proxy is an instance of a generated 
+     * delegate class unless generated delegates are disabled or the class could 
+     * not be generated, in which case a reflective proxy is used.
      */
     Object createEMFProxy(PUnitInfo pUnitInfo, ClassLoader loader, Class<?>[] clsArray) {
 
         EMFServiceProxyHandler emfProxyHandler = new EMFServiceProxyHandler(pUnitInfo);
         Object result = null;
-        try {
-            result = Proxy.newProxyInstance(loader, clsArray, emfProxyHandler);
-            debug("ServicesUtil created EMF proxy ");
-        } catch (Exception e) { 
-            fatalError("ServicesUtil - Failed to create proxy for EMF service: ", e); 
+        if (GeminiSystemProperties.generatedDelegates()) {
+            result = delegateGenerator.newDelegate(EMFServiceDelegate.class, clsArray, emfProxyHandler);
+            debug("ServicesUtil created EMF delegate ", result);
         }
+        // Fall back to a reflective proxy if the delegate could not be generated
+        if (result == null) {
+            try {
+                result = Proxy.newProxyInstance(loader, clsArray, emfProxyHandler);
+                debug("ServicesUtil created EMF proxy ");
+            } catch (Exception e) { 
+                fatalError("ServicesUtil - Failed to create proxy for EMF service: ", e); 
+            }
+        }
+        EMFUsageTracker tracker = usageTracker(pUnitInfo);
+        emfProxyHandler.setServiceObject(result);
+        emfProxyHandler.setUsageTracker(tracker);
+        emfProxyHandler.setStatistics(statistics.forUnit(pUnitInfo));
+        tracker.startIdleChecks(pUnitInfo.getEmfIdleTimeout());
         pUnitInfo.setEmfHandler(emfProxyHandler);
         return result;
     }
@@ -476,15 +920,41 @@ public class ServicesUtil {
         EMFBuilderServiceProxyHandler emfBuilderProxyHandler = 
             new EMFBuilderServiceProxyHandler(pUnitInfo, pUnitInfo.getEmfHandler());
         Object result = null;
-        try {
-            result = Proxy.newProxyInstance(loader, clsArray, emfBuilderProxyHandler);
-            debug("ServicesUtil created EMFBuilder proxy ");
-        } catch (Exception e) { 
-            fatalError("ServicesUtil - Failed to create proxy for EMFBuilder service: ", e); 
+        if (GeminiSystemProperties.generatedDelegates()) {
+            result = delegateGenerator.newDelegate(EMFBuilderServiceDelegate.class, clsArray, emfBuilderProxyHandler);
+            debug("ServicesUtil created EMFBuilder delegate ", result);
         }
+        // Fall back to a reflective proxy if the delegate could not be generated
+        if (result == null) {
+            try {
+                result = Proxy.newProxyInstance(loader, clsArray, emfBuilderProxyHandler);
+                debug("ServicesUtil created EMFBuilder proxy ");
+            } catch (Exception e) { 
+                fatalError("ServicesUtil - Failed to create proxy for EMFBuilder service: ", e); 
+            }
+        }
+        emfBuilderProxyHandler.setServiceObject(result);
+        emfBuilderProxyHandler.setUsageTracker(usageTracker(pUnitInfo));
+        emfBuilderProxyHandler.setStatistics(statistics.forUnit(pUnitInfo));
         pUnitInfo.setEmfBuilderHandler(emfBuilderProxyHandler);
         return result;
     }
+
+    /** 
+     * Return the tracker shared by the EMF and EMFBuilder services of the p-unit, 
+     * creating it if it does not exist yet.
+     */
+    EMFUsageTracker usageTracker(PUnitInfo pUnitInfo) {
+        synchronized (pUnitInfo) {
+            EMFUsageTracker tracker = pUnitInfo.getEmfUsage();
+            if (tracker == null) {
+                tracker = new EMFUsageTracker(pUnitInfo, releaseScheduler, 
+                                              GeminiSystemProperties.emfReleaseDelay());
+                pUnitInfo.setEmfUsage(tracker);
+            }
+            return tracker;
+        }
+    }
     
     /** 
      * Build the list of service properties for the service.
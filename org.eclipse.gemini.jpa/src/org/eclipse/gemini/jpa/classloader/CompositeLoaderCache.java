@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.classloader;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debugClassLoader;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Cache of the composite loaders used to load from a persistence bundle and the
+ * provider bundle. EclipseLink keys a number of its internal caches on the loader
+ * it is given, so handing it the same loader for as long as the bundle wiring stays
+ * the same lets those caches be reused across EMF creations.
+ * 
+ * A cached loader is discarded when the bundle is updated or refreshed (i.e. the
+ * revision or wiring it was created for is no longer current), or when the bundle
+ * is invalidated explicitly because its p-units have been unassigned.
+ */
+public class CompositeLoaderCache {
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    // Context of the provider bundle
+    BundleContext providerCtx;
+
+    // Loader for the provider bundle, shared by all of the composite loaders
+    ClassLoader providerLoader;
+
+    // Cached loaders keyed by the id of the persistence bundle
+    ConcurrentMap<Long, Entry> loaders = new ConcurrentHashMap<Long, Entry>();
+
+    /*==============*/
+    /* Constructors */
+    /*==============*/
+
+    public CompositeLoaderCache(BundleContext providerCtx) {
+        this.providerCtx = providerCtx;
+        this.providerLoader = new BundleProxyClassLoader(providerCtx.getBundle());
+        debugClassLoader("Provider bundle proxy loader created: ", providerLoader);
+    }
+
+    /*=========*/
+    /* Methods */
+    /*=========*/
+
+    /**
+     * Return a loader that delegates to the punit bundle and the provider bundle.
+     * The returned loader is shared and must not be modified.
+     */
+    public CompositeClassLoader getLoader(Bundle pUnitBundle) {
+        Long id = pUnitBundle.getBundleId();
+        BundleRevision revision = pUnitBundle.adapt(BundleRevision.class);
+        BundleWiring wiring = pUnitBundle.adapt(BundleWiring.class);
+        while (true) {
+            Entry entry = loaders.get(id);
+            if (entry != null) {
+                if (entry.isCurrent(revision, wiring))
+                    return entry.loader;
+                // Stale - bundle was updated or refreshed since the loader was created
+                debugClassLoader("Discarding stale composite loader for bundle ", pUnitBundle);
+                loaders.remove(id, entry);
+                continue;
+            }
+            Entry newEntry = new Entry(revision, wiring, createLoader(pUnitBundle));
+            if (loaders.putIfAbsent(id, newEntry) == null)
+                return newEntry.loader;
+        }
+    }
+
+    /**
+     * Return a loader that tries the user-supplied loader first and then the cached
+     * loader for the punit bundle. Only the user loader is layered on, the cached
+     * chain underneath it is reused.
+     */
+    public CompositeClassLoader getLoader(Bundle pUnitBundle, ClassLoader userLoader) {
+        CompositeClassLoader loader = getLoader(pUnitBundle);
+        if (userLoader == null || userLoader == loader)
+            return loader;
+        return new CompositeClassLoader(userLoader, loader);
+    }
+
+    /**
+     * Discard the cached loader for a bundle
+     */
+    public void invalidate(Bundle b) {
+        if (loaders.remove(b.getBundleId()) != null)
+            debugClassLoader("Discarded composite loader for bundle ", b);
+    }
+
+    /**
+     * Discard all of the cached loaders
+     */
+    public void clear() {
+        loaders.clear();
+    }
+
+    public int size() { return loaders.size(); }
+
+    protected CompositeClassLoader createLoader(Bundle pUnitBundle) {
+        ClassLoader pUnitLoader = new BundleProxyClassLoader(pUnitBundle);
+        debugClassLoader("PUnit bundle proxy loader created: ", pUnitLoader);
+        CompositeClassLoader compositeLoader = new CompositeClassLoader(pUnitLoader, providerLoader);
+        debugClassLoader("Composite loader created: ", compositeLoader);
+        return compositeLoader;
+    }
+
+    /*===============*/
+    /* Inner classes */
+    /*===============*/
+
+    // A cached loader and the bundle revision/wiring it was created for
+    static class Entry {
+        final BundleRevision revision;
+        final BundleWiring wiring;
+        final CompositeClassLoader loader;
+
+        Entry(BundleRevision revision, BundleWiring wiring, CompositeClassLoader loader) {
+            this.revision = revision;
+            this.wiring = wiring;
+            this.loader = loader;
+        }
+
+        // A loader created before the bundle was resolved (during preResolve) is 
+        // still good once the bundle is resolved, but not after it has been rewired
+        boolean isCurrent(BundleRevision currentRevision, BundleWiring currentWiring) {
+            return (revision == currentRevision) && 
+                   ((wiring == null) || (wiring == currentWiring));
+        }
+    }
+}
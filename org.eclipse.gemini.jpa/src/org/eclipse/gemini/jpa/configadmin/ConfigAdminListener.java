@@ -23,6 +23,7 @@ import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.Constants;
@@ -65,16 +66,19 @@ public class ConfigAdminListener implements ManagedServiceFactory {
     // Incremental Configs we have been notified of. 
     // These DO NOT have a bsn.
     // (Keyed by punit name)
-    Map<String,PersistenceUnitConfiguration> configsByName;
+    Map<String,PersistenceUnitConfiguration> configsByName = 
+        new ConcurrentHashMap<String,PersistenceUnitConfiguration>();
 
     // Standalone Configs we have been notified of.
     // These are assumed to have a bsn.
     // (Keyed by bsn)
-    Map<String,PersistenceUnitConfiguration> configsByBsn;
+    Map<String,PersistenceUnitConfiguration> configsByBsn = 
+        new ConcurrentHashMap<String,PersistenceUnitConfiguration>();
 
     // Mapping from generated service pid to config
     // This just makes it easier to delete the config on deleted() calls
-    Map<String,PersistenceUnitConfiguration> configsByPid;
+    Map<String,PersistenceUnitConfiguration> configsByPid = 
+        new ConcurrentHashMap<String,PersistenceUnitConfiguration>();
 
     // Bundles found by the extender that didn't have a descriptor
     Set<String> inLimbo;
@@ -95,9 +99,6 @@ public class ConfigAdminListener implements ManagedServiceFactory {
     public void startListening() {
         
         debug("ConfigAdminListener registering");
-        configsByName = new HashMap<String,PersistenceUnitConfiguration>();
-        configsByBsn = new HashMap<String,PersistenceUnitConfiguration>();
-        configsByPid = new HashMap<String,PersistenceUnitConfiguration>();
         // Service strings
         String[] serviceNames = { ManagedServiceFactory.class.getName() };
 
@@ -117,8 +118,9 @@ public class ConfigAdminListener implements ManagedServiceFactory {
         
         debug("ConfigAdminListener unregistering");
         configListenerService.unregister();
-        configsByName = null;
-        configsByBsn = null;
+        configsByName.clear();
+        configsByBsn.clear();
+        configsByPid.clear();
         debug("ConfigAdminListener unregistered");
     }
     
@@ -143,20 +145,20 @@ public class ConfigAdminListener implements ManagedServiceFactory {
         }
 
         // Store against the generated pid so we can find it in case of a deleted() call
-        synchronized (configsByPid) { configsByPid.put(config.getServicePid(), config); }
+        configsByPid.put(config.getServicePid(), config);
         
         // If it has a BSN then store it against its bsn, otherwise store it against its name
         if (config.getBsn() != null) {
-            synchronized (configsByBsn) { configsByBsn.put(config.getBsn(), config); }
+            configsByBsn.put(config.getBsn(), config);
             // If it has a bsn then it is a standalone config (persistence bundle has no persistence descriptor).
             // If this is the case then synthesize a descriptor and squirrel it away in the classloader
             generateAndStashPersistenceDescriptor(config);
         } else {
             // No bsn. Must be an incremental config - persistence bundle will have an existing descriptor
-            synchronized (configsByName) { configsByName.put(config.getUnitName(), config); }
+            configsByName.put(config.getUnitName(), config);
         }
         // Determine if we need to refresh the bundle and then refresh it if necessary
-        refreshPersistenceUnitIfNecessary(config, false);
+        refreshPersistenceUnitIfNecessaryAsync(config, false);
     }
     
     @Override
@@ -166,11 +168,13 @@ public class ConfigAdminListener implements ManagedServiceFactory {
         PersistenceUnitConfiguration config = configsByPid.remove(pid);
         if (config != null) {
             debug("ConfigAdminListener.deleted(), ", "pid ", pid, " was found stored, being removed");
-            // Remove from whichever map it may be contained in
-            configsByName.remove(config.getUnitName());
-            configsByBsn.remove(config.getBsn());            
+            // Remove from whichever map it is contained in (as long as it has not been replaced)
+            if (config.getBsn() != null) 
+                configsByBsn.remove(config.getBsn(), config);
+            else
+                configsByName.remove(config.getUnitName(), config);
             // Refresh the persistence unit bundle
-            refreshPersistenceUnitIfNecessary(config, true);
+            refreshPersistenceUnitIfNecessaryAsync(config, true);
         }
     }
 
@@ -251,6 +255,26 @@ public class ConfigAdminListener implements ManagedServiceFactory {
         return result;
     }
     
+    /*
+     *  Queue the refresh check for the bundle containing the given persistence unit 
+     *  on the extender's lifecycle executor, so that the unregistering and registering 
+     *  it may do is ordered with the work queued for the bundle's events. If the 
+     *  bundle can't be found yet then the check is just done now.
+     */
+    protected void refreshPersistenceUnitIfNecessaryAsync(final PersistenceUnitConfiguration config, 
+                                                          final boolean force) {
+        PUnitInfo unitInfo = mgr.getPUnitsByName().get(config.getUnitName());
+        Bundle b = (unitInfo != null) ? unitInfo.getBundle() 
+                                      : mgr.getExtender().peekBundleInLimbo(config.getBsn());
+        if (b == null) {
+            refreshPersistenceUnitIfNecessary(config, force);
+            return;
+        }
+        mgr.getExtender().executeLifecycleTask(b, new Runnable() {
+            public void run() { refreshPersistenceUnitIfNecessary(config, force); }
+        });
+    }
+
     /*
      *  Refresh, if necessary, the bundle containing the given persistence unit.
      *  It will be refreshed if the bundle can be obtained and any of the following
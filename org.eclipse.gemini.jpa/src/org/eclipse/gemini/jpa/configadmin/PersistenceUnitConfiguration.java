@@ -20,8 +20,10 @@ import java.util.Collection;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.osgi.framework.Constants;
 import org.osgi.service.cm.ConfigurationAdmin;
@@ -36,6 +38,25 @@ import org.eclipse.gemini.jpa.PUnitInfo;
 @SuppressWarnings({"rawtypes", "unchecked"})
 public class PersistenceUnitConfiguration {
         
+    // Properties that updatePUnitInfo() takes out and sets in the p-unit instead
+    // of passing them on to the provider
+    static final Set<String> PUNIT_INFO_PROPERTIES = new HashSet<String>(Arrays.asList(
+            GeminiUtil.JPA_JDBC_DRIVER_PROPERTY,
+            GeminiUtil.JPA_JDBC_URL_PROPERTY,
+            GeminiUtil.JPA_JDBC_USER_PROPERTY,
+            GeminiUtil.JPA_JDBC_PASSWORD_PROPERTY,
+            GeminiUtil.OSGI_JDBC_DRIVER_VERSION_PROPERTY,
+            GeminiPersistenceUnitProperties.WARM_UP,
+            GeminiPersistenceUnitProperties.WARM_UP_QUERIES,
+            GeminiPersistenceUnitProperties.EM_POOL,
+            GeminiPersistenceUnitProperties.EM_POOL_MAX_SIZE,
+            GeminiPersistenceUnitProperties.EM_POOL_MAX_IDLE,
+            GeminiPersistenceUnitProperties.EMF_CACHE,
+            GeminiPersistenceUnitProperties.EMF_CACHE_MAX_SIZE,
+            GeminiPersistenceUnitProperties.EMF_CACHE_MAX_IDLE,
+            GeminiPersistenceUnitProperties.SHARED_EM,
+            GeminiPersistenceUnitProperties.EMF_IDLE_TIMEOUT));
+
     String unitName;
     String bsn;
     Collection<String> classes;
@@ -141,8 +162,20 @@ public class PersistenceUnitConfiguration {
         properties = pUnitProperties(config);
     }
 
+    /**
+     * Return the properties that updatePUnitInfo() leaves for the provider, i.e. 
+     * the ones that are passed in when an EMF is created for the p-unit
+     */
+    public Map<String,Object> providerProperties() {
+        Map<String,Object> props = new HashMap<String,Object>();
+        props.putAll(this.getProperties());
+        props.keySet().removeAll(PUNIT_INFO_PROPERTIES);
+        return props;
+    }
+
     /** 
-     * Add any relevant information from this object to the pUnitInfo passed in
+     * Add any relevant information from this object to the pUnitInfo passed in.
+     * The properties that are handled here must be in PUNIT_INFO_PROPERTIES.
      */
     public void updatePUnitInfo(PUnitInfo pUnitInfo) {
         assert(getUnitName() == pUnitInfo.getUnitName());
@@ -167,10 +200,60 @@ public class PersistenceUnitConfiguration {
         if (driverVersion != null) 
             pUnitInfo.setDriverVersion(driverVersion);
 
+        // Warm-up props may be a String or Boolean, and a String or Collection of queries
+        Object warmUp = props.remove(GeminiPersistenceUnitProperties.WARM_UP);
+        if (warmUp != null) 
+            pUnitInfo.setWarmUp(Boolean.parseBoolean(warmUp.toString().trim()));
+        Object warmUpQueries = props.remove(GeminiPersistenceUnitProperties.WARM_UP_QUERIES);
+        if (warmUpQueries != null) 
+            pUnitInfo.setWarmUpQueries(GeminiUtil.queryList(warmUpQueries));
+
+        // EM pool props may be Strings, or a Boolean and Numbers
+        Object emPool = props.remove(GeminiPersistenceUnitProperties.EM_POOL);
+        if (emPool != null) 
+            pUnitInfo.setEmPool(Boolean.parseBoolean(emPool.toString().trim()));
+        Object emPoolMaxSize = props.remove(GeminiPersistenceUnitProperties.EM_POOL_MAX_SIZE);
+        if (emPoolMaxSize != null) 
+            pUnitInfo.setEmPoolMaxSize(GeminiUtil.intValue(GeminiPersistenceUnitProperties.EM_POOL_MAX_SIZE, 
+                    emPoolMaxSize, GeminiPersistenceUnitProperties.EM_POOL_MAX_SIZE_DEFAULT));
+        Object emPoolMaxIdle = props.remove(GeminiPersistenceUnitProperties.EM_POOL_MAX_IDLE);
+        if (emPoolMaxIdle != null) 
+            pUnitInfo.setEmPoolMaxIdle(GeminiUtil.intValue(GeminiPersistenceUnitProperties.EM_POOL_MAX_IDLE, 
+                    emPoolMaxIdle, GeminiPersistenceUnitProperties.EM_POOL_MAX_IDLE_DEFAULT));
+
+        // EMF cache props may likewise be Strings, or a Boolean and Numbers
+        Object emfCache = props.remove(GeminiPersistenceUnitProperties.EMF_CACHE);
+        if (emfCache != null) 
+            pUnitInfo.setEmfCache(Boolean.parseBoolean(emfCache.toString().trim()));
+        Object emfCacheMaxSize = props.remove(GeminiPersistenceUnitProperties.EMF_CACHE_MAX_SIZE);
+        if (emfCacheMaxSize != null) 
+            pUnitInfo.setEmfCacheMaxSize(GeminiUtil.intValue(GeminiPersistenceUnitProperties.EMF_CACHE_MAX_SIZE, 
+                    emfCacheMaxSize, GeminiPersistenceUnitProperties.EMF_CACHE_MAX_SIZE_DEFAULT));
+        Object emfCacheMaxIdle = props.remove(GeminiPersistenceUnitProperties.EMF_CACHE_MAX_IDLE);
+        if (emfCacheMaxIdle != null) 
+            pUnitInfo.setEmfCacheMaxIdle(GeminiUtil.intValue(GeminiPersistenceUnitProperties.EMF_CACHE_MAX_IDLE, 
+                    emfCacheMaxIdle, GeminiPersistenceUnitProperties.EMF_CACHE_MAX_IDLE_DEFAULT));
+
+        // Shared EM prop may be a String or Boolean
+        Object sharedEm = props.remove(GeminiPersistenceUnitProperties.SHARED_EM);
+        if (sharedEm != null) 
+            pUnitInfo.setSharedEm(Boolean.parseBoolean(sharedEm.toString().trim()));
+
+        // EMF idle timeout may be a String or a Number
+        Object emfIdleTimeout = props.remove(GeminiPersistenceUnitProperties.EMF_IDLE_TIMEOUT);
+        if (emfIdleTimeout != null) 
+            pUnitInfo.setEmfIdleTimeout(GeminiUtil.intValue(GeminiPersistenceUnitProperties.EMF_IDLE_TIMEOUT, 
+                    emfIdleTimeout, GeminiPersistenceUnitProperties.EMF_IDLE_TIMEOUT_DEFAULT));
+
         // Put the remaining properties in if there are any left
         if (!getProperties().isEmpty()) {
             pUnitInfo.setConfigProperties(props);
         }
+
+        // The EMF service may have cached the PUnitInfo it hands out in getProperties()
+        if (pUnitInfo.getEmfHandler() != null) {
+            pUnitInfo.getEmfHandler().invalidateProperties();
+        }
     }
     
     /**
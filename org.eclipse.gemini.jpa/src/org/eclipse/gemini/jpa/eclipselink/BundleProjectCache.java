@@ -0,0 +1,369 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.eclipselink;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.bundleVersion;
+import static org.eclipse.gemini.jpa.GeminiUtil.close;
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.osgi.framework.Bundle;
+
+import org.eclipse.persistence.Version;
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.jpa.metadata.ProjectCache;
+import org.eclipse.persistence.logging.SessionLog;
+import org.eclipse.persistence.sessions.Project;
+
+import org.eclipse.gemini.jpa.PUnitInfo;
+import org.eclipse.gemini.jpa.configadmin.InlinedDescriptorInfo;
+import org.eclipse.gemini.jpa.configadmin.PersistenceUnitConfiguration;
+
+/**
+ * EclipseLink project cache for a persistence unit, kept in the Gemini bundle 
+ * data area. EclipseLink stores the project once it has processed the metadata 
+ * and retrieves it on later predeploys, which lets it skip annotation and ORM 
+ * processing altogether (e.g. when the framework is restarted).
+ * 
+ * The cache files for a bundle are kept in a directory named for the bundle 
+ * symbolic name and version. The file name for a p-unit includes the last 
+ * modified time of the bundle, the EclipseLink version, the config admin 
+ * configuration of the unit and the properties it is predeployed with, so a 
+ * change to any of them causes the cached project to be missed and replaced. Files for bundles that are no longer installed 
+ * are removed when Gemini is started. Names are escaped so that different 
+ * units or bundles never end up with the same file or directory name.
+ * 
+ * Units that have a descriptor supplied by config admin, or that configure 
+ * their own project cache, are not cached. Neither are units predeployed with 
+ * a property value (e.g. a customizer instance) that can't be hashed the same 
+ * way across restarts.
+ */
+@SuppressWarnings("rawtypes")
+public class BundleProjectCache implements ProjectCache {
+
+    /*==================*/
+    /* Static constants */
+    /*==================*/
+
+    // Name of the directory in the bundle data area
+    public static final String CACHE_DIR_NAME = "projectcache";
+
+    static final String FILE_SUFFIX = ".ser";
+
+    /*==============*/
+    /* Static state */
+    /*==============*/
+
+    // Root directory for the cache files (null if project caching is off)
+    static volatile File rootDir;
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    // Directory that holds the files for the bundle
+    File dir;
+
+    // Prefix of the files for the p-unit
+    String unitPrefix;
+
+    // Prefix of the files for the p-unit that are for the current revision and 
+    // configuration (which differ only in the properties they were predeployed with)
+    String revisionPrefix;
+
+    // The file for the current revision of the bundle
+    File file;
+
+    /*==============*/
+    /* Constructors */
+    /*==============*/
+
+    public BundleProjectCache(File dir, String unitPrefix, String revisionPrefix, String fileName) {
+        this.dir = dir;
+        this.unitPrefix = unitPrefix;
+        this.revisionPrefix = revisionPrefix;
+        this.file = new File(dir, fileName);
+    }
+
+    /*================*/
+    /* Static methods */
+    /*================*/
+
+    /**
+     * Set the directory to keep the cache files in (null turns project caching off)
+     * and remove the files for bundles that are no longer installed
+     */
+    public static void initialize(File dir, Bundle[] installedBundles) {
+        rootDir = dir;
+        if (dir == null)
+            return;
+        dir.mkdirs();
+        Set<String> liveDirs = new HashSet<String>();
+        for (Bundle b : installedBundles) {
+            liveDirs.add(bundleDirName(b));
+        }
+        File[] bundleDirs = dir.listFiles();
+        if (bundleDirs == null)
+            return;
+        for (File bundleDir : bundleDirs) {
+            if (!liveDirs.contains(bundleDir.getName())) {
+                debug("ProjectCache removing files for uninstalled bundle ", bundleDir.getName());
+                delete(bundleDir);
+            }
+        }
+    }
+
+    /**
+     * Return a project cache for the p-unit, or null if it should not be cached
+     * 
+     * @param pUnitInfo the p-unit
+     * @param props the properties the p-unit is being predeployed with
+     * @param config the config admin configuration for the p-unit, or null if none
+     */
+    public static BundleProjectCache forUnit(PUnitInfo pUnitInfo, Map<?,?> props, 
+                                             PersistenceUnitConfiguration config) {
+        File root = rootDir;
+        Bundle b = pUnitInfo.getBundle();
+        if ((root == null) || (b == null) 
+                || (pUnitInfo.getDescriptorInfo() instanceof InlinedDescriptorInfo)
+                || props.containsKey(PersistenceUnitProperties.PROJECT_CACHE)) {
+            return null;
+        }
+        Integer propsHash = propertiesHash(props);
+        if (propsHash == null) {
+            debug("ProjectCache not caching ", pUnitInfo.getUnitName(), " - property values can't be hashed");
+            return null;
+        }
+        String unitPrefix = safeName(pUnitInfo.getUnitName()) + "-";
+        String revisionPrefix = unitPrefix + b.getLastModified() + "-" 
+                + safeName(Version.getVersionString()) + "-" 
+                + Integer.toHexString(configHash(config)) + "-";
+        String fileName = revisionPrefix + Integer.toHexString(propsHash) + FILE_SUFFIX;
+        return new BundleProjectCache(new File(root, bundleDirName(b)), unitPrefix, revisionPrefix, fileName);
+    }
+
+    /*======================*/
+    /* ProjectCache methods */
+    /*======================*/
+
+    /**
+     * Return the cached project, or null if there isn't one (or it can't be read)
+     */
+    public Project retrieveProject(Map properties, ClassLoader loader, SessionLog log) {
+        if (!file.exists()) {
+            debug("ProjectCache miss for ", file.getName());
+            return null;
+        }
+        ObjectInputStream in = null;
+        try {
+            in = new ProjectInputStream(new BufferedInputStream(new FileInputStream(file)), loader);
+            Project project = (Project) in.readObject();
+            debug("ProjectCache hit for ", file.getName());
+            return project;
+        } catch (Exception ex) {
+            warning("ProjectCache could not read cached project - discarding it ", ex);
+            close(in);
+            in = null;
+            file.delete();
+            return null;
+        } finally {
+            if (in != null) close(in);
+        }
+    }
+
+    /**
+     * Write the project to the cache file. It is written to a temporary file first
+     * so that a partially written project is never read. Files cached for 
+     * earlier revisions of the bundle (or configurations of the unit) are removed,
+     * but not the ones for the same revision predeployed with other properties.
+     */
+    public void storeProject(Project project, Map properties, SessionLog log) {
+        dir.mkdirs();
+        File tmpFile = new File(dir, file.getName() + ".tmp");
+        ObjectOutputStream out = null;
+        try {
+            out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeObject(project);
+            out.close();
+            out = null;
+            file.delete();
+            if (!tmpFile.renameTo(file))
+                throw new IOException("Could not rename " + tmpFile + " to " + file);
+            debug("ProjectCache stored ", file.getName());
+        } catch (Exception ex) {
+            warning("ProjectCache could not write cached project ", ex);
+            if (out != null) close(out);
+            tmpFile.delete();
+            return;
+        }
+        discardStaleFiles();
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    // Remove the files for the p-unit that were written for other revisions
+    protected void discardStaleFiles() {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File f : files) {
+            if (f.getName().startsWith(unitPrefix) && !f.getName().startsWith(revisionPrefix)) {
+                debug("ProjectCache removing stale file ", f.getName());
+                f.delete();
+            }
+        }
+    }
+
+    protected static String bundleDirName(Bundle b) {
+        return safeName(b.getSymbolicName()) + "-" + safeName(bundleVersion(b));
+    }
+
+    // Hash of the config admin configuration of the p-unit (0 if there is none).
+    // The configuration is looked up rather than taken from the p-unit since it
+    // is not applied to the p-unit until after it has been predeployed.
+    protected static int configHash(PersistenceUnitConfiguration config) {
+        if (config == null)
+            return 0;
+        // Every value counts, but arrays must be printed by content to be stable across restarts
+        Map<String, String> sorted = new TreeMap<String, String>();
+        if (config.getProperties() != null) {
+            for (Map.Entry<String, Object> entry : config.getProperties().entrySet()) {
+                Object value = entry.getValue();
+                sorted.put(entry.getKey(), (value instanceof Object[]) 
+                        ? Arrays.deepToString((Object[]) value) : String.valueOf(value));
+            }
+        }
+        Set<String> classes = new TreeSet<String>();
+        if (config.getClasses() != null)
+            classes.addAll(config.getClasses());
+        return (sorted.toString() + classes + config.getExcludeUnlistedClasses()).hashCode();
+    }
+
+    // Hash of the properties the p-unit is predeployed with, leaving out the ones
+    // that are specific to each call and the session name (which schema generation
+    // makes unique, and which is not part of the project). Returns null if a value 
+    // is not a String, primitive wrapper, Class or array of them, since nothing 
+    // else is sure to print the same after a restart.
+    protected static Integer propertiesHash(Map<?,?> props) {
+        Map<String, String> sorted = new TreeMap<String, String>();
+        Map<String, Object> predeployProps = PredeployedUnit.predeployProperties(props);
+        predeployProps.remove(PersistenceUnitProperties.SESSION_NAME);
+        for (Map.Entry<String, Object> entry : predeployProps.entrySet()) {
+            String value = stableString(entry.getValue());
+            if (value == null)
+                return null;
+            sorted.put(entry.getKey(), value);
+        }
+        return sorted.toString().hashCode();
+    }
+
+    // The value as a String that stays the same across restarts, or null if there isn't one
+    protected static String stableString(Object value) {
+        if ((value == null) || (value instanceof String) || (value instanceof Number) 
+                || (value instanceof Boolean) || (value instanceof Character)) {
+            return String.valueOf(value);
+        }
+        if (value instanceof Class) {
+            return ((Class) value).getName();
+        }
+        if (value instanceof Object[]) {
+            StringBuilder sb = new StringBuilder("[");
+            for (Object element : (Object[]) value) {
+                String s = stableString(element);
+                if (s == null)
+                    return null;
+                sb.append(s).append(',');
+            }
+            return sb.append(']').toString();
+        }
+        return null;
+    }
+
+    // Return a name that can be used in a file name. Letters, digits and '.' are 
+    // kept, '_' is doubled and anything else becomes '_' and 4 hex digits, so 
+    // different names stay different. The result never contains '-', which is 
+    // used to separate the parts of the file and directory names.
+    protected static String safeName(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (((c < 128) && Character.isLetterOrDigit(c)) || (c == '.')) {
+                sb.append(c);
+            } else if (c == '_') {
+                sb.append("__");
+            } else {
+                String hex = Integer.toHexString(c);
+                sb.append('_').append("0000".substring(hex.length())).append(hex);
+            }
+        }
+        return sb.toString();
+    }
+
+    protected static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        f.delete();
+    }
+
+    /*===============*/
+    /* Inner classes */
+    /*===============*/
+
+    // Resolves classes using the p-unit loader, then the EclipseLink loader
+    static class ProjectInputStream extends ObjectInputStream {
+        ClassLoader loader;
+
+        ProjectInputStream(InputStream in, ClassLoader loader) throws IOException {
+            super(in);
+            this.loader = loader;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            if (loader != null) {
+                try {
+                    return Class.forName(desc.getName(), false, loader);
+                } catch (ClassNotFoundException cnfEx) {}
+            }
+            try {
+                return Class.forName(desc.getName(), false, Project.class.getClassLoader());
+            } catch (ClassNotFoundException cnfEx) {
+                return super.resolveClass(desc);
+            }
+        }
+    }
+}
@@ -14,12 +14,16 @@
  ******************************************************************************/
 package org.eclipse.gemini.jpa.eclipselink;
 
+import static org.eclipse.gemini.jpa.GeminiUtil.PUNIT_INFO_PROPERTY;
+import static org.eclipse.gemini.jpa.GeminiUtil.SCHEMA_GENERATION_PROPERTY;
+
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Map;
 
 import org.eclipse.gemini.jpa.GeminiManager;
+import org.eclipse.gemini.jpa.GeminiSystemProperties;
 import org.eclipse.gemini.jpa.PUnitInfo;
 
 import org.eclipse.persistence.config.PersistenceUnitProperties;
@@ -28,6 +32,7 @@ import org.eclipse.persistence.internal.jpa.deployment.PersistenceUnitProcessor;
 import org.eclipse.persistence.logging.AbstractSessionLog;
 import org.eclipse.persistence.logging.DefaultSessionLog;
 import org.eclipse.persistence.logging.SessionLog;
+import org.osgi.framework.BundleContext;
 
 /**
  * We subclass the actual EclipseLink provider so that Gemini JPA has 
@@ -70,6 +75,12 @@ public class EclipseLinkProvider extends org.eclipse.persistence.jpa.Persistence
         
         // Set to our own archive factory
         PersistenceUnitProcessor.setArchiveFactory(new OSGiArchiveFactoryImpl());
+
+        // Keep the processed projects in our data area so metadata processing can be skipped
+        if (GeminiSystemProperties.projectCache()) {
+            BundleContext ctx = mgr.getBundleContext();
+            BundleProjectCache.initialize(ctx.getDataFile(BundleProjectCache.CACHE_DIR_NAME), ctx.getBundles());
+        }
         
         // If EL logging property was specified then open the log now?
         openEclipseLinkLogFileIfSpecified();
@@ -79,6 +90,7 @@ public class EclipseLinkProvider extends org.eclipse.persistence.jpa.Persistence
      * This is our chance to clean up any EclipseLink specific stuff
      */
     public void shutdown() {
+        BundleProjectCache.initialize(null, null);
         closeEclipseLinkLogFileIfNecessary();
     }
 
@@ -120,11 +132,17 @@ public class EclipseLinkProvider extends org.eclipse.persistence.jpa.Persistence
 
     /**
      * Return JPAInitializer corresponding to the passed classLoader.
+     * The p-unit info put in the properties by the wrapper is passed along, along
+     * with the properties, so that the initializer can get at the state predeployed 
+     * for it and check that it was predeployed with the same properties.
+     * (The predeployed setup is kept for the EMF when only generating the schema.)
      */
     @Override
     public JPAInitializer getInitializer(String emName, Map m){
         final ClassLoader classLoader = getClassLoader(emName, m);
-        return new GeminiOSGiInitializer(classLoader);
+        PUnitInfo pUnitInfo = (m == null) ? null : (PUnitInfo) m.get(PUNIT_INFO_PROPERTY);
+        boolean reusePredeployed = (m == null) || !m.containsKey(SCHEMA_GENERATION_PROPERTY);
+        return new GeminiOSGiInitializer(classLoader, pUnitInfo, reusePredeployed, m);
     }
     
     /*================*/
@@ -135,4 +153,9 @@ public class EclipseLinkProvider extends org.eclipse.persistence.jpa.Persistence
     public static boolean containsSessionName(Map<?,?> props) {
         return props.containsKey(PersistenceUnitProperties.SESSION_NAME);
     }
+
+    // Function to set the EclipseLink session-name property
+    public static void setSessionName(Map<String,Object> props, String sessionName) {
+        props.put(PersistenceUnitProperties.SESSION_NAME, sessionName);
+    }
 }
@@ -30,11 +30,16 @@ import javax.persistence.spi.ClassTransformer;
 import javax.persistence.spi.PersistenceUnitInfo;
 
 import org.eclipse.gemini.jpa.GeminiManager;
+import org.eclipse.gemini.jpa.GeminiSystemProperties;
 import org.eclipse.gemini.jpa.GeminiUtil;
 import org.eclipse.gemini.jpa.PUnitInfo;
+import org.eclipse.gemini.jpa.configadmin.PersistenceUnitConfiguration;
 import org.eclipse.gemini.jpa.weaving.WeavingHookTransformer;
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.internal.jpa.EntityManagerSetupImpl;
 import org.eclipse.persistence.internal.jpa.deployment.JPAInitializer;
 import org.eclipse.persistence.internal.jpa.deployment.PersistenceUnitProcessor;
+import org.eclipse.persistence.internal.jpa.deployment.SEPersistenceUnitInfo;
 import org.eclipse.persistence.jpa.Archive;
 import org.eclipse.persistence.logging.AbstractSessionLog;
 import org.eclipse.persistence.logging.SessionLog;
@@ -45,6 +50,15 @@ public class GeminiOSGiInitializer extends JPAInitializer {
    
     static GeminiManager mgr;
     Collection<PUnitInfo> pUnits;
+
+    // The p-unit an EMF is being created for (not set during preResolve)
+    PUnitInfo pUnitInfo;
+
+    // Whether the setup predeployed for the p-unit may be used
+    boolean reusePredeployed;
+
+    // The properties the EMF is being created with (not set during preResolve)
+    Map createProperties;
    
     /**
      * Constructor used when registering bundles.
@@ -59,6 +73,21 @@ public class GeminiOSGiInitializer extends JPAInitializer {
         this.initializationClassloader = loader;
     }
 
+    /** 
+     * Constructor used by the provider when creating an EMF for a p-unit
+     * @param loader
+     * @param pUnitInfo the p-unit, or null if not known
+     * @param reusePredeployed whether the setup predeployed for the p-unit may be used
+     * @param createProperties the properties the EMF is being created with
+     */
+    GeminiOSGiInitializer(ClassLoader loader, PUnitInfo pUnitInfo, boolean reusePredeployed, 
+                          Map createProperties) {
+        this.initializationClassloader = loader;
+        this.pUnitInfo = pUnitInfo;
+        this.reusePredeployed = reusePredeployed;
+        this.createProperties = createProperties;
+    }
+
     /*=============*/
     /* New methods */
     /*=============*/
@@ -152,6 +181,94 @@ public class GeminiOSGiInitializer extends JPAInitializer {
      */
     @Override    
     public void initialize(Map m) {}
+
+    /**
+     * Predeploy the p-unit using the Gemini project cache (if the unit can be cached)
+     * and, if we are in preResolve, hang on to the result so it can be reused when 
+     * the EMF is created. In preResolve the unit is predeployed with its config admin 
+     * properties, since the provider wrapper passes them in when the EMF is created.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public EntityManagerSetupImpl callPredeploy(SEPersistenceUnitInfo persistenceUnitInfo, Map m, 
+                                                String persistenceUnitUniqueName, String sessionName) {
+        String unitName = persistenceUnitInfo.getPersistenceUnitName();
+        PUnitInfo info = pUnitInfo;
+        if (pUnits != null) {
+            for (PUnitInfo unit : pUnits) {
+                if (unit.getUnitName().equals(unitName)) {
+                    info = unit;
+                    break;
+                }
+            }
+        }
+        Map props = new HashMap(m);
+        PersistenceUnitConfiguration config = ((info != null) && (mgr != null) && (mgr.getConfigAdminListener() != null))
+            ? mgr.getConfigAdminListener().configForPersistenceUnitName(unitName) : null;
+        if ((pUnits != null) && (config != null)) {
+            props.putAll(config.providerProperties());
+        }
+        if ((info != null) && !persistenceUnitInfo.getProperties().containsKey(PersistenceUnitProperties.PROJECT_CACHE)) {
+            BundleProjectCache projectCache = BundleProjectCache.forUnit(info, props, config);
+            if (projectCache != null) {
+                props.put(PersistenceUnitProperties.PROJECT_CACHE, projectCache);
+            }
+        }
+        EntityManagerSetupImpl emSetupImpl = 
+            super.callPredeploy(persistenceUnitInfo, props, persistenceUnitUniqueName, sessionName);
+        if ((pUnits != null) && (info != null) && GeminiSystemProperties.reusePredeploy()) {
+            debug("GeminiInitializer keeping predeployed setup for ", unitName);
+            info.setPredeployedUnit(new PredeployedUnit(persistenceUnitInfo, emSetupImpl, props));
+        }
+        return emSetupImpl;
+    }
+
+    /**
+     * Return the p-unit info parsed during preResolve if it can be used, 
+     * otherwise look for the p-unit in the archives.
+     */
+    @Override
+    public SEPersistenceUnitInfo findPersistenceUnitInfo(String puName, Map m) {
+        PredeployedUnit predeployed = usablePredeployedUnit(puName);
+        if (predeployed != null) {
+            debug("GeminiInitializer using predeployed p-unit info for ", puName);
+            return predeployed.getUnitInfo();
+        }
+        return super.findPersistenceUnitInfo(puName, m);
+    }
+
+    /**
+     * Hand the setup predeployed during preResolve to EclipseLink, the first 
+     * time that an EMF is created for the p-unit, so that it only has to be deployed.
+     * If the EMF is being created with properties that the setup was not predeployed
+     * with then the setup is discarded and EclipseLink predeploys the unit again.
+     */
+    @Override
+    public EntityManagerSetupImpl extractInitialEmSetupImpl(String puName) {
+        PredeployedUnit predeployed = usablePredeployedUnit(puName);
+        if ((predeployed != null) && !predeployed.isSetupUsableWith(createProperties)) {
+            debug("GeminiInitializer discarding predeployed setup for ", puName, 
+                  " - EMF properties differ from the predeploy properties");
+            predeployed.discardSetup();
+            predeployed = null;
+        }
+        EntityManagerSetupImpl emSetupImpl = (predeployed == null) ? null : predeployed.takeSetup();
+        if (emSetupImpl != null) {
+            debug("GeminiInitializer reusing predeployed setup for ", puName);
+            return emSetupImpl;
+        }
+        return super.extractInitialEmSetupImpl(puName);
+    }
+
+    // Return the predeployed state of the p-unit if it was predeployed using our loader
+    protected PredeployedUnit usablePredeployedUnit(String puName) {
+        if ((pUnitInfo == null) || !reusePredeployed || !GeminiSystemProperties.reusePredeploy())
+            return null;
+        PredeployedUnit predeployed = pUnitInfo.getPredeployedUnit();
+        if ((predeployed == null) || !predeployed.getUnitName().equals(puName))
+            return null;
+        return predeployed.isUsableWith(initializationClassloader) ? predeployed : null;
+    }
     
     
     /**
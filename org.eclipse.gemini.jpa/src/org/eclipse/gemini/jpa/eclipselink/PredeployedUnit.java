@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.eclipselink;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.PUNIT_INFO_PROPERTY;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.internal.jpa.EntityManagerSetupImpl;
+import org.eclipse.persistence.internal.jpa.deployment.SEPersistenceUnitInfo;
+
+/**
+ * The result of predeploying a persistence unit when its bundle was resolved.
+ * EclipseLink has to process all of the metadata to predeploy the unit so that
+ * the transformer can be registered, so the setup is kept and handed back to 
+ * EclipseLink the first time the EMF is created, leaving only the deploy and 
+ * login to be done. 
+ * 
+ * The setup can only be used once. When the EMF it ends up in is closed the 
+ * setup is undeployed and subsequent EMFs are predeployed from scratch, although
+ * the persistence unit info parsed from the descriptor continues to be reused.
+ * 
+ * The unit is predeployed with its config admin properties, since those are 
+ * passed in when the EMF is created. If the EMF is created with properties that
+ * are different from the ones the setup was predeployed with then the setup is
+ * discarded and EclipseLink predeploys the unit again with the new properties.
+ */
+public class PredeployedUnit {
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    // Persistence unit info that EclipseLink parsed from the descriptor
+    SEPersistenceUnitInfo unitInfo;
+
+    // Predeployed setup for the p-unit (null once discarded)
+    volatile EntityManagerSetupImpl setup;
+
+    // Properties the setup was predeployed with
+    Map<String,Object> properties;
+
+    // Set once the setup has been handed out
+    AtomicBoolean setupTaken = new AtomicBoolean();
+
+    /*==============*/
+    /* Constructors */
+    /*==============*/
+
+    public PredeployedUnit(SEPersistenceUnitInfo unitInfo, EntityManagerSetupImpl setup,
+                           Map<String,Object> properties) {
+        this.unitInfo = unitInfo;
+        this.setup = setup;
+        this.properties = predeployProperties(properties);
+    }
+
+    /*=========*/
+    /* Methods */
+    /*=========*/
+
+    public String getUnitName() { return unitInfo.getPersistenceUnitName(); }
+
+    public SEPersistenceUnitInfo getUnitInfo() { return unitInfo; }
+
+    /**
+     * Return whether the predeployed state can be used when the EMF is created
+     * with the given loader. The metadata refers to classes loaded by the loader 
+     * that was used to predeploy, so it can't be used with any other loader.
+     */
+    public boolean isUsableWith(ClassLoader loader) {
+        return unitInfo.getClassLoader() == loader;
+    }
+
+    /**
+     * Return whether the predeployed setup can be used for an EMF created with the 
+     * given properties, i.e. the ones passed to the provider by the ProviderWrapper.
+     * They must be the same as the ones the setup was predeployed with, apart from 
+     * the ones that the wrapper adds on every call, or the setup would not reflect them.
+     */
+    public boolean isSetupUsableWith(Map<?,?> createProperties) {
+        return properties.equals(predeployProperties(createProperties));
+    }
+
+    /**
+     * Return the predeployed setup, or null if it has already been taken (or 
+     * discarded) or is no longer in the predeployed state
+     */
+    public EntityManagerSetupImpl takeSetup() {
+        EntityManagerSetupImpl predeployedSetup = setup;
+        if ((predeployedSetup == null) || !predeployedSetup.isPredeployed() 
+                || !setupTaken.compareAndSet(false, true))
+            return null;
+        return predeployedSetup;
+    }
+
+    public boolean isSetupTaken() { return setupTaken.get(); }
+
+    /**
+     * Drop the setup so that it is not used, nor kept in memory. (It was never
+     * registered with EclipseLink, so there is nothing to undeploy.)
+     */
+    public void discardSetup() {
+        if (setupTaken.compareAndSet(false, true))
+            setup = null;
+    }
+
+    // Return a copy of the properties without the ones that are specific to the call
+    static Map<String,Object> predeployProperties(Map<?,?> props) {
+        Map<String,Object> result = new HashMap<String,Object>();
+        if (props != null) {
+            for (Map.Entry<?,?> entry : props.entrySet())
+                result.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        result.remove(PersistenceUnitProperties.CLASSLOADER);
+        result.remove(PersistenceUnitProperties.NON_JTA_DATASOURCE);
+        result.remove(PersistenceUnitProperties.ECLIPSELINK_PERSISTENCE_XML);
+        result.remove(PersistenceUnitProperties.PROJECT_CACHE);
+        result.remove(PUNIT_INFO_PROPERTY);
+        return result;
+    }
+
+    public String toString() {
+        return "PredeployedUnit(" + getUnitName() + (isSetupTaken() ? ", taken" : "") + ")";
+    }
+}
@@ -0,0 +1,319 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.gemini.jpa.PUnitInfo;
+import org.eclipse.gemini.jpa.eclipselink.EclipseLinkProvider;
+import org.eclipse.gemini.jpa.service.AsyncEntityManagerFactoryBuilder;
+
+/**
+ * AsyncEntityManagerFactoryBuilder service for a p-unit. EMFs are created by 
+ * the handler of the EMFBuilder service of the p-unit, so the same rules apply 
+ * (shared EMF, cached EMFs, unmanaged EMFs for a session name), but the work 
+ * is done on the executor passed in. 
+ * 
+ * Creations that are in progress are kept by their properties until they finish 
+ * so that concurrent requests for the same properties share the same creation. 
+ * Each request gets its own Future, which is completed when the creation is, so 
+ * that a caller that cancels its Future does not cancel it for the others. The 
+ * creation is cancelled when the last of its callers cancels.
+ */
+public class AsyncEMFBuilderService implements AsyncEntityManagerFactoryBuilder {
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    PUnitInfo pUnitInfo;
+
+    // Handler of the EMFBuilder service, used to create the EMFs
+    EMFBuilderServiceProxyHandler builderHandler;
+
+    // Executor that the EMFs are created on
+    ExecutorService executor;
+
+    // Creations in progress, keyed by the properties they were requested with
+    ConcurrentMap<String, EMFCreation> pending = new ConcurrentHashMap<String, EMFCreation>();
+
+    // Set once the service is unregistered
+    volatile boolean closed;
+
+    /*==============*/
+    /* Constructors */
+    /*==============*/
+
+    public AsyncEMFBuilderService(PUnitInfo pUnitInfo, 
+                                  EMFBuilderServiceProxyHandler builderHandler, 
+                                  ExecutorService executor) {
+        this.pUnitInfo = pUnitInfo;
+        this.builderHandler = builderHandler;
+        this.executor = executor;
+    }
+
+    /*==========================================*/
+    /* AsyncEntityManagerFactoryBuilder methods */
+    /*==========================================*/
+
+    public Future<EntityManagerFactory> createEntityManagerFactory(Map<String,Object> props) {
+        if (closed)
+            throw new IllegalStateException("AsyncEntityManagerFactoryBuilder for " + 
+                    pUnitInfo.getUnitName() + " is no longer registered");
+        // Take a copy so the caller can't change the props while we are using them
+        final Map<String,Object> emfProps = 
+            (props == null) ? new HashMap<String,Object>() : new HashMap<String,Object>(props);
+        final String key = keyFor(emfProps);
+
+        while (true) {
+            EMFCreation creation = pending.get(key);
+            if (creation == null) {
+                EMFCreation newCreation = new EMFCreation(key, new EMFCreator(emfProps));
+                creation = pending.putIfAbsent(key, newCreation);
+                if (creation == null) {
+                    Future<EntityManagerFactory> caller = newCreation.newCaller();
+                    queue(newCreation);
+                    return caller;
+                }
+            }
+            Future<EntityManagerFactory> caller = creation.newCaller();
+            if (caller != null) {
+                debug("AsyncEMFBuilder joining EMF creation in progress for ", pUnitInfo.getUnitName());
+                return caller;
+            }
+            // It finished, or all of its callers cancelled it, since we looked it up
+            pending.remove(key, creation);
+        }
+    }
+
+    public int getPendingCount() { return pending.size(); }
+
+    /*=========*/
+    /* Methods */
+    /*=========*/
+
+    /**
+     * Cancel any creations in progress. Called when the service is unregistered, 
+     * before the EMFs of the p-unit are closed. 
+     */
+    public void close() {
+        closed = true;
+        for (EMFCreation creation : pending.values()) {
+            creation.cancel(true);
+        }
+        debug("AsyncEMFBuilder closed for ", pUnitInfo.getUnitName());
+    }
+
+    public String toString() {
+        return "AsyncEMFBuilder(" + pUnitInfo.getUnitName() + ", pending=" + getPendingCount() + ")";
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    // Start a new creation on the executor
+    protected void queue(EMFCreation newCreation) {
+        debug("AsyncEMFBuilder queueing EMF creation for ", pUnitInfo.getUnitName());
+        try {
+            executor.execute(newCreation);
+        } catch (RejectedExecutionException reEx) {
+            // Executor has been shut down (Gemini is stopping)
+            pending.remove(newCreation.key, newCreation);
+            newCreation.cancel(false);
+        }
+        // Cancel it if we were closed while queueing it (close() may have missed it)
+        if (closed)
+            newCreation.cancel(true);
+    }
+
+    // Return a key made up of all of the props, in a fixed order
+    protected String keyFor(Map<String,Object> props) {
+        Map<String,String> sortedProps = new TreeMap<String,String>();
+        for (Map.Entry<String,Object> entry : props.entrySet())
+            sortedProps.put(entry.getKey(), String.valueOf(entry.getValue()));
+        return sortedProps.toString();
+    }
+
+    // Close an EMF that was created after the service was closed
+    protected void discard(EntityManagerFactory emf) {
+        if (emf == null)
+            return;
+        synchronized (pUnitInfo) {
+            if (pUnitInfo.getEmf() == emf)
+                builderHandler.syncUnsetEMF();
+        }
+        try {
+            if (emf.isOpen()) emf.close();
+        } catch (RuntimeException rtEx) {
+            warning("AsyncEMFBuilder error closing EMF for " + pUnitInfo.getUnitName() + ": ", rtEx);
+        }
+    }
+
+    /*===============*/
+    /* Inner classes */
+    /*===============*/
+
+    // An EMF creation, which is removed from the pending map once it is done
+    class EMFCreation extends FutureTask<EntityManagerFactory> {
+
+        String key;
+
+        // The outcome, recorded before the creation is done
+        EntityManagerFactory result;
+        Throwable failure;
+
+        // Futures of the callers waiting for the creation (all guarded by the creation)
+        List<CallerFuture> callers = new ArrayList<CallerFuture>();
+        int activeCallers;
+        // Set once the creation is done, or being cancelled because all of its callers have cancelled
+        boolean noMoreCallers;
+
+        EMFCreation(String key, EMFCreator creator) {
+            super(creator);
+            this.key = key;
+            creator.creation = this;
+        }
+
+        /**
+         * Return a new Future for a caller of the creation, or null if it 
+         * is too late to join it
+         */
+        CallerFuture newCaller() {
+            CallerFuture caller = new CallerFuture(this);
+            synchronized (this) {
+                if (noMoreCallers)
+                    return null;
+                callers.add(caller);
+                activeCallers++;
+            }
+            return caller;
+        }
+
+        // Cancel the creation if nobody is waiting for it any more
+        void callerCancelled(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (noMoreCallers || (--activeCallers > 0))
+                    return;
+                noMoreCallers = true;
+            }
+            debug("AsyncEMFBuilder cancelling EMF creation for ", pUnitInfo.getUnitName(), 
+                  " since all of its callers have cancelled");
+            cancel(mayInterruptIfRunning);
+        }
+
+        protected void set(EntityManagerFactory emf) {
+            result = emf;
+            super.set(emf);
+        }
+
+        protected void setException(Throwable t) {
+            failure = t;
+            super.setException(t);
+        }
+
+        protected void done() {
+            pending.remove(key, this);
+            List<CallerFuture> waiting;
+            synchronized (this) {
+                noMoreCallers = true;
+                waiting = new ArrayList<CallerFuture>(callers);
+                callers.clear();
+            }
+            for (CallerFuture caller : waiting) {
+                caller.complete();
+            }
+        }
+    }
+
+    // The Future handed to a caller, completed with the outcome of the shared creation
+    class CallerFuture extends FutureTask<EntityManagerFactory> {
+
+        EMFCreation creation;
+
+        CallerFuture(EMFCreation creation) {
+            super(new Callable<EntityManagerFactory>() {
+                public EntityManagerFactory call() { throw new IllegalStateException(); }
+            });
+            this.creation = creation;
+        }
+
+        // The work is done by the creation, never by the caller
+        public void run() {}
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!super.cancel(false))
+                return false;
+            creation.callerCancelled(mayInterruptIfRunning);
+            return true;
+        }
+
+        // Called once the creation is done
+        void complete() {
+            if (creation.isCancelled()) {
+                super.cancel(false);
+            } else if (creation.failure != null) {
+                setException(creation.failure);
+            } else {
+                set(creation.result);
+            }
+        }
+    }
+
+    // Does the work of an EMF creation 
+    class EMFCreator implements Callable<EntityManagerFactory> {
+
+        Map<String,Object> props;
+        EMFCreation creation;
+
+        EMFCreator(Map<String,Object> props) { this.props = props; }
+
+        public EntityManagerFactory call() {
+            if (closed)
+                throw new CancellationException();
+            debug("AsyncEMFBuilder creating EMF for ", pUnitInfo.getUnitName());
+            EntityManagerFactory emf = builderHandler.createEntityManagerFactory(props);
+            if (closed) {
+                // The p-unit was unregistered while we were creating it
+                debug("AsyncEMFBuilder discarding EMF created after unregistration of ", 
+                      pUnitInfo.getUnitName());
+                discard(emf);
+                throw new CancellationException();
+            }
+            if (creation.isCancelled() && EclipseLinkProvider.containsSessionName(props)) {
+                // Nobody will get the EMF, and since it is unmanaged nobody else will close it
+                discard(emf);
+            }
+            return emf;
+        }
+    }
+}
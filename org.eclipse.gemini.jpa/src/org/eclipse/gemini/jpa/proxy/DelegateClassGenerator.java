@@ -0,0 +1,320 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.persistence.internal.libraries.asm.ClassWriter;
+import org.eclipse.persistence.internal.libraries.asm.Label;
+import org.eclipse.persistence.internal.libraries.asm.MethodVisitor;
+import org.eclipse.persistence.internal.libraries.asm.Opcodes;
+import org.eclipse.persistence.internal.libraries.asm.Type;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkUtil;
+
+/**
+ * Generates the classes used to implement the EMF and EMFBuilder services. 
+ * 
+ * Each generated class subclasses a {@link ServiceDelegate} and implements the 
+ * service interface plus the anchor interfaces of the p-unit. Every interface 
+ * method that the superclass does not implement is generated to get the target 
+ * from the superclass and invoke the method on it directly, so calls on the 
+ * service do not go through an InvocationHandler and Method.invoke() the way 
+ * they do with a java.lang.reflect.Proxy. The methods are generated from the 
+ * interfaces as they are loaded at runtime, so whatever version of JPA is 
+ * present is fully implemented.
+ * 
+ * Generated classes are cached by superclass and interface set, so a p-unit 
+ * that is re-registered (or another p-unit with no anchor interfaces) reuses 
+ * the class. Classes that implement anchor interfaces must be discarded when 
+ * the bundle the anchors came from is unassigned, so that they do not keep 
+ * the old bundle class loader around.
+ */
+public class DelegateClassGenerator {
+
+    /*==================*/
+    /* Static constants */
+    /*==================*/
+
+    // Suffix added to the superclass name to make up the generated class name
+    public static final String DELEGATE_CLASS_SUFFIX = "$$Delegate";
+
+    static final String SERVICE_DELEGATE_NAME = Type.getInternalName(ServiceDelegate.class);
+    static final String HANDLER_DESC = Type.getDescriptor(EMFServiceProxyHandler.class);
+    static final String CONSTRUCTOR_DESC = "(" + HANDLER_DESC + ")V";
+    static final String TARGET_DESC = "()Ljava/lang/Object;";
+
+    // EntityManagers returned by these methods are passed to entityManagerCreated()
+    static final String CREATE_EM_METHOD = "createEntityManager";
+    static final String EM_CREATED_DESC = "(Ljava/lang/Object;)Ljava/lang/Object;";
+
+    // Failures are passed to callFailed() (which returns what it was given) before being rethrown
+    static final String THROWABLE_NAME = "java/lang/Throwable";
+    static final String CALL_FAILED_DESC = "(Ljava/lang/String;Ljava/lang/Throwable;)Ljava/lang/Throwable;";
+
+    // Orders the interfaces of a key so that the same set always makes the same key
+    static final Comparator<Class<?>> BY_NAME = new Comparator<Class<?>>() {
+        public int compare(Class<?> c1, Class<?> c2) { return c1.getName().compareTo(c2.getName()); }
+    };
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    // Constructors of the generated classes, keyed by superclass followed by the sorted interfaces
+    ConcurrentMap<List<Class<?>>, Constructor<?>> delegateConstructors = 
+        new ConcurrentHashMap<List<Class<?>>, Constructor<?>>();
+
+    // Used to make the generated class names unique
+    AtomicInteger classCount = new AtomicInteger();
+
+    /*=============*/
+    /* API methods */
+    /*=============*/
+
+    /**
+     * Create a service object that is an instance of a generated subclass of the 
+     * given superclass that implements the given interfaces.
+     * 
+     * @param superclass the ServiceDelegate subclass to extend
+     * @param interfaces the service interface and any anchor interfaces
+     * @param handler the handler that the service object will use
+     * 
+     * @return the service object, or null if the class could not be generated
+     */
+    public Object newDelegate(Class<? extends ServiceDelegate> superclass, 
+                              Class<?>[] interfaces, 
+                              EMFServiceProxyHandler handler) {
+        List<Class<?>> key = keyFor(superclass, interfaces);
+        try {
+            Constructor<?> constructor = delegateConstructors.get(key);
+            if (constructor == null) {
+                constructor = generateDelegateClass(key).getConstructor(EMFServiceProxyHandler.class);
+                // If another thread got there first then use the one it generated
+                Constructor<?> existing = delegateConstructors.putIfAbsent(key, constructor);
+                if (existing != null)
+                    constructor = existing;
+            }
+            return constructor.newInstance(handler);
+        } catch (Throwable t) {
+            warning("DelegateClassGenerator could not create delegate for " + key + " ", t);
+            return null;
+        }
+    }
+
+    /**
+     * Discard the generated classes that implement interfaces from the given bundle.
+     */
+    public void discardDelegateClasses(Bundle b) {
+        for (List<Class<?>> key : delegateConstructors.keySet()) {
+            for (Class<?> cls : key) {
+                Bundle owner = FrameworkUtil.getBundle(cls);
+                if ((owner != null) && (owner.getBundleId() == b.getBundleId())) {
+                    debug("DelegateClassGenerator discarding delegate class for ", key);
+                    delegateConstructors.remove(key);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Discard all of the generated classes
+     */
+    public void clear() { delegateConstructors.clear(); }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    protected List<Class<?>> keyFor(Class<?> superclass, Class<?>[] interfaces) {
+        List<Class<?>> sorted = new ArrayList<Class<?>>(Arrays.asList(interfaces));
+        Collections.sort(sorted, BY_NAME);
+        List<Class<?>> key = new ArrayList<Class<?>>(interfaces.length + 1);
+        key.add(superclass);
+        key.addAll(sorted);
+        return key;
+    }
+
+    /**
+     * Generate and define a class for the given key.
+     * 
+     * @param key the superclass followed by the interfaces
+     */
+    protected Class<?> generateDelegateClass(List<Class<?>> key) {
+
+        Class<?> superclass = key.get(0);
+        List<Class<?>> interfaces = key.subList(1, key.size());
+        String superName = Type.getInternalName(superclass);
+        String className = superName + DELEGATE_CLASS_SUFFIX + classCount.incrementAndGet();
+        debug("DelegateClassGenerator generating ", className, " for ", key);
+
+        String[] interfaceNames = new String[interfaces.size()];
+        for (int i=0; i<interfaceNames.length; i++)
+            interfaceNames[i] = Type.getInternalName(interfaces.get(i));
+
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        final int CLASS_ACCESS = Opcodes.ACC_PUBLIC + Opcodes.ACC_FINAL + Opcodes.ACC_SUPER;
+        writer.visit(Opcodes.V1_5, CLASS_ACCESS, className, null, superName, interfaceNames);
+
+        // Constructor just passes the handler up to the superclass
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", CONSTRUCTOR_DESC, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 1);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", CONSTRUCTOR_DESC);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        // Generate a dispatching method for each one the superclass leaves unimplemented
+        Set<String> generated = new HashSet<String>();
+        for (Class<?> cls : interfaces) {
+            for (Method m : cls.getMethods()) {
+                if (!Modifier.isAbstract(m.getModifiers()) || isImplemented(superclass, m))
+                    continue;
+                if (generated.add(m.getName() + Type.getMethodDescriptor(m)))
+                    generateDispatchMethod(writer, className, m);
+            }
+        }
+        writer.visitEnd();
+
+        DelegateClassLoader loader = new DelegateClassLoader(superclass, interfaces);
+        return loader.defineDelegateClass(className.replace('/', '.'), writer.toByteArray());
+    }
+
+    // Generate: try {
+    //               return ((DeclaringInterface)target()).method(args...)
+    //           } catch (Throwable t) { 
+    //               throw callFailed("method", t); 
+    //           }
+    // where, for createEntityManager methods, the call is: 
+    //         return (EntityManager) entityManagerCreated(((DeclaringInterface)target()).method(args...))
+    protected void generateDispatchMethod(ClassWriter writer, String className, Method m) {
+
+        String desc = Type.getMethodDescriptor(m);
+        Class<?>[] exTypes = m.getExceptionTypes();
+        String[] exceptions = new String[exTypes.length];
+        for (int i=0; i<exTypes.length; i++)
+            exceptions[i] = Type.getInternalName(exTypes[i]);
+        String owner = Type.getInternalName(m.getDeclaringClass());
+
+        boolean createsEM = m.getName().equals(CREATE_EM_METHOD) && !m.getReturnType().isPrimitive();
+
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC, m.getName(), desc, null, exceptions);
+        mv.visitCode();
+        Label tryStart = new Label();
+        Label tryEnd = new Label();
+        Label handler = new Label();
+        mv.visitTryCatchBlock(tryStart, tryEnd, handler, THROWABLE_NAME);
+        mv.visitLabel(tryStart);
+        if (createsEM)
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, className, "target", TARGET_DESC);
+        mv.visitTypeInsn(Opcodes.CHECKCAST, owner);
+        int slot = 1;
+        for (Type argType : Type.getArgumentTypes(m)) {
+            mv.visitVarInsn(argType.getOpcode(Opcodes.ILOAD), slot);
+            slot += argType.getSize();
+        }
+        mv.visitMethodInsn(Opcodes.INVOKEINTERFACE, owner, m.getName(), desc);
+        if (createsEM) {
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, className, "entityManagerCreated", EM_CREATED_DESC);
+            mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getInternalName(m.getReturnType()));
+        }
+        mv.visitInsn(Type.getReturnType(m).getOpcode(Opcodes.IRETURN));
+        mv.visitLabel(tryEnd);
+
+        // The exception goes in the first local after the arguments
+        mv.visitLabel(handler);
+        mv.visitVarInsn(Opcodes.ASTORE, slot);
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitLdcInsn(m.getName());
+        mv.visitVarInsn(Opcodes.ALOAD, slot);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, className, "callFailed", CALL_FAILED_DESC);
+        mv.visitInsn(Opcodes.ATHROW);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    // Return whether the superclass has a concrete implementation of the method
+    protected boolean isImplemented(Class<?> superclass, Method m) {
+        try {
+            Method impl = superclass.getMethod(m.getName(), m.getParameterTypes());
+            return !Modifier.isAbstract(impl.getModifiers());
+        } catch (NoSuchMethodException nsmEx) {
+            return false;
+        }
+    }
+
+    /*===============*/
+    /* Inner classes */
+    /*===============*/
+
+    /**
+     * Loader that defines a generated class. The superclass and interfaces are 
+     * returned as they are (they may come from different bundles) and everything 
+     * else is loaded by the loader of the service interface, so the types in the 
+     * method signatures are the same ones the service interface refers to.
+     */
+    static class DelegateClassLoader extends ClassLoader {
+
+        Map<String, Class<?>> knownClasses = new HashMap<String, Class<?>>();
+
+        DelegateClassLoader(Class<?> superclass, List<Class<?>> interfaces) {
+            super(serviceLoader(superclass, interfaces));
+            for (Class<?> cls = superclass; cls != null; cls = cls.getSuperclass())
+                knownClasses.put(cls.getName(), cls);
+            for (Class<?> cls : interfaces)
+                knownClasses.put(cls.getName(), cls);
+        }
+
+        // The loader of the (non-anchor) service interface, or ours if it has none
+        static ClassLoader serviceLoader(Class<?> superclass, List<Class<?>> interfaces) {
+            for (Class<?> cls : interfaces) {
+                if (cls.isAssignableFrom(superclass) && (cls.getClassLoader() != null))
+                    return cls.getClassLoader();
+            }
+            return superclass.getClassLoader();
+        }
+
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            Class<?> cls = knownClasses.get(name);
+            return (cls != null) ? cls : super.loadClass(name, resolve);
+        }
+
+        Class<?> defineDelegateClass(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import java.util.Map;
+
+import javax.persistence.EntityManagerFactory;
+
+import org.osgi.service.jpa.EntityManagerFactoryBuilder;
+
+/**
+ * Superclass of the generated EMFBuilder service classes. The generated 
+ * subclasses only add the anchor interfaces since the one builder method 
+ * is implemented here.
+ */
+public abstract class EMFBuilderServiceDelegate extends ServiceDelegate 
+                                                implements EntityManagerFactoryBuilder {
+
+    protected EMFBuilderServiceDelegate(EMFServiceProxyHandler handler) { super(handler); }
+
+    // There are no other methods to dispatch (the anchor interfaces are empty)
+    protected Object target() { return handler; }
+
+    /*=====================================*/
+    /* EntityManagerFactoryBuilder methods */
+    /*=====================================*/
+
+    // Declared raw since some versions of the interface declare it that way
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public EntityManagerFactory createEntityManagerFactory(Map props) {
+        return ((EMFBuilderServiceProxyHandler) handler).createEntityManagerFactory(props);
+    }
+}
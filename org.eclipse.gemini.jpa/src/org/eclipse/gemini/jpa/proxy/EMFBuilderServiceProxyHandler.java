@@ -38,10 +38,18 @@ public class EMFBuilderServiceProxyHandler extends EMFServiceProxyHandler
 
     // Keep around a copy of the props used to create an EMF through the EMF builder
     Map<String,Object> emfProps = new HashMap<String,Object>();
+
+    // Cache of EMFs for connection properties other than those of the shared EMF (null if not enabled)
+    EMFCache emfCache;
             
     public EMFBuilderServiceProxyHandler(PUnitInfo pUnitInfo,
                                          EMFServiceProxyHandler emfService) {
         super(pUnitInfo);
+        if (pUnitInfo.isEmfCache()) {
+            emfCache = new EMFCache(this, 
+                                    pUnitInfo.getEmfCacheMaxSize(), 
+                                    pUnitInfo.getEmfCacheMaxIdle());
+        }
     }
 
     /*=========================*/
@@ -72,6 +80,35 @@ public class EMFBuilderServiceProxyHandler extends EMFServiceProxyHandler
             warning("EMFBuilderProxy cannot handle method ", method.getName());
             return null;
         }
+        return createEntityManagerFactory(props);
+    }
+
+    /*========================*/
+    /* EMFBuilder API methods */
+    /*========================*/
+
+    /**
+     * Return an EMF for the p-unit, creating it if necessary. This is what 
+     * a createEntityManagerFactory(Map) call on the EMFBuilder service does.
+     * 
+     * @param props the properties passed in by the caller
+     * 
+     * @return the shared EMF, or an unmanaged one if an EclipseLink session name was passed in
+     */
+    public EntityManagerFactory createEntityManagerFactory(Map<String,Object> props) {
+        long start = startCall();
+        boolean failed = true;
+        try {
+            EntityManagerFactory emf = getOrCreateEMF(props);
+            failed = false;
+            return emf;
+        } finally {
+            endCall("builder.createEntityManagerFactory", start, failed);
+        }
+    }
+
+    // Does the work of createEntityManagerFactory()
+    protected EntityManagerFactory getOrCreateEMF(Map<String,Object> props) {
         
         // If EclipseLink SESSION_NAME property specified then just create and return an EMF
         // NOTE: This will return an EMF that is not managed by Gemini.
@@ -96,6 +133,11 @@ public class EMFBuilderServiceProxyHandler extends EMFServiceProxyHandler
         // Check if an EMF already exists 
         if (emf != null) {
 
+            // If the JDBC properties differ from the shared EMF then use (or create) a cached EMF
+            if ((emfCache != null) && !matchesSharedEMF(props)) {
+                return emfCache.getEMF(props);
+            }
+
             // Verify the JDBC properties match the ones that may have been previously passed in
             verifyJDBCProperties((String) emfProps.get(JPA_JDBC_DRIVER_PROPERTY),
                                  (String) emfProps.get(JPA_JDBC_URL_PROPERTY),
@@ -111,6 +153,9 @@ public class EMFBuilderServiceProxyHandler extends EMFServiceProxyHandler
             verifyJDBCProperties(pUnitInfo.getDriverClassName(), 
                                  pUnitInfo.getDriverUrl(), 
                                  props);
+            // The caller gets the EMF itself so it must no longer be closed when idle
+            if (usageTracker != null) 
+                usageTracker.emfExposed(emf);
             return emf;
         } else {
             // No EMF service existed; create another 
@@ -128,20 +173,45 @@ public class EMFBuilderServiceProxyHandler extends EMFServiceProxyHandler
         return super.createEMF(props);
     }
 
+    // Create an EMF for the EMF cache, leaving the props of the shared EMF alone
+    EntityManagerFactory createCachedEMF(Map<String,Object> props) {
+        return super.createEMF(props);
+    }
+
+    public EMFCache getEMFCache() { return emfCache; }
+
+    // Return whether the JDBC properties in the Map are compatible with the shared EMF
+    protected boolean matchesSharedEMF(Map<String,Object> props) {
+        if (!matchesJDBCProperties((String) emfProps.get(JPA_JDBC_DRIVER_PROPERTY),
+                                   (String) emfProps.get(JPA_JDBC_URL_PROPERTY),
+                                   props))
+            return false;
+        return pUnitInfo.isEmfSetByBuilderService() ||
+               matchesJDBCProperties(pUnitInfo.getDriverClassName(), pUnitInfo.getDriverUrl(), props);
+    }
+
     // Local method to compare properties passed in Map to ones in persistence descriptor or in previously set props
     protected void verifyJDBCProperties(String driver, String driverUrl, Map<String,Object> props) {
 
+        if (!matchesJDBCProperties(driver, driverUrl, props)) {
+            throw new IllegalArgumentException();
+        }
+    }
+
+    protected boolean matchesJDBCProperties(String driver, String driverUrl, Map<String,Object> props) {
+
         if (driver != null) {
             String propDriver = (String) props.get(JPA_JDBC_DRIVER_PROPERTY);
             if ((propDriver != null) && !driver.equals(propDriver)) {
-                throw new IllegalArgumentException();
+                return false;
             }
         }
         if (driverUrl != null) {
             String propUrl = (String) props.get(JPA_JDBC_URL_PROPERTY);
             if ((propUrl != null) && !driverUrl.equals(propUrl)) {
-                throw new IllegalArgumentException();
+                return false;
             }
         }
+        return true;
     }
 }        
@@ -0,0 +1,432 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.JPA_JDBC_DRIVER_PROPERTY;
+import static org.eclipse.gemini.jpa.GeminiUtil.JPA_JDBC_PASSWORD_PROPERTY;
+import static org.eclipse.gemini.jpa.GeminiUtil.JPA_JDBC_URL_PROPERTY;
+import static org.eclipse.gemini.jpa.GeminiUtil.JPA_JDBC_USER_PROPERTY;
+import static org.eclipse.gemini.jpa.GeminiUtil.OSGI_JDBC_DRIVER_VERSION_PROPERTY;
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.gemini.jpa.eclipselink.EclipseLinkProvider;
+
+/**
+ * Bounded cache of the additional EMFs that the EMFBuilder service creates 
+ * for a p-unit when it is asked for an EMF with connection properties that 
+ * differ from those of the shared EMF.
+ * 
+ * EMFs are keyed by the normalized values of the connection properties. Each 
+ * key has its own entry and lock, so EMFs for different keys can be created at 
+ * the same time, and callers asking for a key whose EMF is being created wait 
+ * only for that one. 
+ * 
+ * Callers do not get the cached EMF itself but a proxy for it. Each call on the 
+ * proxy marks the entry as used, and if the entry has been evicted in the 
+ * meantime the proxy gets (or creates) the EMF for its key again. The entry is 
+ * in use while a call is being made and while an EntityManager created through 
+ * the proxy is open (the EntityManagers are kept track of, not wrapped), and 
+ * an entry that is in use is never evicted. Closing the 
+ * proxy only closes it for that caller; the cached EMF belongs to the cache.
+ * 
+ * When the cache grows beyond its maximum size the least recently used EMF 
+ * that is not in use is evicted, and EMFs that have not been used within the 
+ * idle time are evicted as well. Evicted EMFs are closed. The least recently 
+ * used entry is only looked for when the cache is over size, and idle entries 
+ * at most every half of the idle time, so getting a cached EMF does not go 
+ * through all of the entries.
+ */
+public class EMFCache {
+
+    /*==================*/
+    /* Static constants */
+    /*==================*/
+
+    // Properties that determine which database an EMF connects to
+    public static final String[] CONNECTION_PROPERTIES = {
+        JPA_JDBC_DRIVER_PROPERTY,
+        JPA_JDBC_URL_PROPERTY,
+        JPA_JDBC_USER_PROPERTY,
+        JPA_JDBC_PASSWORD_PROPERTY,
+        OSGI_JDBC_DRIVER_VERSION_PROPERTY,
+        "javax.persistence.nonJtaDataSource",
+        "javax.persistence.jtaDataSource"
+    };
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    // The handler of the builder service that the cache belongs to
+    EMFBuilderServiceProxyHandler handler;
+
+    int maxSize;
+    long maxIdleMillis;
+
+    // Cache entries keyed by normalized connection properties
+    ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    // Used to give each cached EMF its own EclipseLink session name
+    AtomicInteger sessionCount = new AtomicInteger();
+
+    // Time at which idle entries are next looked for
+    AtomicLong nextIdleCheck = new AtomicLong();
+
+    AtomicLong hits = new AtomicLong();
+    AtomicLong misses = new AtomicLong();
+    AtomicLong evictions = new AtomicLong();
+
+    volatile boolean closed;
+
+    /*==============*/
+    /* Constructors */
+    /*==============*/
+
+    public EMFCache(EMFBuilderServiceProxyHandler handler, int maxSize, long maxIdleMillis) {
+        this.handler = handler;
+        this.maxSize = Math.max(1, maxSize);
+        this.maxIdleMillis = maxIdleMillis;
+        this.nextIdleCheck.set(System.currentTimeMillis() + idleCheckInterval());
+    }
+
+    /*=============*/
+    /* API methods */
+    /*=============*/
+
+    /**
+     * Return a proxy for the cached EMF for the connection properties passed in, 
+     * creating the EMF if it is not cached (or the cached one was closed).
+     * 
+     * @param props the properties passed to the EMFBuilder service
+     */
+    public EntityManagerFactory getEMF(Map<String,Object> props) {
+        String key = keyFor(props);
+        Map<String,Object> emfProps = new HashMap<String,Object>(props);
+        // Get the EMF now so that any failure to create it goes back to the caller
+        Entry entry = acquire(key, emfProps, true);
+        EntityManagerFactory emf;
+        try {
+            emf = entryEMF(entry);
+        } finally {
+            release(entry);
+        }
+        if (entries.size() > maxSize) {
+            evictIfNecessary(key);
+        } else {
+            evictIdleIfDue();
+        }
+        return (EntityManagerFactory) Proxy.newProxyInstance(
+                emf.getClass().getClassLoader(), 
+                interfacesOf(emf.getClass()), 
+                new CachedEMF(key, emfProps));
+    }
+
+    /**
+     * Close all of the cached EMFs. Called when the builder service is unregistered.
+     */
+    public void close() {
+        closed = true;
+        for (String key : entries.keySet()) {
+            Entry entry = entries.remove(key);
+            if (entry != null)
+                closeEntry(entry);
+        }
+        debug("EMFCache closed for ", handler.pUnitInfo.getUnitName(), " ", this);
+    }
+
+    public long getHits() { return hits.get(); }
+    public long getMisses() { return misses.get(); }
+    public long getEvictions() { return evictions.get(); }
+    public int size() { return entries.size(); }
+
+    public String toString() {
+        return "EMFCache(size=" + size() + "/" + maxSize + ", hits=" + getHits() + 
+               ", misses=" + getMisses() + ", evictions=" + getEvictions() + ")";
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    /**
+     * Return a key made up of the connection properties that are present, 
+     * in a fixed order and with values trimmed.
+     */
+    public static String keyFor(Map<String,Object> props) {
+        Map<String,String> connectionProps = new TreeMap<String,String>();
+        for (String name : CONNECTION_PROPERTIES) {
+            Object value = props.get(name);
+            if (value != null)
+                connectionProps.put(name, String.valueOf(value).trim());
+        }
+        return connectionProps.toString();
+    }
+
+    /**
+     * Return the entry for the key with an open EMF in it, creating the EMF if 
+     * necessary, and mark the entry as in use. The caller must release it.
+     * 
+     * @param countHit whether finding the EMF in the cache counts as a cache hit
+     */
+    protected Entry acquire(String key, Map<String,Object> props, boolean countHit) {
+        while (true) {
+            if (closed)
+                throw new IllegalStateException("EMFBuilder service for " + 
+                        handler.pUnitInfo.getUnitName() + " is no longer registered");
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                Entry newEntry = new Entry();
+                entry = entries.putIfAbsent(key, newEntry);
+                if (entry == null)
+                    entry = newEntry;
+            }
+            synchronized (entry) {
+                // It may have been evicted between being looked up and being locked
+                if (entry.evicted || (entries.get(key) != entry))
+                    continue;
+                // close() may have gone through the entries before this one was added
+                if (closed) {
+                    entries.remove(key, entry);
+                    entry.evicted = true;
+                    continue;
+                }
+                if ((entry.emf != null) && entry.emf.isOpen()) {
+                    if (countHit) 
+                        hits.incrementAndGet();
+                } else {
+                    misses.incrementAndGet();
+                    try {
+                        entry.emf = createEMF(props);
+                    } catch (RuntimeException rtEx) {
+                        entries.remove(key, entry);
+                        entry.evicted = true;
+                        throw rtEx;
+                    }
+                }
+                entry.users++;
+                entry.lastUsed = System.currentTimeMillis();
+                return entry;
+            }
+        }
+    }
+
+    // Return the EMF of an entry that is in use (only null if the cache has been closed)
+    protected EntityManagerFactory entryEMF(Entry entry) {
+        EntityManagerFactory emf = entry.emf;
+        if (emf == null)
+            throw new IllegalStateException("EMFBuilder service for " + 
+                    handler.pUnitInfo.getUnitName() + " is no longer registered");
+        return emf;
+    }
+
+    // Record that a call on the EMF is finished
+    protected void release(Entry entry) {
+        synchronized (entry) {
+            entry.users--;
+            entry.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    // Create an EMF with its own session, so that EclipseLink does not share one between keys
+    protected EntityManagerFactory createEMF(Map<String,Object> props) {
+        Map<String,Object> emfProps = new HashMap<String,Object>(props);
+        String sessionName = handler.pUnitInfo.getUnitName() + "#" + sessionCount.incrementAndGet();
+        EclipseLinkProvider.setSessionName(emfProps, sessionName);
+        debug("EMFCache creating EMF with session ", sessionName);
+        return handler.createCachedEMF(emfProps);
+    }
+
+    // Return all of the interfaces implemented by the class and its superclasses
+    static Class<?>[] interfacesOf(Class<?> target) {
+        Collection<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+        for (Class<?> cls = target; cls != null; cls = cls.getSuperclass())
+            for (Class<?> i : cls.getInterfaces())
+                interfaces.add(i);
+        return interfaces.toArray(new Class<?>[interfaces.size()]);
+    }
+
+    protected long idleCheckInterval() {
+        return Math.max(maxIdleMillis / 2, 1);
+    }
+
+    // Evict the idle entries if it is time to look for them again
+    protected void evictIdleIfDue() {
+        long now = System.currentTimeMillis();
+        long due = nextIdleCheck.get();
+        if ((now >= due) && nextIdleCheck.compareAndSet(due, now + idleCheckInterval()))
+            evictIdle(null, now);
+    }
+
+    // Evict idle entries, then the least recently used ones while there are too many
+    protected void evictIfNecessary(String justUsed) {
+        long now = System.currentTimeMillis();
+        nextIdleCheck.set(now + idleCheckInterval());
+        evictIdle(justUsed, now);
+        while (entries.size() > maxSize) {
+            String lruKey = null;
+            Entry lruEntry = null;
+            for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                if (!mapEntry.getKey().equals(justUsed) && !entry.isInUse() && 
+                        ((lruEntry == null) || (entry.lastUsed < lruEntry.lastUsed))) {
+                    lruKey = mapEntry.getKey();
+                    lruEntry = entry;
+                }
+            }
+            // Everything else is in use, so the cache stays over size until some are released
+            if ((lruEntry == null) || !evict(lruKey, lruEntry, Long.MAX_VALUE))
+                break;
+        }
+    }
+
+    protected void evictIdle(String justUsed, long now) {
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            Entry entry = mapEntry.getValue();
+            if (!mapEntry.getKey().equals(justUsed) && (now - entry.lastUsed) > maxIdleMillis)
+                evict(mapEntry.getKey(), entry, now - maxIdleMillis);
+        }
+    }
+
+    /**
+     * Evict the entry if it is not in use and was last used before the given time.
+     * Return whether it was evicted.
+     */
+    protected boolean evict(String key, Entry entry, long usedBefore) {
+        synchronized (entry) {
+            if (entry.evicted || entry.isInUse() || (entry.lastUsed >= usedBefore) 
+                    || !entries.remove(key, entry))
+                return false;
+            entry.evicted = true;
+        }
+        evictions.incrementAndGet();
+        closeEntry(entry);
+        return true;
+    }
+
+    protected void closeEntry(Entry entry) {
+        synchronized (entry) {
+            entry.evicted = true;
+            try {
+                if ((entry.emf != null) && entry.emf.isOpen()) 
+                    entry.emf.close();
+            } catch (RuntimeException rtEx) {
+                warning("EMFCache error closing EMF for " + handler.pUnitInfo.getUnitName() + ": ", rtEx);
+            }
+            entry.emf = null;
+        }
+    }
+
+    /*===============*/
+    /* Inner classes */
+    /*===============*/
+
+    /**
+     * A cached EMF and its usage. The EMF is only replaced or closed while 
+     * holding the entry lock, and never while the entry is in use (unless 
+     * the whole cache is being closed).
+     */
+    static class Entry {
+        volatile EntityManagerFactory emf;
+        volatile long lastUsed = System.currentTimeMillis();
+        // Number of calls in progress (guarded by the entry)
+        int users;
+        // Set once the entry has been taken out of the cache (guarded by the entry)
+        boolean evicted;
+        // EntityManagers created from the EMF
+        OpenEntityManagers entityManagers = new OpenEntityManagers();
+
+        // An entry with open EntityManagers is in use, so it is not idle either
+        synchronized boolean isInUse() { 
+            if (users > 0)
+                return true;
+            if (entityManagers.count() == 0)
+                return false;
+            lastUsed = System.currentTimeMillis();
+            return true;
+        }
+    }
+
+    /**
+     * The EMF given to the callers of the EMFBuilder service. Calls are passed 
+     * to the cached EMF for its key, and the EntityManagers it creates keep the 
+     * entry in use until they are closed (or dropped and garbage collected).
+     */
+    class CachedEMF implements InvocationHandler {
+
+        String key;
+        Map<String,Object> props;
+        volatile boolean emfClosed;
+
+        CachedEMF(String key, Map<String,Object> props) {
+            this.key = key;
+            this.props = props;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String methodName = method.getName();
+            int paramCount = method.getParameterTypes().length;
+            if (methodName.equals("equals") && (paramCount == 1))
+                return proxy == args[0];
+            if (methodName.equals("hashCode") && (paramCount == 0))
+                return System.identityHashCode(proxy);
+            if (methodName.equals("toString") && (paramCount == 0))
+                return "CachedEMF(" + handler.pUnitInfo.getUnitName() + ")";
+            if (methodName.equals("isOpen") && (paramCount == 0))
+                return !emfClosed && !closed;
+            if (methodName.equals("close") && (paramCount == 0)) {
+                emfClosed = true;
+                return null;
+            }
+            if (emfClosed)
+                throw new IllegalStateException("EntityManagerFactory has been closed");
+
+            Entry entry = acquire(key, props, false);
+            try {
+                EntityManagerFactory emf = entryEMF(entry);
+                Object result;
+                try {
+                    result = method.invoke(emf, args);
+                } catch (InvocationTargetException itEx) {
+                    throw itEx.getCause();
+                }
+                if (result instanceof EntityManager) {
+                    // The entry stays in use until the EntityManager is closed
+                    entry.entityManagers.add((EntityManager) result);
+                }
+                return result;
+            } finally {
+                release(entry);
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.metamodel.Metamodel;
+
+/**
+ * Superclass of the generated EMF service classes. Most of the EMF methods 
+ * are generated to call straight through to the shared EMF of the p-unit. 
+ * The ones that need to do more than that are implemented here.
+ */
+public abstract class EMFServiceDelegate extends ServiceDelegate implements EntityManagerFactory {
+
+    protected EMFServiceDelegate(EMFServiceProxyHandler handler) { super(handler); }
+
+    // Get the EMF (setting a new one if one does not already exist)
+    protected Object target() { return handler.getEMF(); }
+
+    /*==============================*/
+    /* EntityManagerFactory methods */
+    /*==============================*/
+
+    /* NOTE: Allow close() to pass through in order for users to close the EMF. */
+    /* This means that any user that closes an EMF will cause it to be closed   */
+    /* for all other service references of the EMF service.                     */
+    public void close() {
+        try {
+            EntityManagerFactory emf = (EntityManagerFactory) target();
+            emf.close();
+            // If the EMF got closed then chuck our reference away
+            if (!emf.isOpen()) {
+                handler.syncUnsetEMF();
+            }
+        } catch (RuntimeException rtEx) {
+            throw callFailed("close", rtEx);
+        }
+    }
+
+    // Add in a PUnitInfo entry
+    public Map<String,Object> getProperties() {
+        try {
+            return handler.getProperties((EntityManagerFactory) target());
+        } catch (RuntimeException rtEx) {
+            throw callFailed("getProperties", rtEx);
+        }
+    }
+
+    // The following are timed when statistics are being collected (not including
+    // the time taken to create the EMF, which is recorded separately)
+
+    public EntityManager createEntityManager() {
+        try {
+            EntityManagerFactory emf = (EntityManagerFactory) target();
+            long start = handler.startCall();
+            boolean failed = true;
+            try {
+                EntityManager em = emf.createEntityManager();
+                failed = false;
+                return (EntityManager) entityManagerCreated(em);
+            } finally {
+                handler.endCall("createEntityManager", start, failed);
+            }
+        } catch (RuntimeException rtEx) {
+            throw callFailed("createEntityManager", rtEx);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    public EntityManager createEntityManager(Map map) {
+        try {
+            EntityManagerFactory emf = (EntityManagerFactory) target();
+            long start = handler.startCall();
+            boolean failed = true;
+            try {
+                EntityManager em = emf.createEntityManager(map);
+                failed = false;
+                return (EntityManager) entityManagerCreated(em);
+            } finally {
+                handler.endCall("createEntityManager", start, failed);
+            }
+        } catch (RuntimeException rtEx) {
+            throw callFailed("createEntityManager", rtEx);
+        }
+    }
+
+    public CriteriaBuilder getCriteriaBuilder() {
+        try {
+            EntityManagerFactory emf = (EntityManagerFactory) target();
+            long start = handler.startCall();
+            boolean failed = true;
+            try {
+                CriteriaBuilder cb = emf.getCriteriaBuilder();
+                failed = false;
+                return cb;
+            } finally {
+                handler.endCall("getCriteriaBuilder", start, failed);
+            }
+        } catch (RuntimeException rtEx) {
+            throw callFailed("getCriteriaBuilder", rtEx);
+        }
+    }
+
+    public Metamodel getMetamodel() {
+        try {
+            EntityManagerFactory emf = (EntityManagerFactory) target();
+            long start = handler.startCall();
+            boolean failed = true;
+            try {
+                Metamodel metamodel = emf.getMetamodel();
+                failed = false;
+                return metamodel;
+            } finally {
+                handler.endCall("getMetamodel", start, failed);
+            }
+        } catch (RuntimeException rtEx) {
+            throw callFailed("getMetamodel", rtEx);
+        }
+    }
+}
@@ -17,9 +17,12 @@ package org.eclipse.gemini.jpa.proxy;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.spi.PersistenceProvider;
 
@@ -27,6 +30,7 @@ import org.osgi.framework.Bundle;
 import org.osgi.framework.ServiceFactory;
 import org.osgi.framework.ServiceRegistration;
 
+import org.eclipse.gemini.jpa.GeminiSystemProperties;
 import org.eclipse.gemini.jpa.PUnitInfo;
 
 import static org.eclipse.gemini.jpa.GeminiUtil.*;
@@ -39,6 +43,22 @@ public class EMFServiceProxyHandler implements InvocationHandler, ServiceFactory
     
     PUnitInfo pUnitInfo;
     
+    // Unmodifiable merged view of the EMF properties and the PUnitInfo entry
+    volatile PropertiesSnapshot propertiesSnapshot;
+
+    // Bumped each time the properties are invalidated, so that a snapshot that 
+    // was still being built at the time is not used afterwards
+    final AtomicInteger propertiesGeneration = new AtomicInteger();
+
+    // The object (proxy or delegate) handed out to the bundles that get the service
+    Object serviceObject;
+
+    // Tracks the bundles that use the service (may be null if not tracked)
+    EMFUsageTracker usageTracker;
+
+    // Call statistics for the p-unit (may be null if not collected)
+    EMFStatistics.UnitStatistics statistics;
+    
     public EMFServiceProxyHandler(PUnitInfo pUnitInfo) { this.pUnitInfo = pUnitInfo; }
     
     /*=========================*/
@@ -46,12 +66,13 @@ public class EMFServiceProxyHandler implements InvocationHandler, ServiceFactory
     /*=========================*/
     
     // Will only get calls for the methods on the EntityManagerFactory interface
-    @SuppressWarnings({"unchecked"})
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
 
         Object result = null;
         try {
-            debug("EMFProxy invocation on method ", method.getName());
+            // Check first so that the varargs array is not allocated on every call
+            if (GeminiSystemProperties.debug())
+                debug("EMFProxy invocation on method ", method.getName());
     
             /* NOTE: Allow close() to pass through in order for users to close the EMF. */
             /* This means that any user that closes an EMF will cause it to be closed   */
@@ -70,21 +91,27 @@ public class EMFServiceProxyHandler implements InvocationHandler, ServiceFactory
             /*===========================================================================*/
     
             // Get the EMF (setting a new one if one does not already exist)
-            EntityManagerFactory emf = syncGetEMFAndSetIfAbsent(false, 
-                                                                new HashMap<String,Object>());
-            // Invoke the EMF method that was called
-            result = method.invoke(emf, args);
-            
-            // If it was a getProperties() method then add in a PUnitInfo entry
+            EntityManagerFactory emf = getEMF();
+            // If it was a getProperties() method then return the properties with a PUnitInfo entry
             if (method.getName().equals("getProperties")) {
-                Map<String,Object> resultMap = new HashMap<String,Object>();
-                resultMap.putAll((Map<String,Object>)result);
-                resultMap.put("PUnitInfo", pUnitInfo.toMap());
-                result = resultMap;
+                return getProperties(emf);
+            }
+
+            // Invoke the EMF method that was called
+            long start = startCall();
+            try {
+                result = method.invoke(emf, args);
+            } catch (InvocationTargetException itEx) {
+                endCall(method.getName(), start, true);
+                throw itEx;
+            }
+            endCall(method.getName(), start, false);
+            if (method.getName().equals("createEntityManager")) {
+                result = entityManagerCreated(result);
             }
             
             // If the operation was to close the EMF then chuck our reference away
-            if (!emf.isOpen()) {
+            if (method.getName().equals("close") && !emf.isOpen()) {
                 syncUnsetEMF();
             }
         // Bug #401944 Catch InvocationTargetEx and get cause. Rethrow exception.
@@ -103,54 +130,184 @@ public class EMFServiceProxyHandler implements InvocationHandler, ServiceFactory
     /*========================*/
 
     public Object getService(Bundle b, ServiceRegistration serviceReg) {
-        // TODO Track client bundles that use this service and clean up if they leave
-        return this;
+        if (usageTracker != null)
+            usageTracker.clientAcquired(b);
+        return serviceObject;
     }
     
     public void ungetService(Bundle b, ServiceRegistration serviceReg, Object obj) {
-        // EMF is shared, leave as is until the p-unit or the provider goes away
-        // and the service is unregistered
+        // EMF is shared, so it is only released once no bundles are using it
+        // (and then only if the tracker has been configured to release it)
+        if (usageTracker != null)
+            usageTracker.clientReleased(b);
+    }
+
+    public Object getServiceObject() { return serviceObject; }
+    public void setServiceObject(Object obj) { this.serviceObject = obj; }
+
+    public EMFUsageTracker getUsageTracker() { return usageTracker; }
+    public void setUsageTracker(EMFUsageTracker tracker) { this.usageTracker = tracker; }
+
+    public EMFStatistics.UnitStatistics getStatistics() { return statistics; }
+    public void setStatistics(EMFStatistics.UnitStatistics statistics) { this.statistics = statistics; }
+
+    /**
+     * Return the start time of a call to be timed, or EMFStatistics.NOT_TIMED 
+     * if it is not to be timed
+     */
+    public long startCall() {
+        EMFStatistics.UnitStatistics stats = statistics;
+        return (stats == null) ? EMFStatistics.NOT_TIMED : stats.start();
+    }
+
+    /**
+     * Record a timed call, given the time returned by startCall()
+     */
+    public void endCall(String operation, long start, boolean failed) {
+        if (start != EMFStatistics.NOT_TIMED)
+            statistics.record(operation, start, failed);
     }
     
+    /**
+     * Log a call on the EMF service that failed, before it is thrown to the caller
+     */
+    public void callFailed(String methodName, Throwable t) {
+        warning("EMFProxy invocation on target method " + methodName + " failed with cause: ", t);
+    }
+
     /*================*/
     /* Helper methods */
     /*================*/
 
-    // Return the EMF from the shared PUnitInfo, or null if none exists there
+    /**
+     * Return the shared EMF of the p-unit, creating it (with no properties) if 
+     * there isn't one. This is called on every call to the EMF service, so once 
+     * the EMF exists it is just a read of the volatile EMF field in the PUnitInfo. 
+     * Nothing is allocated and no lock is taken unless the EMF has to be created.
+     */
+    public EntityManagerFactory getEMF() {
+        if (usageTracker != null)
+            usageTracker.touch();
+        EntityManagerFactory emf = pUnitInfo.getEmf();
+        if (emf != null)
+            return emf;
+        return syncGetEMFAndSetIfAbsent(false, new HashMap<String,Object>());
+    }
+
+    // Return the EMF from the shared PUnitInfo, creating and setting one if none exists there
     public EntityManagerFactory syncGetEMFAndSetIfAbsent(boolean setByBuilderService,
                                                          Map<String,Object> props) {
-        debug("EMFProxy - getEMF for punit ", pUnitInfo.getUnitName(), " emf=", pUnitInfo.getEmf());
-        if (pUnitInfo.getEmf() == null) {
-            synchronized(pUnitInfo) {
-                // Check again while holding the mutex
-                if (pUnitInfo.getEmf() == null) {
-                    pUnitInfo.setEmf(this.createEMF(props));
-                    pUnitInfo.setEmfSetByBuilderService(setByBuilderService);
-                }
+        EntityManagerFactory emf = pUnitInfo.getEmf();
+        if (emf != null)
+            return emf;
+        synchronized(pUnitInfo) {
+            debug("EMFProxy - getEMF for punit ", pUnitInfo.getUnitName(), " emf=", pUnitInfo.getEmf());
+            // Check again while holding the mutex
+            emf = pUnitInfo.getEmf();
+            if (emf == null) {
+                emf = this.createEMF(props);
+                // Set the flag first so that anyone who sees the EMF sees the flag as well
+                pUnitInfo.setEmfSetByBuilderService(setByBuilderService);
+                pUnitInfo.setEmf(emf);
             }
+            return emf;
         }
-        return pUnitInfo.getEmf();
     }
 
     // Set the EMF to null if one exists. Return the one that was there.
     public EntityManagerFactory syncUnsetEMF() {
-        debug("EMFProxy - unsetting EMF for punit ", pUnitInfo.getUnitName(), " emf=", pUnitInfo.getEmf());
         synchronized(pUnitInfo) {
+            debug("EMFProxy - unsetting EMF for punit ", pUnitInfo.getUnitName(), " emf=", pUnitInfo.getEmf());
             EntityManagerFactory emf = pUnitInfo.getEmf(); 
             pUnitInfo.setEmf(null);
+            invalidateProperties();
             return emf;
         }
     }
 
+    /**
+     * Called with each EntityManager created through the EMF service. Returns 
+     * the EntityManager to hand back to the caller, which is the one passed in
+     * (the tracker keeps track of it without wrapping it).
+     */
+    public Object entityManagerCreated(Object em) {
+        if (usageTracker != null)
+            usageTracker.trackEntityManager((EntityManager) em);
+        return em;
+    }
+
+    /**
+     * Return the properties of the given EMF with a PUnitInfo entry added.
+     * The merged map is unmodifiable and is reused for as long as the EMF is, 
+     * so repeated calls do not copy the EMF properties each time.
+     * 
+     * @param emf the shared EMF of the p-unit
+     */
+    public Map<String,Object> getProperties(EntityManagerFactory emf) {
+        int generation = propertiesGeneration.get();
+        PropertiesSnapshot snapshot = propertiesSnapshot;
+        Map<String,Object> infoMap = null;
+        if ((snapshot != null) && (snapshot.generation == generation)) {
+            if (snapshot.emf == emf)
+                return snapshot.properties;
+            // Only the EMF has changed, the PUnitInfo entry is still good
+            infoMap = snapshot.infoMap;
+        }
+        if (infoMap == null)
+            infoMap = Collections.unmodifiableMap(pUnitInfo.toMap());
+        Map<String,Object> resultMap = new HashMap<String,Object>();
+        resultMap.putAll(emf.getProperties());
+        resultMap.put("PUnitInfo", infoMap);
+        // If the properties were invalidated in the meantime then this snapshot 
+        // has an old generation, so it is not reused even though it is published
+        snapshot = new PropertiesSnapshot(emf, generation, infoMap, Collections.unmodifiableMap(resultMap));
+        propertiesSnapshot = snapshot;
+        return snapshot.properties;
+    }
+
+    /**
+     * Discard the cached properties so they are rebuilt on the next getProperties() 
+     * call (e.g. if the EMF properties or the p-unit configuration have changed).
+     */
+    public void invalidateProperties() {
+        propertiesGeneration.incrementAndGet();
+        propertiesSnapshot = null;
+    }
+
     // Use info from the cached pUnitInfo and create a new EMF
     public EntityManagerFactory createEMF(Map<String,Object> props) {
         
         String unitName =  pUnitInfo.getUnitName();
         debug("EMFProxy creating new EMF for ", unitName);
         PersistenceProvider provider = pUnitInfo.getAssignedProvider();
-        EntityManagerFactory result = provider.createEntityManagerFactory(unitName, props);
+        long start = startCall();
+        EntityManagerFactory result = null;
+        try {
+            result = provider.createEntityManagerFactory(unitName, props);
+        } finally {
+            endCall("createEMF", start, result == null);
+        }
         if (result == null)
             fatalError("Proxy could not create EMF " + unitName + " from provider " + provider, null);
         return result;
     }    
+
+    /*===============*/
+    /* Inner classes */
+    /*===============*/
+
+    // The merged properties, along with the EMF and the generation they were built from
+    static class PropertiesSnapshot {
+        final EntityManagerFactory emf;
+        final int generation;
+        final Map<String,Object> infoMap;
+        final Map<String,Object> properties;
+        PropertiesSnapshot(EntityManagerFactory emf, int generation, 
+                           Map<String,Object> infoMap, Map<String,Object> properties) {
+            this.emf = emf;
+            this.generation = generation;
+            this.infoMap = infoMap;
+            this.properties = properties;
+        }
+    }
 }        
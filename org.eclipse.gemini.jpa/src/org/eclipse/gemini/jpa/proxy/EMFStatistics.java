@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.eclipse.gemini.jpa.PUnitInfo;
+import org.eclipse.gemini.jpa.service.EMFServiceStatistics;
+import org.eclipse.gemini.jpa.service.OperationStatistics;
+
+/**
+ * EMFServiceStatistics service. The EMF service handlers of each p-unit hold 
+ * the UnitStatistics of their p-unit and time their calls with it. 
+ * 
+ * All of the counters are atomics, so calls are recorded without locking. 
+ * When collection is disabled start() returns NOT_TIMED without reading the 
+ * clock and nothing is recorded.
+ * 
+ * The statistics of a p-unit belong to the PUnitInfo they were created for, 
+ * and are dropped when its services are unregistered. A p-unit that takes 
+ * over the name of another one gets new statistics.
+ */
+public class EMFStatistics implements EMFServiceStatistics {
+
+    /*==================*/
+    /* Static constants */
+    /*==================*/
+
+    // Start time of a call that is not being timed (System.nanoTime() may return any value, even 0)
+    public static final long NOT_TIMED = Long.MIN_VALUE;
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    volatile boolean enabled;
+
+    // Statistics of each p-unit, keyed by unit name
+    ConcurrentMap<String, UnitStatistics> units = new ConcurrentHashMap<String, UnitStatistics>();
+
+    // When the statistics were last reset (or collection was turned on)
+    volatile long startTime = System.currentTimeMillis();
+
+    /*==============*/
+    /* Constructors */
+    /*==============*/
+
+    public EMFStatistics(boolean enabled) { this.enabled = enabled; }
+
+    /*==============================*/
+    /* EMFServiceStatistics methods */
+    /*==============================*/
+
+    public boolean isEnabled() { return enabled; }
+
+    public void setEnabled(boolean enabled) {
+        if (enabled && !this.enabled)
+            startTime = System.currentTimeMillis();
+        this.enabled = enabled;
+    }
+
+    public Collection<String> getUnitNames() {
+        return Collections.unmodifiableCollection(new ArrayList<String>(units.keySet()));
+    }
+
+    public Map<String, OperationStatistics> getStatistics(String unitName) {
+        Map<String, OperationStatistics> result = new HashMap<String, OperationStatistics>();
+        UnitStatistics unit = units.get(unitName);
+        if (unit != null) {
+            long elapsed = System.currentTimeMillis() - startTime;
+            for (OperationCounters counters : unit.operations.values())
+                result.put(counters.name, counters.snapshot(elapsed));
+        }
+        return result;
+    }
+
+    public void reset() {
+        startTime = System.currentTimeMillis();
+        for (UnitStatistics unit : units.values())
+            unit.operations.clear();
+    }
+
+    /*=========*/
+    /* Methods */
+    /*=========*/
+
+    /**
+     * Return the statistics for a p-unit, creating them if necessary (or 
+     * replacing those of another p-unit that had the same name)
+     */
+    public UnitStatistics forUnit(PUnitInfo pUnitInfo) {
+        String unitName = pUnitInfo.getUnitName();
+        while (true) {
+            UnitStatistics unit = units.get(unitName);
+            if ((unit != null) && (unit.owner == pUnitInfo))
+                return unit;
+            UnitStatistics newUnit = new UnitStatistics(pUnitInfo);
+            if ((unit == null) ? (units.putIfAbsent(unitName, newUnit) == null) 
+                               : units.replace(unitName, unit, newUnit))
+                return newUnit;
+        }
+    }
+
+    /**
+     * Drop the statistics of a p-unit whose services have been unregistered, 
+     * unless another p-unit with the same name has taken them over
+     */
+    public void removeUnit(PUnitInfo pUnitInfo) {
+        String unitName = pUnitInfo.getUnitName();
+        UnitStatistics unit = units.get(unitName);
+        if ((unit != null) && (unit.owner == pUnitInfo))
+            units.remove(unitName, unit);
+    }
+
+    public String toString() {
+        return "EMFStatistics(enabled=" + enabled + ", units=" + units.keySet() + ")";
+    }
+
+    /*===============*/
+    /* Inner classes */
+    /*===============*/
+
+    /**
+     * The operations of a p-unit
+     */
+    public class UnitStatistics {
+
+        // The p-unit that the statistics are for
+        final PUnitInfo owner;
+
+        ConcurrentMap<String, OperationCounters> operations = 
+            new ConcurrentHashMap<String, OperationCounters>();
+
+        UnitStatistics(PUnitInfo owner) { this.owner = owner; }
+
+        /**
+         * Return the start time of a call, or NOT_TIMED if statistics are not being collected
+         */
+        public long start() {
+            return enabled ? System.nanoTime() : NOT_TIMED;
+        }
+
+        /**
+         * Record a call that was started at the given time (does nothing if it is NOT_TIMED)
+         */
+        public void record(String operation, long start, boolean failed) {
+            if (start == NOT_TIMED)
+                return;
+            long elapsed = System.nanoTime() - start;
+            OperationCounters counters = operations.get(operation);
+            if (counters == null) {
+                OperationCounters newCounters = new OperationCounters(operation);
+                counters = operations.putIfAbsent(operation, newCounters);
+                if (counters == null)
+                    counters = newCounters;
+            }
+            counters.record(elapsed, failed);
+        }
+    }
+
+    // Counters for one operation
+    static class OperationCounters {
+
+        final String name;
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLongArray histogram = new AtomicLongArray(OperationStatistics.NUM_BUCKETS);
+
+        OperationCounters(String name) { this.name = name; }
+
+        void record(long nanos, boolean failed) {
+            count.incrementAndGet();
+            if (failed)
+                failures.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get())) {
+                if (maxNanos.compareAndSet(max, nanos))
+                    break;
+            }
+            histogram.incrementAndGet(bucket(nanos));
+        }
+
+        // Index of the power-of-two microsecond bucket that the latency falls in
+        static int bucket(long nanos) {
+            long micros = nanos / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            return Math.min(bucket, OperationStatistics.NUM_BUCKETS - 1);
+        }
+
+        OperationStatistics snapshot(long elapsedMillis) {
+            long[] buckets = new long[histogram.length()];
+            for (int i=0; i<buckets.length; i++)
+                buckets[i] = histogram.get(i);
+            return new OperationStatistics(name, count.get(), failures.get(), totalNanos.get(), 
+                                           maxNanos.get(), buckets, elapsedMillis);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.gemini.jpa.PUnitInfo;
+import org.osgi.framework.Bundle;
+
+/**
+ * Keeps track of the bundles that are using the EMF and EMFBuilder services 
+ * of a p-unit. The services are registered as service factories, so the 
+ * framework tells us when each client bundle gets and releases them.
+ * 
+ * When the last client bundle releases the services the shared EMF is closed 
+ * once the release delay has passed (unless a client has come along in the 
+ * meantime), freeing up the provider session and its connections. The next 
+ * call to the EMF service creates a new EMF the way it does the first time.
+ * 
+ * If the p-unit has an idle timeout the tracker also closes the EMF when the 
+ * EMF service has not been called for that long. The EntityManagers created 
+ * through the EMF service are kept track of (without wrapping them) so that 
+ * an EMF is never closed while one of them is open.
+ * 
+ * The EMF is left open if it was created by the EMFBuilder service (since it 
+ * could not be recreated with the same properties), if the EMFBuilder service 
+ * has handed it out (since its callers are not tracked once they have it) or 
+ * if the p-unit has an EntityManager pool or shared EntityManager service, 
+ * since the clients of those are not tracked either.
+ */
+public class EMFUsageTracker {
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    PUnitInfo pUnitInfo;
+
+    // Used to close the EMF after the release delay or when it is idle
+    ScheduledExecutorService scheduler;
+
+    // Time (in ms) to wait after the last client has gone before closing the EMF
+    long releaseDelay;
+
+    // Number of services each client bundle has gotten, keyed by bundle id 
+    // (guarded by the tracker)
+    Map<Long,Integer> clients = new HashMap<Long,Integer>();
+
+    // Pending release of the EMF, if the last client has gone (guarded by the tracker)
+    ScheduledFuture<?> pendingRelease;
+
+    // Time (in ms) without calls after which the EMF is closed (0 if not enabled)
+    volatile long idleTimeout;
+
+    // Periodic check for an idle EMF (guarded by the tracker)
+    ScheduledFuture<?> idleCheck;
+
+    // Time of the last call to the EMF service (only kept if idleTimeout is set)
+    volatile long lastAccess = System.currentTimeMillis();
+
+    // EntityManagers created through the EMF service (only kept if idleTimeout is set)
+    OpenEntityManagers openEntityManagers = new OpenEntityManagers();
+
+    // The shared EMF, if the EMFBuilder service has handed it out
+    volatile EntityManagerFactory exposedEMF;
+
+    /*==============*/
+    /* Constructors */
+    /*==============*/
+
+    public EMFUsageTracker(PUnitInfo pUnitInfo, ScheduledExecutorService scheduler, long releaseDelay) {
+        this.pUnitInfo = pUnitInfo;
+        this.scheduler = scheduler;
+        this.releaseDelay = releaseDelay;
+    }
+
+    /*=============*/
+    /* API methods */
+    /*=============*/
+
+    /**
+     * Record that a bundle has gotten one of the services
+     */
+    public synchronized void clientAcquired(Bundle b) {
+        Integer count = clients.get(b.getBundleId());
+        clients.put(b.getBundleId(), (count == null) ? 1 : count + 1);
+        if (pendingRelease != null) {
+            debug("EMFUsageTracker cancelling release of EMF for ", pUnitInfo.getUnitName());
+            pendingRelease.cancel(false);
+            pendingRelease = null;
+        }
+        debug("EMFUsageTracker ", pUnitInfo.getUnitName(), " acquired by ", b, " clients=", clients.size());
+    }
+
+    /**
+     * Record that a bundle has released one of the services. If there 
+     * are no clients left then queue the EMF to be released.
+     */
+    public synchronized void clientReleased(Bundle b) {
+        Integer count = clients.remove(b.getBundleId());
+        if ((count != null) && (count > 1))
+            clients.put(b.getBundleId(), count - 1);
+        debug("EMFUsageTracker ", pUnitInfo.getUnitName(), " released by ", b, " clients=", clients.size());
+        if (clients.isEmpty() && (scheduler != null) && (releaseDelay >= 0) && (pendingRelease == null)) {
+            try {
+                pendingRelease = scheduler.schedule(new Runnable() {
+                    public void run() { releaseIfUnused(); }
+                }, releaseDelay, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException rtEx) {
+                // Scheduler has been shut down, we are going away anyway
+                debug("EMFUsageTracker could not queue release for ", pUnitInfo.getUnitName());
+            }
+        }
+    }
+
+    /**
+     * Return the number of bundles currently using the services
+     */
+    public synchronized int getClientCount() { return clients.size(); }
+
+    /**
+     * Start checking periodically whether the EMF has been idle for the given time.
+     * Does nothing if the timeout is not positive or the checks are already running.
+     */
+    public synchronized void startIdleChecks(long timeout) {
+        idleTimeout = Math.max(timeout, 0);
+        if ((idleTimeout == 0) || (scheduler == null) || (idleCheck != null))
+            return;
+        touch();
+        long period = Math.max(idleTimeout / 4, 1000);
+        debug("EMFUsageTracker checking ", pUnitInfo.getUnitName(), " for idle EMF every ", period, "ms");
+        try {
+            idleCheck = scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() { closeIfIdle(); }
+            }, period, period, TimeUnit.MILLISECONDS);
+        } catch (RuntimeException rtEx) {
+            // Scheduler has been shut down, we are going away anyway
+            debug("EMFUsageTracker could not start idle checks for ", pUnitInfo.getUnitName());
+        }
+    }
+
+    /**
+     * Record a call to the EMF service. Must be called before the EMF is read.
+     */
+    public void touch() {
+        if (idleTimeout > 0) 
+            lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Record an EntityManager created through the EMF service, so that the EMF 
+     * is not closed while it is open. Nothing is kept if idle EMFs are not being closed.
+     */
+    public void trackEntityManager(EntityManager em) {
+        if ((idleTimeout == 0) || (em == null))
+            return;
+        openEntityManagers.add(em);
+    }
+
+    /**
+     * Record that the EMFBuilder service has handed out the shared EMF
+     */
+    public void emfExposed(EntityManagerFactory emf) { exposedEMF = emf; }
+
+    public int getOpenEntityManagerCount() { return openEntityManagers.count(); }
+
+    /**
+     * Stop tracking (called when the services are unregistered)
+     */
+    public synchronized void cancel() {
+        if (pendingRelease != null) {
+            pendingRelease.cancel(false);
+            pendingRelease = null;
+        }
+        if (idleCheck != null) {
+            idleCheck.cancel(false);
+            idleCheck = null;
+        }
+        clients.clear();
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    /**
+     * Close the shared EMF if nobody has started using the services again 
+     * while we were waiting, and it can be recreated on demand.
+     */
+    protected void releaseIfUnused() {
+        synchronized (this) {
+            pendingRelease = null;
+            if (!clients.isEmpty())
+                return;
+        }
+        EntityManagerFactory emf = null;
+        synchronized (pUnitInfo) {
+            EMFServiceProxyHandler emfHandler = pUnitInfo.getEmfHandler();
+            if (!canClose(emfHandler))
+                return;
+            synchronized (this) {
+                // A client may have arrived while we were getting the p-unit lock
+                if (!clients.isEmpty())
+                    return;
+                emf = emfHandler.syncUnsetEMF();
+            }
+        }
+        closeEMF(emf, "unused");
+    }
+
+    /**
+     * Close the shared EMF if the EMF service has not been called within the 
+     * idle timeout and none of the EntityManagers created through it are open.
+     */
+    protected void closeIfIdle() {
+        long lastSeen = lastAccess;
+        if ((pUnitInfo.getEmf() == null) || (openEntityManagers.count() > 0) 
+                || ((System.currentTimeMillis() - lastSeen) < idleTimeout))
+            return;
+        EntityManagerFactory emf = null;
+        synchronized (pUnitInfo) {
+            EMFServiceProxyHandler emfHandler = pUnitInfo.getEmfHandler();
+            if (!canClose(emfHandler))
+                return;
+            emf = emfHandler.syncUnsetEMF();
+            // A call that came in while we were deciding may already have the EMF 
+            // (it records the call before reading it), so if there was one then 
+            // put the EMF back, unless the call has already created a new one
+            if ((lastAccess != lastSeen) || (openEntityManagers.count() > 0)) {
+                if ((emf != null) && (pUnitInfo.getEmf() == null))
+                    pUnitInfo.setEmf(emf);
+                return;
+            }
+        }
+        closeEMF(emf, "idle");
+    }
+
+    // Return whether we may close the shared EMF (called while holding the p-unit lock)
+    protected boolean canClose(EMFServiceProxyHandler emfHandler) {
+        // Make sure we are still the tracker for the p-unit services 
+        return (pUnitInfo.getEmfUsage() == this) && (emfHandler != null)
+                && !pUnitInfo.isEmfSetByBuilderService() && !pUnitInfo.isEmPool() && !pUnitInfo.isSharedEm()
+                && ((exposedEMF == null) || (exposedEMF != pUnitInfo.getEmf()));
+    }
+
+    protected void closeEMF(EntityManagerFactory emf, String reason) {
+        if (emf == null)
+            return;
+        debug("EMFUsageTracker closing ", reason, " EMF for ", pUnitInfo.getUnitName());
+        try {
+            if (emf.isOpen()) 
+                emf.close();
+        } catch (RuntimeException rtEx) {
+            warning("EMFUsageTracker error closing " + reason + " EMF for " + pUnitInfo.getUnitName() + ": ", rtEx);
+        }
+    }
+
+    public String toString() {
+        return "EMFUsageTracker(" + pUnitInfo.getUnitName() + ", clients=" + getClientCount() + 
+               ", openEntityManagers=" + getOpenEntityManagerCount() + ")";
+    }
+}
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Keeps track of the EntityManagers created from an EMF so that we can tell 
+ * whether any of them are still open, and so not close the EMF underneath them.
+ * 
+ * The EntityManagers are not wrapped, so callers get the provider's own 
+ * EntityManager (and can cast it to the provider interfaces or unwrap it). 
+ * Instead they are weakly held and asked whether they are open when we need 
+ * to know. An EntityManager that is dropped without being closed stops 
+ * counting once it has been garbage collected.
+ */
+public class OpenEntityManagers {
+
+    /*==================*/
+    /* Static constants */
+    /*==================*/
+
+    // Number of EntityManagers added between looking for ones that are gone
+    static final int PRUNE_INTERVAL = 32;
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    // The EntityManagers that may still be open (guarded by the instance)
+    List<WeakReference<EntityManager>> entityManagers = new ArrayList<WeakReference<EntityManager>>();
+
+    // Size at which closed and collected EntityManagers are next taken out
+    int pruneAt = PRUNE_INTERVAL;
+
+    /*=============*/
+    /* API methods */
+    /*=============*/
+
+    /**
+     * Record an EntityManager that was created from the EMF
+     */
+    public synchronized void add(EntityManager em) {
+        entityManagers.add(new WeakReference<EntityManager>(em));
+        if (entityManagers.size() >= pruneAt) {
+            count();
+            pruneAt = entityManagers.size() + PRUNE_INTERVAL;
+        }
+    }
+
+    /**
+     * Return the number of EntityManagers that are still open, and forget the others
+     */
+    public synchronized int count() {
+        List<WeakReference<EntityManager>> open = 
+            new ArrayList<WeakReference<EntityManager>>(entityManagers.size());
+        for (WeakReference<EntityManager> ref : entityManagers) {
+            if (isOpen(ref.get()))
+                open.add(ref);
+        }
+        entityManagers = open;
+        return open.size();
+    }
+
+    public String toString() {
+        return "OpenEntityManagers(" + count() + ")";
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    protected static boolean isOpen(EntityManager em) {
+        if (em == null)
+            return false;
+        try {
+            return em.isOpen();
+        } catch (RuntimeException rtEx) {
+            // If it can't tell us then it is not usable either
+            return false;
+        }
+    }
+}
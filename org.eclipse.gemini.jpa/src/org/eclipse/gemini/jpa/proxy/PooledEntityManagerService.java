@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+import static org.eclipse.gemini.jpa.GeminiUtil.warning;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+
+import org.eclipse.gemini.jpa.PUnitInfo;
+import org.eclipse.gemini.jpa.service.EntityManagerPool;
+
+/**
+ * EntityManagerPool service for a p-unit. EntityManagers are created from 
+ * the shared EMF through the EMF proxy handler, so the pool uses the same 
+ * EMF as the EMF service and the EMF is created lazily in the same way.
+ * 
+ * Idle EntityManagers are kept in a bounded deque and handed out most recently 
+ * released first. An idle one is only reused if it is still open, came from the 
+ * current EMF and has not been idle longer than the configured time. The least 
+ * recently released ones are checked for expiry each time one is released.
+ * EntityManagers that were not created by the current EMF of the p-unit (e.g. 
+ * ones from another p-unit, or from an EMF that has since been replaced) are 
+ * closed instead of pooled.
+ */
+public class PooledEntityManagerService implements EntityManagerPool {
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    PUnitInfo pUnitInfo;
+
+    // Handler used to get the shared EMF
+    EMFServiceProxyHandler emfHandler;
+
+    int maxSize;
+    long maxIdleMillis;
+
+    // Idle entries, most recently released first
+    LinkedBlockingDeque<PooledEntityManager> idle;
+
+    AtomicLong hits = new AtomicLong();
+    AtomicLong misses = new AtomicLong();
+    AtomicLong evictions = new AtomicLong();
+
+    // Set once the service is unregistered; anything released after that is closed
+    volatile boolean closed;
+
+    /*==============*/
+    /* Constructors */
+    /*==============*/
+
+    public PooledEntityManagerService(PUnitInfo pUnitInfo, EMFServiceProxyHandler emfHandler) {
+        this.pUnitInfo = pUnitInfo;
+        this.emfHandler = emfHandler;
+        this.maxSize = Math.max(1, pUnitInfo.getEmPoolMaxSize());
+        this.maxIdleMillis = pUnitInfo.getEmPoolMaxIdle();
+        this.idle = new LinkedBlockingDeque<PooledEntityManager>(maxSize);
+    }
+
+    /*===========================*/
+    /* EntityManagerPool methods */
+    /*===========================*/
+
+    public EntityManager acquire() {
+        EntityManagerFactory emf = emfHandler.getEMF();
+        PooledEntityManager entry;
+        while ((entry = idle.pollFirst()) != null) {
+            if (isReusable(entry, emf, System.currentTimeMillis())) {
+                hits.incrementAndGet();
+                return entry.em;
+            }
+            evict(entry);
+        }
+        misses.incrementAndGet();
+        return emf.createEntityManager();
+    }
+
+    public void release(EntityManager em) {
+        if (em == null)
+            return;
+        EntityManagerFactory emf = pUnitInfo.getEmf();
+        if (closed || (emf == null) || !emf.isOpen() || !em.isOpen() 
+                || !isCreatedBy(em, emf) || !reset(em)) {
+            closeQuietly(em);
+            return;
+        }
+        // Tag the entry with the EMF that the EntityManager was found to come from
+        if (!idle.offerFirst(new PooledEntityManager(em, emf, System.currentTimeMillis()))) {
+            // Pool is full
+            evictions.incrementAndGet();
+            closeQuietly(em);
+        }
+        // If the pool was closed while we were adding then nobody else will empty it 
+        if (closed) {
+            closeIdle();
+            return;
+        }
+        evictExpired();
+    }
+
+    public long getHits() { return hits.get(); }
+    public long getMisses() { return misses.get(); }
+    public long getEvictions() { return evictions.get(); }
+    public int getIdleCount() { return idle.size(); }
+    public int getMaxSize() { return maxSize; }
+
+    /*=========*/
+    /* Methods */
+    /*=========*/
+
+    /**
+     * Close the pool and all of the idle EntityManagers in it. Called when the 
+     * service is unregistered, before the EMF is closed.
+     */
+    public void close() {
+        closed = true;
+        closeIdle();
+        debug("EntityManagerPool closed for ", pUnitInfo.getUnitName(), 
+              " hits=", hits.get(), " misses=", misses.get(), " evictions=", evictions.get());
+    }
+
+    public String toString() {
+        return "EntityManagerPool(" + pUnitInfo.getUnitName() + ", idle=" + getIdleCount() + 
+               "/" + maxSize + ", hits=" + getHits() + ", misses=" + getMisses() + 
+               ", evictions=" + getEvictions() + ")";
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    protected boolean isReusable(PooledEntityManager entry, EntityManagerFactory emf, long now) {
+        return (entry.emf == emf) 
+            && ((now - entry.releasedAt) <= maxIdleMillis) 
+            && entry.em.isOpen();
+    }
+
+    /**
+     * Return whether the EntityManager was created by the given EMF. Providers 
+     * may return an internal delegate of the EMF from getEntityManagerFactory(), 
+     * so the EMF is also asked to unwrap to the class of the one returned.
+     */
+    protected boolean isCreatedBy(EntityManager em, EntityManagerFactory emf) {
+        try {
+            EntityManagerFactory owner = em.getEntityManagerFactory();
+            if ((owner == emf) || ((owner != null) && (emf.unwrap(owner.getClass()) == owner)))
+                return true;
+        } catch (RuntimeException rtEx) {
+            // Not an EMF class the provider knows about, so not one of its delegates
+        }
+        debug("EntityManagerPool for ", pUnitInfo.getUnitName(), 
+              " closing EntityManager not created by the current EMF: ", em);
+        return false;
+    }
+
+    // Roll back any resource-local transaction and clear the persistence context
+    protected boolean reset(EntityManager em) {
+        try {
+            try {
+                EntityTransaction tx = em.getTransaction();
+                if (tx.isActive())
+                    tx.rollback();
+            } catch (IllegalStateException isEx) {
+                // JTA EntityManager - no resource-local transaction to roll back
+            }
+            em.clear();
+            return true;
+        } catch (RuntimeException rtEx) {
+            warning("EntityManagerPool could not reset EntityManager for " + pUnitInfo.getUnitName() + ": ", rtEx);
+            return false;
+        }
+    }
+
+    // Evict entries from the old end of the deque that have been idle too long
+    protected void evictExpired() {
+        long now = System.currentTimeMillis();
+        PooledEntityManager entry;
+        while (((entry = idle.peekLast()) != null) && ((now - entry.releasedAt) > maxIdleMillis)) {
+            if (idle.removeLastOccurrence(entry))
+                evict(entry);
+        }
+    }
+
+    protected void closeIdle() {
+        PooledEntityManager entry;
+        while ((entry = idle.pollFirst()) != null) {
+            closeQuietly(entry.em);
+        }
+    }
+
+    protected void evict(PooledEntityManager entry) {
+        evictions.incrementAndGet();
+        closeQuietly(entry.em);
+    }
+
+    protected void closeQuietly(EntityManager em) {
+        try {
+            if (em.isOpen()) em.close();
+        } catch (RuntimeException rtEx) {
+            debug("EntityManagerPool error closing EntityManager: ", rtEx);
+        }
+    }
+
+    /*===============*/
+    /* Inner classes */
+    /*===============*/
+
+    // An idle EntityManager, the EMF it came from and when it was released
+    static class PooledEntityManager {
+        final EntityManager em;
+        final EntityManagerFactory emf;
+        final long releasedAt;
+        PooledEntityManager(EntityManager em, EntityManagerFactory emf, long releasedAt) {
+            this.em = em;
+            this.emf = emf;
+            this.releasedAt = releasedAt;
+        }
+    }
+}
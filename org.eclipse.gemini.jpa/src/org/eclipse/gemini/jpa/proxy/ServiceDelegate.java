@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+/**
+ * Superclass of the generated classes that implement the EMF and EMFBuilder 
+ * services. The generated subclasses add the service interface and the anchor 
+ * interfaces for the p-unit, and implement each interface method that is not 
+ * already implemented by the superclass by calling it directly on the target. 
+ * 
+ * @see DelegateClassGenerator
+ */
+public abstract class ServiceDelegate {
+
+    // The proxy handler that manages the EMF for the p-unit
+    protected final EMFServiceProxyHandler handler;
+
+    protected ServiceDelegate(EMFServiceProxyHandler handler) { this.handler = handler; }
+
+    /**
+     * Return the object that generated methods are dispatched to.
+     * Called by the generated subclass on each dispatched call.
+     */
+    protected abstract Object target();
+
+    public EMFServiceProxyHandler getHandler() { return handler; }
+
+    /**
+     * Called by the generated createEntityManager methods with the EntityManager 
+     * they created. Returns the object to be returned to the caller.
+     */
+    protected Object entityManagerCreated(Object em) { return handler.entityManagerCreated(em); }
+
+    /**
+     * Called by the generated methods (and the ones in the subclasses) when a call 
+     * on the target fails, so that the failure is logged the way the reflective 
+     * proxy logged it. Returns the exception for the caller to rethrow.
+     */
+    protected <T extends Throwable> T callFailed(String methodName, T t) { 
+        handler.callFailed(methodName, t);
+        return t;
+    }
+
+    /*================*/
+    /* Object methods */
+    /*================*/
+
+    // Answer these from the handler, as the reflective proxy did
+
+    public int hashCode() { return handler.hashCode(); }
+
+    public String toString() { return handler.toString(); }
+
+    // Unlike hashCode() and toString(), the reflective EMF proxy passed equals() on 
+    // to the EMF, which meant that the service object was not even equal to itself. 
+    // A service object is just equal to itself (consistent with hashCode()).
+    public boolean equals(Object obj) { return this == obj; }
+}
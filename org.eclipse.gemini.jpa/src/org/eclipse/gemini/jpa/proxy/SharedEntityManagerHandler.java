@@ -0,0 +1,232 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.proxy;
+
+import static org.eclipse.gemini.jpa.GeminiUtil.debug;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+
+import org.eclipse.gemini.jpa.PUnitInfo;
+import org.eclipse.gemini.jpa.service.EntityManagerScope;
+
+/**
+ * Dynamic proxy handler for the shared EntityManager service of a p-unit. 
+ * The proxy implements both EntityManager and EntityManagerScope. Scope 
+ * calls are handled here, and EntityManager calls are passed on to the 
+ * EntityManager bound to the calling thread, which is created from the 
+ * shared EMF (through the EMF proxy handler) on first use.
+ * 
+ * If the shared EMF has been replaced since the EntityManager of a thread 
+ * was created then a new one is created for the thread.
+ */
+public class SharedEntityManagerHandler implements InvocationHandler, EntityManagerScope {
+
+    /*================*/
+    /* Instance state */
+    /*================*/
+
+    PUnitInfo pUnitInfo;
+
+    // Handler used to get the shared EMF
+    EMFServiceProxyHandler emfHandler;
+
+    // The scope of each thread that has one
+    ThreadLocal<Scope> scopes = new ThreadLocal<Scope>();
+
+    // All of the scopes that have an EntityManager, so they can be closed when the service goes away
+    Set<Scope> activeScopes = Collections.newSetFromMap(new ConcurrentHashMap<Scope, Boolean>());
+
+    // Set once the service is unregistered
+    volatile boolean closed;
+
+    /*==============*/
+    /* Constructors */
+    /*==============*/
+
+    public SharedEntityManagerHandler(PUnitInfo pUnitInfo, EMFServiceProxyHandler emfHandler) {
+        this.pUnitInfo = pUnitInfo;
+        this.emfHandler = emfHandler;
+    }
+
+    /*=========================*/
+    /* InvocationProxy methods */
+    /*=========================*/
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+        String name = method.getName();
+        if (method.getDeclaringClass() == EntityManagerScope.class) {
+            try {
+                return method.invoke(this, args);
+            } catch (InvocationTargetException itEx) {
+                throw itEx.getCause();
+            }
+        }
+        if (method.getDeclaringClass() == Object.class) {
+            if (name.equals("equals"))
+                return proxy == args[0];
+            if (name.equals("hashCode"))
+                return this.hashCode();
+            if (name.equals("toString"))
+                return this.toString();
+        }
+        if (name.equals("isOpen"))
+            return !closed;
+        if (name.equals("close"))
+            throw new IllegalStateException("Shared EntityManager for " + pUnitInfo.getUnitName() + 
+                                            " can not be closed. End the EntityManagerScope instead.");
+        try {
+            return method.invoke(currentEntityManager(), args);
+        } catch (InvocationTargetException itEx) {
+            throw itEx.getCause();
+        }
+    }
+
+    /*============================*/
+    /* EntityManagerScope methods */
+    /*============================*/
+
+    public void begin() {
+        Scope scope = scopes.get();
+        if (scope == null) {
+            scope = new Scope();
+            scopes.set(scope);
+        }
+        scope.depth++;
+    }
+
+    public void end() {
+        Scope scope = scopes.get();
+        if (scope == null)
+            return;
+        if (--scope.depth > 0)
+            return;
+        scopes.remove();
+        closeScope(scope);
+    }
+
+    public boolean isActive() { return scopes.get() != null; }
+
+    public int getActiveCount() { return activeScopes.size(); }
+
+    /*=========*/
+    /* Methods */
+    /*=========*/
+
+    /**
+     * Return a proxy that provides the EntityManager and EntityManagerScope services
+     */
+    public Object createProxy() {
+        return Proxy.newProxyInstance(SharedEntityManagerHandler.class.getClassLoader(),
+                                      new Class<?>[] { EntityManager.class, EntityManagerScope.class },
+                                      this);
+    }
+
+    /**
+     * Close the EntityManagers of all of the threads. Called when the 
+     * service is unregistered, before the EMF is closed.
+     */
+    public void close() {
+        closed = true;
+        for (Scope scope : activeScopes) {
+            closeScope(scope);
+        }
+        debug("SharedEntityManager closed for ", pUnitInfo.getUnitName());
+    }
+
+    public String toString() {
+        return "SharedEntityManager(" + pUnitInfo.getUnitName() + ", active=" + getActiveCount() + ")";
+    }
+
+    /*================*/
+    /* Helper methods */
+    /*================*/
+
+    // Return the EntityManager of the calling thread, creating it if necessary
+    protected EntityManager currentEntityManager() {
+        if (closed)
+            throw new IllegalStateException("Shared EntityManager for " + pUnitInfo.getUnitName() + 
+                                            " is no longer registered");
+        Scope scope = scopes.get();
+        if (scope == null) {
+            // First use without a scope; the thread must call end() to release it
+            scope = new Scope();
+            scope.depth = 1;
+            scopes.set(scope);
+        }
+        EntityManagerFactory emf = emfHandler.getEMF();
+        synchronized (scope) {
+            if ((scope.em == null) || (scope.emf != emf) || !scope.em.isOpen()) {
+                if (scope.em != null)
+                    closeQuietly(scope.em);
+                scope.em = (EntityManager) emfHandler.entityManagerCreated(emf.createEntityManager());
+                scope.emf = emf;
+                activeScopes.add(scope);
+            }
+            return scope.em;
+        }
+    }
+
+    // Roll back any resource-local transaction and close the EntityManager of a scope
+    protected void closeScope(Scope scope) {
+        activeScopes.remove(scope);
+        EntityManager em;
+        synchronized (scope) {
+            em = scope.em;
+            scope.em = null;
+            scope.emf = null;
+        }
+        if (em == null)
+            return;
+        try {
+            EntityTransaction tx = em.getTransaction();
+            if (tx.isActive())
+                tx.rollback();
+        } catch (RuntimeException rtEx) {
+            // JTA EntityManager, or already closed - nothing to roll back
+        }
+        closeQuietly(em);
+    }
+
+    protected void closeQuietly(EntityManager em) {
+        try {
+            if (em.isOpen()) em.close();
+        } catch (RuntimeException rtEx) {
+            debug("SharedEntityManager error closing EntityManager: ", rtEx);
+        }
+    }
+
+    /*===============*/
+    /* Inner classes */
+    /*===============*/
+
+    // The EntityManager of a thread and how deeply nested its scopes are.
+    // Only used by its own thread, except when closed by the service.
+    static class Scope {
+        int depth;
+        EntityManager em;
+        EntityManagerFactory emf;
+    }
+}
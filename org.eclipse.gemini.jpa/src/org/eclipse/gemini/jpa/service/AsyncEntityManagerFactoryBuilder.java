@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.service;
+
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Service registered by Gemini JPA for each persistence unit along with the 
+ * EntityManagerFactoryBuilder service, and with the same service properties. 
+ * It creates EMFs the same way the EntityManagerFactoryBuilder service does, 
+ * but on a Gemini JPA thread, so that the caller does not have to wait while 
+ * the provider processes the metadata of the persistence unit.
+ * 
+ * Concurrent requests with the same properties share a single creation, but 
+ * each gets its own Future. Cancelling a Future only cancels it for that caller; 
+ * the creation itself is only cancelled once all of its callers have cancelled. 
+ * If the persistence unit is unregistered before the EMF has been created 
+ * then the returned Future is cancelled and any EMF that does get created 
+ * is closed.
+ * 
+ * @see org.osgi.service.jpa.EntityManagerFactoryBuilder
+ */
+public interface AsyncEntityManagerFactoryBuilder {
+
+    /**
+     * Start creating an EMF for the persistence unit (or getting the one that 
+     * already exists) and return a Future for it.
+     * 
+     * @param props the properties that would be passed to 
+     *        EntityManagerFactoryBuilder.createEntityManagerFactory()
+     * 
+     * @return a Future that provides the EMF, or the exception that 
+     *         creating it failed with 
+     */
+    Future<EntityManagerFactory> createEntityManagerFactory(Map<String,Object> props);
+
+    /**
+     * Return the number of creations that have been started and not yet finished
+     */
+    int getPendingCount();
+}
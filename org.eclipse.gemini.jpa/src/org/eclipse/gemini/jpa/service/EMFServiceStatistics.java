@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.service;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Service registered by Gemini JPA (along with the persistence provider service) 
+ * that reports the number of calls made to the EMF and EMFBuilder services of 
+ * each persistence unit and how long they took. 
+ * 
+ * Collection is off unless the org.eclipse.gemini.statistics system property 
+ * is set to true, and can be turned on and off at any time through this service. 
+ * When it is off the services only check a flag on each call.
+ * 
+ * Calls to createEntityManager, getCriteriaBuilder and getMetamodel on the EMF 
+ * service are recorded under those names, the creation of an EMF by the provider 
+ * is recorded as "createEMF" and calls to the EMFBuilder service are recorded as 
+ * "builder.createEntityManagerFactory". When the EMF service is implemented by a 
+ * reflective proxy its other methods are recorded as well.
+ */
+public interface EMFServiceStatistics {
+
+    /**
+     * Return whether statistics are being collected
+     */
+    boolean isEnabled();
+
+    /**
+     * Turn collection of statistics on or off. Statistics that have 
+     * been collected are kept when it is turned off.
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * Return the names of the persistence units that statistics have been collected for
+     */
+    Collection<String> getUnitNames();
+
+    /**
+     * Return a snapshot of the statistics for a persistence unit, keyed by operation 
+     * name. The map is empty if no statistics have been collected for the unit.
+     */
+    Map<String, OperationStatistics> getStatistics(String unitName);
+
+    /**
+     * Discard all of the statistics that have been collected
+     */
+    void reset();
+}
@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.service;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Service registered by Gemini JPA for a persistence unit that has the 
+ * gemini.jpa.emPool property set to true. It is registered alongside the 
+ * EMF service, with the same service properties, and hands out EntityManagers 
+ * from the shared EMF of the persistence unit.
+ * 
+ * An EntityManager that is released back to the pool is cleared and kept for 
+ * the next caller to acquire, saving the cost of creating a new one. A client 
+ * must not use an EntityManager after releasing it. EntityManagers that have 
+ * been idle too long, or that come back when the pool is full, are closed.
+ * 
+ * @see org.eclipse.gemini.jpa.GeminiPersistenceUnitProperties#EM_POOL
+ */
+public interface EntityManagerPool {
+
+    /**
+     * Return an EntityManager, recycled from the pool if one is available.
+     * 
+     * @return an open EntityManager
+     */
+    EntityManager acquire();
+
+    /**
+     * Give an EntityManager back to the pool. Any active resource-local 
+     * transaction is rolled back and the persistence context is cleared. 
+     * If the EntityManager can not be reused then it is closed.
+     * 
+     * @param em an EntityManager obtained from acquire()
+     */
+    void release(EntityManager em);
+
+    /** 
+     * Return the number of times acquire() was given a pooled EntityManager 
+     */
+    long getHits();
+
+    /** 
+     * Return the number of times acquire() had to create a new EntityManager 
+     */
+    long getMisses();
+
+    /** 
+     * Return the number of pooled EntityManagers that were closed because they 
+     * were idle too long, were no longer valid, or did not fit in the pool
+     */
+    long getEvictions();
+
+    /** 
+     * Return the number of EntityManagers currently idle in the pool 
+     */
+    int getIdleCount();
+
+    /** 
+     * Return the maximum number of idle EntityManagers kept in the pool 
+     */
+    int getMaxSize();
+}
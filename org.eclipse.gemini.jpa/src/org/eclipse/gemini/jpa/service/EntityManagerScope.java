@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.service;
+
+/**
+ * Service registered by Gemini JPA for a persistence unit that has the 
+ * gemini.jpa.sharedEntityManager property set to true. It is registered along 
+ * with a javax.persistence.EntityManager service for the persistence unit, 
+ * with the same service properties (the same object provides both services).
+ * 
+ * Calls to the EntityManager service go to an EntityManager that is bound to 
+ * the calling thread. It is created from the shared EMF of the persistence 
+ * unit the first time the thread uses the service, and is closed when the 
+ * outermost scope of the thread ends. Scopes may be nested, so a component 
+ * can begin and end a scope without knowing whether its caller (for example 
+ * a servlet filter) has already begun one. A thread that uses the service 
+ * without beginning a scope must still call end() to release its EntityManager.
+ * 
+ * The EntityManager service can not be closed by clients; the EntityManager 
+ * of a thread is closed by ending the scope.
+ * 
+ * @see org.eclipse.gemini.jpa.GeminiPersistenceUnitProperties#SHARED_EM
+ */
+public interface EntityManagerScope {
+
+    /**
+     * Begin a scope on the calling thread. The EntityManager of the thread 
+     * (if it has one, or once it has one) is kept until the matching end().
+     */
+    void begin();
+
+    /**
+     * End a scope on the calling thread. When the outermost scope is ended the 
+     * EntityManager of the thread is closed. Any active resource-local transaction 
+     * is rolled back first. Does nothing if the thread has no scope.
+     */
+    void end();
+
+    /**
+     * Return whether the calling thread has begun a scope or has an EntityManager 
+     */
+    boolean isActive();
+
+    /**
+     * Return the number of threads that currently have an EntityManager 
+     */
+    int getActiveCount();
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.service;
+
+/**
+ * Snapshot of the statistics collected for one operation of a persistence unit.
+ * Latencies are also counted in a histogram of power-of-two microsecond buckets, 
+ * where bucket i counts the calls that took less than 2^i microseconds (and at 
+ * least 2^(i-1)), and the last bucket counts everything longer.
+ * 
+ * @see EMFServiceStatistics
+ */
+public class OperationStatistics {
+
+    public static final int NUM_BUCKETS = 32;
+
+    final String name;
+    final long count;
+    final long failures;
+    final long totalNanos;
+    final long maxNanos;
+    final long[] histogram;
+    final long elapsedMillis;
+
+    public OperationStatistics(String name, long count, long failures, long totalNanos, 
+                               long maxNanos, long[] histogram, long elapsedMillis) {
+        this.name = name;
+        this.count = count;
+        this.failures = failures;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+        this.histogram = histogram.clone();
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public String getName() { return name; }
+
+    /** Return the number of calls (including the ones that failed) */
+    public long getCount() { return count; }
+
+    /** Return the number of calls that threw an exception */
+    public long getFailures() { return failures; }
+
+    public long getTotalNanos() { return totalNanos; }
+    public long getMaxNanos() { return maxNanos; }
+    public long getMeanNanos() { return (count == 0) ? 0 : totalNanos / count; }
+
+    /** Return the latency histogram (a copy) */
+    public long[] getHistogram() { return histogram.clone(); }
+
+    /** Return the time (in ms) over which the calls were counted */
+    public long getElapsedMillis() { return elapsedMillis; }
+
+    /** Return the number of calls per second over the elapsed time */
+    public double getThroughput() {
+        return (elapsedMillis <= 0) ? 0 : (count * 1000.0) / elapsedMillis;
+    }
+
+    /**
+     * Return an upper bound (in ns) on the latency of the given fraction of calls, 
+     * e.g. 0.99 for the 99th percentile, as determined by the histogram bucket 
+     * that the percentile falls in.
+     */
+    public long getPercentileNanos(double fraction) {
+        if (count == 0)
+            return 0;
+        long threshold = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i=0; i<histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= threshold)
+                return Math.min((1L << i) * 1000L, maxNanos);
+        }
+        return maxNanos;
+    }
+
+    public String toString() {
+        return name + "(count=" + count + ", failures=" + failures + 
+               ", meanNanos=" + getMeanNanos() + ", p99Nanos=" + getPercentileNanos(0.99) + 
+               ", maxNanos=" + maxNanos + ", throughput=" + getThroughput() + "/s)";
+    }
+}
@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * Copyright (c) 2010 Oracle.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution. 
+ * The Eclipse Public License is available at
+ *     http://www.eclipse.org/legal/epl-v10.html
+ * and the Apache License v2.0 is available at 
+ *     http://www.opensource.org/licenses/apache2.0.php.
+ * You may elect to redistribute this code under either of these licenses.
+ *
+ * Contributors:
+ *     mkeith - Gemini JPA work 
+ ******************************************************************************/
+package org.eclipse.gemini.jpa.service;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Service registered by Gemini JPA (along with the persistence provider service) 
+ * to generate the schema of a persistence unit without creating its EMF or 
+ * registering any services for it. The persistence unit only needs to be in a 
+ * bundle that has been processed by Gemini JPA.
+ * 
+ * This allows the DDL to be generated ahead of time (e.g. as part of a build) 
+ * rather than having the provider generate the tables each time the EMF is 
+ * created. When the database is not a target of the generation and the database 
+ * product name is given (javax.persistence.database-product-name, or the 
+ * EclipseLink target database) then the database is not connected to.
+ */
+public interface SchemaGenerator {
+
+    /**
+     * Generate the schema for a persistence unit as directed by the standard
+     * javax.persistence.schema-generation properties.
+     * 
+     * @param unitName name of the persistence unit
+     * @param properties schema generation and other persistence unit properties
+     * 
+     * @return true if the schema was generated
+     */
+    boolean generateSchema(String unitName, Map<String,?> properties);
+
+    /**
+     * Write the create and/or drop scripts for a persistence unit to files. 
+     * Nothing is done to the database.
+     * 
+     * @param unitName name of the persistence unit
+     * @param createScript file to write the create script to, or null if not wanted
+     * @param dropScript file to write the drop script to, or null if not wanted
+     * @param properties additional properties, normally including the database product name
+     * 
+     * @return true if the scripts were written
+     */
+    boolean writeScripts(String unitName, File createScript, File dropScript, Map<String,?> properties);
+}
@@ -22,6 +22,7 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
 
+import org.eclipse.gemini.jpa.GeminiPersistenceUnitProperties;
 import org.eclipse.gemini.jpa.GeminiUtil;
 import org.eclipse.gemini.jpa.PUnitInfo;
 
@@ -98,6 +99,28 @@ public class PersistenceDescriptorHandler extends DefaultHandler {
                 currentPUnit.setDriverPassword(propValue);
             else if (propName.equals(GeminiUtil.OSGI_JDBC_DRIVER_VERSION_PROPERTY))
                 currentPUnit.setDriverVersion(propValue);
+            else if (propName.equals(GeminiPersistenceUnitProperties.WARM_UP))
+                currentPUnit.setWarmUp(Boolean.parseBoolean(propValue.trim()));
+            else if (propName.equals(GeminiPersistenceUnitProperties.WARM_UP_QUERIES))
+                currentPUnit.setWarmUpQueries(GeminiUtil.splitQueries(propValue));
+            else if (propName.equals(GeminiPersistenceUnitProperties.EM_POOL))
+                currentPUnit.setEmPool(Boolean.parseBoolean(propValue.trim()));
+            else if (propName.equals(GeminiPersistenceUnitProperties.EM_POOL_MAX_SIZE))
+                currentPUnit.setEmPoolMaxSize(GeminiUtil.intValue(propName, propValue, 
+                        GeminiPersistenceUnitProperties.EM_POOL_MAX_SIZE_DEFAULT));
+            else if (propName.equals(GeminiPersistenceUnitProperties.EM_POOL_MAX_IDLE))
+                currentPUnit.setEmPoolMaxIdle(GeminiUtil.intValue(propName, propValue, 
+                        GeminiPersistenceUnitProperties.EM_POOL_MAX_IDLE_DEFAULT));
+            else if (propName.equals(GeminiPersistenceUnitProperties.EMF_CACHE))
+                currentPUnit.setEmfCache(Boolean.parseBoolean(propValue.trim()));
+            else if (propName.equals(GeminiPersistenceUnitProperties.EMF_CACHE_MAX_SIZE))
+                currentPUnit.setEmfCacheMaxSize(GeminiUtil.intValue(propName, propValue, 
+                        GeminiPersistenceUnitProperties.EMF_CACHE_MAX_SIZE_DEFAULT));
+            else if (propName.equals(GeminiPersistenceUnitProperties.EMF_CACHE_MAX_IDLE))
+                currentPUnit.setEmfCacheMaxIdle(GeminiUtil.intValue(propName, propValue, 
+                        GeminiPersistenceUnitProperties.EMF_CACHE_MAX_IDLE_DEFAULT));
+            else if (propName.equals(GeminiPersistenceUnitProperties.SHARED_EM))
+                currentPUnit.setSharedEm(Boolean.parseBoolean(propValue.trim()));
         }
     }
 